@@ -19,6 +19,7 @@ import java.util.*;
 import org.signserver.common.AuthorizedClient;
 import org.signserver.common.GlobalConfiguration;
 import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerPropertiesUpdate;
 import org.signserver.common.util.PropertiesConstants;
 import static org.signserver.common.util.PropertiesConstants.*;
 
@@ -38,6 +39,10 @@ public class SetPropertiesHelper {
     private PrintStream out;
     private AdminCommandHelper helper = new AdminCommandHelper();
     private List<Integer> workerDeclarations = new ArrayList<>();
+    private int nextGenId;
+
+    /** Worker property changes to apply all at once, in order of worker. */
+    private final Map<Integer, WorkerPropertiesUpdate> updates = new LinkedHashMap<>();
 
     public SetPropertiesHelper(PrintStream out) {
         this.out = out;
@@ -51,9 +56,33 @@ public class SetPropertiesHelper {
                 String key = (String) iter.nextElement();
                 processKey(key.toUpperCase(), properties.getProperty(key));
             }
+            applyWorkerProperties();
+        }
+    }
+
+    /**
+     * Stores the worker properties collected so far in one bulk update.
+     * The workers updated are also reloaded.
+     *
+     * @throws RemoteException in case of communication error
+     * @throws Exception in case of failure
+     */
+    public void applyWorkerProperties() throws RemoteException, Exception {
+        if (!updates.isEmpty()) {
+            helper.getWorkerSession().updateWorkerProperties(new ArrayList<>(updates.values()));
+            updates.clear();
         }
     }
 
+    private WorkerPropertiesUpdate getUpdate(int workerId) {
+        WorkerPropertiesUpdate result = updates.get(workerId);
+        if (result == null) {
+            result = new WorkerPropertiesUpdate(workerId);
+            updates.put(workerId, result);
+        }
+        return result;
+    }
+
     public void processKey(String key, String value) throws RemoteException, Exception {
         if (isRemoveKey(key)) {
             String newkey = key.substring(REMOVE_PREFIX.length());
@@ -123,8 +152,12 @@ public class SetPropertiesHelper {
 
     private int getGenId(String splittedKey) throws RemoteException, Exception {
         if (genIds.get(splittedKey) == null) {
-            int genid = helper.getWorkerSession().genFreeWorkerId();
-            genIds.put(splittedKey, genid);
+            // The workers are not stored until the end so only look up the
+            // first free ID once and then continue from it
+            if (nextGenId == 0) {
+                nextGenId = helper.getWorkerSession().genFreeWorkerId();
+            }
+            genIds.put(splittedKey, nextGenId++);
         }
         return ((Integer) genIds.get(splittedKey));
     }
@@ -244,7 +277,7 @@ public class SetPropertiesHelper {
                     helper.getWorkerSession().uploadSignerCertificateChain(workerId, chain, GlobalConfiguration.SCOPE_GLOBAL);
                 } else {
                     out.println("Setting the property " + propertykey + " to " + propertyvalue + " for worker " + workerId);
-                    helper.getWorkerSession().setWorkerProperty(workerId, propertykey, propertyvalue);
+                    getUpdate(workerId).setProperty(propertykey, propertyvalue);
                 }
             }
         }
@@ -264,7 +297,7 @@ public class SetPropertiesHelper {
                     out.println("Removal of signing certificate chains isn't supported, skipped.");
                 } else {
                     out.println("Removing the property " + propertykey + "  for worker " + workerId);
-                    helper.getWorkerSession().removeWorkerProperty(workerId, propertykey);
+                    getUpdate(workerId).removeProperty(propertykey);
                 }
             }
         }
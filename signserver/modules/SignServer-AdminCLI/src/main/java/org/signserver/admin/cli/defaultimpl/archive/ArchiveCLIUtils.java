@@ -16,6 +16,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import org.signserver.common.ArchiveDataVO;
 
 /**
@@ -27,15 +28,13 @@ import org.signserver.common.ArchiveDataVO;
 public class ArchiveCLIUtils {
     
     public void writeToFile(final File file, final ArchiveDataVO archiveData) throws FileNotFoundException, IOException {
-        FileOutputStream os = null;
-        try {
-            os = new FileOutputStream(file);
-            os.write(archiveData.getArchivedBytes());
-        } finally {
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException ignored) {} // NOPMD
+        // Stream the data as it might be stored in a file
+        try (InputStream in = archiveData.getArchivedInputStream();
+                FileOutputStream os = new FileOutputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
             }
         }
     }
@@ -42,7 +42,6 @@ import org.jdesktop.application.Action;
 import org.jdesktop.application.Task;
 import org.signserver.admin.gui.adminws.gen.AdminNotAuthorizedException_Exception;
 import org.signserver.common.WorkerConfig;
-import org.signserver.common.util.PropertiesApplier;
 import org.signserver.common.util.PropertiesConstants;
 import org.signserver.common.util.PropertiesParser;
 
@@ -1095,7 +1094,7 @@ public class AddWorkerDialog extends javax.swing.JDialog {
                 // TODO: maybe add a "more errors..." view later...
                 return "Error parsing properties: " + errors.get(0);
             } else {
-                final PropertiesApplier applier = new AdminGUIPropertiesApplier();
+                final AdminGUIPropertiesApplier applier = new AdminGUIPropertiesApplier();
 
                 applier.apply(parser);
 
@@ -1107,7 +1106,10 @@ public class AddWorkerDialog extends javax.swing.JDialog {
 
                 try {
                     for (final int workerId : modifiedWorkers) {
-                        SignServerAdminGUIApplication.getAdminWS().reloadConfiguration(workerId);
+                        // Workers with updated properties have already been reloaded
+                        if (!applier.getReloadedWorkerIds().contains(workerId)) {
+                            SignServerAdminGUIApplication.getAdminWS().reloadConfiguration(workerId);
+                        }
                     }
                 } catch (AdminNotAuthorizedException_Exception | SOAPFaultException | EJBException e) {
                     return "Error reloading workers: " + e.getMessage();
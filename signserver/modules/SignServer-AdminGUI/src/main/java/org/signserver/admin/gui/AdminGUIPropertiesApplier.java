@@ -12,7 +12,11 @@
  *************************************************************************/
 package org.signserver.admin.gui;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.ejb.EJBException;
 import javax.xml.ws.soap.SOAPFaultException;
 
@@ -21,6 +25,7 @@ import org.signserver.admin.gui.adminws.gen.IllegalRequestException_Exception;
 import org.signserver.common.AuthorizedClient;
 import org.signserver.common.GlobalConfiguration;
 import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerPropertiesUpdate;
 import org.signserver.common.util.PropertiesApplier;
 
 /**
@@ -32,6 +37,9 @@ import org.signserver.common.util.PropertiesApplier;
  */
 public class AdminGUIPropertiesApplier extends PropertiesApplier {
 
+    /** Workers already reloaded by the bulk update. */
+    private final Set<Integer> reloadedWorkerIds = new HashSet<>();
+
     @Override
     protected void setGlobalProperty(String scope, String key, String value) throws PropertiesApplierException {
         try {
@@ -76,6 +84,47 @@ public class AdminGUIPropertiesApplier extends PropertiesApplier {
         }
     }
 
+    @Override
+    protected void updateWorkerProperties(List<WorkerPropertiesUpdate> updates) throws PropertiesApplierException {
+        final List<org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate> wsUpdates = new ArrayList<>(updates.size());
+        for (final WorkerPropertiesUpdate update : updates) {
+            final org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate wsUpdate =
+                    new org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate();
+            final org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate.SetProperties setProperties =
+                    new org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate.SetProperties();
+
+            wsUpdate.setWorkerId(update.getWorkerId());
+            for (final Map.Entry<String, String> property : update.getSetProperties().entrySet()) {
+                final org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate.SetProperties.Entry entry =
+                        new org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate.SetProperties.Entry();
+                entry.setKey(property.getKey());
+                entry.setValue(property.getValue());
+                setProperties.getEntry().add(entry);
+            }
+            wsUpdate.setSetProperties(setProperties);
+            wsUpdate.getRemoveProperties().addAll(update.getRemoveProperties());
+            wsUpdates.add(wsUpdate);
+        }
+        try {
+            SignServerAdminGUIApplication.getAdminWS().updateWorkerProperties(wsUpdates);
+            for (final WorkerPropertiesUpdate update : updates) {
+                reloadedWorkerIds.add(update.getWorkerId());
+            }
+        } catch (AdminNotAuthorizedException_Exception e) {
+            throw new PropertiesApplierException(e);
+        } catch (EJBException | SOAPFaultException ex) {
+            throw new PropertiesApplierException("Operation failed on server side", ex);
+        }
+    }
+
+    /**
+     * @return IDs of the workers that were reloaded when their properties
+     * were updated and so does not need to be reloaded again
+     */
+    public Set<Integer> getReloadedWorkerIds() {
+        return reloadedWorkerIds;
+    }
+
     @Override
     protected void uploadSignerCertificate(int workerId, byte[] signerCert) throws PropertiesApplierException {
         try {
@@ -381,6 +381,32 @@ public class AdminLayerEJBImpl implements AdminWS {
         return worker.removeWorkerProperty(workerId, key);
     }
 
+    /**
+     * Sets and removes properties of several workers at once.
+     *
+     * @param updates properties to set and remove for each worker
+     */
+    @Override
+    public void updateWorkerProperties(
+            final List<org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate> updates) {
+        final List<org.signserver.common.WorkerPropertiesUpdate> result = new LinkedList<>();
+        for (org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate update : updates) {
+            final org.signserver.common.WorkerPropertiesUpdate converted
+                    = new org.signserver.common.WorkerPropertiesUpdate(update.getWorkerId());
+            if (update.getSetProperties() != null) {
+                for (org.signserver.admin.gui.adminws.gen.WorkerPropertiesUpdate.SetProperties.Entry entry
+                        : update.getSetProperties().getEntry()) {
+                    converted.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            for (String key : update.getRemoveProperties()) {
+                converted.removeProperty(key);
+            }
+            result.add(converted);
+        }
+        worker.updateWorkerProperties(result);
+    }
+
     /**
      * Method that returns a collection of AuthorizedClient of
      * client certificate sn and issuerid accepted for a given signer.
@@ -12,8 +12,20 @@
  *************************************************************************/
 package org.signserver.common;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Envelope class containing the archive data along with
@@ -33,9 +45,15 @@ public class ArchiveDataVO implements Serializable {
     
     /** Archive type is request. */
     public static final int TYPE_REQUEST = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
     
     private ArchiveData archiveData = null;
     private byte[] archivedBytes;
+
+    /** File with the archived data, streamed when serialized. */
+    private transient File archivedFile;
+    private transient boolean deflated;
     private int type = 0;
     private Date time = null;
     private String archiveId = null;
@@ -68,6 +86,34 @@ public class ArchiveDataVO implements Serializable {
         this.archivedBytes = archivedBytes;
     }
 
+    /**
+     * Creates an instance for data stored in a file. The file is not read
+     * into memory, also not when the instance is serialized, and a
+     * deserialized instance has the data in a temporary file.
+     * @param type Archive type
+     * @param signerId Signer ID
+     * @param archiveId Archive ID
+     * @param time Time of archiving
+     * @param requestIssuerDN Issuer of the client certificate
+     * @param requestSerialnumber Serial number of the client certificate
+     * @param requestIP Request IP address
+     * @param archivedFile File with the archived data
+     * @param deflated If the content of the file is deflate compressed
+     * @see #getArchivedInputStream()
+     */
+    public ArchiveDataVO(int type, int signerId, String archiveId, Date time, String requestIssuerDN, String requestSerialnumber, String requestIP, File archivedFile, boolean deflated) {
+        super();
+        this.type = type;
+        this.signerId = signerId;
+        this.time = time;
+        this.archiveId = archiveId;
+        this.requestIssuerDN = requestIssuerDN;
+        this.requestSerialnumber = requestSerialnumber;
+        this.requestIP = requestIP;
+        this.archivedFile = archivedFile;
+        this.deflated = deflated;
+    }
+
     /**
      * @return Returns the archiveData or null if not available.
      * @see #getArchivedBytes()
@@ -78,15 +124,39 @@ public class ArchiveDataVO implements Serializable {
     
     /**
      * @return The archived bytes independent on how they were stored.
+     * @see #getArchivedInputStream()
      */
     public byte[] getArchivedBytes() {
         if (archiveData != null) {
             return archiveData.getData();
+        } else if (archivedFile != null) {
+            try (InputStream in = getArchivedInputStream()) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                copy(in, out);
+                return out.toByteArray();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Archived data unavailable: " + ex.getMessage(), ex);
+            }
         } else {
             return archivedBytes;
         }
     }
 
+    /**
+     * Opens the archived data for reading without first reading all of it
+     * into memory, if it was stored in a file.
+     * @return The archived data independent on how it was stored
+     * @throws IOException in case the stored data could not be opened
+     */
+    public InputStream getArchivedInputStream() throws IOException {
+        if (archivedFile != null) {
+            final InputStream in = new BufferedInputStream(new FileInputStream(archivedFile), BUFFER_SIZE);
+            return deflated ? new InflaterInputStream(in) : in;
+        } else {
+            return new ByteArrayInputStream(getArchivedBytes());
+        }
+    }
+
     /**
      * @return Returns the archiveId.
      */
@@ -135,4 +205,50 @@ public class ArchiveDataVO implements Serializable {
     public int getSignerId() {
         return signerId;
     }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(archivedFile != null);
+        if (archivedFile != null) {
+            // Stream the stored file in chunks as it might be large
+            out.writeBoolean(deflated);
+            try (InputStream in = new FileInputStream(archivedFile)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.writeInt(n);
+                    out.write(buffer, 0, n);
+                }
+            }
+            out.writeInt(0);
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            deflated = in.readBoolean();
+            archivedFile = File.createTempFile("archivedata-", ".tmp");
+            archivedFile.deleteOnExit();
+            try (OutputStream out = new FileOutputStream(archivedFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.readInt()) > 0) {
+                    if (n > buffer.length) {
+                        buffer = new byte[n];
+                    }
+                    in.readFully(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
 }
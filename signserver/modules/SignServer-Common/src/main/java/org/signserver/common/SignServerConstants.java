@@ -89,6 +89,13 @@ public class SignServerConstants {
      */
     public static final String KEYUSAGELIMIT = "KEYUSAGELIMIT";
     public static String DISABLEKEYUSAGECOUNTER = "DISABLEKEYUSAGECOUNTER";
+    /**
+     * Number of key usages to reserve from the key usage counter at a time.
+     * Usages are then taken from the reserved block in memory instead of
+     * updating the counter for every signing.
+     * The default (1) means that the counter is updated for every signing.
+     */
+    public static final String KEYUSAGECOUNTERBLOCKSIZE = "KEYUSAGECOUNTERBLOCKSIZE";
     /**
      * Constant used to set the default value of configuration property to NULL if not setting property means property value is NULL.
      * 
@@ -0,0 +1,102 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Properties to set and to remove for one worker, applied together with the
+ * updates for other workers by a bulk update.
+ *
+ * An empty value for the TYPE property means that the worker type should be
+ * auto-detected, as when setting the property by itself.
+ *
+ * @version $Id$
+ */
+public class WorkerPropertiesUpdate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int workerId;
+    private Map<String, String> setProperties = new LinkedHashMap<>();
+    private List<String> removeProperties = new ArrayList<>();
+
+    public WorkerPropertiesUpdate() {
+    }
+
+    public WorkerPropertiesUpdate(int workerId) {
+        this.workerId = workerId;
+    }
+
+    /**
+     * Adds a property to set.
+     * @param key property name
+     * @param value new value
+     */
+    public void setProperty(String key, String value) {
+        removeProperties.remove(key);
+        setProperties.put(key, value);
+    }
+
+    /**
+     * Adds a property to remove.
+     * @param key property name
+     */
+    public void removeProperty(String key) {
+        setProperties.remove(key);
+        if (!removeProperties.contains(key)) {
+            removeProperties.add(key);
+        }
+    }
+
+    /**
+     * @return true if there is nothing to set or remove
+     */
+    public boolean isEmpty() {
+        return setProperties.isEmpty() && removeProperties.isEmpty();
+    }
+
+    public int getWorkerId() {
+        return workerId;
+    }
+
+    public void setWorkerId(int workerId) {
+        this.workerId = workerId;
+    }
+
+    public Map<String, String> getSetProperties() {
+        return setProperties;
+    }
+
+    public void setSetProperties(Map<String, String> setProperties) {
+        this.setProperties = setProperties;
+    }
+
+    public List<String> getRemoveProperties() {
+        return removeProperties;
+    }
+
+    public void setRemoveProperties(List<String> removeProperties) {
+        this.removeProperties = removeProperties;
+    }
+
+    @Override
+    public String toString() {
+        return "WorkerPropertiesUpdate{" + "workerId=" + workerId + ", setProperties=" + setProperties.keySet()
+                + ", removeProperties=" + removeProperties + '}';
+    }
+}
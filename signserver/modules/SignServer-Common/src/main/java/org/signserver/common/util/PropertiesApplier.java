@@ -14,6 +14,7 @@ package org.signserver.common.util;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +23,7 @@ import java.util.TreeSet;
 
 import org.signserver.common.AuthorizedClient;
 import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerPropertiesUpdate;
 import static org.signserver.common.util.PropertiesConstants.GENID;
 import static org.signserver.common.util.PropertiesConstants.OLDWORKER_PREFIX;
 import static org.signserver.common.util.PropertiesConstants.WORKER_PREFIX;
@@ -103,26 +105,6 @@ public abstract class PropertiesApplier {
                 removeGlobalProperty(prop.getScope(), prop.getKey());
             }
             
-            // apply set worker properties
-            for (final PropertiesParser.WorkerProperty prop : setWorkerProperties.keySet()) {
-                if (prop.getKey().equalsIgnoreCase(WorkerConfig.TYPE)) {
-                    // Apply the TYPE properties last so we are sure the IMPLEMENTATION_CLASS has been added first
-                    delayedSetWorkerProperties.add(prop);
-                } else {
-                    // All other properties can be applied now
-                    setWorkerProperty(Integer.parseInt(prop.getWorkerIdOrName()), prop.getKey(), setWorkerProperties.get(prop));
-                }
-            }
-
-            // apply delayed set worker properties
-            for (final PropertiesParser.WorkerProperty prop : delayedSetWorkerProperties) {
-                setWorkerProperty(Integer.parseInt(prop.getWorkerIdOrName()), prop.getKey(), setWorkerProperties.get(prop));
-            }
-            
-            for (final PropertiesParser.WorkerProperty prop : removeWorkerProperties) {
-                removeWorkerProperty(Integer.parseInt(prop.getWorkerIdOrName()), prop.getKey());
-            }
-            
             for (final int workerId : signerCertificates.keySet()) {
                 uploadSignerCertificate(workerId, signerCertificates.get(workerId));
             }
@@ -142,6 +124,32 @@ public abstract class PropertiesApplier {
                     removeAuthorizedClient(workerId, ac);
                 }
             }
+
+            // collect the worker property changes into one update per worker
+            final Map<Integer, WorkerPropertiesUpdate> updates = new LinkedHashMap<>();
+            for (final PropertiesParser.WorkerProperty prop : setWorkerProperties.keySet()) {
+                if (prop.getKey().equalsIgnoreCase(WorkerConfig.TYPE)) {
+                    // Apply the TYPE properties last so we are sure the IMPLEMENTATION_CLASS has been added first
+                    delayedSetWorkerProperties.add(prop);
+                } else {
+                    // All other properties can be applied now
+                    getUpdate(updates, prop).setProperty(prop.getKey(), setWorkerProperties.get(prop));
+                }
+            }
+
+            // apply delayed set worker properties
+            for (final PropertiesParser.WorkerProperty prop : delayedSetWorkerProperties) {
+                getUpdate(updates, prop).setProperty(prop.getKey(), setWorkerProperties.get(prop));
+            }
+            
+            for (final PropertiesParser.WorkerProperty prop : removeWorkerProperties) {
+                getUpdate(updates, prop).removeProperty(prop.getKey());
+            }
+
+            // apply the worker properties last as the update could reload the workers
+            if (!updates.isEmpty()) {
+                updateWorkerProperties(new ArrayList<>(updates.values()));
+            }
             
         } catch (PropertiesApplierException e) {
             if (e.getCause() != null && "java.lang.ClassNotFoundException: javax.persistence.PersistenceException".equals(e.getCause().getMessage())) {
@@ -153,6 +161,17 @@ public abstract class PropertiesApplier {
         
     }
     
+    private static WorkerPropertiesUpdate getUpdate(final Map<Integer, WorkerPropertiesUpdate> updates,
+            final PropertiesParser.WorkerProperty prop) {
+        final int workerId = Integer.parseInt(prop.getWorkerIdOrName());
+        WorkerPropertiesUpdate result = updates.get(workerId);
+        if (result == null) {
+            result = new WorkerPropertiesUpdate(workerId);
+            updates.put(workerId, result);
+        }
+        return result;
+    }
+
     /**
      * Translate global property map.
      * Will take care of translating generated worker IDs and convert worker names to worker IDs for global property keys.
@@ -296,6 +315,26 @@ public abstract class PropertiesApplier {
      * @throws PropertiesApplierException
      */
     protected abstract void removeWorkerProperty(final int workerId, final String key) throws PropertiesApplierException;
+
+    /**
+     * Set and remove the properties of several workers.
+     * The default implementation sets and removes one property at a time,
+     * implementations supporting it should override this and apply all
+     * updates at once.
+     *
+     * @param updates Properties to set and remove for each worker
+     * @throws PropertiesApplierException If there was a failure
+     */
+    protected void updateWorkerProperties(final List<WorkerPropertiesUpdate> updates) throws PropertiesApplierException {
+        for (final WorkerPropertiesUpdate update : updates) {
+            for (final Map.Entry<String, String> entry : update.getSetProperties().entrySet()) {
+                setWorkerProperty(update.getWorkerId(), entry.getKey(), entry.getValue());
+            }
+            for (final String key : update.getRemoveProperties()) {
+                removeWorkerProperty(update.getWorkerId(), key);
+            }
+        }
+    }
     
     /**
      * Upload a signer certificate.
@@ -59,6 +59,14 @@ public class ValidationServiceConstants {
     public static final String VALIDATIONSERVICE_TIMEINCACHE = "TIMEINCACHE";
     public static final String DEFAULT_TIMEINCACHE = "10";
     
+    /**
+     * Setting defining the maximum number of cached validations
+     * 
+     * Default: 10000
+     */
+    public static final String VALIDATIONSERVICE_MAXCACHESIZE = "MAXCACHESIZE";
+    public static final String DEFAULT_MAXCACHESIZE = "10000";
+    
     public static final int NUM_OF_SUPPORTED_ISSUERS = 255;
     
     /**
@@ -14,6 +14,7 @@ package org.signserver.common.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -24,6 +25,8 @@ import java.util.Set;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.signserver.common.AuthorizedClient;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerPropertiesUpdate;
 import org.signserver.common.util.PropertiesApplier;
 import org.signserver.common.util.PropertiesConstants;
 import org.signserver.common.util.PropertiesParser.GlobalProperty;
@@ -223,6 +226,36 @@ public class PropertiesApplierTest extends TestCase {
         }
     }
     
+    /**
+     * Test that all worker properties are applied in one update with one
+     * entry per worker and that the TYPE property comes last.
+     *
+     * @throws Exception
+     */
+    public void testWorkerPropertiesUpdatedTogether() throws Exception {
+        final PropertiesParser parser = new PropertiesParser();
+        
+        final Properties prop = new Properties();
+        prop.load(new ByteArrayInputStream(config3.getBytes()));
+        parser.process(prop);
+        applier.apply(parser);
+        
+        assertFalse("No errors", applier.hasError());
+        assertEquals("Number of bulk updates", 1, applier.getUpdates().size());
+        final List<WorkerPropertiesUpdate> updates = applier.getUpdates().get(0);
+        assertEquals("Number of workers updated", 3, updates.size());
+        int typesSet = 0;
+        for (final WorkerPropertiesUpdate update : updates) {
+            final List<String> keys = new ArrayList<>(update.getSetProperties().keySet());
+            if (keys.contains(WorkerConfig.TYPE)) {
+                assertEquals("TYPE last for worker " + update.getWorkerId(), WorkerConfig.TYPE,
+                        keys.get(keys.size() - 1));
+                typesSet++;
+            }
+        }
+        assertTrue("TYPE set for some workers", typesSet > 0);
+    }
+    
     /**
      * Test using incorrect generated IDs (non-integer).
      * 
@@ -257,6 +290,7 @@ public class PropertiesApplierTest extends TestCase {
         private Map<Integer, Set<AuthorizedClient>> authClients = new HashMap<>();
         private Map<Integer, byte[]> signerCerts = new HashMap<>();
         private Map<Integer, List<byte[]>> signerCertChains = new HashMap<>();
+        private List<List<WorkerPropertiesUpdate>> updates = new ArrayList<>();
         
         public static int FIRST_GENERATED_ID = 1000;
         
@@ -286,6 +320,10 @@ public class PropertiesApplierTest extends TestCase {
             return signerCertChains.get(workerId);
         }
         
+        public List<List<WorkerPropertiesUpdate>> getUpdates() {
+            return updates;
+        }
+        
         @Override
         protected void setGlobalProperty(String scope, String key, String value) {
             globalProperties.put(new GlobalProperty(scope, key), value);
@@ -306,6 +344,12 @@ public class PropertiesApplierTest extends TestCase {
             workerProperties.remove(new WorkerProperty(Integer.toString(workerId), key));
         }
 
+        @Override
+        protected void updateWorkerProperties(List<WorkerPropertiesUpdate> updates) throws PropertiesApplierException {
+            this.updates.add(updates);
+            super.updateWorkerProperties(updates);
+        }
+
         @Override
         protected void uploadSignerCertificate(int workerId, byte[] signerCert) {
             signerCerts.put(workerId, signerCert);
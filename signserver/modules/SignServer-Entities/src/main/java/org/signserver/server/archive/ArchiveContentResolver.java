@@ -0,0 +1,31 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Gives the ArchiveContentStore directories that archive rows referencing
+ * stored content are read from on the server.
+ *
+ * @version $Id$
+ */
+public interface ArchiveContentResolver {
+
+    /**
+     * @param signerId ID of the worker the data was archived for
+     * @return directories of the content stores configured for the worker
+     */
+    List<File> getDirectories(int signerId);
+}
@@ -0,0 +1,220 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Content-addressed file store for archived data.
+ *
+ * The data is streamed to a file named by the SHA-256 digest of the
+ * (uncompressed) content, optionally deflate compressed. Storing the same
+ * content again reuses the existing file. The reference returned when
+ * storing is the path of the file relative to the directory of the store.
+ * The location kept in the archive row is the directory of the store
+ * followed by the reference, so the data can still be found after the
+ * archiver configuration changed.
+ *
+ * @version $Id$
+ */
+public class ArchiveContentStore {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ArchiveContentStore.class);
+
+    /** Suffix of files with deflate compressed content. */
+    public static final String DEFLATE_SUFFIX = ".deflate";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Separator between the directory and the reference in a location. */
+    private static final char LOCATION_SEPARATOR = '|';
+
+    /** Format of the references, not allowing any other files to be read. */
+    private static final Pattern REFERENCE = Pattern.compile("[0-9a-f]{2}/[0-9a-f]{64}(\\" + DEFLATE_SUFFIX + ")?");
+
+    private final File directory;
+    private final boolean compress;
+
+    /**
+     * Creates a store in the directory.
+     * @param directory directory to store the files in, created if needed
+     * @param compress if the content should be deflate compressed
+     */
+    public ArchiveContentStore(final File directory, final boolean compress) {
+        this.directory = directory.getAbsoluteFile();
+        this.compress = compress;
+    }
+
+    /**
+     * Streams the content to the store.
+     * @param in content to store, not closed by this method
+     * @return reference to the stored content relative to the store
+     * @throws IOException in case of error writing the content
+     */
+    public String store(final InputStream in) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create archive directory: " + directory);
+        }
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        final File tmp = File.createTempFile("archive-", ".tmp", directory);
+        try {
+            final Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            try (OutputStream out = compress
+                    ? new DeflaterOutputStream(new FileOutputStream(tmp), deflater, BUFFER_SIZE)
+                    : new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+
+            final String name = Hex.toHexString(md.digest());
+            final String reference = name.substring(0, 2) + "/" + (compress ? name + DEFLATE_SUFFIX : name);
+            final File file = getFile(reference);
+            final File dir = file.getParentFile();
+            if (file.exists()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Content already stored: " + file);
+                }
+                return reference;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create archive directory: " + dir);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ex) {
+                // Same content stored concurrently
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Content stored concurrently: " + file);
+                }
+            }
+            return reference;
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOG.warn("Could not remove temporary archive file: " + tmp);
+            }
+        }
+    }
+
+    /**
+     * @param reference reference returned when storing the content
+     * @return location of the content including the directory of the store
+     */
+    public String getLocation(final String reference) {
+        return directory.getPath() + LOCATION_SEPARATOR + reference;
+    }
+
+    /**
+     * @param location location of stored content
+     * @return the directory of the store or null if the location is only a
+     * reference, as stored by earlier versions
+     */
+    public static File getDirectory(final String location) {
+        final int index = location == null ? -1 : location.lastIndexOf(LOCATION_SEPARATOR);
+        return index < 0 ? null : new File(location.substring(0, index));
+    }
+
+    /**
+     * @param location location of stored content
+     * @return the reference relative to the store
+     */
+    public static String getReference(final String location) {
+        final int index = location == null ? -1 : location.lastIndexOf(LOCATION_SEPARATOR);
+        return index < 0 ? location : location.substring(index + 1);
+    }
+
+    /**
+     * @param reference reference returned when storing the content
+     * @return true if the content is available in this store
+     * @throws IOException in case of malformed reference
+     */
+    public boolean contains(final String reference) throws IOException {
+        return getFile(reference).isFile();
+    }
+
+    /**
+     * Opens stored content for reading.
+     * @param reference reference returned when storing the content
+     * @return stream with the uncompressed content
+     * @throws IOException in case the content could not be opened
+     */
+    public InputStream open(final String reference) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(getFile(reference)), BUFFER_SIZE);
+        return reference.endsWith(DEFLATE_SUFFIX) ? new InflaterInputStream(in) : in;
+    }
+
+    /**
+     * Reads all of the stored content into memory.
+     * @param reference reference returned when storing the content
+     * @return the uncompressed content
+     * @throws IOException in case the content could not be read
+     */
+    public byte[] read(final String reference) throws IOException {
+        try (InputStream in = open(reference)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * @param reference reference returned when storing the content
+     * @return the file for the content, deflate compressed if the reference
+     * ends with DEFLATE_SUFFIX
+     * @throws IOException in case of malformed reference
+     */
+    public File getFile(final String reference) throws IOException {
+        if (reference == null || !REFERENCE.matcher(reference).matches()) {
+            throw new IOException("Malformed archive content reference: " + reference);
+        }
+        return new File(directory, reference.replace('/', File.separatorChar));
+    }
+}
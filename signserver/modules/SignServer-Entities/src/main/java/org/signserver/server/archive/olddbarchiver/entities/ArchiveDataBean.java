@@ -14,11 +14,15 @@ package org.signserver.server.archive.olddbarchiver.entities;
 
 import java.beans.XMLEncoder;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import javax.ejb.EJBException;
 import javax.persistence.*;
 import org.apache.log4j.Logger;
@@ -27,6 +31,8 @@ import org.cesecore.util.Base64GetHashMap;
 import org.cesecore.util.Base64PutHashMap;
 import org.signserver.common.ArchiveData;
 import org.signserver.common.ArchiveDataVO;
+import org.signserver.server.archive.ArchiveContentResolver;
+import org.signserver.server.archive.ArchiveContentStore;
 
 /**
  * Entity Bean storing requests and responses of signer beans
@@ -69,6 +75,9 @@ public class ArchiveDataBean implements Serializable {
     public static final int DATA_ENCODING_XML = 0;
     public static final int DATA_ENCODING_BASE64 = 1;
 
+    /** The archive data column holds a location in an ArchiveContentStore. */
+    public static final int DATA_ENCODING_REFERENCE = 2;
+
     @Id
     private String uniqueId;
     
@@ -258,8 +267,19 @@ public class ArchiveDataBean implements Serializable {
     /**
      * Method that saves the archive data to database.
      */
-    @SuppressWarnings("unchecked")
     void setArchiveDataObject(ArchiveData data) {
+        setArchiveData(encodeArchiveData(data));
+    }
+
+    /**
+     * Encodes the archive data the way it is stored with
+     * DATA_ENCODING_XML.
+     *
+     * @param data Archive data
+     * @return The encoded archive data
+     */
+    @SuppressWarnings("unchecked")
+    public static String encodeArchiveData(ArchiveData data) {
         // We must base64 encode string for UTF safety
         HashMap a = new Base64PutHashMap();
         a.putAll((HashMap) data.saveData());
@@ -271,7 +291,7 @@ public class ArchiveDataBean implements Serializable {
         }
 
         try {
-            setArchiveData(baos.toString(StandardCharsets.UTF_8.name()));
+            return baos.toString(StandardCharsets.UTF_8.name());
         } catch (UnsupportedEncodingException e) {
             throw new EJBException(e);
         }
@@ -283,6 +303,18 @@ public class ArchiveDataBean implements Serializable {
      * @return Archive data
      */
     public ArchiveDataVO getArchiveDataVO() {
+        return getArchiveDataVO(null);
+    }
+
+    /**
+     * Method used to get the ArchiveDataVO representation of the data row,
+     * with data kept in an ArchiveContentStore given as the stored file.
+     *
+     * @param resolver Gives the content stores to look in for rows stored
+     * without the directory of the store or null if not available
+     * @return Archive data
+     */
+    public ArchiveDataVO getArchiveDataVO(final ArchiveContentResolver resolver) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("getArchiveDataVO: dataEncoding: " + getDataEncoding());
         }
@@ -290,10 +322,40 @@ public class ArchiveDataBean implements Serializable {
             return new ArchiveDataVO(getType(), getSignerid(), getArchiveid(), new Date(getTime()),
                 getRequestIssuerDN(), getRequestCertSerialnumber(), getRequestIP(),
                 Base64.decode(getArchiveData().getBytes(StandardCharsets.UTF_8)));
+        } else if (getDataEncoding() != null && getDataEncoding() == DATA_ENCODING_REFERENCE) {
+            final String reference = ArchiveContentStore.getReference(getArchiveData());
+            return new ArchiveDataVO(getType(), getSignerid(), getArchiveid(), new Date(getTime()),
+                getRequestIssuerDN(), getRequestCertSerialnumber(), getRequestIP(),
+                findStoredContent(reference, resolver),
+                reference.endsWith(ArchiveContentStore.DEFLATE_SUFFIX));
         } else {
             return new ArchiveDataVO(getType(), getSignerid(), getArchiveid(), new Date(getTime()),
                 getRequestIssuerDN(), getRequestCertSerialnumber(), getRequestIP(),
                 getArchiveDataObject());
         }
     }
+
+    private File findStoredContent(final String reference, final ArchiveContentResolver resolver) {
+        // The store the data was archived to, followed by the currently
+        // configured ones in case the store was moved
+        final List<File> directories = new ArrayList<>();
+        final File directory = ArchiveContentStore.getDirectory(getArchiveData());
+        if (directory != null) {
+            directories.add(directory);
+        }
+        if (resolver != null) {
+            directories.addAll(resolver.getDirectories(getSignerid()));
+        }
+        try {
+            for (File candidate : directories) {
+                final File file = new ArchiveContentStore(candidate, false).getFile(reference);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+        } catch (IOException e) {
+            throw new EJBException(e);
+        }
+        throw new EJBException("Archive data " + getUniqueId() + " not found in the archive content stores of worker " + getSignerid());
+    }
 }
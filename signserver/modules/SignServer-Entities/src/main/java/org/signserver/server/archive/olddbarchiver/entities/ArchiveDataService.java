@@ -29,7 +29,9 @@ import org.cesecore.util.CertTools;
 import org.cesecore.util.query.QueryCriteria;
 import org.cesecore.util.query.QueryGenerator;
 import org.signserver.common.ArchiveData;
+import org.signserver.common.ArchiveDataVO;
 import org.signserver.common.ArchiveMetadata;
+import org.signserver.server.archive.ArchiveContentResolver;
 
 /**
  * Entity Service class that acts as migration layer for
@@ -45,9 +47,33 @@ public class ArchiveDataService {
     private static final Logger LOG = Logger.getLogger(ArchiveDataService.class);
     
     private final EntityManager em;
+    private final ArchiveContentResolver contentResolver;
 
     public ArchiveDataService(EntityManager em) {
+        this(em, null);
+    }
+
+    /**
+     * Creates an instance able to read archive data kept in the
+     * ArchiveContentStores given by the resolver.
+     *
+     * @param em Entity manager
+     * @param contentResolver Gives the content stores or null if not available
+     */
+    public ArchiveDataService(EntityManager em, ArchiveContentResolver contentResolver) {
         this.em = em;
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Gives the value object for the row, with data kept in an
+     * ArchiveContentStore read so that it is available to the caller.
+     *
+     * @param bean Archive data row
+     * @return Archive data
+     */
+    public ArchiveDataVO getArchiveDataVO(ArchiveDataBean bean) {
+        return bean.getArchiveDataVO(contentResolver);
     }
 
     /**
@@ -88,6 +114,25 @@ public class ArchiveDataService {
     
     public String create(int type, int signerId, String archiveid, X509Certificate clientCert,
             String requestIP, String archiveData) {
+        return create(type, signerId, archiveid, clientCert, requestIP, archiveData,
+                ArchiveDataBean.DATA_ENCODING_BASE64);
+    }
+
+    /**
+     * Creates an archive data row with already encoded archive data.
+     *
+     * @param type Archive type
+     * @param signerId Signer ID
+     * @param archiveid Archive ID
+     * @param clientCert Client certificate
+     * @param requestIP Request IP address
+     * @param archiveData Encoded archive data
+     * @param dataEncoding Encoding of the archive data, i.e.
+     * ArchiveDataBean.DATA_ENCODING_BASE64
+     * @return Unique ID
+     */
+    public String create(int type, int signerId, String archiveid, X509Certificate clientCert,
+            String requestIP, String archiveData, int dataEncoding) {
         String uniqueId = type + ";" + signerId + ";" + archiveid;
         if (LOG.isDebugEnabled()) {
             LOG.debug("Creating archive data, uniqueId=" + uniqueId);
@@ -104,7 +149,7 @@ public class ArchiveDataService {
         }
         adb.setRequestIP(requestIP);
         adb.setArchiveData(archiveData);
-        adb.setDataEncoding(ArchiveDataBean.DATA_ENCODING_BASE64);
+        adb.setDataEncoding(dataEncoding);
  
         em.persist(adb);
         return uniqueId;
@@ -225,7 +270,7 @@ public class ArchiveDataService {
                                                    archiveData.getRequestCertSerialnumber(),
                                                    archiveData.getRequestIP(),
                                                    includeData ?
-                                                    archiveData.getArchiveDataVO().getArchivedBytes() :
+                                                    archiveData.getArchiveDataVO(contentResolver).getArchivedBytes() :
                                                     null));
                 }
 
@@ -284,7 +329,7 @@ public class ArchiveDataService {
                                             new Date(bean.getTime()), bean.getRequestIssuerDN(),
                                             bean.getRequestCertSerialnumber(),
                                             bean.getRequestIP(),
-                                            bean.getArchiveDataVO().getArchivedBytes());
+                                            bean.getArchiveDataVO(contentResolver).getArchivedBytes());
                     result.add(metadata);
                 }
             } else {
@@ -46,7 +46,32 @@ public class FileBasedWorkerConfigDataIndex {
         nameToEntry = new HashMap<>(initialSize + 10);
         typeToSetOfIDs = new HashMap<>(WorkerType.values().length + 10);
     }
-    
+
+    /**
+     * Creates a copy of an index that can be updated without affecting the
+     * original.
+     *
+     * @param other index to copy
+     */
+    public FileBasedWorkerConfigDataIndex(FileBasedWorkerConfigDataIndex other) {
+        this(other.idToEntry.size());
+        for (Entry entry : other.idToEntry.values()) {
+            final Entry copy = new Entry(entry.getId());
+            copy.setName(entry.getName());
+            copy.setType(entry.getType());
+            idToEntry.put(copy.getId(), copy);
+        }
+        for (Map.Entry<String, Entry> entry : other.nameToEntry.entrySet()) {
+            final Entry copy = idToEntry.get(entry.getValue().getId());
+            if (copy != null) {
+                nameToEntry.put(entry.getKey(), copy);
+            }
+        }
+        for (Map.Entry<Integer, Set<Integer>> entry : other.typeToSetOfIDs.entrySet()) {
+            typeToSetOfIDs.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+    }
+
     private Entry getEntry(int id) throws NoSuchWorkerException {
         final Entry result = idToEntry.get(id);
         if (result == null) {
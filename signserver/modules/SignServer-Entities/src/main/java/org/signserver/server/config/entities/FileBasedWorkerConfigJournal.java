@@ -0,0 +1,882 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.config.entities;
+
+import java.beans.ExceptionListener;
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.apache.log4j.Logger;
+import org.cesecore.util.Base64GetHashMap;
+import org.signserver.common.AuthorizedClient;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerType;
+import static org.signserver.common.util.PropertiesConstants.AUTHORIZED_CLIENTS;
+
+/**
+ * Journaled storage of the worker configurations in the file based database.
+ *
+ * All configurations are kept in memory as an immutable snapshot together
+ * with the name and type index, so reads never take a lock. A change of a
+ * configuration is stored as one transaction in an append-only journal file
+ * holding only the properties, authorized clients and other entries that
+ * actually changed. When the journal grows too large all configurations are
+ * compacted into a snapshot file and the journal is started over. At startup
+ * the snapshot is loaded and the journal replayed.
+ *
+ * Configurations stored in the older file-per-worker XML format
+ * (signerdata-[workerId].dat) are migrated into the first snapshot. If any
+ * of those files can not be read the migration is aborted, leaving the
+ * files as they are, and the journal is not opened.
+ *
+ * A transaction that could not be written completely is truncated from the
+ * journal so that later transactions are not lost when it is replayed.
+ *
+ * The journals opened with getInstance are closed by closeAll when the
+ * application is stopped.
+ *
+ * @version $Id$
+ */
+public class FileBasedWorkerConfigJournal {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(FileBasedWorkerConfigJournal.class);
+
+    static final String SNAPSHOT_FILE = "workerconfig-snapshot.bin";
+    static final String JOURNAL_FILE = "workerconfig-journal.bin";
+
+    private static final String LEGACY_PREFIX = "signerdata-";
+    private static final String LEGACY_SUFFIX = ".dat";
+
+    private static final int SNAPSHOT_MAGIC = 0x57434653; // WCFS
+    private static final int JOURNAL_MAGIC = 0x5743464a; // WCFJ
+    private static final int FORMAT_VERSION = 1;
+
+    /** Magic, format version and generation. */
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    /** Length and CRC of a transaction. */
+    private static final int TRANSACTION_OVERHEAD = 4 + 4;
+
+    static final long DEFAULT_JOURNAL_SIZE = 1024 * 1024;
+
+    // Record types
+    private static final byte END = 0;
+    private static final byte SET_WORKER = 1;
+    private static final byte REMOVE_WORKER = 2;
+    private static final byte SET_PROPERTY = 3;
+    private static final byte REMOVE_PROPERTY = 4;
+    private static final byte ADD_CLIENT = 5;
+    private static final byte REMOVE_CLIENT = 6;
+    private static final byte SET_DATA = 7;
+    private static final byte REMOVE_DATA = 8;
+
+    // Value types of the data entries
+    private static final byte STRING_VALUE = 'S';
+    private static final byte INTEGER_VALUE = 'I';
+    private static final byte LONG_VALUE = 'J';
+    private static final byte FLOAT_VALUE = 'F';
+    private static final byte DOUBLE_VALUE = 'D';
+    private static final byte BOOLEAN_VALUE = 'Z';
+    private static final byte XML_VALUE = 'X';
+
+    /** Data entry holding the worker properties. */
+    private static final String PROPERTIES = "PROPERTIES";
+
+    private static final ConcurrentMap<File, FileBasedWorkerConfigJournal> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File folder;
+    private final long journalSize;
+
+    /** Configurations and index, replaced on every change. */
+    private volatile Snapshot current;
+
+    /** Guards the journal file and generation. */
+    private final Object writeLock = new Object();
+    private final FileChannel journal;
+    private final CRC32 crc = new CRC32();
+    private long generation;
+
+    /** Set if a failed write could not be removed from the journal. */
+    private boolean failed;
+
+    /** Set when the journal file has been closed. */
+    private boolean closed;
+
+    /**
+     * Get the journal for the given database folder, opening it if needed.
+     * @param folder of the file based database
+     * @return the journal
+     * @throws IOException in case the journal could not be opened
+     */
+    public static FileBasedWorkerConfigJournal getInstance(final File folder) throws IOException {
+        FileBasedWorkerConfigJournal result = INSTANCES.get(folder);
+        if (result == null) {
+            synchronized (INSTANCES) {
+                result = INSTANCES.get(folder);
+                if (result == null) {
+                    result = new FileBasedWorkerConfigJournal(folder, DEFAULT_JOURNAL_SIZE);
+                    INSTANCES.put(folder, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes all journals opened with getInstance.
+     */
+    public static void closeAll() {
+        synchronized (INSTANCES) {
+            for (FileBasedWorkerConfigJournal journal : INSTANCES.values()) {
+                try {
+                    journal.close();
+                } catch (IOException ex) {
+                    LOG.warn("Failed to close worker configuration journal in " + journal.folder.getAbsolutePath() + ": " + ex.getLocalizedMessage());
+                }
+            }
+            INSTANCES.clear();
+        }
+    }
+
+    /**
+     * Opens the journal in the given folder and recovers all configurations.
+     * @param folder to store the files in
+     * @param journalSize size of the journal after which it is compacted
+     * @throws IOException in case of failure reading or writing the files
+     */
+    FileBasedWorkerConfigJournal(final File folder, final long journalSize) throws IOException {
+        this.folder = folder;
+        this.journalSize = journalSize;
+
+        final Map<Integer, Worker> workers = new HashMap<>();
+        final File snapshot = new File(folder, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            generation = readSnapshot(snapshot, workers);
+        } else {
+            readLegacyFiles(workers);
+            generation = 0;
+        }
+
+        journal = FileChannel.open(new File(folder, JOURNAL_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            replayJournal(workers);
+
+            final FileBasedWorkerConfigDataIndex index = new FileBasedWorkerConfigDataIndex(workers.size());
+            for (Map.Entry<Integer, Worker> entry : workers.entrySet()) {
+                index.update(entry.getKey(), entry.getValue().name, entry.getValue().type);
+            }
+            current = new Snapshot(workers, index);
+
+            // Start over with everything in a new snapshot
+            synchronized (writeLock) {
+                compact();
+            }
+        } catch (IOException | RuntimeException ex) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {} // NOPMD
+            throw ex;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Opened worker configuration journal with " + workers.size() + " workers in generation " + generation);
+        }
+    }
+
+    /**
+     * Closes the journal file. The configurations can still be read but not
+     * changed after this.
+     * @throws IOException in case the journal file could not be closed
+     */
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            journal.close();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Closed worker configuration journal in " + folder.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return true if the journal has been closed
+     */
+    public boolean isClosed() {
+        synchronized (writeLock) {
+            return closed;
+        }
+    }
+
+    /**
+     * @param workerId of worker
+     * @return a new copy of the configuration or null if no such worker
+     */
+    public WorkerConfig get(final int workerId) {
+        final Worker worker = current.workers.get(workerId);
+        return worker == null ? null : worker.toWorkerConfig();
+    }
+
+    /**
+     * @return the index of the current configurations, not to be modified
+     */
+    public FileBasedWorkerConfigDataIndex getIndex() {
+        return current.index;
+    }
+
+    /**
+     * Stores the configuration by appending the changes compared to the
+     * currently stored configuration to the journal.
+     * @param workerId of worker
+     * @param config the new configuration
+     * @param name of the worker to index
+     * @param type of the worker to index
+     * @throws IOException in case of failure writing the journal
+     */
+    public void put(final int workerId, final WorkerConfig config, final String name, final int type) throws IOException {
+        final Worker updated = Worker.create(config, name, type);
+        synchronized (writeLock) {
+            final Snapshot snapshot = current;
+            final Worker existing = snapshot.workers.get(workerId);
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bout);
+            final int records = writeChanges(out, workerId, existing, updated);
+            if (records == 0) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("No changes in configuration of worker " + workerId);
+                }
+                return;
+            }
+            out.writeByte(END);
+            append(bout.toByteArray());
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Stored " + records + " changes in configuration of worker " + workerId);
+            }
+
+            final Map<Integer, Worker> workers = new HashMap<>(snapshot.workers);
+            workers.put(workerId, updated);
+            final FileBasedWorkerConfigDataIndex index = new FileBasedWorkerConfigDataIndex(snapshot.index);
+            index.update(workerId, name, type);
+            current = new Snapshot(workers, index);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the configuration.
+     * @param workerId of worker
+     * @return true if there was a configuration to remove
+     * @throws IOException in case of failure writing the journal
+     */
+    public boolean remove(final int workerId) throws IOException {
+        synchronized (writeLock) {
+            final Snapshot snapshot = current;
+            if (!snapshot.workers.containsKey(workerId)) {
+                return false;
+            }
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bout);
+            out.writeByte(REMOVE_WORKER);
+            out.writeInt(workerId);
+            out.writeByte(END);
+            append(bout.toByteArray());
+
+            final Map<Integer, Worker> workers = new HashMap<>(snapshot.workers);
+            workers.remove(workerId);
+            final FileBasedWorkerConfigDataIndex index = new FileBasedWorkerConfigDataIndex(snapshot.index);
+            index.remove(workerId);
+            current = new Snapshot(workers, index);
+            compactIfNeeded();
+            return true;
+        }
+    }
+
+    /**
+     * @param workerId of worker
+     * @param config of the worker
+     * @return the name to index the worker by
+     */
+    static String getName(final int workerId, final WorkerConfig config) {
+        final String name = config.getProperty("NAME");
+        if (name == null || name.trim().isEmpty()) {
+            return "UnamedWorker" + workerId;
+        }
+        return name;
+    }
+
+    /**
+     * @param config of the worker
+     * @return the type to index the worker by
+     */
+    static WorkerType getType(final WorkerConfig config) {
+        final String typeValue = config.getProperty("TYPE");
+        if (typeValue == null || typeValue.trim().isEmpty()) {
+            return WorkerType.UNKNOWN;
+        }
+        try {
+            return WorkerType.valueOf(typeValue);
+        } catch (IllegalArgumentException ex) {
+            LOG.error("Unsupported worker type: " + typeValue + ": " + ex.getLocalizedMessage());
+            return WorkerType.UNKNOWN;
+        }
+    }
+
+    /**
+     * Writes the records needed to go from the existing configuration to the
+     * updated one.
+     * @return number of records written
+     */
+    private static int writeChanges(final DataOutputStream out, final int workerId, final Worker existing, final Worker updated) throws IOException {
+        int records = 0;
+        if (existing == null || !existing.name.equals(updated.name) || existing.type != updated.type) {
+            out.writeByte(SET_WORKER);
+            out.writeInt(workerId);
+            writeString(out, updated.name);
+            out.writeInt(updated.type);
+            records++;
+        }
+        for (Map.Entry<String, String> entry : updated.properties.entrySet()) {
+            if (existing == null || !entry.getValue().equals(existing.properties.get(entry.getKey()))) {
+                out.writeByte(SET_PROPERTY);
+                out.writeInt(workerId);
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+                records++;
+            }
+        }
+        for (AuthorizedClient client : updated.clients) {
+            if (existing == null || !existing.clients.contains(client)) {
+                writeClient(out, ADD_CLIENT, workerId, client);
+                records++;
+            }
+        }
+        for (Map.Entry<String, Object> entry : updated.data.entrySet()) {
+            if (existing == null || !entry.getValue().equals(existing.data.get(entry.getKey()))) {
+                out.writeByte(SET_DATA);
+                out.writeInt(workerId);
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+                records++;
+            }
+        }
+        if (existing != null) {
+            for (String key : existing.properties.keySet()) {
+                if (!updated.properties.containsKey(key)) {
+                    out.writeByte(REMOVE_PROPERTY);
+                    out.writeInt(workerId);
+                    writeString(out, key);
+                    records++;
+                }
+            }
+            for (AuthorizedClient client : existing.clients) {
+                if (!updated.clients.contains(client)) {
+                    writeClient(out, REMOVE_CLIENT, workerId, client);
+                    records++;
+                }
+            }
+            for (String key : existing.data.keySet()) {
+                if (!updated.data.containsKey(key)) {
+                    out.writeByte(REMOVE_DATA);
+                    out.writeInt(workerId);
+                    writeString(out, key);
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads records until the end of the transaction and applies them.
+     * All records set or remove a value so applying them again is harmless.
+     */
+    private static void readChanges(final DataInputStream in, final Map<Integer, Worker> workers) throws IOException {
+        byte recordType;
+        while ((recordType = in.readByte()) != END) {
+            final int workerId = in.readInt();
+            if (recordType == REMOVE_WORKER) {
+                workers.remove(workerId);
+                continue;
+            }
+            Worker worker = workers.get(workerId);
+            if (worker == null) {
+                worker = new Worker("UnamedWorker" + workerId, WorkerType.UNKNOWN.getType());
+                workers.put(workerId, worker);
+            }
+            switch (recordType) {
+                case SET_WORKER:
+                    worker.name = readString(in);
+                    worker.type = in.readInt();
+                    break;
+                case SET_PROPERTY:
+                    worker.properties.put(readString(in), readString(in));
+                    break;
+                case REMOVE_PROPERTY:
+                    worker.properties.remove(readString(in));
+                    break;
+                case ADD_CLIENT:
+                    worker.clients.add(new AuthorizedClient(readNullableString(in), readNullableString(in)));
+                    break;
+                case REMOVE_CLIENT:
+                    worker.clients.remove(new AuthorizedClient(readNullableString(in), readNullableString(in)));
+                    break;
+                case SET_DATA:
+                    worker.data.put(readString(in), readValue(in));
+                    break;
+                case REMOVE_DATA:
+                    worker.data.remove(readString(in));
+                    break;
+                default:
+                    throw new IOException("Unknown worker configuration record type: " + recordType);
+            }
+        }
+    }
+
+    /**
+     * Appends one transaction to the journal and waits until it is on disk.
+     */
+    private void append(final byte[] transaction) throws IOException {
+        assert Thread.holdsLock(writeLock);
+        if (closed) {
+            throw new IOException("Worker configuration journal closed: " + folder.getAbsolutePath());
+        }
+        if (failed) {
+            throw new IOException("Worker configuration journal not usable after an earlier write failure: " + folder.getAbsolutePath());
+        }
+        crc.reset();
+        crc.update(transaction, 0, transaction.length);
+        final ByteBuffer header = ByteBuffer.allocate(TRANSACTION_OVERHEAD);
+        header.putInt(transaction.length);
+        header.putInt((int) crc.getValue());
+        header.flip();
+        final ByteBuffer[] buffers = new ByteBuffer[] {header, ByteBuffer.wrap(transaction)};
+        final long start = journal.position();
+        try {
+            while (buffers[1].hasRemaining()) {
+                journal.write(buffers);
+            }
+            journal.force(false);
+        } catch (IOException ex) {
+            // Replay stops at the first broken transaction so remove it
+            try {
+                journal.truncate(start);
+                journal.position(start);
+                journal.force(false);
+            } catch (IOException truncateEx) {
+                failed = true;
+                LOG.error("Could not remove failed write from the worker configuration journal: " + truncateEx.getLocalizedMessage());
+            }
+            throw ex;
+        }
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (journal.position() > journalSize) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes all configurations to a new snapshot and starts a new journal.
+     */
+    private void compact() throws IOException {
+        assert Thread.holdsLock(writeLock);
+        final long nextGeneration = generation + 1;
+        writeSnapshot(nextGeneration);
+        generation = nextGeneration;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(JOURNAL_MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(generation);
+        header.flip();
+        journal.truncate(0);
+        journal.position(0);
+        while (header.hasRemaining()) {
+            journal.write(header);
+        }
+        journal.force(true);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Compacted worker configuration journal into generation " + generation);
+        }
+    }
+
+    private void writeSnapshot(final long snapshotGeneration) throws IOException {
+        final File file = new File(folder, SNAPSHOT_FILE);
+        final File tmpFile = new File(folder, SNAPSHOT_FILE + ".tmp");
+
+        final FileOutputStream fout = new FileOutputStream(tmpFile);
+        try {
+            final CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(fout), new CRC32());
+            final DataOutputStream out = new DataOutputStream(cout);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshotGeneration);
+            for (Map.Entry<Integer, Worker> entry : current.workers.entrySet()) {
+                writeChanges(out, entry.getKey(), null, entry.getValue());
+            }
+            out.writeByte(END);
+            out.writeLong(cout.getChecksum().getValue());
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            try {
+                fout.close();
+            } catch (IOException ignored) {} // NOPMD
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long readSnapshot(final File file, final Map<Integer, Worker> workers) throws IOException {
+        final CheckedInputStream cin = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        final DataInputStream in = new DataInputStream(cin);
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported worker configuration snapshot: " + file.getAbsolutePath());
+            }
+            final long result = in.readLong();
+            readChanges(in, workers);
+            final long checksum = cin.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                throw new IOException("Corrupt worker configuration snapshot: " + file.getAbsolutePath());
+            }
+            return result;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {} // NOPMD
+        }
+    }
+
+    private void replayJournal(final Map<Integer, Worker> workers) throws IOException {
+        final long size = journal.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (size < HEADER_SIZE || journal.read(header, 0) < HEADER_SIZE
+                || header.getInt(0) != JOURNAL_MAGIC || header.getInt(4) != FORMAT_VERSION
+                || header.getLong(8) != generation) {
+            // Empty or already included in the snapshot
+            return;
+        }
+        long position = HEADER_SIZE;
+        int replayed = 0;
+        final ByteBuffer overhead = ByteBuffer.allocate(TRANSACTION_OVERHEAD);
+        while (position + TRANSACTION_OVERHEAD <= size) {
+            overhead.clear();
+            journal.read(overhead, position);
+            final int length = overhead.getInt(0);
+            if (length <= 0 || position + TRANSACTION_OVERHEAD + length > size) {
+                LOG.warn("Ignoring incomplete transaction at the end of the worker configuration journal");
+                break;
+            }
+            final ByteBuffer transaction = ByteBuffer.allocate(length);
+            while (transaction.hasRemaining()) {
+                if (journal.read(transaction, position + TRANSACTION_OVERHEAD + transaction.position()) < 0) {
+                    throw new EOFException("Unexpected end of the worker configuration journal");
+                }
+            }
+            crc.reset();
+            crc.update(transaction.array(), 0, length);
+            if (overhead.getInt(4) != (int) crc.getValue()) {
+                LOG.warn("Ignoring incomplete transaction at the end of the worker configuration journal");
+                break;
+            }
+            readChanges(new DataInputStream(new ByteArrayInputStream(transaction.array())), workers);
+            position += TRANSACTION_OVERHEAD + length;
+            replayed++;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Replayed " + replayed + " worker configuration transactions");
+        }
+    }
+
+    /**
+     * Reads all configurations in the file-per-worker format.
+     * @throws IOException if any of the files could not be read, as the
+     * files would otherwise be replaced by a snapshot without them
+     */
+    @SuppressWarnings("unchecked")
+    private void readLegacyFiles(final Map<Integer, Worker> workers) throws IOException {
+        final File[] files = folder.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list the worker configuration folder: " + folder.getAbsolutePath());
+        }
+        for (File file : files) {
+            final String fileName = file.getName();
+            if (fileName.startsWith(LEGACY_PREFIX) && fileName.endsWith(LEGACY_SUFFIX)) {
+                try {
+                    final int workerId = Integer.parseInt(fileName.substring(LEGACY_PREFIX.length(), fileName.length() - LEGACY_SUFFIX.length()));
+                    final Exception[] decodeError = new Exception[1];
+                    HashMap h;
+                    try (XMLDecoder decoder = new XMLDecoder(new BufferedInputStream(new FileInputStream(file)), null, new ExceptionListener() {
+                            @Override
+                            public void exceptionThrown(final Exception e) {
+                                if (decodeError[0] == null) {
+                                    decodeError[0] = e;
+                                }
+                            }
+                        })) {
+                        h = (HashMap) decoder.readObject();
+                    }
+                    if (decodeError[0] != null) {
+                        throw new IOException("Malformed XML: " + decodeError[0].getLocalizedMessage(), decodeError[0]);
+                    }
+                    // Handle Base64 encoded string values
+                    final WorkerConfig config = new WorkerConfig();
+                    config.loadData(new Base64GetHashMap(h));
+                    config.upgrade();
+                    workers.put(workerId, Worker.create(config, getName(workerId, config), getType(config).getType()));
+                } catch (IOException | RuntimeException ex) {
+                    throw new IOException("Failed to migrate worker configuration " + file.getAbsolutePath()
+                            + ", no configurations migrated: " + ex.getLocalizedMessage(), ex);
+                }
+            }
+        }
+        LOG.info("Migrated " + workers.size() + " worker configurations from the file-per-worker format");
+    }
+
+    private static void writeClient(final DataOutputStream out, final byte recordType, final int workerId, final AuthorizedClient client) throws IOException {
+        out.writeByte(recordType);
+        out.writeInt(workerId);
+        writeNullableString(out, client.getCertSN());
+        writeNullableString(out, client.getIssuerDN());
+    }
+
+    private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(STRING_VALUE);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_VALUE);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else {
+            out.writeByte(XML_VALUE);
+            writeString(out, ((XmlValue) value).xml);
+        }
+    }
+
+    private static Object readValue(final DataInputStream in) throws IOException {
+        final byte valueType = in.readByte();
+        switch (valueType) {
+            case STRING_VALUE:
+                return readString(in);
+            case INTEGER_VALUE:
+                return in.readInt();
+            case LONG_VALUE:
+                return in.readLong();
+            case FLOAT_VALUE:
+                return in.readFloat();
+            case DOUBLE_VALUE:
+                return in.readDouble();
+            case BOOLEAN_VALUE:
+                return in.readBoolean();
+            case XML_VALUE:
+                return new XmlValue(readString(in));
+            default:
+                throw new IOException("Unknown worker configuration value type: " + valueType);
+        }
+    }
+
+    /**
+     * Strings are written as UTF-8 with the length first as they could be
+     * too long for writeUTF (i.e. certificate chains).
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Illegal string length in worker configuration: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableString(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readNullableString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    /**
+     * Current configurations and index. Never modified once published.
+     */
+    private static final class Snapshot {
+        private final Map<Integer, Worker> workers;
+        private final FileBasedWorkerConfigDataIndex index;
+
+        Snapshot(final Map<Integer, Worker> workers, final FileBasedWorkerConfigDataIndex index) {
+            this.workers = workers;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Stored configuration of one worker. Only modified while recovering,
+     * before it is published in a snapshot.
+     */
+    private static final class Worker {
+        private String name;
+        private int type;
+        private final Map<String, String> properties = new HashMap<>();
+        private final Set<AuthorizedClient> clients = new HashSet<>();
+
+        /** Other entries, with values that are immutable or XmlValue. */
+        private final Map<String, Object> data = new HashMap<>();
+
+        Worker(final String name, final int type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        static Worker create(final WorkerConfig config, final String name, final int type) {
+            final Object o = config.saveData();
+            if (!(o instanceof Map)) {
+                throw new IllegalArgumentException("WorkerConfig should return a Map");
+            }
+            final Worker result = new Worker(name, type);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                final String key = String.valueOf(entry.getKey());
+                final Object value = entry.getValue();
+                if (value == null) {
+                    continue;
+                }
+                if (PROPERTIES.equals(key) && value instanceof Properties) {
+                    for (Map.Entry<Object, Object> property : ((Properties) value).entrySet()) {
+                        result.properties.put(String.valueOf(property.getKey()), String.valueOf(property.getValue()));
+                    }
+                } else if (AUTHORIZED_CLIENTS.equals(key) && isClients(value)) {
+                    for (Object client : (Collection<?>) value) {
+                        result.clients.add((AuthorizedClient) client);
+                    }
+                } else if (value instanceof String || value instanceof Integer || value instanceof Long
+                        || value instanceof Float || value instanceof Double || value instanceof Boolean) {
+                    result.data.put(key, value);
+                } else {
+                    result.data.put(key, XmlValue.encode(value));
+                }
+            }
+            return result;
+        }
+
+        private static boolean isClients(final Object value) {
+            if (!(value instanceof Collection)) {
+                return false;
+            }
+            for (Object client : (Collection<?>) value) {
+                if (!(client instanceof AuthorizedClient)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        WorkerConfig toWorkerConfig() {
+            final HashMap<Object, Object> result = new HashMap<>(data.size() + 4);
+            final Properties props = new Properties();
+            props.putAll(properties);
+            result.put(PROPERTIES, props);
+            result.put(AUTHORIZED_CLIENTS, new HashSet<>(clients));
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                final Object value = entry.getValue();
+                result.put(entry.getKey(), value instanceof XmlValue ? ((XmlValue) value).decode() : value);
+            }
+            final WorkerConfig config = new WorkerConfig();
+            try {
+                config.loadData(result);
+                config.upgrade();
+            } catch (Exception e) {
+                LOG.error(e);
+            }
+            return config;
+        }
+    }
+
+    /**
+     * Value of other types, stored XML encoded and decoded into a new
+     * object on every read.
+     */
+    private static final class XmlValue {
+        private final String xml;
+
+        XmlValue(final String xml) {
+            this.xml = xml;
+        }
+
+        static XmlValue encode(final Object value) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (XMLEncoder encoder = new XMLEncoder(baos)) {
+                encoder.writeObject(value);
+            }
+            return new XmlValue(new String(baos.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        Object decode() {
+            try (XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)))) {
+                return decoder.readObject();
+            }
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof XmlValue && ((XmlValue) obj).xml.equals(xml);
+        }
+
+        @Override
+        public int hashCode() {
+            return xml.hashCode();
+        }
+    }
+}
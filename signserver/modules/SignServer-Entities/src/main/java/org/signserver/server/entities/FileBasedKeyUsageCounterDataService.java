@@ -23,6 +23,10 @@ import org.signserver.server.nodb.FileBasedDatabaseManager;
  * 
  * Contains about the same methods as the EJB 2 entity beans home interface.
  *
+ * The counters are stored using the journal shared by all instances for the
+ * same database folder.
+ *
+ * @see FileBasedKeyUsageCounterJournal
  * @version $Id$
  */
 public class FileBasedKeyUsageCounterDataService implements IKeyUsageCounterDataService {
@@ -32,8 +36,7 @@ public class FileBasedKeyUsageCounterDataService implements IKeyUsageCounterData
     
     private final FileBasedDatabaseManager manager;
     private File folder;
-    private static final String PREFIX = "kuc-";
-    private static final String SUFFIX = ".dat";
+    private volatile FileBasedKeyUsageCounterJournal journal;
     
     private static final int SCHEMA_VERSION = 1;
 
@@ -52,12 +55,7 @@ public class FileBasedKeyUsageCounterDataService implements IKeyUsageCounterData
             LOG.debug("Creating keyusagecounter " + keyHash);
         }
         try {
-            synchronized (manager) {
-                Long data = loadData(keyHash);
-                if (data == null) {
-                    writeData(keyHash, 0L);
-                }
-            }
+            getJournal().create(keyHash);
         } catch (IOException ex) {
             throw new FileBasedDatabaseException("Could not load from or write data to file based database", ex);
         }
@@ -65,108 +63,57 @@ public class FileBasedKeyUsageCounterDataService implements IKeyUsageCounterData
     
     @Override
     public KeyUsageCounter getCounter(final String keyHash) throws FileBasedDatabaseException {
-        final KeyUsageCounter result;
+        final Long value = getJournal().get(keyHash);
+        return value == null ? null : new KeyUsageCounter(keyHash, value);
+    }
+
+    @Override
+    public boolean incrementIfWithinLimit(String keyHash, long limit) throws FileBasedDatabaseException {
         try {
-            final Long value;
-            synchronized (manager) {
-                value  = loadData(keyHash);
-            }
-            if (value == null) {
-                result = null;
-            } else {
-                result = new KeyUsageCounter(keyHash, value);
-            }
+            return getJournal().add(keyHash, 1, limit) > 0;
         } catch (IOException ex) {
             throw new FileBasedDatabaseException("Could not load from or write data to file based database", ex);
         }
-        return result;
     }
 
     @Override
-    public boolean incrementIfWithinLimit(String keyHash, long limit) throws FileBasedDatabaseException {
-        final boolean result;
+    public boolean isWithinLimit(String keyHash, long keyUsageLimit) {
+        final Long value = getJournal().get(keyHash);
+        return value != null && value < keyUsageLimit;
+    }
+
+    @Override
+    public long reserve(String keyHash, long count, long limit) throws FileBasedDatabaseException {
         try {
-            synchronized (manager) {
-                final Long value = loadData(keyHash);
-                if (value == null) {
-                    result = false;
-                } else if (limit >= 0 && value >= limit) {
-                    result = false;
-                } else {
-                    writeData(keyHash, value + 1);
-                    result = true;
-                }
-            }
-            return result;
+            return getJournal().add(keyHash, count, limit);
         } catch (IOException ex) {
             throw new FileBasedDatabaseException("Could not load from or write data to file based database", ex);
         }
     }
 
     @Override
-    public boolean isWithinLimit(String keyHash, long keyUsageLimit) {
+    public void release(String keyHash, long count) throws FileBasedDatabaseException {
         try {
-            final Long value;
-            synchronized (manager) {
-                value  = loadData(keyHash);
-            }
-            return value != null && value < keyUsageLimit;
+            getJournal().subtract(keyHash, count);
         } catch (IOException ex) {
             throw new FileBasedDatabaseException("Could not load from or write data to file based database", ex);
         }
     }
-    
-    private Long loadData(String keyHash) throws IOException {
-        assert Thread.holdsLock(manager);
-        checkSchemaVersion();
 
-        Long result = null;
-        final File file = new File(folder, PREFIX + keyHash + SUFFIX);
-        if (file.length() > 0) {
-            BufferedReader in = null;
+    private FileBasedKeyUsageCounterJournal getJournal() throws FileBasedDatabaseException {
+        FileBasedKeyUsageCounterJournal result = journal;
+        if (result == null || result.isClosed()) {
+            checkSchemaVersion();
             try {
-                in = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-                final String line = in.readLine();
-                result = Long.valueOf(line);
-            } catch (FileNotFoundException ignored) { // NOPMD
-            } finally {
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException ignored) {} // NOPMD
-                }
+                result = FileBasedKeyUsageCounterJournal.getInstance(folder);
+            } catch (IOException ex) {
+                throw new FileBasedDatabaseException("Could not open key usage counters in file based database", ex);
             }
+            journal = result;
         }
         return result;
     }
 
-    private void writeData(String keyHash, Long value) throws IOException {
-        assert Thread.holdsLock(manager);
-        checkSchemaVersion();
-
-        final File file = new File(folder, PREFIX + keyHash + SUFFIX);
-        
-        BufferedWriter out = null;
-        FileOutputStream fout = null;
-        try {
-            fout = new FileOutputStream(file);
-            out = new BufferedWriter(new OutputStreamWriter(fout));
-            out.write(String.valueOf(value));
-            out.flush();
-            fout.getFD().sync();
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException ignored) {} // NOPMD
-            } else if (fout != null) {
-                try {
-                    out.close();
-                } catch (IOException ignored) {} // NOPMD
-            }
-        }
-    }
-        
     private void checkSchemaVersion() {
         if (manager.getSchemaVersion() != SCHEMA_VERSION) {
             throw new FileBasedDatabaseException("Unsupported schema version: " + manager.getSchemaVersion());
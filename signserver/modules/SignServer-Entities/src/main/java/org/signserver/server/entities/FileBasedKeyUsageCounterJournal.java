@@ -0,0 +1,527 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.entities;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Journaled storage of the key usage counters in the file based database.
+ *
+ * The counters are kept in memory and every change is appended as a record
+ * holding the new value to a memory-mapped journal file. When the journal is
+ * full all values are compacted into a snapshot file and the journal is
+ * started over. At startup the snapshot is loaded and the journal replayed.
+ *
+ * Changes to one counter are serialized by locking that counter only. The
+ * append itself is a short memory copy and the expensive sync to disk is
+ * shared by all requests appending while a sync is in progress (group
+ * commit).
+ *
+ * Counters stored in the older file-per-key format (kuc-[keyHash].dat) are
+ * migrated into the first snapshot. The migrated files are then renamed
+ * with the suffix .migrated so that they are not mistaken for the current
+ * values.
+ *
+ * The journals opened with getInstance are closed by closeAll when the
+ * application is stopped.
+ *
+ * @version $Id$
+ */
+public class FileBasedKeyUsageCounterJournal {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(FileBasedKeyUsageCounterJournal.class);
+
+    static final String SNAPSHOT_FILE = "kuc-snapshot.bin";
+    static final String JOURNAL_FILE = "kuc-journal.bin";
+
+    private static final String LEGACY_PREFIX = "kuc-";
+    private static final String LEGACY_SUFFIX = ".dat";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+
+    private static final int SNAPSHOT_MAGIC = 0x4b554353; // KUCS
+    private static final int JOURNAL_MAGIC = 0x4b55434a; // KUCJ
+    private static final int FORMAT_VERSION = 1;
+
+    /** Magic, format version and generation. */
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+
+    /** CRC, key length, key and value. */
+    private static final int RECORD_OVERHEAD = 4 + 2 + 8;
+
+    static final int DEFAULT_JOURNAL_SIZE = 4 * 1024 * 1024;
+
+    private static final ConcurrentMap<File, FileBasedKeyUsageCounterJournal> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File folder;
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private final RandomAccessFile journalFile;
+    private final MappedByteBuffer journal;
+
+    /** Guards the journal buffer, generation and appended. */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private long generation;
+    private long appended;
+    private volatile boolean closed;
+
+    /** Only one sync at a time. */
+    private final Object syncLock = new Object();
+    private final AtomicLong durable = new AtomicLong();
+
+    /**
+     * Get the journal for the given database folder, opening it if needed.
+     * @param folder of the file based database
+     * @return the journal
+     * @throws IOException in case the journal could not be opened
+     */
+    public static FileBasedKeyUsageCounterJournal getInstance(final File folder) throws IOException {
+        FileBasedKeyUsageCounterJournal result = INSTANCES.get(folder);
+        if (result == null) {
+            synchronized (INSTANCES) {
+                result = INSTANCES.get(folder);
+                if (result == null) {
+                    result = new FileBasedKeyUsageCounterJournal(folder, DEFAULT_JOURNAL_SIZE);
+                    INSTANCES.put(folder, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Closes all journals opened with getInstance.
+     */
+    public static void closeAll() {
+        synchronized (INSTANCES) {
+            for (FileBasedKeyUsageCounterJournal journal : INSTANCES.values()) {
+                try {
+                    journal.close();
+                } catch (IOException ex) {
+                    LOG.warn("Failed to close key usage counter journal in " + journal.folder.getAbsolutePath() + ": " + ex.getLocalizedMessage());
+                }
+            }
+            INSTANCES.clear();
+        }
+    }
+
+    /**
+     * Opens the journal in the given folder and recovers all counters.
+     * @param folder to store the files in
+     * @param journalSize maximum size of the journal before compacting
+     * @throws IOException in case of failure reading or writing the files
+     */
+    FileBasedKeyUsageCounterJournal(final File folder, final int journalSize) throws IOException {
+        this.folder = folder;
+
+        final File snapshot = new File(folder, SNAPSHOT_FILE);
+        final List<File> legacyFiles;
+        if (snapshot.exists()) {
+            generation = readSnapshot(snapshot);
+            legacyFiles = Collections.emptyList();
+        } else {
+            legacyFiles = readLegacyFiles();
+            generation = 0;
+        }
+
+        journalFile = new RandomAccessFile(new File(folder, JOURNAL_FILE), "rw");
+        if (journalFile.length() < journalSize) {
+            journalFile.setLength(journalSize);
+        }
+        journal = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, journalFile.length());
+        replayJournal();
+
+        // Start over with everything in a new snapshot
+        appendLock.lock();
+        try {
+            compact();
+        } finally {
+            appendLock.unlock();
+        }
+
+        // The migrated values are now in the snapshot
+        for (File file : legacyFiles) {
+            final File migrated = new File(folder, file.getName() + MIGRATED_SUFFIX);
+            if (!file.renameTo(migrated)) {
+                LOG.warn("Unable to rename migrated key usage counter file " + file.getAbsolutePath() + " to " + migrated.getName());
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Opened key usage counter journal with " + counters.size() + " counters in generation " + generation);
+        }
+    }
+
+    /**
+     * Writes the pending records to disk and closes the journal file. The
+     * counters can still be read but not changed after this.
+     * @throws IOException in case the journal file could not be closed
+     */
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            journal.force();
+            setDurable(appended);
+            journalFile.close();
+        } finally {
+            appendLock.unlock();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Closed key usage counter journal in " + folder.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return true if the journal has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Create a counter with value 0 unless it already exists.
+     * @param keyHash Hash of the key
+     * @throws IOException in case of failure writing the journal
+     */
+    public void create(final String keyHash) throws IOException {
+        final Counter created = new Counter();
+        final long seq;
+        synchronized (created) {
+            if (counters.putIfAbsent(keyHash, created) != null) {
+                return;
+            }
+            try {
+                seq = append(keyHash, created, 0);
+            } catch (IOException | RuntimeException ex) {
+                counters.remove(keyHash, created);
+                throw ex;
+            }
+        }
+        sync(seq);
+    }
+
+    /**
+     * @param keyHash Hash of the key
+     * @return the current value or null if no such counter
+     */
+    public Long get(final String keyHash) {
+        final Counter counter = counters.get(keyHash);
+        return counter == null ? null : counter.value;
+    }
+
+    /**
+     * Add up to count to the counter without exceeding the limit.
+     * @param keyHash Hash of the key
+     * @param count maximum to add
+     * @param limit maximum value of the counter or negative for no limit
+     * @return the number added, 0 if the limit was reached or the counter
+     * does not exist
+     * @throws IOException in case of failure writing the journal
+     */
+    public long add(final String keyHash, final long count, final long limit) throws IOException {
+        final Counter counter = counters.get(keyHash);
+        if (counter == null) {
+            return 0;
+        }
+        final long result;
+        final long seq;
+        synchronized (counter) {
+            final long value = counter.value;
+            result = limit < 0 ? count : Math.max(0, Math.min(count, limit - value));
+            if (result < 1) {
+                return 0;
+            }
+            seq = append(keyHash, counter, value + result);
+        }
+        sync(seq);
+        return result;
+    }
+
+    /**
+     * Subtract from the counter unless it would become negative.
+     * @param keyHash Hash of the key
+     * @param count to subtract
+     * @throws IOException in case of failure writing the journal
+     */
+    public void subtract(final String keyHash, final long count) throws IOException {
+        final Counter counter = counters.get(keyHash);
+        if (counter == null) {
+            return;
+        }
+        final long seq;
+        synchronized (counter) {
+            final long value = counter.value;
+            if (value < count) {
+                return;
+            }
+            seq = append(keyHash, counter, value - count);
+        }
+        sync(seq);
+    }
+
+    /**
+     * Appends a record with the new value and updates the counter.
+     * @return sequence number of the record
+     */
+    private long append(final String keyHash, final Counter counter, final long value) throws IOException {
+        assert Thread.holdsLock(counter);
+        final byte[] key = keyHash.getBytes(StandardCharsets.US_ASCII);
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Key usage counter journal is closed: " + folder.getAbsolutePath());
+            }
+            if (journal.remaining() < RECORD_OVERHEAD + key.length) {
+                compact();
+            }
+            final int start = journal.position();
+            journal.position(start + 4);
+            journal.putShort((short) key.length);
+            journal.put(key);
+            journal.putLong(value);
+            journal.putInt(start, checksum(start + 4, 2 + key.length + 8));
+
+            // Updated under the lock so that a compaction always includes it
+            counter.value = value;
+            return ++appended;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is on disk. If
+     * another thread is syncing, the records appended until it started are
+     * covered by that sync.
+     */
+    private void sync(final long seq) {
+        if (durable.get() >= seq) {
+            return;
+        }
+        synchronized (syncLock) {
+            // Already covered by a sync done while waiting
+            if (durable.get() >= seq) {
+                return;
+            }
+            final long upTo;
+            appendLock.lock();
+            try {
+                upTo = appended;
+            } finally {
+                appendLock.unlock();
+            }
+            journal.force();
+            setDurable(upTo);
+        }
+    }
+
+    private void setDurable(final long seq) {
+        long current;
+        while ((current = durable.get()) < seq) {
+            if (durable.compareAndSet(current, seq)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes all values to a new snapshot and starts a new journal.
+     */
+    private void compact() throws IOException {
+        assert appendLock.isHeldByCurrentThread();
+        final long nextGeneration = generation + 1;
+        writeSnapshot(nextGeneration);
+        generation = nextGeneration;
+
+        // Clear the old records and write the new header
+        final int end = journal.position();
+        for (int i = HEADER_SIZE; i < end; i++) {
+            journal.put(i, (byte) 0);
+        }
+        journal.putInt(0, JOURNAL_MAGIC);
+        journal.putInt(4, FORMAT_VERSION);
+        journal.putLong(8, generation);
+        journal.position(HEADER_SIZE);
+        journal.force();
+
+        // Everything appended so far is in the snapshot
+        setDurable(appended);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Compacted key usage counter journal into generation " + generation);
+        }
+    }
+
+    private void writeSnapshot(final long snapshotGeneration) throws IOException {
+        final File file = new File(folder, SNAPSHOT_FILE);
+        final File tmpFile = new File(folder, SNAPSHOT_FILE + ".tmp");
+
+        final Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().value);
+        }
+
+        final FileOutputStream fout = new FileOutputStream(tmpFile);
+        try {
+            final CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(fout), new CRC32());
+            final DataOutputStream out = new DataOutputStream(cout);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(snapshotGeneration);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Long> entry : values.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeLong(cout.getChecksum().getValue());
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            try {
+                fout.close();
+            } catch (IOException ignored) {} // NOPMD
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long readSnapshot(final File file) throws IOException {
+        final CheckedInputStream cin = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+        final DataInputStream in = new DataInputStream(cin);
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported key usage counter snapshot: " + file.getAbsolutePath());
+            }
+            final long result = in.readLong();
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final Counter counter = new Counter();
+                final String keyHash = in.readUTF();
+                counter.value = in.readLong();
+                counters.put(keyHash, counter);
+            }
+            final long checksum = cin.getChecksum().getValue();
+            if (in.readLong() != checksum) {
+                throw new IOException("Corrupt key usage counter snapshot: " + file.getAbsolutePath());
+            }
+            return result;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {} // NOPMD
+        }
+    }
+
+    private void replayJournal() {
+        journal.position(0);
+        if (journal.getInt(0) != JOURNAL_MAGIC || journal.getInt(4) != FORMAT_VERSION
+                || journal.getLong(8) != generation) {
+            // Empty or already included in the snapshot
+            journal.position(HEADER_SIZE);
+            return;
+        }
+        int position = HEADER_SIZE;
+        int replayed = 0;
+        while (position + RECORD_OVERHEAD <= journal.limit()) {
+            final int keyLength = journal.getShort(position + 4);
+            if (keyLength <= 0 || position + RECORD_OVERHEAD + keyLength > journal.limit()) {
+                break;
+            }
+            if (journal.getInt(position) != checksum(position + 4, 2 + keyLength + 8)) {
+                LOG.warn("Ignoring incomplete record at the end of the key usage counter journal");
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            journal.position(position + 4 + 2);
+            journal.get(key);
+            final Counter counter = new Counter();
+            counter.value = journal.getLong();
+            counters.put(new String(key, StandardCharsets.US_ASCII), counter);
+            position = journal.position();
+            replayed++;
+        }
+        journal.position(position);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Replayed " + replayed + " key usage counter records");
+        }
+    }
+
+    private List<File> readLegacyFiles() throws IOException {
+        final List<File> result = new ArrayList<>();
+        final File[] files = folder.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(LEGACY_PREFIX) && name.endsWith(LEGACY_SUFFIX) && file.length() > 0) {
+                final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+                try {
+                    final Counter counter = new Counter();
+                    try {
+                        counter.value = Long.parseLong(String.valueOf(in.readLine()).trim());
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Unable to parse key usage counter: " + file.getAbsolutePath(), ex);
+                    }
+                    counters.put(name.substring(LEGACY_PREFIX.length(), name.length() - LEGACY_SUFFIX.length()), counter);
+                    result.add(file);
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException ignored) {} // NOPMD
+                }
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Migrated " + counters.size() + " key usage counters from the file-per-key format");
+        }
+        return result;
+    }
+
+    private int checksum(final int offset, final int length) {
+        crc.reset();
+        for (int i = offset; i < offset + length; i++) {
+            crc.update(journal.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Value of one counter. Modified only while holding its lock.
+     */
+    private static final class Counter {
+        private volatile long value;
+    }
+}
@@ -51,5 +51,27 @@ public interface IKeyUsageCounterDataService {
      * usage limit
      */
     boolean isWithinLimit(String keyHash, long keyUsageLimit);
-   
+
+    /**
+     * Reserve a number of key usages in advance by increasing the counter
+     * with up to the given amount, but never above the limit.
+     * If the full amount can not be reserved within the limit a smaller
+     * number of usages might be reserved instead.
+     * @param keyHash Hash of the key
+     * @param count The number of usages to reserve
+     * @param limit The maximum number of operations or a negative value for
+     * no limit
+     * @return The number of usages actually reserved, 0 if the limit was
+     * reached or the counter not initialized
+     */
+    long reserve(String keyHash, long count, long limit);
+
+    /**
+     * Give back usages earlier reserved using
+     * {@link #reserve(java.lang.String, long, long)} that were never used.
+     * @param keyHash Hash of the key
+     * @param count The number of unused usages to give back
+     */
+    void release(String keyHash, long count);
+
 }
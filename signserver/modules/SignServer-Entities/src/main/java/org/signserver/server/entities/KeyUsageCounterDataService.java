@@ -72,4 +72,39 @@ public class KeyUsageCounterDataService implements IKeyUsageCounterDataService {
         return selectQuery.getResultList().size() > 0;
     }
 
+    @Override
+    public long reserve(String keyHash, long count, long limit) {
+        final Query updateQuery;
+        if (limit < 0) {
+            updateQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = w.counter + :count WHERE w.keyHash = :keyhash");
+        } else {
+            updateQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = w.counter + :count WHERE w.keyHash = :keyhash AND w.counter <= :max");
+            updateQuery.setParameter("max", limit - count);
+        }
+        updateQuery.setParameter("count", count);
+        updateQuery.setParameter("keyhash", keyHash);
+
+        final long result;
+        if (updateQuery.executeUpdate() > 0) {
+            result = count;
+        } else if (count > 1) {
+            // Close to the limit: only take one at a time
+            result = incrementIfWithinLimit(keyHash, limit) ? 1 : 0;
+        } else {
+            result = 0;
+        }
+        return result;
+    }
+
+    @Override
+    public void release(String keyHash, long count) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Releasing " + count + " reserved key usages for " + keyHash);
+        }
+        final Query updateQuery = em.createQuery("UPDATE KeyUsageCounter w SET w.counter = w.counter - :count WHERE w.keyHash = :keyhash AND w.counter >= :count");
+        updateQuery.setParameter("count", count);
+        updateQuery.setParameter("keyhash", keyHash);
+        updateQuery.executeUpdate();
+    }
+
 }
@@ -0,0 +1,232 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.ejb.EJBException;
+import org.signserver.common.ArchiveDataVO;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the ArchiveContentStore.
+ *
+ * @version $Id$
+ */
+public class ArchiveContentStoreUnitTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests storing and reading back uncompressed content and that the
+     * same content is only stored once.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testStoreUncompressed() throws Exception {
+        final File dir = folder.newFolder();
+        final ArchiveContentStore instance = new ArchiveContentStore(dir, false);
+        final byte[] data = createData(100000);
+
+        final String reference = instance.store(new ByteArrayInputStream(data));
+        assertFalse("relative: " + reference, new File(reference).isAbsolute());
+        assertEquals("file size", data.length, new File(dir, reference).length());
+        assertTrue("contains", instance.contains(reference));
+        assertArrayEquals("read", data, instance.read(reference));
+
+        assertEquals("same reference", reference, instance.store(new ByteArrayInputStream(data)));
+        assertEquals("stored once", 1, countFiles(dir));
+
+        final byte[] other = createData(10);
+        assertFalse("other reference", reference.equals(instance.store(new ByteArrayInputStream(other))));
+        assertEquals("stored other", 2, countFiles(dir));
+    }
+
+    /**
+     * Tests storing and reading back compressed content.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testStoreCompressed() throws Exception {
+        final File dir = folder.newFolder();
+        final ArchiveContentStore instance = new ArchiveContentStore(dir, true);
+        final byte[] data = new byte[1000000];
+        Arrays.fill(data, (byte) 'a');
+
+        final String reference = instance.store(new ByteArrayInputStream(data));
+        assertTrue("suffix", reference.endsWith(ArchiveContentStore.DEFLATE_SUFFIX));
+        final long size = new File(dir, reference).length();
+        assertTrue("compressed: " + size, size > 0 && size < data.length / 10);
+        assertArrayEquals("read", data, instance.read(reference));
+    }
+
+    /**
+     * Tests that references to files outside of the store are not accepted.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMalformedReference() throws Exception {
+        final File dir = folder.newFolder();
+        final ArchiveContentStore instance = new ArchiveContentStore(new File(dir, "store"), false);
+        final String[] references = new String[] {
+            new File(dir, "other").getAbsolutePath(),
+            "../other",
+            "ab/../../other",
+            null
+        };
+        for (String reference : references) {
+            try {
+                instance.read(reference);
+                fail("Should not read " + reference);
+            } catch (IOException expected) { // NOPMD
+                // OK
+            }
+        }
+    }
+
+    /**
+     * Tests that the location includes the directory of the store and that
+     * a reference without a directory, as stored by earlier versions, is
+     * still understood.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLocation() throws Exception {
+        final File dir = folder.newFolder();
+        final ArchiveContentStore instance = new ArchiveContentStore(dir, false);
+        final String reference = instance.store(new ByteArrayInputStream(createData(10)));
+        final String location = instance.getLocation(reference);
+
+        assertEquals("directory", dir.getAbsoluteFile(), ArchiveContentStore.getDirectory(location));
+        assertEquals("reference", reference, ArchiveContentStore.getReference(location));
+        assertNull("no directory", ArchiveContentStore.getDirectory(reference));
+        assertEquals("only reference", reference, ArchiveContentStore.getReference(reference));
+    }
+
+    /**
+     * Tests that the value object for a row in the store is found in the
+     * directory stored with the row, also when the worker is no longer
+     * configured with it, and that rows without the directory are looked up
+     * in the directories given by the resolver.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testArchiveDataVO() throws Exception {
+        final File other = folder.newFolder();
+        final File dir = folder.newFolder();
+        final ArchiveContentStore instance = new ArchiveContentStore(dir, true);
+        final byte[] data = createData(5000);
+        final String reference = instance.store(new ByteArrayInputStream(data));
+
+        final ArchiveDataBean bean = createBean(instance.getLocation(reference));
+        final ArchiveContentResolver otherResolver = new ArchiveContentResolver() {
+            @Override
+            public List<File> getDirectories(int signerId) {
+                assertEquals("signer", 42, signerId);
+                return Collections.singletonList(other);
+            }
+        };
+        assertArrayEquals("stored directory", data, bean.getArchiveDataVO(otherResolver).getArchivedBytes());
+        assertArrayEquals("no resolver", data, bean.getArchiveDataVO().getArchivedBytes());
+
+        final ArchiveDataBean legacy = createBean(reference);
+        final ArchiveDataVO vo = legacy.getArchiveDataVO(new ArchiveContentResolver() {
+            @Override
+            public List<File> getDirectories(int signerId) {
+                return Arrays.asList(other, dir);
+            }
+        });
+        assertArrayEquals("bytes", data, vo.getArchivedBytes());
+
+        try {
+            legacy.getArchiveDataVO(otherResolver);
+            fail("Should not find the data");
+        } catch (EJBException expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Tests that the stored data is available from a serialized value
+     * object, as given to a remote client.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testArchiveDataVOSerialized() throws Exception {
+        final File dir = folder.newFolder();
+        final ArchiveContentStore instance = new ArchiveContentStore(dir, true);
+        final byte[] data = createData(200000);
+        final ArchiveDataBean bean = createBean(instance.getLocation(instance.store(new ByteArrayInputStream(data))));
+
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bout)) {
+            out.writeObject(bean.getArchiveDataVO());
+        }
+        final ArchiveDataVO vo;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()))) {
+            vo = (ArchiveDataVO) in.readObject();
+        }
+
+        assertEquals("archiveId", "archive1", vo.getArchiveId());
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (InputStream in = vo.getArchivedInputStream()) {
+            final byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read.write(buffer, 0, n);
+            }
+        }
+        assertArrayEquals("streamed", data, read.toByteArray());
+        assertArrayEquals("bytes", data, vo.getArchivedBytes());
+    }
+
+    private static ArchiveDataBean createBean(final String archiveData) {
+        final ArchiveDataBean result = new ArchiveDataBean();
+        result.setUniqueId("1;42;archive1");
+        result.setType(ArchiveDataVO.TYPE_RESPONSE);
+        result.setSignerid(42);
+        result.setArchiveid("archive1");
+        result.setArchiveData(archiveData);
+        result.setDataEncoding(ArchiveDataBean.DATA_ENCODING_REFERENCE);
+        return result;
+    }
+
+    private static byte[] createData(final int length) {
+        final byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) (i * 31 + length);
+        }
+        return result;
+    }
+
+    private static int countFiles(final File dir) {
+        int result = 0;
+        for (File file : dir.listFiles()) {
+            result += file.isDirectory() ? countFiles(file) : 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,312 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.config.entities;
+
+import java.beans.XMLEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.cesecore.util.Base64PutHashMap;
+import org.signserver.common.AuthorizedClient;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerType;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the FileBasedWorkerConfigJournal class.
+ *
+ * @version $Id$
+ */
+public class FileBasedWorkerConfigJournalUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(FileBasedWorkerConfigJournalUnitTest.class);
+
+    private File folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("workerconfigtest").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * Tests that the configurations and the index are recovered from the
+     * journal when opened again.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRecoverFromJournal() throws Exception {
+        FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        final WorkerConfig config1 = createConfig("Worker1", WorkerType.PROCESSABLE);
+        config1.addAuthorizedClient(new AuthorizedClient("123abc", "CN=Issuer 1"));
+        config1.setProperty("UNICODE", "åäö €");
+        instance.put(1, config1, "Worker1", WorkerType.PROCESSABLE.getType());
+        instance.put(2, createConfig("Worker2", WorkerType.TIMED_SERVICE), "Worker2", WorkerType.TIMED_SERVICE.getType());
+
+        instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        final WorkerConfig loaded = instance.get(1);
+        assertEquals("properties", config1.getProperties(), loaded.getProperties());
+        assertEquals("clients", new ArrayList<>(config1.getAuthorizedClients()), new ArrayList<>(loaded.getAuthorizedClients()));
+        assertEquals("version", config1.getVersion(), loaded.getVersion(), 0);
+        assertNull("no such worker", instance.get(3));
+
+        assertEquals("id by name", 2, instance.getIndex().getWorkerId("Worker2"));
+        assertEquals("by type", Arrays.asList(2), instance.getIndex().findAllWorkerIds(WorkerType.TIMED_SERVICE.getType()));
+        assertEquals("all", 2, instance.getIndex().findAllWorkerIds().size());
+    }
+
+    /**
+     * Tests that only the changed properties are appended to the journal.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIncrementalChanges() throws Exception {
+        FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        final File journal = new File(folder, FileBasedWorkerConfigJournal.JOURNAL_FILE);
+        final WorkerConfig config = createConfig("Worker1", WorkerType.PROCESSABLE);
+        for (int i = 0; i < 1000; i++) {
+            config.setProperty("PROPERTY" + i, "Value of property " + i);
+        }
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+        final long fullSize = journal.length();
+
+        config.setProperty("PROPERTY500", "Changed");
+        config.removeProperty("PROPERTY501");
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+        final long changeSize = journal.length() - fullSize;
+        LOG.info("Full configuration: " + fullSize + " bytes, change of two properties: " + changeSize + " bytes");
+        assertTrue("only the changes written: " + changeSize, changeSize < 100);
+
+        // Storing the same configuration writes nothing
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+        assertEquals("unchanged", fullSize + changeSize, journal.length());
+
+        // Renaming only updates the index entry
+        config.setProperty("NAME", "Renamed");
+        instance.put(1, config, "Renamed", WorkerType.PROCESSABLE.getType());
+        assertFalse("old name", instance.getIndex().isExistingName("Worker1"));
+
+        instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        final WorkerConfig loaded = instance.get(1);
+        assertEquals("changed", "Changed", loaded.getProperty("PROPERTY500"));
+        assertNull("removed", loaded.getProperty("PROPERTY501"));
+        assertEquals("properties", config.getProperties(), loaded.getProperties());
+        assertEquals("id by name", 1, instance.getIndex().getWorkerId("Renamed"));
+    }
+
+    /**
+     * Tests removal of configurations and authorized clients.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRemove() throws Exception {
+        FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        final WorkerConfig config = createConfig("Worker1", WorkerType.PROCESSABLE);
+        config.addAuthorizedClient(new AuthorizedClient("1", "CN=Issuer"));
+        config.addAuthorizedClient(new AuthorizedClient("2", "CN=Issuer"));
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+        instance.put(2, createConfig("Worker2", WorkerType.PROCESSABLE), "Worker2", WorkerType.PROCESSABLE.getType());
+
+        config.removeAuthorizedClient(new AuthorizedClient("1", "CN=Issuer"));
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+        assertTrue("removed", instance.remove(2));
+        assertFalse("already removed", instance.remove(2));
+
+        instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        assertEquals("clients", Arrays.asList(new AuthorizedClient("2", "CN=Issuer")), new ArrayList<>(instance.get(1).getAuthorizedClients()));
+        assertNull("removed", instance.get(2));
+        assertFalse("removed from index", instance.getIndex().isExistingName("Worker2"));
+        assertEquals("by type", Arrays.asList(1), instance.getIndex().findAllWorkerIds(WorkerType.PROCESSABLE.getType()));
+    }
+
+    /**
+     * Tests that a closed journal can not be changed and that closeAll
+     * closes the shared instances.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testClose() throws Exception {
+        final FileBasedWorkerConfigJournal instance = FileBasedWorkerConfigJournal.getInstance(folder);
+        assertSame("shared", instance, FileBasedWorkerConfigJournal.getInstance(folder));
+        instance.put(1, createConfig("Worker1", WorkerType.PROCESSABLE), "Worker1", WorkerType.PROCESSABLE.getType());
+
+        FileBasedWorkerConfigJournal.closeAll();
+        assertTrue("closed", instance.isClosed());
+        assertEquals("still readable", "Worker1", instance.get(1).getProperty("NAME"));
+        try {
+            instance.put(2, createConfig("Worker2", WorkerType.PROCESSABLE), "Worker2", WorkerType.PROCESSABLE.getType());
+            fail("Should not be possible to change a closed journal");
+        } catch (IOException expected) { // NOPMD
+            // OK
+        }
+
+        final FileBasedWorkerConfigJournal reopened = FileBasedWorkerConfigJournal.getInstance(folder);
+        assertNotSame("new instance", instance, reopened);
+        assertEquals("Worker1", reopened.get(1).getProperty("NAME"));
+        assertNull("not stored", reopened.get(2));
+        reopened.put(2, createConfig("Worker2", WorkerType.PROCESSABLE), "Worker2", WorkerType.PROCESSABLE.getType());
+        FileBasedWorkerConfigJournal.closeAll();
+    }
+
+    /**
+     * Tests that the returned configurations can be modified without
+     * affecting the stored ones.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReturnedCopies() throws Exception {
+        final FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        instance.put(1, createConfig("Worker1", WorkerType.PROCESSABLE), "Worker1", WorkerType.PROCESSABLE.getType());
+
+        final WorkerConfig loaded = instance.get(1);
+        loaded.setProperty("NEW", "value");
+        loaded.addAuthorizedClient(new AuthorizedClient("1", "CN=Issuer"));
+
+        assertNull("not stored", instance.get(1).getProperty("NEW"));
+        assertTrue("no clients", instance.get(1).getAuthorizedClients().isEmpty());
+    }
+
+    /**
+     * Tests that compacting into a new snapshot keeps all configurations.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 512);
+        final WorkerConfig config = createConfig("Worker1", WorkerType.PROCESSABLE);
+        for (int i = 0; i < 100; i++) {
+            config.setProperty("COUNTER", String.valueOf(i));
+            instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+            instance.put(100 + i, createConfig("Other" + i, WorkerType.PROCESSABLE), "Other" + i, WorkerType.PROCESSABLE.getType());
+        }
+        assertTrue("journal compacted", new File(folder, FileBasedWorkerConfigJournal.JOURNAL_FILE).length() < 1024);
+
+        instance = new FileBasedWorkerConfigJournal(folder, 512);
+        assertEquals("counter", "99", instance.get(1).getProperty("COUNTER"));
+        assertEquals("workers", 101, instance.getIndex().findAllWorkerIds().size());
+    }
+
+    /**
+     * Tests that an incomplete transaction at the end of the journal is
+     * ignored.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIncompleteTransaction() throws Exception {
+        FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        final WorkerConfig config = createConfig("Worker1", WorkerType.PROCESSABLE);
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+        config.setProperty("FOO", "bar");
+        instance.put(1, config, "Worker1", WorkerType.PROCESSABLE.getType());
+
+        // Corrupt the last transaction as if the write was interrupted
+        final File journal = new File(folder, FileBasedWorkerConfigJournal.JOURNAL_FILE);
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.seek(file.length() - 2);
+            file.write(new byte[] {0x55, 0x55});
+        }
+
+        instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        assertEquals("first transaction", "Worker1", instance.get(1).getProperty("NAME"));
+        assertNull("last transaction ignored", instance.get(1).getProperty("FOO"));
+    }
+
+    /**
+     * Tests migration of configurations stored one XML file per worker.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMigrateLegacyFiles() throws Exception {
+        final WorkerConfig config = createConfig("Legacy", WorkerType.PROCESSABLE);
+        config.addAuthorizedClient(new AuthorizedClient("abc", "CN=Legacy Issuer"));
+        config.setProperty("UNICODE", "åäö");
+        writeLegacyFile(7, config);
+        writeLegacyFile(8, new WorkerConfig());
+
+        FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        assertEquals("properties", config.getProperties(), instance.get(7).getProperties());
+        assertEquals("clients", new ArrayList<>(config.getAuthorizedClients()), new ArrayList<>(instance.get(7).getAuthorizedClients()));
+        assertEquals("id by name", 7, instance.getIndex().getWorkerId("Legacy"));
+        assertEquals("unnamed", 8, instance.getIndex().getWorkerId("UnamedWorker8"));
+        assertEquals("unknown type", Arrays.asList(8), instance.getIndex().findAllWorkerIds(WorkerType.UNKNOWN.getType()));
+
+        // The snapshot is used from now on
+        config.setProperty("CHANGED", "true");
+        writeLegacyFile(7, config);
+        instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        assertNull("not migrated again", instance.get(7).getProperty("CHANGED"));
+    }
+
+    /**
+     * Tests that nothing is migrated if one of the configurations stored one
+     * XML file per worker can not be read.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMigrateUnreadableLegacyFile() throws Exception {
+        writeLegacyFile(7, createConfig("Legacy", WorkerType.PROCESSABLE));
+        FileUtils.writeStringToFile(new File(folder, "signerdata-8.dat"), "<?xml version=\"1.0\"?><java><object",
+                StandardCharsets.UTF_8.name());
+
+        try {
+            new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+            fail("Should fail on the unreadable file");
+        } catch (IOException expected) {
+            assertTrue("message: " + expected.getMessage(), expected.getMessage().contains("signerdata-8.dat"));
+        }
+        assertFalse("no snapshot", new File(folder, FileBasedWorkerConfigJournal.SNAPSHOT_FILE).exists());
+
+        // Migrated once the file has been fixed
+        writeLegacyFile(8, createConfig("Fixed", WorkerType.PROCESSABLE));
+        final FileBasedWorkerConfigJournal instance = new FileBasedWorkerConfigJournal(folder, 1024 * 1024);
+        assertEquals("first", 7, instance.getIndex().getWorkerId("Legacy"));
+        assertEquals("fixed", 8, instance.getIndex().getWorkerId("Fixed"));
+    }
+
+    private static WorkerConfig createConfig(final String name, final WorkerType type) {
+        final WorkerConfig result = new WorkerConfig();
+        result.setProperty("NAME", name);
+        result.setProperty("TYPE", type.name());
+        result.setProperty("IMPLEMENTATION_CLASS", "org.signserver.module.xmlsigner.XMLSigner");
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeLegacyFile(final int workerId, final WorkerConfig config) throws Exception {
+        final HashMap<Object, Object> a = new Base64PutHashMap();
+        a.putAll((Map<Object, Object>) config.saveData());
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (XMLEncoder encoder = new XMLEncoder(baos)) {
+            encoder.writeObject(a);
+        }
+        FileUtils.writeStringToFile(new File(folder, "signerdata-" + workerId + ".dat"),
+                baos.toString(StandardCharsets.UTF_8.name()), StandardCharsets.UTF_8.name());
+    }
+}
@@ -0,0 +1,218 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.entities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the FileBasedKeyUsageCounterJournal class.
+ *
+ * @version $Id$
+ */
+public class FileBasedKeyUsageCounterJournalUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(FileBasedKeyUsageCounterJournalUnitTest.class);
+
+    private File folder;
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("kuctest").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * Tests that the counters are recovered from the journal when opened
+     * again.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRecoverFromJournal() throws Exception {
+        FileBasedKeyUsageCounterJournal instance = new FileBasedKeyUsageCounterJournal(folder, 4096);
+        assertNull(instance.get("aa11"));
+        assertEquals("not created", 0, instance.add("aa11", 1, -1));
+
+        instance.create("aa11");
+        instance.create("bb22");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, instance.add("aa11", 1, 3));
+        }
+        assertEquals("limit reached", 0, instance.add("aa11", 1, 3));
+        instance.add("bb22", 10, -1);
+        instance.subtract("bb22", 4);
+
+        // Simulates a crash: no compaction before opening again
+        instance = new FileBasedKeyUsageCounterJournal(folder, 4096);
+        assertEquals("limited", Long.valueOf(3), instance.get("aa11"));
+        assertEquals(Long.valueOf(6), instance.get("bb22"));
+    }
+
+    /**
+     * Tests that nothing is lost when the journal is compacted many times.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        FileBasedKeyUsageCounterJournal instance = new FileBasedKeyUsageCounterJournal(folder, 256);
+        instance.create("aa11");
+        for (int i = 0; i < 1000; i++) {
+            instance.add("aa11", 1, -1);
+        }
+        assertEquals(Long.valueOf(1000), instance.get("aa11"));
+
+        instance = new FileBasedKeyUsageCounterJournal(folder, 256);
+        assertEquals(Long.valueOf(1000), instance.get("aa11"));
+    }
+
+    /**
+     * Tests that an incomplete record at the end of the journal is ignored.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIncompleteRecord() throws Exception {
+        FileBasedKeyUsageCounterJournal instance = new FileBasedKeyUsageCounterJournal(folder, 4096);
+        instance.create("aa11");
+        instance.add("aa11", 1, -1);
+        instance.add("aa11", 1, -1);
+
+        // Corrupt the value of the last record
+        final File journal = new File(folder, FileBasedKeyUsageCounterJournal.JOURNAL_FILE);
+        final int recordSize = 4 + 2 + 4 + 8;
+        final RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.seek(16 + 3 * recordSize - 1);
+            raf.write(0x55);
+        } finally {
+            raf.close();
+        }
+
+        instance = new FileBasedKeyUsageCounterJournal(folder, 4096);
+        assertEquals(Long.valueOf(1), instance.get("aa11"));
+    }
+
+    /**
+     * Tests that counters in the file-per-key format are migrated and that
+     * the migrated files are renamed.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMigrateLegacyFiles() throws Exception {
+        FileUtils.writeStringToFile(new File(folder, "kuc-cc33.dat"), "42", StandardCharsets.US_ASCII.name());
+
+        FileBasedKeyUsageCounterJournal instance = new FileBasedKeyUsageCounterJournal(folder, 4096);
+        assertEquals(Long.valueOf(42), instance.get("cc33"));
+        assertFalse("legacy file renamed", new File(folder, "kuc-cc33.dat").exists());
+        assertTrue("migrated file", new File(folder, "kuc-cc33.dat.migrated").exists());
+        instance.add("cc33", 1, -1);
+
+        instance = new FileBasedKeyUsageCounterJournal(folder, 4096);
+        assertEquals(Long.valueOf(43), instance.get("cc33"));
+    }
+
+    /**
+     * Tests that a closed journal can not be changed and that closeAll
+     * closes the shared instances.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testClose() throws Exception {
+        final FileBasedKeyUsageCounterJournal instance = FileBasedKeyUsageCounterJournal.getInstance(folder);
+        assertSame("shared", instance, FileBasedKeyUsageCounterJournal.getInstance(folder));
+        instance.create("aa11");
+        instance.add("aa11", 5, -1);
+
+        FileBasedKeyUsageCounterJournal.closeAll();
+        assertTrue("closed", instance.isClosed());
+        assertEquals("still readable", Long.valueOf(5), instance.get("aa11"));
+        try {
+            instance.add("aa11", 1, -1);
+            fail("Should not be possible to change a closed journal");
+        } catch (IOException expected) { // NOPMD
+            // OK
+        }
+
+        final FileBasedKeyUsageCounterJournal reopened = FileBasedKeyUsageCounterJournal.getInstance(folder);
+        assertNotSame("new instance", instance, reopened);
+        assertEquals(Long.valueOf(5), reopened.get("aa11"));
+        assertEquals(1, reopened.add("aa11", 1, -1));
+        FileBasedKeyUsageCounterJournal.closeAll();
+    }
+
+    /**
+     * Tests concurrent increments from 64 threads on a few keys and prints
+     * the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        final int threads = 64;
+        final int perThread = 200;
+        final String[] keys = {"aa11", "bb22", "cc33", "dd44"};
+        final FileBasedKeyUsageCounterJournal instance = new FileBasedKeyUsageCounterJournal(folder, 64 * 1024);
+        for (String key : keys) {
+            instance.create(key);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final String key = keys[t % keys.length];
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            instance.add(key, 1, -1);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Increments per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+        } finally {
+            executor.shutdown();
+        }
+
+        final long expected = threads * perThread / keys.length;
+        final FileBasedKeyUsageCounterJournal recovered = new FileBasedKeyUsageCounterJournal(folder, 64 * 1024);
+        for (String key : keys) {
+            assertEquals(key, Long.valueOf(expected), recovered.get(key));
+        }
+    }
+}
@@ -46,6 +46,7 @@
  */
 package com.lowagie.text.pdf;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -119,10 +120,21 @@ class PdfStamperImp extends PdfWriter {
                 crypto = new PdfEncryption(reader.getDecrypt());
             pdf_version.setAppendmode(true);
             file.reOpen();
-            byte buf[] = new byte[8192];
-            int n;
-            while ((n = file.read(buf)) > 0)
-                this.os.write(buf, 0, n);
+            if (os instanceof FileOutputStream) {
+                // nothing has been buffered yet so the original bytes can be
+                // transferred directly to the file
+                long transferred = file.transferTo(((FileOutputStream)os).getChannel());
+                // the offsets in the xref table are kept as int
+                if (transferred > Integer.MAX_VALUE - this.os.counter)
+                    throw new IOException("The original document is too large to append to: " + transferred + " bytes");
+                this.os.counter += (int)transferred;
+            }
+            else {
+                byte buf[] = new byte[8192];
+                int n;
+                while ((n = file.read(buf)) > 0)
+                    this.os.write(buf, 0, n);
+            }
             file.close();
             prevxref = reader.getLastXref();
             reader.setAppendable(true);
@@ -61,6 +61,7 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.URL;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 /** An implementation of a RandomAccessFile for input only
  * that accepts a file or a byte array as data source.
  *
@@ -644,4 +645,33 @@ public class RandomAccessFileOrArray implements DataInput {
     	}
     	return java.nio.ByteBuffer.wrap(arrayIn);
     }
+
+    /**
+     * Writes all bytes from the start offset to the end to the channel.
+     * When backed by a file the bytes are transferred by the file channel
+     * without being copied to the heap. The file pointer is left unspecified.
+     * @param target the channel to write to
+     * @return the number of bytes written
+     * @throws IOException on error
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (arrayIn != null) {
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(arrayIn, startOffset, arrayIn.length - startOffset);
+            while (buf.hasRemaining())
+                target.write(buf);
+            return arrayIn.length - startOffset;
+        }
+        insureOpen();
+        FileChannel channel = plainRandomAccess ? trf.getChannel() : rf.getChannel();
+        // the size as long as length() would truncate files larger than 2 GB
+        final long length = channel.size() - startOffset;
+        long position = 0;
+        while (position < length) {
+            long n = channel.transferTo(startOffset + position, length - position, target);
+            if (n <= 0)
+                throw new EOFException("Unexpected EOF");
+            position += n;
+        }
+        return length;
+    }
 }
@@ -16,7 +16,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
@@ -62,7 +61,8 @@ import org.signserver.server.archive.Archivable;
 import org.signserver.server.archive.DefaultArchivable;
 import org.signserver.server.cryptotokens.ICryptoInstance;
 import org.signserver.server.cryptotokens.ICryptoTokenV4;
-import org.signserver.server.data.impl.UploadUtil;
+import org.signserver.server.data.impl.DigestingReadableData;
+import org.signserver.server.data.impl.DigestingWritableData;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
@@ -605,57 +605,71 @@ public class CMSSigner extends BaseSigner {
             // Log anything interesting from the request to the worker logger
             final LogMap logMap = LogMap.getInstance(requestContext);
 
-            final byte[] requestDigest;
-            if (doLogRequestDigest) {
-                logMap.put(IWorkerLogger.LOG_REQUEST_DIGEST_ALGORITHM, logRequestDigestAlgorithm);
-
-                try (InputStream input = requestData.getAsInputStream()) {
-                    final MessageDigest md = MessageDigest.getInstance(logRequestDigestAlgorithm);
-
-                    // Digest all data
-                    // TODO: Future optimization: could be done while the file is read instead
-                    requestDigest = UploadUtil.digest(input, md);
+            // The digests to log are computed while signing
+            final DigestingReadableData digestingRequestData;
+            final DigestingWritableData digestingResponseData;
+            try {
+                if (doLogRequestDigest) {
+                    logMap.put(IWorkerLogger.LOG_REQUEST_DIGEST_ALGORITHM, logRequestDigestAlgorithm);
+                    digestingRequestData = new DigestingReadableData(requestData, logRequestDigestAlgorithm);
+                } else {
+                    digestingRequestData = null;
+                }
+                if (doLogResponseDigest) {
+                    logMap.put(IWorkerLogger.LOG_RESPONSE_DIGEST_ALGORITHM, logResponseDigestAlgorithm);
+                    digestingResponseData = new DigestingWritableData(responseData, logResponseDigestAlgorithm);
+                } else {
+                    digestingResponseData = null;
+                }
+            } catch (NoSuchAlgorithmException ex) {
+                LOG.error("Log digest algorithm not supported", ex);
+                throw new SignServerException("Log digest algorithm not supported", ex);
+            }
 
-                    logMap.put(IWorkerLogger.LOG_REQUEST_DIGEST, new Loggable() {
-                        @Override
-                        public String toString() {
-                            return Hex.toHexString(requestDigest);
+            Throwable failure = null;
+            try {
+                sign(crypto, cert, certs, sigAlg, requestContext,
+                        digestingRequestData == null ? requestData : digestingRequestData,
+                        digestingResponseData == null ? responseData : digestingResponseData,
+                        contentOIDToUse);
+            } catch (Throwable t) {
+                failure = t;
+                throw t;
+            } finally {
+                // Log the request digest also for failed requests, reading
+                // the rest of the request if signing stopped before the end
+                if (digestingRequestData != null) {
+                    try {
+                        final byte[] requestDigest = digestingRequestData.getDigest(logRequestDigestAlgorithm);
+                        logMap.put(IWorkerLogger.LOG_REQUEST_DIGEST, new Loggable() {
+                            @Override
+                            public String toString() {
+                                return Hex.toHexString(requestDigest);
+                            }
+                        });
+                    } catch (IOException ex) {
+                        LOG.error("Log request digest failed", ex);
+                        // Do not hide the reason the request failed
+                        if (failure == null) {
+                            throw new SignServerException("Log request digest failed", ex);
                         }
-                    });
-                } catch (NoSuchAlgorithmException ex) {
-                    LOG.error("Log digest algorithm not supported", ex);
-                    throw new SignServerException("Log digest algorithm not supported", ex);
-                } catch (IOException ex) {
-                    LOG.error("Log request digest failed", ex);
-                    throw new SignServerException("Log request digest failed", ex);
+                        failure.addSuppressed(ex);
+                    }
                 }
             }
 
-            sign(crypto, cert, certs, sigAlg, requestContext, requestData,
-                         responseData, contentOIDToUse);
-
             final String archiveId = createArchiveId(new byte[0], (String) requestContext.get(RequestContext.TRANSACTION_ID));
             final Collection<? extends Archivable> archivables = Arrays.asList(new DefaultArchivable(Archivable.TYPE_RESPONSE, CONTENT_TYPE, responseData.toReadableData(), archiveId));
 
-            final byte[] responseDigest;
-            if (doLogResponseDigest) {
-                logMap.put(IWorkerLogger.LOG_RESPONSE_DIGEST_ALGORITHM, logResponseDigestAlgorithm);
-
-                try (InputStream in = responseData.toReadableData().getAsInputStream()) {
-                    final MessageDigest md = MessageDigest.getInstance(logResponseDigestAlgorithm);
-                    responseDigest = UploadUtil.digest(in, md);
-
-                    logMap.put(IWorkerLogger.LOG_RESPONSE_DIGEST,
-                               new Loggable() {
-                                   @Override
-                                   public String toString() {
-                                        return Hex.toHexString(responseDigest);
-                                   }
-                               });
-                } catch (NoSuchAlgorithmException ex) {
-                    LOG.error("Log digest algorithm not supported", ex);
-                    throw new SignServerException("Log digest algorithm not supported", ex);
-                }
+            if (digestingResponseData != null) {
+                final byte[] responseDigest = digestingResponseData.getDigest(logResponseDigestAlgorithm);
+                logMap.put(IWorkerLogger.LOG_RESPONSE_DIGEST,
+                           new Loggable() {
+                               @Override
+                               public String toString() {
+                                    return Hex.toHexString(responseDigest);
+                               }
+                           });
             }
 
             // Suggest new file name
@@ -16,7 +16,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -47,7 +46,7 @@ import org.signserver.server.archive.Archivable;
 import org.signserver.server.archive.DefaultArchivable;
 import org.signserver.server.cryptotokens.ICryptoInstance;
 import org.signserver.server.cryptotokens.ICryptoTokenV4;
-import org.signserver.server.data.impl.UploadUtil;
+import org.signserver.server.data.impl.DigestingReadableData;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
@@ -151,33 +150,24 @@ public class PlainSigner extends BaseSigner {
                 return logRequestDigestAlgorithm;
             }
         });
+        // The digest to log is computed while signing
+        final DigestingReadableData digestingRequestData;
         if (doLogRequestDigest) {
-            try (InputStream input = requestData.getAsInputStream()) {
-                final MessageDigest md = MessageDigest.getInstance(logRequestDigestAlgorithm);
-
-                // Digest all data
-                // TODO: Future optimization: could be done while the file is read instead
-                final byte[] requestDigest = UploadUtil.digest(input, md);
-
-                logMap.put(IWorkerLogger.LOG_REQUEST_DIGEST, new Loggable() {
-                    @Override
-                    public String toString() {
-                        return Hex.toHexString(requestDigest);
-                    }
-                });
+            try {
+                digestingRequestData = new DigestingReadableData(requestData, logRequestDigestAlgorithm);
             } catch (NoSuchAlgorithmException ex) {
                 LOG.error("Log digest algorithm not supported", ex);
                 throw new SignServerException("Log digest algorithm not supported", ex);
-            } catch (IOException ex) {
-                LOG.error("Log request digest failed", ex);
-                throw new SignServerException("Log request digest failed", ex);
             }
+        } else {
+            digestingRequestData = null;
         }
         final String archiveId = createArchiveId(new byte[0], (String) requestContext.get(RequestContext.TRANSACTION_ID));
 
         ICryptoInstance crypto = null;
+        Throwable failure = null;
         try (
-                InputStream in = requestData.getAsInputStream();
+                InputStream in = digestingRequestData == null ? requestData.getAsInputStream() : digestingRequestData.getAsInputStream();
                 OutputStream out = responseData.getAsInMemoryOutputStream()
             ) {
             crypto = acquireCryptoInstance(ICryptoTokenV4.PURPOSE_SIGN, signRequest, requestContext);
@@ -234,11 +224,39 @@ public class PlainSigner extends BaseSigner {
                         CONTENT_TYPE);
         } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException ex) {
             LOG.error("Error initializing signer", ex);
-            throw new SignServerException("Error initializing signer", ex);
+            final SignServerException wrapped = new SignServerException("Error initializing signer", ex);
+            failure = wrapped;
+            throw wrapped;
         } catch (IOException ex) {
-            throw new SignServerException("IO error", ex);
+            final SignServerException wrapped = new SignServerException("IO error", ex);
+            failure = wrapped;
+            throw wrapped;
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
         } finally {
             releaseCryptoInstance(crypto, requestContext);
+
+            // Log the request digest also for failed requests, reading the
+            // rest of the request if signing stopped before the end
+            if (digestingRequestData != null) {
+                try {
+                    final byte[] requestDigest = digestingRequestData.getDigest(logRequestDigestAlgorithm);
+                    logMap.put(IWorkerLogger.LOG_REQUEST_DIGEST, new Loggable() {
+                        @Override
+                        public String toString() {
+                            return Hex.toHexString(requestDigest);
+                        }
+                    });
+                } catch (IOException ex) {
+                    LOG.error("Log request digest failed", ex);
+                    // Do not hide the reason the request failed
+                    if (failure == null) {
+                        throw new SignServerException("Log request digest failed", ex);
+                    }
+                    failure.addSuppressed(ex);
+                }
+            }
         }
     }
     
@@ -12,7 +12,9 @@
  *************************************************************************/
 package org.signserver.module.cmssigner;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
@@ -22,14 +24,17 @@ import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.security.SignatureException;
 import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
 import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.cms.Attribute;
 import org.bouncycastle.asn1.cms.CMSAttributes;
@@ -53,9 +58,12 @@ import org.signserver.common.RequestContext;
 import org.signserver.common.RequestMetadata;
 import org.signserver.common.SignServerException;
 import org.signserver.common.WorkerConfig;
+import org.signserver.common.data.ReadableData;
 import org.signserver.common.data.SignatureRequest;
 import org.signserver.common.data.SignatureResponse;
+import org.signserver.common.data.WritableData;
 import org.signserver.server.SignServerContext;
+import org.signserver.server.cryptotokens.ICryptoInstance;
 import org.signserver.server.data.impl.CloseableReadableData;
 import org.signserver.server.data.impl.CloseableWritableData;
 import org.signserver.test.utils.builders.CertBuilder;
@@ -461,6 +469,100 @@ public class CMSSignerUnitTest {
         assertResponseDigestMatches(response.getProcessedData(), "SHA512", requestContext);
     }
 
+    /**
+     * Tests that the request digest is logged also when signing fails after
+     * only part of the request was read.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRequestDigestMatchesOnFailure() throws Exception {
+        LOG.info("testRequestDigestMatchesOnFailure");
+        WorkerConfig config = new WorkerConfig();
+        config.setProperty("DO_LOGREQUEST_DIGEST", "true");
+        CMSSigner instance = new MockedCMSSigner(tokenRSA) {
+            @Override
+            protected void sign(ICryptoInstance crypto, X509Certificate cert, List<Certificate> certs, String sigAlg, RequestContext requestContext, ReadableData requestData, WritableData responseData, ASN1ObjectIdentifier contentOIDToUse) throws IOException {
+                try (InputStream in = requestData.getAsInputStream()) {
+                    in.read(new byte[2]);
+                }
+                throw new IOException("Simulated failure");
+            }
+        };
+        instance.init(1, config, new SignServerContext(), null);
+
+        final byte[] data = "my-data".getBytes("ASCII");
+        RequestContext requestContext = new RequestContext();
+        requestContext.put(RequestContext.TRANSACTION_ID, "0000-100-1");
+        try (
+                CloseableReadableData requestData = ModulesTestCase.createRequestData(data);
+                CloseableWritableData responseData = ModulesTestCase.createResponseData(false);
+            ) {
+            instance.processData(new SignatureRequest(100, requestData, responseData), requestContext);
+            fail("Should have failed");
+        } catch (SignServerException expected) { // NOPMD
+            // OK
+        }
+        assertRequestDigestMatches(data, "SHA256", requestContext);
+    }
+
+    /**
+     * Tests that a failure to compute the request digest for a failed
+     * request does not hide the reason the request failed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRequestDigestFailureSuppressed() throws Exception {
+        LOG.info("testRequestDigestFailureSuppressed");
+        WorkerConfig config = new WorkerConfig();
+        config.setProperty("DO_LOGREQUEST_DIGEST", "true");
+        CMSSigner instance = new MockedCMSSigner(tokenRSA) {
+            @Override
+            protected void sign(ICryptoInstance crypto, X509Certificate cert, List<Certificate> certs, String sigAlg, RequestContext requestContext, ReadableData requestData, WritableData responseData, ASN1ObjectIdentifier contentOIDToUse) throws IOException {
+                throw new IOException("Simulated failure");
+            }
+        };
+        instance.init(1, config, new SignServerContext(), null);
+
+        final ReadableData requestData = new ReadableData() {
+            @Override
+            public byte[] getAsByteArray() throws IOException {
+                throw new IOException("Simulated read failure");
+            }
+
+            @Override
+            public InputStream getAsInputStream() throws IOException {
+                throw new IOException("Simulated read failure");
+            }
+
+            @Override
+            public File getAsFile() throws IOException {
+                throw new IOException("Simulated read failure");
+            }
+
+            @Override
+            public long getLength() {
+                return 7;
+            }
+
+            @Override
+            public boolean isFile() {
+                return false;
+            }
+        };
+        RequestContext requestContext = new RequestContext();
+        requestContext.put(RequestContext.TRANSACTION_ID, "0000-100-1");
+        try (CloseableWritableData responseData = ModulesTestCase.createResponseData(false)) {
+            instance.processData(new SignatureRequest(100, requestData, responseData), requestContext);
+            fail("Should have failed");
+        } catch (SignServerException expected) {
+            assertEquals("cause", "Simulated failure", expected.getCause().getMessage());
+            assertEquals("suppressed", 1, expected.getCause().getSuppressed().length);
+            assertEquals("suppressed", "Simulated read failure", expected.getCause().getSuppressed()[0].getMessage());
+        }
+    }
+
     private void assertRequestDigestMatches(byte[] data, String digestAlgorithm, RequestContext context) throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, SignatureException, UnsupportedEncodingException, IOException {
         final LogMap logMap = LogMap.getInstance(context);
         final Object digestAlgLoggable = logMap.get("REQUEST_DIGEST_ALGORITHM");
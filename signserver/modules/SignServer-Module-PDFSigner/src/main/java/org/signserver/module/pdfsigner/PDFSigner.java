@@ -56,7 +56,8 @@ import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
 import org.signserver.server.signers.BaseSigner;
 import org.signserver.server.statistics.Event;
-import org.signserver.validationservice.server.ValidationUtils;
+import org.signserver.validationservice.server.CRLCache;
+import org.signserver.validationservice.server.OCSPResponseCache;
 import static org.signserver.common.SignServerConstants.DEFAULT_NULL;
 
 /**
@@ -181,6 +182,9 @@ public class PDFSigner extends BaseSigner {
     private ASN1ObjectIdentifier tsaDigestAlgorithm;
     private String tsaDigestAlgorithmName; // passed to PdfPkcs7
     PDFSignerParameters params;
+
+    /** Sizes of the signatures produced by this worker. */
+    private final SignatureSizeEstimator sizeEstimator = new SignatureSizeEstimator();
     
     @Override
     public void init(int signerId, WorkerConfig config,
@@ -454,6 +458,10 @@ public class PDFSigner extends BaseSigner {
      *    - Lets use 7168 and there are room for about 6 "normal" certificates
      * 
      * 
+     * Once signatures of the same kind (TSA, OCSP, number of CRLs and 
+     * certificates) have been produced by this worker, their actual sizes are 
+     * used instead of the fixed guesses. See SignatureSizeEstimator.
+     * 
      * See also PDFSignerUnitTest for tests that the answers to the questions 
      * above still holds.
      * @param certChain The signing certificate chain
@@ -465,16 +473,60 @@ public class PDFSigner extends BaseSigner {
      */
     protected int calculateEstimatedSignatureSize(Certificate[] certChain, TSAClient tsc,
     		byte[] ocsp, CRL[] crlList) throws SignServerException {
-		int estimatedSize = 0;
-
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Calculating estimated signature size");
 		}
-		
+
+		int estimatedSize = calculateKnownSignatureSize(certChain, ocsp, crlList);
+
+		// use what was seen for previous signatures of the same kind, if any
+		final int learnedOverhead = sizeEstimator.getOverheadEstimate(
+				getSizeVariant(certChain, tsc, ocsp, crlList), tsc != null);
+		if (learnedOverhead >= 0) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Adding " + learnedOverhead + " bytes from previous signatures");
+			}
+			return estimatedSize + learnedOverhead;
+		}
+
+		// add estimate for PKCS#7 structure + hash
+		estimatedSize += 2000;
+
+		if (tsc != null) {
+			// add guess for timestamp response (which we can't really know)
+			final int tscSize = 4096;
+			
+			estimatedSize += tscSize;
+			
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Adding " + tscSize + " bytes for TSA");
+			}
+		}
+	
+		if (crlList != null) {
+			estimatedSize += 100;
+		}
+
+		return estimatedSize;
+    }
+
+    /**
+     * Calculates the size of the parts of the PKCS#7 structure that are known
+     * before signing: the certificates, the OCSP response and the CRLs.
+     *
+     * @param certChain The signing certificate chain
+     * @param ocsp The OCSP response, can be null
+     * @param crlList The list of CRLs included in the signature, this can be null
+     * @return the size in bytes
+     */
+    private int calculateKnownSignatureSize(Certificate[] certChain, byte[] ocsp,
+            CRL[] crlList) throws SignServerException {
+		int knownSize = 0;
+
 		for (Certificate cert : certChain) {
 			try {
 				int certSize = cert.getEncoded().length;
-				estimatedSize += certSize;
+				knownSize += certSize;
 				
 				if (LOG.isDebugEnabled()) {
 					LOG.debug("Adding " + certSize + " bytes for certificate");
@@ -486,33 +538,18 @@ public class PDFSigner extends BaseSigner {
 		}
 		
 		if (LOG.isDebugEnabled()) {
-			LOG.debug("Total size of certificate chain: " + estimatedSize);
+			LOG.debug("Total size of certificate chain: " + knownSize);
 		}
-		
-		// add estimate for PKCS#7 structure + hash
-		estimatedSize += 2000;
 
 		// add space for OCSP response
 		if (ocsp != null) {
-			estimatedSize += ocsp.length;
+			knownSize += ocsp.length;
 			
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Adding " + ocsp.length + " bytes for OCSP response");
 			}
 		}
-		
-		if (tsc != null) {
-			// add guess for timestamp response (which we can't really know)
-			// TODO: we might be able to store the size of the last TSA response and re-use next time...
-			final int tscSize = 4096;
-			
-			estimatedSize += tscSize;
-			
-			if (LOG.isDebugEnabled()) {
-				LOG.debug("Adding " + tscSize + " bytes for TSA");
-			}
-		}
-	
+
 		// add estimate for CRL
 		if (crlList != null) {
 			for (CRL crl : crlList) {
@@ -522,7 +559,7 @@ public class PDFSigner extends BaseSigner {
 					try {
 						int crlSize = x509Crl.getEncoded().length;
 						// the CRL is included twice in the signature...
-						estimatedSize += crlSize * 2;
+						knownSize += crlSize * 2;
 						
 						if (LOG.isDebugEnabled()) {
 							LOG.debug("Adding " + crlSize * 2 + " bytes for CRL");
@@ -533,10 +570,38 @@ public class PDFSigner extends BaseSigner {
 					}
 				}		
 			}
-			estimatedSize += 100;
 		}
 
-		return estimatedSize;
+		return knownSize;
+    }
+
+    private static String getSizeVariant(Certificate[] certChain, TSAClient tsc,
+            byte[] ocsp, CRL[] crlList) {
+        return SignatureSizeEstimator.variant(tsc != null, ocsp != null,
+                crlList == null ? 0 : crlList.length, certChain.length);
+    }
+
+    /**
+     * Records the size of a produced signature so that the following
+     * estimates can be based on it.
+     *
+     * @param certChain The signing certificate chain
+     * @param tsc Timestamp client or null
+     * @param ocsp The OCSP response, can be null
+     * @param crlList The list of CRLs included in the signature, this can be null
+     * @param encodedSize size of the encoded PKCS#7 structure
+     */
+    private void recordSignatureSize(Certificate[] certChain, TSAClient tsc,
+            byte[] ocsp, CRL[] crlList, int encodedSize) throws SignServerException {
+        final int overhead = encodedSize - calculateKnownSignatureSize(certChain, ocsp, crlList);
+        sizeEstimator.recordOverhead(getSizeVariant(certChain, tsc, ocsp, crlList), overhead);
+    }
+
+    /**
+     * @return the sizes of the signatures produced by this worker
+     */
+    SignatureSizeEstimator getSizeEstimator() {
+        return sizeEstimator;
     }
     
     
@@ -551,7 +616,7 @@ public class PDFSigner extends BaseSigner {
 
         InputStream data = sap.getRangeStream();
 
-        byte buf[] = new byte[8192];
+        byte buf[] = new byte[65536];
         int n;
         while ((n = data.read(buf)) > 0) {
             messageDigest.update(buf, 0, n);
@@ -603,71 +668,79 @@ public class PDFSigner extends BaseSigner {
         if (pdfBytes != null) {
             reader = new PdfReader(pdfBytes, password);
         } else {
-            reader = new PdfReader(pdfFile.getAbsolutePath(), password);
+            // Read the document in partial mode from the mapped file so that
+            // objects are only parsed when needed by the signature
+            final RandomAccessFileOrArray file = new RandomAccessFileOrArray(pdfFile.getAbsolutePath(), false, false);
+            try {
+                reader = new PdfReader(file, password);
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
         }
-        boolean appendMode = true; // TODO: This could be good to have as a property in the future
+        OutputStream responseOut = null;
+        try {
+            boolean appendMode = true; // TODO: This could be good to have as a property in the future
 
-        String strPdfVersion = Character.toString(reader.getPdfVersion());
-        PdfVersionCompatibilityChecker pdfVersionCompatibilityChecker = new PdfVersionCompatibilityChecker(strPdfVersion, digestAlgorithm);
+            String strPdfVersion = Character.toString(reader.getPdfVersion());
+            PdfVersionCompatibilityChecker pdfVersionCompatibilityChecker = new PdfVersionCompatibilityChecker(strPdfVersion, digestAlgorithm);
             
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("PDF version: " + strPdfVersion);
-        }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("PDF version: " + strPdfVersion);
+            }
 
-        // Don't certify already certified documents
-        if (reader.getCertificationLevel() != PdfSignatureAppearance.NOT_CERTIFIED 
-                && params.getCertification_level() != PdfSignatureAppearance.NOT_CERTIFIED) {
-            throw new IllegalRequestException("Will not certify an already certified document");
-        }
-        
-        // Don't sign documents where the certification does not allow it
-        if (reader.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED
-                || reader.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_FORM_FILLING) {
-            throw new IllegalRequestException("Will not sign a certified document where signing is not allowed");
-        }
+            // Don't certify already certified documents
+            if (reader.getCertificationLevel() != PdfSignatureAppearance.NOT_CERTIFIED 
+                    && params.getCertification_level() != PdfSignatureAppearance.NOT_CERTIFIED) {
+                throw new IllegalRequestException("Will not certify an already certified document");
+            }
         
-        Permissions currentPermissions = Permissions.fromInt(reader.getPermissions());
+            // Don't sign documents where the certification does not allow it
+            if (reader.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_NO_CHANGES_ALLOWED
+                    || reader.getCertificationLevel() == PdfSignatureAppearance.CERTIFIED_FORM_FILLING) {
+                throw new IllegalRequestException("Will not sign a certified document where signing is not allowed");
+            }
         
-        if (params.getSetPermissions() != null && params.getRemovePermissions() != null) {
-            throw new SignServerException("Signer " + workerId
-                    + " missconfigured. Only one of " + SET_PERMISSIONS
-                    + " and " + REMOVE_PERMISSIONS + " should be specified.");
-        }
+            Permissions currentPermissions = Permissions.fromInt(reader.getPermissions());
         
-        Permissions newPermissions;
-        if (params.getSetPermissions() != null) {
-            newPermissions = params.getSetPermissions();
-        } else if (params.getRemovePermissions() != null) {
-            newPermissions = currentPermissions.withRemoved(params.getRemovePermissions());
-        } else {
-            newPermissions = null;
-        }
+            if (params.getSetPermissions() != null && params.getRemovePermissions() != null) {
+                throw new SignServerException("Signer " + workerId
+                        + " missconfigured. Only one of " + SET_PERMISSIONS
+                        + " and " + REMOVE_PERMISSIONS + " should be specified.");
+            }
         
-        Permissions rejectPermissions = Permissions.fromSet(params.getRejectPermissions());
-        byte[] userPassword = reader.computeUserPassword();
-        int cryptoMode = reader.getCryptoMode();
-        if (LOG.isDebugEnabled()) {
-            StringBuilder buff = new StringBuilder();
-            buff.append("Current permissions: ").append(currentPermissions).append("\n")
-                    .append("Remove permissions: ").append(params.getRemovePermissions()).append("\n")
-                    .append("Reject permissions: ").append(rejectPermissions).append("\n")
-                    .append("New permissions: ").append(newPermissions).append("\n")
-                    .append("userPassword: ").append(userPassword == null ? "null" : "yes").append("\n")
-                    .append("ownerPassword: ").append(password == null ? "no" : (isUserPassword(reader, password) ? "no" : "yes")).append("\n")
-                    .append("setOwnerPassword: ").append(params.getSetOwnerPassword() == null ? "no" : "yes").append("\n")
-                    .append("cryptoMode: ").append(cryptoMode);
-            LOG.debug(buff.toString());
-        }
+            Permissions newPermissions;
+            if (params.getSetPermissions() != null) {
+                newPermissions = params.getSetPermissions();
+            } else if (params.getRemovePermissions() != null) {
+                newPermissions = currentPermissions.withRemoved(params.getRemovePermissions());
+            } else {
+                newPermissions = null;
+            }
         
-        if (appendMode && (newPermissions != null || params.getSetOwnerPassword() != null)) {
-            appendMode = false;
+            Permissions rejectPermissions = Permissions.fromSet(params.getRejectPermissions());
+            byte[] userPassword = reader.computeUserPassword();
+            int cryptoMode = reader.getCryptoMode();
             if (LOG.isDebugEnabled()) {
-                LOG.debug("Changing appendMode to false to be able to change permissions");
+                StringBuilder buff = new StringBuilder();
+                buff.append("Current permissions: ").append(currentPermissions).append("\n")
+                        .append("Remove permissions: ").append(params.getRemovePermissions()).append("\n")
+                        .append("Reject permissions: ").append(rejectPermissions).append("\n")
+                        .append("New permissions: ").append(newPermissions).append("\n")
+                        .append("userPassword: ").append(userPassword == null ? "null" : "yes").append("\n")
+                        .append("ownerPassword: ").append(password == null ? "no" : (isUserPassword(reader, password) ? "no" : "yes")).append("\n")
+                        .append("setOwnerPassword: ").append(params.getSetOwnerPassword() == null ? "no" : "yes").append("\n")
+                        .append("cryptoMode: ").append(cryptoMode);
+                LOG.debug(buff.toString());
+            }
+        
+            if (appendMode && (newPermissions != null || params.getSetOwnerPassword() != null)) {
+                appendMode = false;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Changing appendMode to false to be able to change permissions");
+                }
             }
-        }
         
-        OutputStream responseOut = null;
-        try {
             // Use stream for in-memory data but use file when we got it as file
             final File responseFile;
             if (pdfFile == null) {
@@ -800,9 +873,9 @@ public class PDFSigner extends BaseSigner {
                 try {
                     url = PdfPKCS7.getOCSPURL((X509Certificate) certChain[0]);
                     if (url != null && url.length() > 0) {
-                        ocsp = new OcspClientBouncyCastle(
+                        ocsp = OCSPResponseCache.getInstance().getEncoded(
                                 (X509Certificate) certChain[0],
-                                (X509Certificate) certChain[1], url).getEncoded();
+                                (X509Certificate) certChain[1], url);
                     }
                 } catch (CertificateParsingException e) {
                     throw new SignServerException(
@@ -843,9 +916,15 @@ public class PDFSigner extends BaseSigner {
                     LOG.debug("Encoded length: " + encodedSig.length);
             }
 
+            recordSignatureSize(certChain, tsc, ocsp, crlList, encodedSig.length);
+
             if (contentEstimated + 2 < encodedSig.length) {
                     if (!secondTry) {
-                            int contentExact = encodedSig.length;
+                            // the size just recorded gives an estimate with some margin
+                            // in case the time-stamp token differs in size the next time
+                            int contentExact = Math.max(encodedSig.length,
+                                    calculateEstimatedSignatureSize(certChain, tsc, ocsp, crlList));
+                            sizeEstimator.recordSecondPass();
                             LOG.warn("Estimated signature size too small, usinging accurate calculation (resulting in an extra signature computation).");
 
                             if (LOG.isDebugEnabled()) {
@@ -863,15 +942,17 @@ public class PDFSigner extends BaseSigner {
                     }
             }
 
+            sizeEstimator.recordSignature(contentEstimated, encodedSig.length);
+
             byte[] paddedSig = new byte[contentEstimated];
             System.arraycopy(encodedSig, 0, paddedSig, 0, encodedSig.length);
 
             PdfDictionary dic2 = new PdfDictionary();
             dic2.put(PdfName.CONTENTS, new PdfString(paddedSig).setHexWriting(true));
             sap.close(dic2);
-            reader.close();
-
         } finally {
+            // Also releases the file and mapping in partial mode
+            reader.close();
             IOUtils.closeQuietly(responseOut);
         }
     }
@@ -899,7 +980,7 @@ public class PDFSigner extends BaseSigner {
                     continue;
                 }
 
-                currCrl = ValidationUtils.fetchCRLFromURL(currCertURL);
+                currCrl = CRLCache.getInstance().getCRL(currCertURL);
 
                 if (currCrl == null) {
                     throw new SignServerException("Empty CRL file fetched from CDP");
@@ -1130,6 +1211,18 @@ public class PDFSigner extends BaseSigner {
         return new TSAClientBouncyCastle(url, username, password, digestAlgo);
     }
 
+    @Override
+    public WorkerStatusInfo getStatus(List<String> additionalFatalErrors, IServices services) {
+        final WorkerStatusInfo status = super.getStatus(additionalFatalErrors, services);
+
+        status.getCompleteEntries().add(new WorkerStatusInfo.Entry("Signature size estimation",
+                sizeEstimator.getSignatures() + " signatures, "
+                + sizeEstimator.getSecondPasses() + " second passes, "
+                + sizeEstimator.getWastedBytes() + " bytes reserved but not used"));
+
+        return status;
+    }
+
     @Override
     protected List<String> getFatalErrors(final IServices services) {
         final List<String> fatalErrors = super.getFatalErrors(services);
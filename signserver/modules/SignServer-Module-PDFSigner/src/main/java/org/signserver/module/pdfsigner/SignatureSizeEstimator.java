@@ -0,0 +1,164 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.pdfsigner;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the actual PKCS#7 sizes produced by a signer so that the
+ * space reserved for the signature can be based on what was seen before
+ * instead of on fixed guesses.
+ *
+ * The sizes of the certificates, OCSP response and CRLs are known before
+ * signing. The rest, called the overhead here, consists of the signature
+ * value, the signed attributes and the time-stamp token. The overhead is
+ * recorded per variant (use of TSA, OCSP, number of CRLs and certificates)
+ * and the largest overhead among the latest observations plus a margin is
+ * used for the next estimate.
+ *
+ * @version $Id$
+ */
+public class SignatureSizeEstimator {
+
+    /** Number of observations kept for each variant. */
+    static final int WINDOW_SIZE = 64;
+
+    /** Bytes added on top of the largest observed overhead. */
+    static final int SAFETY_MARGIN = 64;
+
+    /** Additional margin in percent of the overhead when a TSA is used. */
+    static final int TSA_MARGIN_PERCENT = 5;
+
+    private final Map<String, Observations> variants = new HashMap<>();
+
+    private final AtomicLong signatures = new AtomicLong();
+    private final AtomicLong secondPasses = new AtomicLong();
+    private final AtomicLong wastedBytes = new AtomicLong();
+
+    /**
+     * Creates a key identifying the variant of signature.
+     * @param tsa if a time-stamp token is included
+     * @param ocsp if an OCSP response is included
+     * @param numCrls number of included CRLs
+     * @param numCerts number of included certificates
+     * @return the variant key
+     */
+    public static String variant(final boolean tsa, final boolean ocsp, final int numCrls, final int numCerts) {
+        return "tsa=" + tsa + ",ocsp=" + ocsp + ",crls=" + numCrls + ",certs=" + numCerts;
+    }
+
+    /**
+     * Gives the number of bytes to reserve for the overhead based on the
+     * previous observations for the variant.
+     * @param variant key from variant()
+     * @param tsa if a time-stamp token is included
+     * @return the number of bytes or -1 if nothing is known about the variant
+     */
+    public int getOverheadEstimate(final String variant, final boolean tsa) {
+        final int max;
+        synchronized (variants) {
+            final Observations observations = variants.get(variant);
+            if (observations == null) {
+                return -1;
+            }
+            max = observations.max();
+        }
+        int result = max + SAFETY_MARGIN;
+        if (tsa) {
+            result += max * TSA_MARGIN_PERCENT / 100;
+        }
+        return result;
+    }
+
+    /**
+     * Records the actual size of a produced signature.
+     * @param variant key from variant()
+     * @param overhead the size of the encoded signature minus the known contributions
+     */
+    public void recordOverhead(final String variant, final int overhead) {
+        synchronized (variants) {
+            Observations observations = variants.get(variant);
+            if (observations == null) {
+                observations = new Observations();
+                variants.put(variant, observations);
+            }
+            observations.add(overhead);
+        }
+    }
+
+    /**
+     * Records that a signature was added to a document.
+     * @param reserved number of bytes reserved
+     * @param actual size of the encoded signature
+     */
+    public void recordSignature(final int reserved, final int actual) {
+        signatures.incrementAndGet();
+        wastedBytes.addAndGet(Math.max(0, reserved - actual));
+    }
+
+    /**
+     * Records that the reserved space was too small and the signing had to
+     * be done again.
+     */
+    public void recordSecondPass() {
+        secondPasses.incrementAndGet();
+    }
+
+    /**
+     * @return number of signatures added
+     */
+    public long getSignatures() {
+        return signatures.get();
+    }
+
+    /**
+     * @return number of times the signing had to be done again
+     */
+    public long getSecondPasses() {
+        return secondPasses.get();
+    }
+
+    /**
+     * @return total number of bytes reserved but not used by the signatures
+     */
+    public long getWastedBytes() {
+        return wastedBytes.get();
+    }
+
+    /**
+     * The latest overheads observed for one variant.
+     */
+    private static class Observations {
+        private final int[] values = new int[WINDOW_SIZE];
+        private int count;
+        private int next;
+
+        void add(final int value) {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            if (count < values.length) {
+                count++;
+            }
+        }
+
+        int max() {
+            int result = 0;
+            for (int i = 0; i < count; i++) {
+                result = Math.max(result, values[i]);
+            }
+            return result;
+        }
+    }
+}
@@ -28,6 +28,8 @@ import org.apache.commons.io.FileUtils;
 
 import org.apache.log4j.Logger;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.DERBitString;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
@@ -36,8 +38,11 @@ import org.bouncycastle.cert.X509CRLHolder;
 import org.bouncycastle.cert.X509v2CRLBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.encoders.Hex;
 import org.signserver.common.*;
 import org.signserver.common.data.ReadableData;
 import org.signserver.common.data.Response;
@@ -172,6 +177,49 @@ public class PDFSignerUnitTest extends ModulesTestCase {
         }
     }
 
+    /**
+     * Tests that incrementally signing a document given as a file, which is
+     * read in partial mode and copied through the file channel, keeps the
+     * original bytes and gives a signature covering the whole document with a
+     * message digest matching the signed byte ranges.
+     * @throws Exception in case of error
+     */
+    public void test01signOk_file() throws Exception {
+        final byte[] original = readFile(sampleSignedSHA256);
+        try (CloseableReadableData requestData = createRequestDataKeepingFile(sampleSignedSHA256);
+                CloseableWritableData responseData = createResponseData(true)) {
+            final SignatureRequest request = new SignatureRequest(101,
+                    requestData, responseData);
+            processSession.process(createAdminInfo(), new WorkerIdentifier(WORKER1), request, new RequestContext(true));
+
+            final byte[] signed = responseData.toReadableData().getAsByteArray();
+            assertTrue("original bytes kept", Arrays.equals(original, Arrays.copyOf(signed, original.length)));
+
+            final AcroFields af = new PdfReader(signed).getAcroFields();
+            final List<String> names = af.getSignatureNames();
+            assertEquals("signatures", 2, names.size());
+            String name = null;
+            for (String n : names) {
+                if (af.signatureCoversWholeDocument(n)) {
+                    name = n;
+                }
+            }
+            assertNotNull("signature covering whole document", name);
+
+            final PdfDictionary sigDict = af.getSignatureDictionary(name);
+            final CMSSignedData signedData = new CMSSignedData(sigDict.getAsString(PdfName.CONTENTS).getOriginalBytes());
+            final SignerInformation signer = signedData.getSignerInfos().getSigners().iterator().next();
+            final MessageDigest md = MessageDigest.getInstance(signer.getDigestAlgOID(), "BC");
+            final PdfArray byteRange = sigDict.getAsArray(PdfName.BYTERANGE);
+            for (int i = 0; i < byteRange.size(); i += 2) {
+                md.update(signed, byteRange.getAsNumber(i).intValue(), byteRange.getAsNumber(i + 1).intValue());
+            }
+            final ASN1OctetString messageDigest = ASN1OctetString.getInstance(signer.getSignedAttributes()
+                    .get(CMSAttributes.messageDigest).getAttrValues().getObjectAt(0));
+            assertEquals("message digest", Hex.toHexString(messageDigest.getOctets()), Hex.toHexString(md.digest()));
+        }
+    }
+
     /**
      * Tries to sign a PDF with document restrictions. As no password is
      * supplied it throws an IllegalRequestException.
@@ -1426,6 +1474,81 @@ public class PDFSignerUnitTest extends ModulesTestCase {
         assertCanSign(pdfbytes, signerKeyPair, certChain, signerCertificate, 15000 * 2 + 456);
     }
 
+    /**
+     * Tests that the sizes of the produced signatures are used for the
+     * following estimates so that a time-stamp token larger than the initial
+     * guess only causes one extra signature computation and that a small
+     * token gives a smaller estimate than the initial guess.
+     *
+     * @throws java.lang.Exception
+     */
+    public void test14calculateEstimatedSignatureSize_learned() throws Exception {
+        final byte[] pdfbytes = readFile(sample);
+        final KeyPair signerKeyPair = CryptoUtils.generateRSA(1024);
+        final Certificate[] certChain = new Certificate[] {converter.getCertificate(new CertBuilder().build())};
+        final MockedCryptoToken token = new MockedCryptoToken(signerKeyPair.getPrivate(), signerKeyPair.getPublic(), certChain[0], Arrays.asList(certChain), "BC");
+
+        // A token larger than the initial guess
+        final MockedTSAClient largeTsc = new MockedTSAClient(10123);
+        final PDFSigner largeInstance = createSignerWithTSA(token, largeTsc);
+        final SignatureSizeEstimator largeSizes = largeInstance.getSizeEstimator();
+
+        signWithTSA(largeInstance, token, pdfbytes);
+        assertEquals("second passes after first signature", 1, largeSizes.getSecondPasses());
+
+        signWithTSA(largeInstance, token, pdfbytes);
+        signWithTSA(largeInstance, token, pdfbytes);
+        assertEquals("second passes after learning", 1, largeSizes.getSecondPasses());
+        assertEquals("signatures", 3, largeSizes.getSignatures());
+
+        // A token smaller than the initial guess
+        final MockedTSAClient smallTsc = new MockedTSAClient(100);
+        final PDFSigner smallInstance = createSignerWithTSA(token, smallTsc);
+        final int initialEstimate = smallInstance.calculateEstimatedSignatureSize(certChain, smallTsc, null, null);
+
+        signWithTSA(smallInstance, token, pdfbytes);
+        final long initialWaste = smallInstance.getSizeEstimator().getWastedBytes();
+        final int learnedEstimate = smallInstance.calculateEstimatedSignatureSize(certChain, smallTsc, null, null);
+        assertTrue("learned estimate (" + learnedEstimate + ") smaller than initial (" + initialEstimate + ")",
+                learnedEstimate < initialEstimate);
+
+        signWithTSA(smallInstance, token, pdfbytes);
+        final SignatureSizeEstimator smallSizes = smallInstance.getSizeEstimator();
+        assertEquals("second passes", 0, smallSizes.getSecondPasses());
+        assertTrue("less waste after learning", smallSizes.getWastedBytes() - initialWaste < initialWaste);
+    }
+
+    private PDFSigner createSignerWithTSA(final MockedCryptoToken token, final MockedTSAClient tsc) {
+        final PDFSigner instance = new PDFSigner() {
+
+            @Override
+            protected TSAClient getTimeStampClient(String url, String username, String password, ASN1ObjectIdentifier digestAlgo) {
+                return tsc;
+            }
+
+            @Override
+            public ICryptoTokenV4 getCryptoToken(final IServices services) {
+                return token;
+            }
+
+        };
+        instance.setIncludeCertificateLevels(1);
+        return instance;
+    }
+
+    private void signWithTSA(final PDFSigner instance, final MockedCryptoToken token, final byte[] pdfbytes) throws Exception {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("TSA_URL", "http://any-tsa.example.com");
+        final PDFSignerParameters params = new PDFSignerParameters(1234, config, new LinkedList<String>());
+        final ASN1ObjectIdentifier tsaDigestAlgorithm = new DefaultDigestAlgorithmIdentifierFinder().find("SHA-256").getAlgorithm();
+
+        try (CloseableWritableData responseData = createResponseData(false)) {
+            instance.addSignatureToPDFDocument(token.acquireCryptoInstance("any-alias", Collections.<String, Object>emptyMap(), null), params, pdfbytes, null, null, 0,
+                    null, responseData, null, tsaDigestAlgorithm, "SHA-256");
+            assertTrue("some data", responseData.toReadableData().getLength() > 0);
+        }
+    }
+
     /**
      * Test that setting both TSA_URL and TSA_WORKER results in a config error.
      * 
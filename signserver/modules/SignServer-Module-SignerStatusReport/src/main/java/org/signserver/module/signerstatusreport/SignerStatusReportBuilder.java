@@ -127,8 +127,18 @@ public class SignerStatusReportBuilder implements ReportBuilder {
                             workerSession.getCurrentWorkerConfig(workerId)
                                     .getProperty(
                                             SignServerConstants.KEYUSAGELIMIT, "-1"));
+
+                    // Do not count usages reserved by this node but not used
+                    long counter = signings.getCounter();
+                    try {
+                        final long value = workerSession.getKeyUsageCounterValue(
+                                new WorkerIdentifier(workerId));
+                        if (value != -1) {
+                            counter = value;
+                        }
+                    } catch (CryptoTokenOfflineException ignored) {}
                     sb.append("signings=");
-                    sb.append(signings.getCounter());
+                    sb.append(counter);
                     sb.append(SEPARATOR);
                     sb.append("signLimit=");
                     sb.append(keyUsageLimit);
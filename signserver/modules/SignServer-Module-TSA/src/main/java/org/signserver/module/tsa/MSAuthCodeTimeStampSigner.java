@@ -78,6 +78,7 @@ import org.signserver.server.log.ExceptionLoggable;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
 import org.signserver.server.signers.BaseSigner;
+import static org.signserver.common.SignServerConstants.DEFAULT_NULL;
 
 
 /**
@@ -113,11 +114,8 @@ public class MSAuthCodeTimeStampSigner extends BaseSigner {
     /** Log4j instance for actual implementation class. */
     private static final Logger LOG = Logger.getLogger(MSAuthCodeTimeStampSigner.class);
 
-    /** Random generator algorithm. */
-    private static String algorithm = "SHA1PRNG";
-
-    /** Random generator. */
-    private transient SecureRandom random;
+    /** Serial number generator. */
+    private SerialNumberGenerator serialNumberGenerator;
 
     private static final BigInteger LOWEST =
             new BigInteger("0080000000000000", 16);
@@ -140,6 +138,7 @@ public class MSAuthCodeTimeStampSigner extends BaseSigner {
     public static final String TSA = "TSA";
     public static final String REQUIREVALIDCHAIN = "REQUIREVALIDCHAIN";
     public static final String INCLUDE_SIGNING_CERTIFICATE_ATTRIBUTE = "INCLUDE_SIGNING_CERTIFICATE_ATTRIBUTE";
+    public static final String SERIALNUMBERGENERATOR = "SERIALNUMBERGENERATOR";
 
     private static final String dataOID = "1.2.840.113549.1.7.1";
     private static final String msOID = "1.3.6.1.4.1.311.3.2.1";
@@ -213,6 +212,12 @@ public class MSAuthCodeTimeStampSigner extends BaseSigner {
         if (hasSetIncludeCertificateLevels) {
             configErrors.add(WorkerConfig.PROPERTY_INCLUDE_CERTIFICATE_LEVELS + " is not supported.");
         }
+
+        serialNumberGenerator = TimeStampSigner.createSerialNumberGenerator(config.getProperty(SERIALNUMBERGENERATOR, DEFAULT_NULL), configErrors);
+        if (serialNumberGenerator != null) {
+            serialNumberGenerator.init(signerId, config);
+            configErrors.addAll(serialNumberGenerator.getFatalErrors());
+        }
         }        
 
     /**
@@ -511,23 +516,18 @@ public class MSAuthCodeTimeStampSigner extends BaseSigner {
     /** Generates a number of serial number bytes. The number returned should
      * be a positive number.
      *
-     * @return a BigInteger with a new random serial number.
+     * @return a BigInteger with a new serial number.
+     * @throws SignServerException If the serial number could not be generated
      */
-    public BigInteger getSerno() {
-        if (random == null) {
-            try {
-                random = SecureRandom.getInstance(algorithm);
-            } catch (NoSuchAlgorithmException e) {
-                LOG.error(e);
-            }
+    public BigInteger getSerno() throws SignServerException {
+        if (serialNumberGenerator == null) {
+            throw new SignServerException("No serial number generator");
         }
 
-        final byte[] sernobytes = new byte[8];
         boolean ok = false;
         BigInteger serno = null;
         while (!ok) {
-            random.nextBytes(sernobytes);
-            serno = new BigInteger(sernobytes).abs();
+            serno = serialNumberGenerator.getSerialNumber(8);
 
             // Must be within the range 0080000000000000 - 7FFFFFFFFFFFFFFF
             if ((serno.compareTo(LOWEST) >= 0)
@@ -0,0 +1,105 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Objects;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.util.Store;
+
+/**
+ * The parts of the time-stamp token generation that only depend on the
+ * signer certificate and chain, prepared once and then reused by all
+ * requests using them.
+ *
+ * Nothing bound to the private key is kept here. The ContentSigner,
+ * SignerInfoGenerator and TimeStampTokenGenerator are created from the
+ * crypto instance of each request, so that the key is only used between
+ * acquiring and releasing the crypto instance and a key that is no longer
+ * usable is not kept.
+ *
+ * The instance is identified by the crypto token and the certificate and
+ * chain. A new instance should be created when any of them changes, ie.
+ * after the worker was reloaded or the key renewed.
+ *
+ * @version $Id$
+ */
+public class PreparedSigningKey {
+
+    private final Object cryptoToken;
+    private final X509Certificate signingCert;
+    private final List<Certificate> signingCertChain;
+    private final X509CertificateHolder certHolder;
+    private final Store certStore;
+    private final GeneralName tsa;
+
+    /**
+     * Creates an new instance of this class.
+     * @param cryptoToken the crypto token the key comes from
+     * @param signingCert the signer certificate
+     * @param signingCertChain the signer certificate chain
+     * @param certHolder the parsed signer certificate
+     * @param certStore the certificates to include in the token
+     * @param tsa the TSA name to include in the token or null
+     */
+    public PreparedSigningKey(final Object cryptoToken, final X509Certificate signingCert,
+            final List<Certificate> signingCertChain, final X509CertificateHolder certHolder,
+            final Store certStore, final GeneralName tsa) {
+        this.cryptoToken = cryptoToken;
+        this.signingCert = signingCert;
+        this.signingCertChain = signingCertChain;
+        this.certHolder = certHolder;
+        this.certStore = certStore;
+        this.tsa = tsa;
+    }
+
+    /**
+     * @param cryptoToken the crypto token of the current request
+     * @param signingCert the signer certificate of the current request
+     * @param signingCertChain the certificate chain of the current request
+     * @return true if this instance was prepared for the same token,
+     * certificate and chain
+     */
+    public boolean isFor(final Object cryptoToken, final X509Certificate signingCert,
+            final List<Certificate> signingCertChain) {
+        return this.cryptoToken == cryptoToken
+                && this.signingCert.equals(signingCert)
+                && Objects.equals(this.signingCertChain, signingCertChain);
+    }
+
+    public X509Certificate getSigningCert() {
+        return signingCert;
+    }
+
+    public List<Certificate> getSigningCertChain() {
+        return signingCertChain;
+    }
+
+    public X509CertificateHolder getCertHolder() {
+        return certHolder;
+    }
+
+    public Store getCertStore() {
+        return certStore;
+    }
+
+    /**
+     * @return the TSA name or null if none should be included
+     */
+    public GeneralName getTsa() {
+        return tsa;
+    }
+}
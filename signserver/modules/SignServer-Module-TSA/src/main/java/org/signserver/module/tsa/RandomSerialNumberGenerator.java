@@ -0,0 +1,117 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+
+/**
+ * Serial number generator using random numbers. This is the default.
+ *
+ * A small array of SHA1PRNG instances is shared by all threads, each thread
+ * using the one selected by its thread ID, so that concurrent requests
+ * seldom wait on the same lock. Nothing is kept in the threads of the
+ * application server. The instances are seeded from the platform default
+ * SecureRandom and re-seeded after a number of serial numbers.
+ *
+ * @version $Id$
+ */
+public class RandomSerialNumberGenerator implements SerialNumberGenerator {
+
+    /** Random generator algorithm. */
+    private static final String ALGORITHM = "SHA1PRNG";
+
+    /** Number of bytes to seed with. */
+    private static final int SEED_LENGTH = 32;
+
+    /** Number of serial numbers before re-seeding. */
+    private static final int RESEED_INTERVAL = 100000;
+
+    /** Strong source only used for seeding. */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    /** Number of random generators, a power of two. */
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    /** Random generators, created when first used. */
+    private static final AtomicReferenceArray<SeededRandom> RANDOMS = new AtomicReferenceArray<>(STRIPES);
+
+    @Override
+    public void init(final int workerId, final WorkerConfig config) {
+        // No configuration
+    }
+
+    @Override
+    public BigInteger getSerialNumber(final int maxLength) throws SignServerException {
+        final byte[] sernobytes = new byte[maxLength];
+        final SeededRandom random = getRandom();
+        synchronized (random) {
+            if (random.uses++ % RESEED_INTERVAL == 0) {
+                final byte[] seed = new byte[SEED_LENGTH];
+                SEED_SOURCE.nextBytes(seed);
+                random.random.setSeed(seed);
+            }
+            random.random.nextBytes(sernobytes);
+        }
+        return new BigInteger(sernobytes).abs();
+    }
+
+    @Override
+    public List<String> getFatalErrors() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param processors number of available processors
+     * @return twice the number of processors rounded up to a power of two,
+     * but at most 64
+     */
+    static int stripes(final int processors) {
+        return Math.min(64, Integer.highestOneBit(Math.max(1, 2 * processors - 1)) << 1);
+    }
+
+    private static SeededRandom getRandom() throws SignServerException {
+        final int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        SeededRandom result = RANDOMS.get(index);
+        if (result == null) {
+            try {
+                result = new SeededRandom(SecureRandom.getInstance(ALGORITHM));
+            } catch (NoSuchAlgorithmException e) {
+                throw new SignServerException("Error initiating Serial Number generator", e);
+            }
+            if (!RANDOMS.compareAndSet(index, null, result)) {
+                result = RANDOMS.get(index);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Random generator with the number of uses since seeded, guarded by the
+     * instance lock.
+     */
+    private static class SeededRandom {
+        private final SecureRandom random;
+        private long uses;
+
+        SeededRandom(final SecureRandom random) {
+            this.random = random;
+        }
+    }
+}
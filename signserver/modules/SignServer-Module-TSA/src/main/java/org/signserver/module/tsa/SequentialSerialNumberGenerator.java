@@ -0,0 +1,126 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+
+/**
+ * Serial number generator giving increasing serial numbers prefixed with a
+ * node number, unique in a cluster as long as each node is configured with
+ * its own number.
+ *
+ * As worker properties are shared by all nodes in a cluster the node number
+ * is instead read from the signserver.serialnumbernode system property or,
+ * if not set, from the SIGNSERVER_SERIALNUMBERNODE environment variable of
+ * each node. The worker is offline if neither is set.
+ *
+ * The highest 8 bits of the serial number (not counting the sign bit) is
+ * the node number and the rest is a counter. The counter starts at the
+ * current time in milliseconds shifted 12 bits so that the serial numbers
+ * keep increasing after a restart as long as less than 4096 serial numbers
+ * per millisecond have been issued on average.
+ *
+ * Node configuration:<br>
+ * signserver.serialnumbernode or SIGNSERVER_SERIALNUMBERNODE - Number of
+ * this node, 1 to 255 (required)
+ *
+ * @version $Id$
+ */
+public class SequentialSerialNumberGenerator implements SerialNumberGenerator {
+
+    /** Worker property no longer used as it would be the same for all nodes. */
+    public static final String SERIALNUMBERNODE = "SERIALNUMBERNODE";
+
+    /** System property with the number of this node. */
+    public static final String SERIALNUMBERNODE_SYSTEM_PROPERTY = "signserver.serialnumbernode";
+
+    /** Environment variable with the number of this node. */
+    public static final String SERIALNUMBERNODE_ENVVAR = "SIGNSERVER_SERIALNUMBERNODE";
+
+    private static final int NODE_BITS = 8;
+    private static final int TIME_SHIFT = 12;
+
+    private final AtomicLong counter = new AtomicLong();
+    private final List<String> fatalErrors = new LinkedList<>();
+    private int node;
+
+    @Override
+    public void init(final int workerId, final WorkerConfig config) {
+        if (config.getProperty(SERIALNUMBERNODE) != null) {
+            fatalErrors.add("The worker property " + SERIALNUMBERNODE
+                    + " is not supported as it is shared by all nodes, set "
+                    + SERIALNUMBERNODE_SYSTEM_PROPERTY + " or "
+                    + SERIALNUMBERNODE_ENVVAR + " on each node instead");
+        }
+        final String value = getConfiguredNode();
+        if (value == null) {
+            fatalErrors.add("Missing node number, set the "
+                    + SERIALNUMBERNODE_SYSTEM_PROPERTY + " system property or the "
+                    + SERIALNUMBERNODE_ENVVAR + " environment variable to a number unique for this node");
+        } else {
+            try {
+                node = Integer.parseInt(value.trim());
+                if (node < 1 || node >= 1 << NODE_BITS) {
+                    fatalErrors.add("Illegal node number: " + value);
+                }
+            } catch (NumberFormatException e) {
+                fatalErrors.add("Illegal node number: " + value);
+            }
+        }
+    }
+
+    /**
+     * @return the node number from the node configuration or null if not set
+     */
+    protected String getConfiguredNode() {
+        String result = System.getProperty(SERIALNUMBERNODE_SYSTEM_PROPERTY);
+        if (result == null) {
+            result = System.getenv(SERIALNUMBERNODE_ENVVAR);
+        }
+        return result;
+    }
+
+    @Override
+    public BigInteger getSerialNumber(final int maxLength) throws SignServerException {
+        final int counterBits = maxLength * 8 - 1 - NODE_BITS;
+        final long value = next();
+        if (counterBits < 64 && value >>> counterBits != 0) {
+            throw new SignServerException("Serial number counter too large for length " + maxLength);
+        }
+        return BigInteger.valueOf(node).shiftLeft(counterBits).or(BigInteger.valueOf(value));
+    }
+
+    @Override
+    public List<String> getFatalErrors() {
+        return fatalErrors;
+    }
+
+    /**
+     * @return the next counter value, at least the current time shifted
+     */
+    private long next() {
+        final long now = System.currentTimeMillis() << TIME_SHIFT;
+        while (true) {
+            final long current = counter.get();
+            final long next = Math.max(current + 1, now);
+            if (counter.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+}
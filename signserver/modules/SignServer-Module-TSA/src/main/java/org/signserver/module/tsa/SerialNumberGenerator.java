@@ -0,0 +1,55 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.util.List;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+
+/**
+ * Generator of serial numbers for time-stamp tokens.
+ *
+ * The implementation is configured with the SERIALNUMBERGENERATOR worker
+ * property. An instance is used by all requests to the worker so
+ * getSerialNumber can be called concurrently.
+ *
+ * @version $Id$
+ */
+public interface SerialNumberGenerator {
+
+    /**
+     * Initialize the generator.
+     *
+     * @param workerId Worker ID
+     * @param config Worker configuration
+     */
+    void init(int workerId, WorkerConfig config);
+
+    /**
+     * Generate a new serial number.
+     *
+     * @param maxLength the maximum number of octets of the serial number
+     * @return a positive serial number with at most maxLength * 8 - 1 bits
+     * @throws SignServerException in case a serial number could not be
+     * generated
+     */
+    BigInteger getSerialNumber(int maxLength) throws SignServerException;
+
+    /**
+     * Get fatal configuration errors for the generator.
+     *
+     * @return List of error strings, or an empty list if there is no errors.
+     */
+    List<String> getFatalErrors();
+}
@@ -19,7 +19,6 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.cert.CertStoreException;
 import java.security.cert.Certificate;
@@ -49,7 +48,6 @@ import org.bouncycastle.asn1.x509.Extensions;
 import org.bouncycastle.asn1.x509.GeneralName;
 import org.bouncycastle.asn1.x509.KeyPurposeId;
 import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 import org.bouncycastle.cms.SignerInfoGenerator;
 import org.bouncycastle.cms.SignerInformationVerifier;
 import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
@@ -197,11 +195,8 @@ public class TimeStampSigner extends BaseSigner {
         /** Log4j instance for actual implementation class. */
     private static final Logger LOG = Logger.getLogger(TimeStampSigner.class);
 
-    /** Random generator algorithm. */
-    private static String algorithm = "SHA1PRNG";
-
-    /** Random generator. */
-    private transient SecureRandom random;
+    /** Serial number generator. */
+    private SerialNumberGenerator serialNumberGenerator;
 
     /** MIME type for the request data. **/
     private static final String REQUEST_CONTENT_TYPE = "application/timestamp-query";
@@ -227,6 +222,7 @@ public class TimeStampSigner extends BaseSigner {
     public static final String REQUIREVALIDCHAIN = "REQUIREVALIDCHAIN";
     public static final String VERIFY_TOKEN_SIGNATURE = "VERIFY_TOKEN_SIGNATURE";
     public static final String MAXSERIALNUMBERLENGTH = "MAXSERIALNUMBERLENGTH";
+    public static final String SERIALNUMBERGENERATOR = "SERIALNUMBERGENERATOR";
     public static final String INCLUDESTATUSSTRING = "INCLUDESTATUSSTRING";
     public static final String INCLUDESIGNINGTIMEATTRIBUTE = "INCLUDESIGNINGTIMEATTRIBUTE";
     public static final String INCLUDECMSALGORITHMPROTECTATTRIBUTE = "INCLUDECMSALGORITHMPROTECTATTRIBUTE";
@@ -286,10 +282,10 @@ public class TimeStampSigner extends BaseSigner {
 
     private ITimeSource timeSource = null;
     private String signatureAlgorithm;
-    private Set<ASN1ObjectIdentifier> acceptedAlgorithms = null;
-    private Set<String> acceptedPolicies = null;
+    private volatile Set<ASN1ObjectIdentifier> acceptedAlgorithms = null;
+    private volatile Set<String> acceptedPolicies = null;
     private boolean acceptAnyPolicy = false;
-    private Set<String> acceptedExtensions = null;
+    private volatile Set<String> acceptedExtensions = null;
 
     //private String defaultDigestOID = null;
     private ASN1ObjectIdentifier defaultTSAPolicyOID = null;
@@ -317,6 +313,14 @@ public class TimeStampSigner extends BaseSigner {
 
     private ASN1ObjectIdentifier certificateDigestAlgorithm;
 
+    private FilteredSignedAttributeTableGenerator signedAttributeGenerator;
+    private Integer accuracyMicros;
+    private Integer accuracyMillis;
+    private Integer accuracySeconds;
+
+    /** Certificates used by the last request. */
+    private volatile PreparedSigningKey preparedSigningKey;
+
     List<String> configErrors;
 
     @Override
@@ -327,6 +331,9 @@ public class TimeStampSigner extends BaseSigner {
 
         configErrors = new LinkedList<>();
 
+        // Prepared again for the new configuration
+        preparedSigningKey = null;
+
         // Overrides the default worker logger to be this worker
         //  implementation's default instead of the WorkerSessionBean's
         config.setProperty("WORKERLOGGER", config.getProperty("WORKERLOGGER", DEFAULT_WORKERLOGGER));    
@@ -408,6 +415,12 @@ public class TimeStampSigner extends BaseSigner {
         if (serialNumberError != null) {
             configErrors.add(serialNumberError);
         }
+
+        serialNumberGenerator = createSerialNumberGenerator(config.getProperty(SERIALNUMBERGENERATOR, DEFAULT_NULL), configErrors);
+        if (serialNumberGenerator != null) {
+            serialNumberGenerator.init(signerId, config);
+            configErrors.addAll(serialNumberGenerator.getFatalErrors());
+        }
        
         includeStatusString = Boolean.parseBoolean(config.getProperty(INCLUDESTATUSSTRING, "true"));
 
@@ -422,6 +435,24 @@ public class TimeStampSigner extends BaseSigner {
 
         includeCmsProtectAlgorithmAttribute = Boolean.valueOf(config.getProperty(INCLUDECMSALGORITHMPROTECTATTRIBUTE, "true"));
 
+        // signed attribute table generator based on the properties
+        final Collection<ASN1ObjectIdentifier> attributesToRemove = new ArrayList<>();
+        if (!includeSigningTimeAttribute) {
+            attributesToRemove.add(CMSAttributes.signingTime);
+        }
+        if (!includeCmsProtectAlgorithmAttribute) {
+            attributesToRemove.add(CMSAttributes.cmsAlgorithmProtect);
+        }
+        signedAttributeGenerator = new FilteredSignedAttributeTableGenerator(attributesToRemove);
+
+        try {
+            accuracyMicros = getIntegerProperty(ACCURACYMICROS);
+            accuracyMillis = getIntegerProperty(ACCURACYMILLIS);
+            accuracySeconds = getIntegerProperty(ACCURACYSECONDS);
+        } catch (NumberFormatException e) {
+            configErrors.add("Illegal value for accuracy: " + e.getMessage());
+        }
+
         ordering = Boolean.parseBoolean(config.getProperty(ORDERING, "false"));
 
         if (hasSetIncludeCertificateLevels && includeCertificateLevels == 0) {
@@ -481,6 +512,11 @@ public class TimeStampSigner extends BaseSigner {
         }
     }
 
+    private Integer getIntegerProperty(final String property) {
+        final String value = config.getProperty(property, DEFAULT_NULL);
+        return value == null ? null : Integer.valueOf(value.trim());
+    }
+
     private ASN1ObjectIdentifier getCertificateDigestAlgorithmFromString(final String digestAlg) {
         switch (digestAlg) {
             case "SHA1":
@@ -656,7 +692,8 @@ public class TimeStampSigner extends BaseSigner {
             });
             
             // Create the response
-            TimeStampResponse timeStampResponse;            
+            TimeStampResponse timeStampResponse;
+            PreparedSigningKey prepared = null;
             if (date == null) {
                 // Generate failure response
                 final TimeStampResponseGenerator timeStampResponseGen = getTimeStampResponseGenerator(null);
@@ -666,8 +703,10 @@ public class TimeStampSigner extends BaseSigner {
                     // Validate according to policy
                     timeStampRequest.validate(getAcceptedAlgorithms(), acceptAnyPolicy ? null : this.getAcceptedPolicies(), getAcceptedExtensions());
 
-                    // Create the generators
-                    final TimeStampTokenGenerator timeStampTokenGen = getTimeStampTokenGenerator(crypto, timeStampRequest, logMap);
+                    // Create the generators for the key of this request
+                    prepared = getPreparedSigningKey(crypto, requestContext);
+                    final ASN1ObjectIdentifier tSAPolicyOID = getTSAPolicyOID(timeStampRequest, logMap);
+                    final TimeStampTokenGenerator timeStampTokenGen = getTimeStampTokenGenerator(prepared, crypto, tSAPolicyOID);
                     final TimeStampResponseGenerator timeStampResponseGen = getTimeStampResponseGenerator(timeStampTokenGen);
                     final Extensions additionalExtensions = getAdditionalExtensions(signRequest, requestContext);
                     
@@ -675,7 +714,7 @@ public class TimeStampSigner extends BaseSigner {
                     timeStampResponse = timeStampResponseGen.generateGrantedResponse(timeStampRequest,
                                     serialNumber, date,
                                     includeStatusString ? "Operation Okay" : null,
-                                    additionalExtensions);                    
+                                    additionalExtensions);
                 } catch (TSPException e) {
                     // Generate failure response
                     if (LOG.isDebugEnabled()) {
@@ -694,7 +733,7 @@ public class TimeStampSigner extends BaseSigner {
             // validate the timestamp token signature before sending response
             // token should not be null if generated till now
             if (verifyTokenSignature && token != null) {
-                verifySignature(token, cert);
+                verifySignature(token, prepared.getSigningCert());
             }
             
             final TimeStampResponse tspResponse = timeStampResponse;
@@ -830,10 +869,12 @@ public class TimeStampSigner extends BaseSigner {
         }
     }
     
-    private void verifySignature(TimeStampToken token, Certificate signerCert) throws SignServerException {
+    private void verifySignature(TimeStampToken token, X509Certificate signerCert) throws SignServerException {
+        // Not kept between requests as the verifier can not be used by
+        // concurrent requests
         final SignerInformationVerifier infoVerifier;
         try {
-            infoVerifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build((X509Certificate) signerCert);
+            infoVerifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(signerCert);
             token.validate(infoVerifier);
         } catch (TSPValidationException ex) {
             LOG.error("Token validation failed", ex);
@@ -881,16 +922,19 @@ public class TimeStampSigner extends BaseSigner {
                 final String[] subStrings =
                         nonParsedAcceptedAlgorihms.split(";");
                 if (subStrings.length > 0) {
-                    acceptedAlgorithms = new HashSet();
+                    // Only publish the set when complete as other threads
+                    // could be using it
+                    final Set<ASN1ObjectIdentifier> algorithms = new HashSet<>();
                     for (String subString : subStrings) {
                         final ASN1ObjectIdentifier acceptAlg = ACCEPTEDALGORITHMSMAP.get(subString);
                         if (acceptAlg != null) {
-                            acceptedAlgorithms.add(acceptAlg);
+                            algorithms.add(acceptAlg);
                         } else {
                             LOG.error("Error, signer " + workerId
                                     + " configured with incompatible acceptable algorithm : " + subString);
                         }
                     }
+                    acceptedAlgorithms = algorithms;
                 }
             }
         }
@@ -940,93 +984,133 @@ public class TimeStampSigner extends BaseSigner {
         return retval;
     }
 
-    private TimeStampTokenGenerator getTimeStampTokenGenerator(
-            final ICryptoInstance crypto,
-            final TimeStampRequest timeStampRequest,
-            final LogMap logMap)
+    private ASN1ObjectIdentifier getTSAPolicyOID(
+            final TimeStampRequest timeStampRequest, final LogMap logMap) {
+        final ASN1ObjectIdentifier tSAPolicyOID;
+
+        if (timeStampRequest.getReqPolicy() != null) {
+            tSAPolicyOID = timeStampRequest.getReqPolicy();
+        } else {
+            tSAPolicyOID = defaultTSAPolicyOID;
+        }
+        logMap.put(ITimeStampLogger.LOG_TSA_POLICYID,
+                new Loggable() {
+            @Override
+            public String toString() {
+                return tSAPolicyOID.getId();
+            }
+        });
+        return tSAPolicyOID;
+    }
+
+    /**
+     * Get the prepared certificates for the crypto instance. The last one is
+     * reused as long as the token and certificates are the same, otherwise a
+     * new one is prepared, ie. after a key rollover.
+     */
+    private PreparedSigningKey getPreparedSigningKey(
+            final ICryptoInstance crypto, final RequestContext requestContext)
             throws
+            SignServerException,
             IllegalRequestException,
             CryptoTokenOfflineException,
             InvalidAlgorithmParameterException,
             NoSuchAlgorithmException,
             NoSuchProviderException,
             CertStoreException,
-            OperatorCreationException,
-            SignServerException {
+            OperatorCreationException {
 
-        TimeStampTokenGenerator timeStampTokenGen = null;
-        try {
-            final ASN1ObjectIdentifier tSAPolicyOID;
+        final X509Certificate signingCert
+                = (X509Certificate) getSigningCertificate(crypto);
+        if (signingCert == null) {
+            throw new CryptoTokenOfflineException(
+                    "No certificate for this signer");
+        }
+        final List<Certificate> signingCertChain = getSigningCertificateChain(crypto);
 
-            if (timeStampRequest.getReqPolicy() != null) {
-                tSAPolicyOID = timeStampRequest.getReqPolicy();
-            } else {
-                tSAPolicyOID = defaultTSAPolicyOID;
+        final ICryptoTokenV4 token = getCryptoToken(requestContext.getServices());
+
+        PreparedSigningKey result = preparedSigningKey;
+        if (result == null || !result.isFor(token, signingCert, signingCertChain)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Preparing signing key for worker " + workerId);
             }
-            logMap.put(ITimeStampLogger.LOG_TSA_POLICYID,
-                    new Loggable() {
-                @Override
-                public String toString() {
-                    return tSAPolicyOID.getId();
+            try {
+                final X509CertificateHolder certHolder = new X509CertificateHolder(signingCert.getEncoded());
+
+                final GeneralName tsa;
+                if (tsaName != null) {
+                    tsa = new GeneralName(new X500Name(tsaName));
+                } else if (tsaNameFromCert) {
+                    tsa = new GeneralName(certHolder.getSubject());
+                } else {
+                    tsa = null;
                 }
-            });
 
-            final X509Certificate signingCert
-                    = (X509Certificate) getSigningCertificate(crypto);
-            if (signingCert == null) {
-                throw new CryptoTokenOfflineException(
-                        "No certificate for this signer");
+                result = new PreparedSigningKey(token, signingCert, signingCertChain,
+                        certHolder,
+                        getCertStoreWithChain(signingCert, signingCertChain),
+                        tsa);
+                preparedSigningKey = result;
+            } catch (IllegalArgumentException e) {
+                LOG.error("IllegalArgumentException: ", e);
+                throw new IllegalRequestException(e.getMessage());
+            } catch (CertificateEncodingException e) {
+                LOG.error("CertificateEncodingException: ", e);
+                throw new IllegalRequestException(e.getMessage());
+            } catch (IOException e) {
+                LOG.error("IOException: ", e);
+                throw new IllegalRequestException(e.getMessage());
             }
+        }
+        return result;
+    }
+
+    /**
+     * Create a generator signing with the key of the crypto instance of the
+     * current request and using the prepared certificates.
+     */
+    private TimeStampTokenGenerator getTimeStampTokenGenerator(
+            final PreparedSigningKey prepared,
+            final ICryptoInstance crypto,
+            final ASN1ObjectIdentifier tSAPolicyOID)
+            throws
+            IllegalRequestException,
+            OperatorCreationException {
 
+        final TimeStampTokenGenerator timeStampTokenGen;
+        try {
             DigestCalculatorProvider calcProv = new BcDigestCalculatorProvider();
             DigestCalculator calc = calcProv.get(new AlgorithmIdentifier(certificateDigestAlgorithm));
 
             ContentSigner cs =
             		new JcaContentSignerBuilder(signatureAlgorithm).setProvider(crypto.getProvider()).build(crypto.getPrivateKey());
             JcaSignerInfoGeneratorBuilder sigb = new JcaSignerInfoGeneratorBuilder(calcProv);
-            X509CertificateHolder certHolder = new X509CertificateHolder(signingCert.getEncoded());
-
-            // set signed attribute table generator based on property
-            final Collection<ASN1ObjectIdentifier> attributesToRemove = new ArrayList<>();
-            if (!includeSigningTimeAttribute) {
-                attributesToRemove.add(CMSAttributes.signingTime);
-            }
-            if (!includeCmsProtectAlgorithmAttribute) {
-                attributesToRemove.add(CMSAttributes.cmsAlgorithmProtect);
-            }
-            sigb.setSignedAttributeGenerator(
-                    new FilteredSignedAttributeTableGenerator(attributesToRemove));
+            sigb.setSignedAttributeGenerator(signedAttributeGenerator);
 
-            SignerInfoGenerator sig = sigb.build(cs, certHolder);
+            SignerInfoGenerator sig = sigb.build(cs, prepared.getCertHolder());
             
             timeStampTokenGen = new TimeStampTokenGenerator(sig, calc, tSAPolicyOID, includeCertIDIssuerSerial);
 
-            if (config.getProperty(ACCURACYMICROS, DEFAULT_NULL) != null) {
-                timeStampTokenGen.setAccuracyMicros(Integer.parseInt(
-                        config.getProperty(ACCURACYMICROS)));
+            if (accuracyMicros != null) {
+                timeStampTokenGen.setAccuracyMicros(accuracyMicros);
             }
 
-            if (config.getProperty(ACCURACYMILLIS, DEFAULT_NULL) != null) {
-                timeStampTokenGen.setAccuracyMillis(Integer.parseInt(
-                        config.getProperty(ACCURACYMILLIS)));
+            if (accuracyMillis != null) {
+                timeStampTokenGen.setAccuracyMillis(accuracyMillis);
             }
 
-            if (config.getProperty(ACCURACYSECONDS, DEFAULT_NULL) != null) {
-                timeStampTokenGen.setAccuracySeconds(Integer.parseInt(
-                        config.getProperty(ACCURACYSECONDS)));
+            if (accuracySeconds != null) {
+                timeStampTokenGen.setAccuracySeconds(accuracySeconds);
             }
 
             timeStampTokenGen.setOrdering(ordering);
 
-            if (tsaName != null) {
-                final X500Name x500Name = new X500Name(tsaName);
-                timeStampTokenGen.setTSA(new GeneralName(x500Name));
-            } else if (tsaNameFromCert) {
-                final X500Name x500Name = new JcaX509CertificateHolder(signingCert).getSubject();
-                timeStampTokenGen.setTSA(new GeneralName(x500Name));
+            if (prepared.getTsa() != null) {
+                timeStampTokenGen.setTSA(prepared.getTsa());
             }
 
-            timeStampTokenGen.addCertificates(getCertStoreWithChain(signingCert, getSigningCertificateChain(crypto)));
+            timeStampTokenGen.addCertificates(prepared.getCertStore());
 
         } catch (IllegalArgumentException e) {
             LOG.error("IllegalArgumentException: ", e);
@@ -1034,12 +1118,6 @@ public class TimeStampSigner extends BaseSigner {
         } catch (TSPException e) {
             LOG.error("TSPException: ", e);
             throw new IllegalRequestException(e.getMessage());
-        } catch (CertificateEncodingException e) {
-            LOG.error("CertificateEncodingException: ", e);
-            throw new IllegalRequestException(e.getMessage());
-        } catch (IOException e) {
-            LOG.error("IOException: ", e);
-            throw new IllegalRequestException(e.getMessage());
         }
 
         return timeStampTokenGen;
@@ -1055,28 +1133,22 @@ public class TimeStampSigner extends BaseSigner {
     }
 
     /**
-     * Help method that generates a serial number using SecureRandom.
+     * Help method that generates a serial number using the configured
+     * serial number generator.
      * Uses the configured length of the signer. This is public to allow using directly from
      * unit test.
      *
-     * @return Random serial number
+     * @return Serial number
      * @throws SignServerException If the maximum serial number length is outside the allowed range
+     * or the serial number could not be generated
      */
     public BigInteger getSerialNumber() throws SignServerException {
-        BigInteger serialNumber = null;
-
         if (maxSerialNumberLength < MIN_ALLOWED_MAXSERIALNUMBERLENGTH
                 || maxSerialNumberLength > MAX_ALLOWED_MAXSERIALNUMBERLENGTH) {
             throw new SignServerException("Maximum serial number length is not in allowed range");
         }
 
-        try {
-            serialNumber = getSerno(maxSerialNumberLength);
-        } catch (Exception e) {
-            LOG.error("Error initiating Serial Number generator, SEVERE ERROR.",
-                    e);
-        }
-        return serialNumber;
+        return getSerno(maxSerialNumberLength);
     }
 
     /**
@@ -1084,22 +1156,42 @@ public class TimeStampSigner extends BaseSigner {
      * be a positive number.
      *
      * @param maxLength the maximum number of octects of the generated serial number
-     * @return a BigInteger with a new random serial number.
+     * @return a BigInteger with a new serial number.
+     * @throws SignServerException If the serial number could not be generated
+     */
+    public BigInteger getSerno(int maxLength) throws SignServerException {
+        if (serialNumberGenerator == null) {
+            throw new SignServerException("No serial number generator");
+        }
+        return serialNumberGenerator.getSerialNumber(maxLength);
+    }
+
+    /**
+     * Creates the serial number generator given the value of the
+     * SERIALNUMBERGENERATOR worker property.
+     * Also used by the MSAuthCodeTimeStampSigner.
+     *
+     * @param className Class name or null for the default
+     * @param configErrors List to add errors to
+     * @return The generator or null in case of error
      */
-    public BigInteger getSerno(int maxLength) {
-        if (random == null) {
+    static SerialNumberGenerator createSerialNumberGenerator(final String className, final List<String> configErrors) {
+        SerialNumberGenerator result = null;
+
+        if (className == null) {
+            result = new RandomSerialNumberGenerator();
+        } else {
             try {
-                random = SecureRandom.getInstance(algorithm);
-            } catch (NoSuchAlgorithmException e) {
-                LOG.error(e);
+                final Class<?> implClass = Class.forName(className);
+                result = (SerialNumberGenerator) implClass.newInstance();
+            } catch (ClassNotFoundException e) {
+                configErrors.add("Serial number generator class not found: " + className);
+            } catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+                configErrors.add("Failed to instantiate serial number generator: " + e.getMessage());
             }
         }
 
-        final byte[] sernobytes = new byte[maxLength];
-        random.nextBytes(sernobytes);
-        BigInteger serno = new BigInteger(sernobytes).abs();
-
-        return serno;
+        return result;
     }
 
     /**
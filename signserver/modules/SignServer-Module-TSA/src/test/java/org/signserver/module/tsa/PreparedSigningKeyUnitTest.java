@@ -0,0 +1,81 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.Test;
+import org.signserver.test.utils.builders.CertBuilder;
+import org.signserver.test.utils.builders.CertExt;
+import org.signserver.test.utils.builders.CryptoUtils;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the PreparedSigningKey.
+ *
+ * @version $Id$
+ */
+public class PreparedSigningKeyUnitTest {
+
+    private KeyPair keyPair;
+    private X509Certificate cert;
+    private List<Certificate> chain;
+    private Object token;
+    private PreparedSigningKey instance;
+
+    @Before
+    public void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        keyPair = CryptoUtils.generateRSA(1024);
+        final X509CertificateHolder holder = createCertBuilder(keyPair).build();
+        cert = new JcaX509CertificateConverter().getCertificate(holder);
+        chain = Collections.<Certificate>singletonList(cert);
+        token = new Object();
+        instance = new PreparedSigningKey(token, cert, chain, holder, null, null);
+    }
+
+    /**
+     * Tests that the prepared key is reused for the same token and
+     * certificate, as the token might give a new PrivateKey object for each
+     * request, but not for an other token or certificate.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIsFor() throws Exception {
+        assertTrue("same token and certificate", instance.isFor(token, cert, chain));
+        assertTrue("equal chain", instance.isFor(token, cert, Arrays.<Certificate>asList(cert)));
+        assertFalse("other token", instance.isFor(new Object(), cert, chain));
+
+        final KeyPair renewed = CryptoUtils.generateRSA(1024);
+        final X509Certificate renewedCert = new JcaX509CertificateConverter().getCertificate(
+                createCertBuilder(renewed).build());
+        assertFalse("other certificate", instance.isFor(token, renewedCert, Collections.<Certificate>singletonList(renewedCert)));
+    }
+
+    private static CertBuilder createCertBuilder(final KeyPair keyPair) {
+        return new CertBuilder().setSubject("CN=TSA").setSelfSignKeyPair(keyPair)
+                .addExtension(new CertExt(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping)));
+    }
+}
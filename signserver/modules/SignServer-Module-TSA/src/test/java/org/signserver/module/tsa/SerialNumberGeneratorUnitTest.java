@@ -0,0 +1,193 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.signserver.common.WorkerConfig;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the serial number generators.
+ *
+ * @version $Id$
+ */
+public class SerialNumberGeneratorUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(SerialNumberGeneratorUnitTest.class);
+
+    /**
+     * Tests that the random serial numbers are positive and not longer than
+     * requested.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRandom() throws Exception {
+        final SerialNumberGenerator instance = new RandomSerialNumberGenerator();
+        instance.init(1, new WorkerConfig());
+        assertTrue("errors", instance.getFatalErrors().isEmpty());
+
+        final Set<BigInteger> serials = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            final BigInteger serial = instance.getSerialNumber(8);
+            assertTrue("positive", serial.signum() >= 0);
+            assertTrue("length", serial.bitLength() <= 63);
+            serials.add(serial);
+        }
+        assertEquals("unique", 1000, serials.size());
+    }
+
+    /**
+     * Tests the number of random generators shared by the threads.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRandomStripes() throws Exception {
+        assertEquals(2, RandomSerialNumberGenerator.stripes(1));
+        assertEquals(8, RandomSerialNumberGenerator.stripes(3));
+        assertEquals(8, RandomSerialNumberGenerator.stripes(4));
+        assertEquals(64, RandomSerialNumberGenerator.stripes(24));
+        assertEquals(64, RandomSerialNumberGenerator.stripes(256));
+    }
+
+    /**
+     * Tests that the sequential serial numbers increase and start with the
+     * node number.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testSequential() throws Exception {
+        final SerialNumberGenerator instance = createSequential("5");
+        assertTrue("errors", instance.getFatalErrors().isEmpty());
+
+        BigInteger last = BigInteger.ZERO;
+        for (int i = 0; i < 1000; i++) {
+            final BigInteger serial = instance.getSerialNumber(8);
+            assertTrue("increasing", serial.compareTo(last) > 0);
+            assertEquals("node", 5, serial.shiftRight(55).intValue());
+            last = serial;
+        }
+
+        final BigInteger longer = instance.getSerialNumber(20);
+        assertEquals("node", 5, longer.shiftRight(20 * 8 - 1 - 8).intValue());
+
+        // Other node never gives the same serial numbers
+        assertNotEquals(createSequential("6").getSerialNumber(8).shiftRight(55), last.shiftRight(55));
+    }
+
+    /**
+     * Tests that the node number is required and checked.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testSequentialErrors() throws Exception {
+        assertFalse("missing", createSequential(null).getFatalErrors().isEmpty());
+
+        // The node number can not be a worker property shared by all nodes
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty(SequentialSerialNumberGenerator.SERIALNUMBERNODE, "1");
+        final SerialNumberGenerator shared = createSequentialInstance("2");
+        shared.init(1, config);
+        assertFalse("worker property", shared.getFatalErrors().isEmpty());
+
+        assertFalse("zero", createSequential("0").getFatalErrors().isEmpty());
+        assertFalse("too large", createSequential("256").getFatalErrors().isEmpty());
+        assertFalse("not a number", createSequential("one").getFatalErrors().isEmpty());
+        assertTrue("largest", createSequential("255").getFatalErrors().isEmpty());
+    }
+
+    /**
+     * Tests that an unknown class gives a configuration error.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCreate() throws Exception {
+        final List<String> errors = new LinkedList<>();
+        assertTrue("default", TimeStampSigner.createSerialNumberGenerator(null, errors) instanceof RandomSerialNumberGenerator);
+        assertTrue("sequential", TimeStampSigner.createSerialNumberGenerator(SequentialSerialNumberGenerator.class.getName(), errors) instanceof SequentialSerialNumberGenerator);
+        assertTrue("no errors", errors.isEmpty());
+
+        assertNull("unknown", TimeStampSigner.createSerialNumberGenerator("org.example.NoSuchGenerator", errors));
+        assertEquals("errors", 1, errors.size());
+    }
+
+    /**
+     * Tests the generators from 64 concurrent threads, checks that the
+     * serial numbers are unique and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        testConcurrent("Random", new RandomSerialNumberGenerator());
+        testConcurrent("Sequential", createSequential("1"));
+    }
+
+    private void testConcurrent(final String name, final SerialNumberGenerator instance) throws Exception {
+        final int threads = 64;
+        final int perThread = 5000;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<List<BigInteger>>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<List<BigInteger>>() {
+                    @Override
+                    public List<BigInteger> call() throws Exception {
+                        final List<BigInteger> result = new ArrayList<>(perThread);
+                        for (int i = 0; i < perThread; i++) {
+                            result.add(instance.getSerialNumber(8));
+                        }
+                        return result;
+                    }
+                }));
+            }
+            final Set<BigInteger> serials = new HashSet<>();
+            for (Future<List<BigInteger>> future : futures) {
+                serials.addAll(future.get());
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info(name + " serial numbers per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+
+            assertEquals("unique", threads * perThread, serials.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private SerialNumberGenerator createSequential(final String node) {
+        final SerialNumberGenerator result = createSequentialInstance(node);
+        result.init(1, new WorkerConfig());
+        return result;
+    }
+
+    private SerialNumberGenerator createSequentialInstance(final String node) {
+        return new SequentialSerialNumberGenerator() {
+            @Override
+            protected String getConfiguredNode() {
+                return node;
+            }
+        };
+    }
+}
@@ -0,0 +1,190 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.module.tsa;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.data.SignatureRequest;
+import org.signserver.ejb.interfaces.GlobalConfigurationSessionLocal;
+import org.signserver.server.FixedTimeSource;
+import org.signserver.server.IServices;
+import org.signserver.server.data.impl.CloseableReadableData;
+import org.signserver.server.data.impl.CloseableWritableData;
+import org.signserver.server.log.AdminInfo;
+import org.signserver.test.utils.mock.GlobalConfigurationSessionMock;
+import org.signserver.test.utils.mock.MockedRequestContext;
+import org.signserver.test.utils.mock.MockedServicesImpl;
+import org.signserver.test.utils.mock.WorkerSessionMock;
+import org.signserver.testutils.ModulesTestCase;
+
+/**
+ * Unit tests for the TimeStampSigner reusing the prepared generators
+ * between requests and from concurrent threads.
+ *
+ * The time source is fixed to a time when the soft keystore certificate is
+ * valid and the signing time attribute is left out.
+ *
+ * @version $Id$
+ */
+public class TimeStampSignerConcurrencyUnitTest extends ModulesTestCase {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(TimeStampSignerConcurrencyUnitTest.class);
+
+    private static final int WORKER1 = 8890;
+    private static final String CRYPTOTOKEN_CLASSNAME =
+            "org.signserver.server.cryptotokens.KeystoreCryptoToken";
+
+    /** 2017-07-14, when the TS Signer 1 certificate is valid. */
+    private static final String FIXEDTIME = "1500000000000";
+
+    private WorkerSessionMock workerSession;
+    private WorkerConfig config;
+    private IServices services;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        final GlobalConfigurationSessionMock globalMock
+                = new GlobalConfigurationSessionMock();
+        workerSession = new WorkerSessionMock();
+        services = new MockedServicesImpl().with(GlobalConfigurationSessionLocal.class, globalMock);
+
+        config = new WorkerConfig();
+        config.setProperty("NAME", "TestTimeStampSigner1");
+        config.setProperty("AUTHTYPE", "NOAUTH");
+        config.setProperty(TimeStampSigner.DEFAULTTSAPOLICYOID,
+                           "1.3.6.1.4.1.22408.1.2.3.45");
+        config.setProperty("DEFAULTKEY", "TS Signer 1");
+        config.setProperty("KEYSTOREPATH",
+            getSignServerHome() + File.separator + "res" +
+                    File.separator + "test" + File.separator + "dss10" +
+                    File.separator + "dss10_tssigner1.p12");
+        config.setProperty("KEYSTORETYPE", "PKCS12");
+        config.setProperty("KEYSTOREPASSWORD", "foo123");
+        config.setProperty("ACCEPTANYPOLICY", "true");
+        config.setProperty("CHECKCERTVALIDITY", "false");
+        config.setProperty(TimeStampSigner.TIMESOURCE, FixedTimeSource.class.getName());
+        config.setProperty(FixedTimeSource.FIXEDTIME, FIXEDTIME);
+        // The CMS signing time is not from the time source
+        config.setProperty(TimeStampSigner.INCLUDESIGNINGTIMEATTRIBUTE, "false");
+        workerSession.setupWorker(WORKER1, CRYPTOTOKEN_CLASSNAME, config,
+                new TimeStampSigner());
+        workerSession.reloadConfiguration(WORKER1);
+    }
+
+    /**
+     * Tests that a number of requests with different policies all give
+     * valid tokens when the generators are reused and that a reload with a
+     * new configuration is used by the next request.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReuseAndReload() throws Exception {
+        final String[] policies = {"1.3.6.1.4.1.22408.1.2.3.45", "1.2.3.4"};
+        for (int i = 0; i < 6; i++) {
+            final TimeStampRequestGenerator generator = new TimeStampRequestGenerator();
+            generator.setReqPolicy(new ASN1ObjectIdentifier(policies[i % policies.length]));
+            final TimeStampRequest request = generator.generate(TSPAlgorithms.SHA256, new byte[32], BigInteger.valueOf(i));
+            final TimeStampResponse response = timestamp(request);
+            response.validate(request);
+            assertEquals("granted", PKIStatus.GRANTED, response.getStatus());
+            assertEquals("policy", policies[i % policies.length], response.getTimeStampToken().getTimeStampInfo().getPolicy().getId());
+            assertNull("no TSA name", response.getTimeStampToken().getTimeStampInfo().getTsa());
+        }
+
+        // Changed configuration should not use the old generators
+        config.setProperty(TimeStampSigner.TSA, "CN=Test TSA");
+        workerSession.reloadConfiguration(WORKER1);
+
+        final TimeStampRequest request = new TimeStampRequestGenerator().generate(TSPAlgorithms.SHA256, new byte[32], BigInteger.valueOf(100));
+        final TimeStampResponse response = timestamp(request);
+        response.validate(request);
+        assertEquals("TSA name", new GeneralName(new X500Name("CN=Test TSA")), response.getTimeStampToken().getTimeStampInfo().getTsa());
+    }
+
+    /**
+     * Tests time-stamping from 64 concurrent threads, checks that all
+     * tokens are valid and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentTimestamps() throws Exception {
+        final int threads = 64;
+        final int perThread = 10;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t * perThread;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            final TimeStampRequest request = new TimeStampRequestGenerator().generate(TSPAlgorithms.SHA256, new byte[32], BigInteger.valueOf(offset + i));
+                            final TimeStampResponse response = timestamp(request);
+                            response.validate(request);
+                            assertEquals("granted", PKIStatus.GRANTED, response.getStatus());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Tokens per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private TimeStampResponse timestamp(final TimeStampRequest timeStampRequest) throws Exception {
+        try (
+                CloseableReadableData requestData = createRequestData(timeStampRequest.getEncoded());
+                CloseableWritableData responseData = createResponseData(false);
+            ) {
+            final SignatureRequest signRequest = new SignatureRequest(100, requestData, responseData);
+
+            workerSession.process(new AdminInfo("Client user", null, null), new WorkerIdentifier(WORKER1), signRequest, new MockedRequestContext(services));
+
+            return new TimeStampResponse(responseData.toReadableData().getAsInputStream());
+        }
+    }
+}
@@ -24,14 +24,8 @@ import java.util.LinkedList;
 import java.util.List;
 import javax.persistence.EntityManager;
 import javax.xml.crypto.dsig.SignatureMethod;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.signserver.common.CryptoTokenOfflineException;
 import org.signserver.common.IllegalRequestException;
 import org.signserver.common.RequestContext;
@@ -49,6 +43,7 @@ import org.signserver.server.archive.Archivable;
 import org.signserver.server.archive.DefaultArchivable;
 import org.signserver.server.cryptotokens.ICryptoInstance;
 import org.signserver.server.cryptotokens.ICryptoTokenV4;
+import org.signserver.server.xml.XMLServices;
 import org.signserver.common.data.Request;
 import org.signserver.common.data.Response;
 import org.signserver.common.data.SignatureRequest;
@@ -361,22 +356,7 @@ public class XAdESSigner extends BaseSigner {
             final XadesSigner signer =
                     createSigner(crypto, parameters, claimedRole, signRequest, requestContext);
             cert = getSigningCertificate(crypto);
-            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
-            dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
-            dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-
-            // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
-            dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            final DocumentBuilder builder = dbf.newDocumentBuilder();
-            final Document doc = builder.parse(in);
+            final Document doc = XMLServices.parse(in);
 
             // Sign
             final Node node = doc.getDocumentElement();
@@ -389,9 +369,7 @@ public class XAdESSigner extends BaseSigner {
             signer.sign(dataObjs, doc);
             
             // Render result
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer trans = tf.newTransformer();
-            trans.transform(new DOMSource(doc), new StreamResult(out));
+            XMLServices.transform(doc, out);
         } catch (SAXException ex) {
             throw new IllegalRequestException("Document parsing error", ex);
         } catch (IOException | ParserConfigurationException ex) {
@@ -14,6 +14,7 @@ package org.signserver.module.xades.validator;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
@@ -40,7 +41,6 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import javax.persistence.EntityManager;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.log4j.Logger;
 import org.bouncycastle.cert.ocsp.OCSPException;
@@ -56,6 +56,7 @@ import org.signserver.common.data.DocumentValidationResponse;
 import org.signserver.common.data.Request;
 import org.signserver.common.data.Response;
 import org.signserver.server.validators.BaseValidator;
+import org.signserver.server.xml.XMLServices;
 import org.signserver.validationservice.common.Validation;
 import org.signserver.validationservice.common.Validation.Status;
 import org.signserver.validationservice.server.OCSPResponse;
@@ -205,22 +206,9 @@ public class XAdESValidator extends BaseValidator {
     private DocumentValidationResponse validate(final int requestId, ReadableData data) throws SignServerException {
         
         // Validation: parse
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
         Document doc;
-        try {
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
-            dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
-            dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-
-            // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
-            dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            doc = dbf.newDocumentBuilder().parse(data.getAsInputStream());
+        try (InputStream in = data.getAsInputStream()) {
+            doc = XMLServices.parse(in);
         } catch (ParserConfigurationException | SAXException | IOException ex) {
             throw new SignServerException("Document parsing error", ex);
         }
@@ -18,7 +18,6 @@ import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Provider;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.DSAPrivateKey;
@@ -36,13 +35,8 @@ import javax.xml.crypto.dsig.dom.DOMSignContext;
 import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
 import javax.xml.crypto.dsig.keyinfo.X509Data;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.apache.log4j.Logger;
 import org.signserver.common.*;
 import org.signserver.server.WorkerContext;
@@ -57,6 +51,7 @@ import org.signserver.common.data.SignatureRequest;
 import org.signserver.common.data.SignatureResponse;
 import org.signserver.common.data.WritableData;
 import org.signserver.server.signers.BaseSigner;
+import org.signserver.server.xml.XMLServices;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 import static org.signserver.common.SignServerConstants.DEFAULT_NULL;
@@ -152,13 +147,7 @@ public class XMLSigner extends BaseSigner {
         final SignatureRequest sReq = (SignatureRequest) signRequest;
         String archiveId = createArchiveId(new byte[0], (String) requestContext.get(RequestContext.TRANSACTION_ID));
 
-        String providerName = System.getProperty("jsr105Provider", "org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI");
-        XMLSignatureFactory fac;
-        try {
-            fac = XMLSignatureFactory.getInstance("DOM", (Provider) Class.forName(providerName).newInstance());
-        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
-            throw new SignServerException("Problem with JSR105 provider", e);
-        }
+        final XMLSignatureFactory fac = XMLServices.getXMLSignatureFactory();
 
         final ReadableData requestData = sReq.getRequestData();
         final WritableData responseData = sReq.getResponseData();
@@ -221,22 +210,8 @@ public class XMLSigner extends BaseSigner {
                 ki = kif.newKeyInfo(kviItems);
             }
 
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-
             try (InputStream in = requestData.getAsInputStream()) {
-                // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
-                // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
-                dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-
-                // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
-                // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
-                dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-
-                // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
-                dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-                doc = dbf.newDocumentBuilder().parse(in);
+                doc = XMLServices.parse(in);
             } catch (SAXException ex) {
                 throw new IllegalRequestException("Document parsing error", ex);
             } catch (ParserConfigurationException | IOException ex) {
@@ -253,13 +228,11 @@ public class XMLSigner extends BaseSigner {
             }
         } finally {
             releaseCryptoInstance(crypto, requestContext);
+            XMLServices.releaseXMLSignatureFactory(fac);
         }
 
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer trans;
         try (OutputStream out = responseData.getAsOutputStream()) {
-            trans = tf.newTransformer();
-            trans.transform(new DOMSource(doc), new StreamResult(out));
+            XMLServices.transform(doc, out);
         } catch (TransformerException | IOException ex) {
             throw new SignServerException("XML transformation error", ex);
         }
@@ -14,7 +14,6 @@ package org.signserver.module.xmlvalidator;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.security.Provider;
 import java.security.cert.X509Certificate;
 import java.util.LinkedList;
 import java.util.List;
@@ -24,7 +23,6 @@ import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.dom.DOMValidateContext;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.log4j.Logger;
 import org.signserver.common.*;
@@ -39,6 +37,7 @@ import org.signserver.server.IServices;
 import org.signserver.server.WorkerContext;
 import org.signserver.server.log.AdminInfo;
 import org.signserver.server.validators.BaseValidator;
+import org.signserver.server.xml.XMLServices;
 import org.signserver.validationservice.common.Validation;
 import org.signserver.validationservice.common.ValidationServiceConstants;
 import org.w3c.dom.Document;
@@ -109,23 +108,9 @@ public class XMLValidator extends BaseValidator {
 
     private DocumentValidationResponse validate(final int requestId, byte[] data, RequestContext requestContext) throws SignServerException {
 
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-
         Document doc;
         try {
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
-            dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
-
-            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
-            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
-            dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-
-            // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
-            dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(data));
+            doc = XMLServices.parse(new ByteArrayInputStream(data));
         } catch (ParserConfigurationException | SAXException | IOException ex) {
             throw new SignServerException("Document parsing error", ex);
         }
@@ -135,13 +120,7 @@ public class XMLValidator extends BaseValidator {
             return new DocumentValidationResponse(requestId, false);
         }
 
-        String providerName = System.getProperty("jsr105Provider", "org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI");
-        XMLSignatureFactory fac;
-        try {
-            fac = XMLSignatureFactory.getInstance("DOM", (Provider) Class.forName(providerName).newInstance());
-        } catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
-            throw new SignServerException("Problem with JSR105 provider", e);
-        }
+        final XMLSignatureFactory fac = XMLServices.getXMLSignatureFactory();
 
         CertificateAndKeySelector certAndKeySelector = new CertificateAndKeySelector(requestId);
         DOMValidateContext valContext = new DOMValidateContext(certAndKeySelector, nl.item(0));
@@ -158,6 +137,8 @@ public class XMLValidator extends BaseValidator {
         } catch (XMLSignatureException ex) {
             LOG.info("Request " + requestId + ": XML signature validation error", ex);
             return new DocumentValidationResponse(requestId, false);
+        } finally {
+            XMLServices.releaseXMLSignatureFactory(fac);
         }
 
         LOG.info("Request " + requestId + " signature valid: " + validSignature);
@@ -0,0 +1,158 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.signserver.common.WorkerConfig;
+
+/**
+ * Bounded cache of authorization decisions for one authorizer.
+ *
+ * The cache belongs to the authorizer instance, which is created again
+ * when the worker is reloaded, so decisions never outlive the
+ * configuration (i.e. the authorized clients) they were made with.
+ *
+ * When the cache is full the least recently used decision is removed to
+ * make room for a new one.
+ *
+ * @param <K> type of key identifying the client
+ * @version $Id$
+ */
+public class AuthorizationCache<K> {
+
+    /** Worker property with the maximum number of decisions to cache. */
+    public static final String PROPERTY_SIZE = "AUTHORIZATION_CACHE_SIZE";
+
+    /** Default maximum number of decisions to cache. */
+    public static final int DEFAULT_SIZE = 1000;
+
+    private final int maxSize;
+
+    /** Decisions in access order, guarded by itself. */
+    private final Map<K, Boolean> decisions;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache.
+     * @param maxSize maximum number of decisions to cache, 0 to not cache
+     * anything
+     */
+    public AuthorizationCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.decisions = new LinkedHashMap<K, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Creates a cache with the size configured for the worker.
+     * @param <K> type of key
+     * @param config worker configuration
+     * @param fatalErrors list to add configuration errors to
+     * @return the new cache
+     */
+    public static <K> AuthorizationCache<K> create(final WorkerConfig config, final List<String> fatalErrors) {
+        final String value = config.getProperty(PROPERTY_SIZE, String.valueOf(DEFAULT_SIZE));
+        int size = DEFAULT_SIZE;
+        try {
+            size = Integer.parseInt(value.trim());
+            if (size < 0) {
+                fatalErrors.add("Illegal value for " + PROPERTY_SIZE + ": " + value);
+                size = 0;
+            }
+        } catch (NumberFormatException ex) {
+            fatalErrors.add("Illegal value for " + PROPERTY_SIZE + ": " + value);
+        }
+        return new AuthorizationCache<>(size);
+    }
+
+    /**
+     * @param key key identifying the client
+     * @return the cached decision or null if not cached
+     */
+    public Boolean get(final K key) {
+        final Boolean result;
+        synchronized (decisions) {
+            result = decisions.get(key);
+        }
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Caches a decision.
+     * @param key key identifying the client
+     * @param authorized the decision
+     */
+    public void put(final K key, final boolean authorized) {
+        if (maxSize < 1) {
+            return;
+        }
+        synchronized (decisions) {
+            decisions.put(key, authorized);
+        }
+    }
+
+    /**
+     * Removes all cached decisions.
+     */
+    public void clear() {
+        synchronized (decisions) {
+            decisions.clear();
+        }
+    }
+
+    /**
+     * @return number of cached decisions
+     */
+    public int size() {
+        synchronized (decisions) {
+            return decisions.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return summary of the size, hits and misses for the worker status
+     */
+    public String getStatistics() {
+        final long hitCount = getHits();
+        final long total = hitCount + getMisses();
+        return size() + " of " + maxSize + " decisions, " + hitCount + " hits, "
+                + (total - hitCount) + " misses"
+                + (total > 0 ? ", " + (hitCount * 100 / total) + "% hit rate" : "");
+    }
+}
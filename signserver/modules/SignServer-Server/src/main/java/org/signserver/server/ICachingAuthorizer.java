@@ -0,0 +1,27 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+/**
+ * Authorizer caching its decisions, with the cache statistics included
+ * in the worker status.
+ *
+ * @version $Id$
+ */
+public interface ICachingAuthorizer extends IAuthorizer {
+
+    /**
+     * @return the cache of authorization decisions
+     */
+    AuthorizationCache<?> getAuthorizationCache();
+}
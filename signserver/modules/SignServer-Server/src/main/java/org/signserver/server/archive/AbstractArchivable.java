@@ -12,6 +12,9 @@
  *************************************************************************/
 package org.signserver.server.archive;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 
 /**
@@ -62,5 +65,17 @@ public abstract class AbstractArchivable implements Archivable, Serializable {
     public String getArchiveId() {
         return archiveId;
     }
+
+    /**
+     * Get the content for reading without first having to put all of it in
+     * memory. Implementations with large content should override this method
+     * as the default implementation uses getContentEncoded().
+     *
+     * @return The binary serialization of the content as a stream
+     * @throws IOException in case the content could not be read
+     */
+    public InputStream getContentInputStream() throws IOException {
+        return new ByteArrayInputStream(getContentEncoded());
+    }
     
 }
@@ -13,6 +13,7 @@
 package org.signserver.server.archive;
 
 import java.io.IOException;
+import java.io.InputStream;
 import org.signserver.common.data.ReadableData;
 
 /**
@@ -71,4 +72,9 @@ public class DefaultArchivable extends AbstractArchivable {
         }
     }
 
+    @Override
+    public InputStream getContentInputStream() throws IOException {
+        return data.getAsInputStream();
+    }
+
 }
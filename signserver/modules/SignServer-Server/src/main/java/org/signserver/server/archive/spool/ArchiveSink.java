@@ -0,0 +1,41 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.util.List;
+import org.signserver.server.archive.ArchiveException;
+
+/**
+ * Destination for the archive rows drained from an ArchiveSpool.
+ *
+ * @version $Id$
+ */
+public interface ArchiveSink {
+
+    /**
+     * Stores a batch of archive rows.
+     *
+     * The rows are only removed from the spool after this method has
+     * returned, so in case of a crash the same rows can be given again.
+     * Rows already stored should then be ignored.
+     *
+     * A batch failing repeatedly is given again one row at a time, and a
+     * row that still can not be stored is moved to the dead letter file of
+     * the spool.
+     *
+     * @param batch rows to store, in the order they were archived
+     * @throws ArchiveException in case the rows could not be stored and
+     * should be given again later
+     */
+    void insert(List<SpooledArchive> batch) throws ArchiveException;
+}
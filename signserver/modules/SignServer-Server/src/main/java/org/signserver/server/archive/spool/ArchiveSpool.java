@@ -0,0 +1,785 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import org.signserver.common.WorkerConfig;
+import org.signserver.server.archive.ArchiveException;
+
+/**
+ * Durable local spool for asynchronous archiving.
+ *
+ * Archive rows are appended to memory-mapped segment files in the spool
+ * directory and a background thread drains them in batches to an
+ * ArchiveSink. A row is only marked as delivered in its segment file after
+ * the sink has stored it, so rows still in the spool when the server stops
+ * or crashes are delivered when the spool is opened again (at-least-once
+ * delivery, with the sink skipping rows it already has).
+ *
+ * A batch the sink keeps failing to store is retried a limited number of
+ * times after which its rows are given to the sink one by one. Rows still
+ * failing are moved to a dead letter file in the spool directory, using
+ * the same record format as the segment files, so that the spool is not
+ * blocked by a single row the sink can never store.
+ *
+ * A segment with a corrupt record is not appended to again, as that would
+ * overwrite the records after it. It is renamed with a ".corrupt" suffix
+ * instead of removed once the rows before the corrupt record are delivered.
+ *
+ * The number of rows waiting in the spool is bounded: when it is full,
+ * archiving waits until there is room again or fails after a timeout.
+ *
+ * The spool holds a lock on a file in the directory while open so that two
+ * spools, for instance from an old and a new deployment, never drain the
+ * same segment files. The spools opened with getInstance are closed by
+ * closeAll when the application is stopped.
+ *
+ * Segment format: an int magic and an int offset of the first not yet
+ * delivered record, followed by records of an int length, an int CRC32 and
+ * the serialized row. A length of 0 marks the end of the written records.
+ *
+ * @version $Id$
+ */
+public class ArchiveSpool {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ArchiveSpool.class);
+
+    /** Archiver property to archive asynchronously through a spool. */
+    public static final String PROPERTY_ASYNC = "ASYNC";
+
+    /** Archiver property with the directory of the spool. */
+    public static final String PROPERTY_SPOOL_DIRECTORY = "SPOOL_DIRECTORY";
+
+    /** Archiver property with the maximum number of rows waiting in the spool. */
+    public static final String PROPERTY_SPOOL_MAX_PENDING = "SPOOL_MAX_PENDING";
+
+    /** Archiver property with milliseconds to wait for room in a full spool. */
+    public static final String PROPERTY_SPOOL_TIMEOUT = "SPOOL_TIMEOUT";
+
+    /** Archiver property to force each row to disk before the request completes. */
+    public static final String PROPERTY_SPOOL_SYNC = "SPOOL_SYNC";
+
+    public static final int DEFAULT_MAX_PENDING = 10000;
+    public static final long DEFAULT_TIMEOUT = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ATTEMPTS = 20;
+
+    private static final int MAGIC = 0x53535031;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "archive-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String LOCK_FILE = "spool.lock";
+    private static final String DEAD_LETTER_FILE = "dead-letter.dat";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final long MAX_RETRY_WAIT = 30000;
+    private static final long METRICS_INTERVAL = 60000;
+
+    /** Spools shared by all archivers using the same directory. */
+    private static final Map<File, ArchiveSpool> SPOOLS = new HashMap<>();
+
+    private final File directory;
+    private final ArchiveSink sink;
+    private final int maxPending;
+    private final boolean sync;
+    private final int batchSize;
+    private final int segmentSize;
+    private final int maxAttempts;
+
+    private final Semaphore permits;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final List<Segment> segments = new LinkedList<>();
+    private final Thread drainer;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    /** Time of the oldest row taken from the queue but not yet stored, or 0. */
+    private volatile long inFlightSince;
+    private volatile boolean closed;
+
+    /** Segment currently appended to, guarded by this. */
+    private Segment current;
+    private long nextSequence;
+
+    /**
+     * Opens the spool in the directory, recovering rows not yet delivered,
+     * and starts draining it.
+     * @param directory directory for the segment files, created if needed
+     * @param maxPending maximum number of rows waiting in the spool
+     * @param sync if each row should be forced to disk when appended
+     * @param batchSize maximum number of rows given to the sink at a time
+     * @param segmentSize size of the segment files
+     * @param sink destination of the rows
+     * @throws IOException in case the spool could not be opened
+     */
+    public ArchiveSpool(final File directory, final int maxPending, final boolean sync,
+            final int batchSize, final int segmentSize, final ArchiveSink sink) throws IOException {
+        this(directory, maxPending, sync, batchSize, segmentSize, DEFAULT_MAX_ATTEMPTS, sink);
+    }
+
+    /**
+     * Opens the spool in the directory, recovering rows not yet delivered,
+     * and starts draining it.
+     * @param directory directory for the segment files, created if needed
+     * @param maxPending maximum number of rows waiting in the spool
+     * @param sync if each row should be forced to disk when appended
+     * @param batchSize maximum number of rows given to the sink at a time
+     * @param segmentSize size of the segment files
+     * @param maxAttempts number of times to try storing a batch before
+     * moving the rows the sink can not store to the dead letter file
+     * @param sink destination of the rows
+     * @throws IOException in case the spool could not be opened
+     */
+    public ArchiveSpool(final File directory, final int maxPending, final boolean sync,
+            final int batchSize, final int segmentSize, final int maxAttempts,
+            final ArchiveSink sink) throws IOException {
+        this.directory = directory;
+        this.sink = sink;
+        this.maxPending = maxPending;
+        this.sync = sync;
+        this.batchSize = batchSize;
+        this.segmentSize = segmentSize;
+        this.maxAttempts = maxAttempts;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory: " + directory.getAbsolutePath());
+        }
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        FileLock acquired = null;
+        try {
+            acquired = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) { // NOPMD
+            // Locked by an other spool in this JVM
+        } catch (IOException ex) {
+            lockFile.close();
+            throw ex;
+        }
+        if (acquired == null) {
+            lockFile.close();
+            throw new IOException("Spool directory already in use by an other archive spool: " + directory.getAbsolutePath());
+        }
+        lock = acquired;
+
+        final int recovered;
+        try {
+            recovered = recover();
+        } catch (IOException | RuntimeException ex) {
+            closeSegments();
+            releaseLock();
+            throw ex;
+        }
+        if (recovered > 0) {
+            LOG.info("Recovered " + recovered + " archive rows not yet stored from spool " + directory.getAbsolutePath());
+        }
+        this.permits = new Semaphore(maxPending - recovered);
+
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "ArchiveSpoolDrainer-" + directory.getName());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Get the spool for the directory, opening it if not already opened.
+     * All archivers using the same directory must use the same settings as
+     * the settings of an opened spool can not be changed.
+     * @param directory directory for the segment files
+     * @param maxPending maximum number of rows waiting in the spool
+     * @param sync if each row should be forced to disk when appended
+     * @param sink destination of the rows
+     * @return the spool
+     * @throws IOException in case the spool could not be opened or is
+     * already opened with other settings
+     */
+    public static ArchiveSpool getInstance(final File directory, final int maxPending,
+            final boolean sync, final ArchiveSink sink) throws IOException {
+        final File key = directory.getAbsoluteFile();
+        synchronized (SPOOLS) {
+            ArchiveSpool result = SPOOLS.get(key);
+            if (result == null) {
+                result = new ArchiveSpool(key, maxPending, sync, DEFAULT_BATCH_SIZE, DEFAULT_SEGMENT_SIZE, sink);
+                SPOOLS.put(key, result);
+            } else if (result.maxPending != maxPending || result.sync != sync) {
+                throw new IOException("Spool directory " + key.getAbsolutePath()
+                        + " already in use with " + PROPERTY_SPOOL_MAX_PENDING + "="
+                        + result.maxPending + " and " + PROPERTY_SPOOL_SYNC + "="
+                        + result.sync + ", changed settings require a restart");
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Closes all spools opened with getInstance. Rows not yet stored are
+     * kept in the segment files until the spools are opened again.
+     */
+    public static void closeAll() {
+        final List<ArchiveSpool> spools;
+        synchronized (SPOOLS) {
+            spools = new ArrayList<>(SPOOLS.values());
+        }
+        for (ArchiveSpool spool : spools) {
+            try {
+                spool.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while closing archive spool " + spool.directory.getAbsolutePath());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens the spool configured for an archiver.
+     * @param prefix property prefix of the archiver, i.e. "ARCHIVER0."
+     * @param config worker configuration
+     * @param errors list to add configuration errors to
+     * @return the spool or null if the archiver is not asynchronous or there
+     * was an error
+     */
+    public static ArchiveSpool fromConfig(final String prefix, final WorkerConfig config, final List<String> errors) {
+        if (!Boolean.parseBoolean(config.getProperty(prefix + PROPERTY_ASYNC, Boolean.FALSE.toString()).trim())) {
+            return null;
+        }
+        final String directory = config.getProperty(prefix + PROPERTY_SPOOL_DIRECTORY);
+        if (directory == null || directory.trim().isEmpty()) {
+            errors.add("Missing " + prefix + PROPERTY_SPOOL_DIRECTORY + " required for asynchronous archiving");
+            return null;
+        }
+        final int maxPending;
+        try {
+            maxPending = Integer.parseInt(config.getProperty(prefix + PROPERTY_SPOOL_MAX_PENDING, String.valueOf(DEFAULT_MAX_PENDING)).trim());
+            if (maxPending < 1) {
+                errors.add("Illegal value for " + prefix + PROPERTY_SPOOL_MAX_PENDING + ": " + maxPending);
+                return null;
+            }
+        } catch (NumberFormatException ex) {
+            errors.add("Illegal value for " + prefix + PROPERTY_SPOOL_MAX_PENDING + ": " + ex.getMessage());
+            return null;
+        }
+        final boolean sync = Boolean.parseBoolean(config.getProperty(prefix + PROPERTY_SPOOL_SYNC, Boolean.FALSE.toString()).trim());
+        try {
+            return getInstance(new File(directory.trim()), maxPending, sync, JDBCArchiveSink.createDefault());
+        } catch (IOException ex) {
+            LOG.error("Could not open archive spool", ex);
+            errors.add("Could not open archive spool: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the configured timeout for waiting for room in the spool.
+     * @param prefix property prefix of the archiver, i.e. "ARCHIVER0."
+     * @param config worker configuration
+     * @param errors list to add configuration errors to
+     * @return the timeout in milliseconds
+     */
+    public static long getTimeout(final String prefix, final WorkerConfig config, final List<String> errors) {
+        try {
+            return Long.parseLong(config.getProperty(prefix + PROPERTY_SPOOL_TIMEOUT, String.valueOf(DEFAULT_TIMEOUT)).trim());
+        } catch (NumberFormatException ex) {
+            errors.add("Illegal value for " + prefix + PROPERTY_SPOOL_TIMEOUT + ": " + ex.getMessage());
+            return DEFAULT_TIMEOUT;
+        }
+    }
+
+    /**
+     * Appends the row to the spool, waiting for room if the spool is full.
+     * When this method returns the row will be delivered to the sink, also
+     * if the server is restarted.
+     * @param archive row to append
+     * @param timeout milliseconds to wait for room in the spool
+     * @throws ArchiveException if the spool is full or could not be written
+     */
+    public void append(final SpooledArchive archive, final long timeout) throws ArchiveException {
+        final byte[] data = archive.getEncoded();
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new ArchiveException("Archive spool full: " + directory.getAbsolutePath());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ArchiveException("Interrupted while waiting for room in archive spool", ex);
+        }
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new ArchiveException("Archive spool closed: " + directory.getAbsolutePath());
+                }
+                final int needed = RECORD_HEADER_SIZE + data.length;
+                if (current == null || current.writePosition + needed + 4 > current.size) {
+                    current = createSegment(Math.max(segmentSize, HEADER_SIZE + needed + 4));
+                }
+                final int position = current.writePosition;
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                final ByteBuffer buffer = current.buffer.duplicate();
+                buffer.position(position + RECORD_HEADER_SIZE);
+                buffer.put(data);
+                buffer.putInt(position + 4, (int) crc.getValue());
+                // Length last so that a partially written record is not read
+                buffer.putInt(position, data.length);
+                if (sync) {
+                    current.buffer.force();
+                }
+                current.writePosition = position + needed;
+                current.pending++;
+                queue.add(new Pending(archive, current, current.writePosition));
+            }
+        } catch (IOException | RuntimeException ex) {
+            permits.release();
+            throw new ArchiveException("Could not write to archive spool: " + ex.getMessage(), ex);
+        } catch (ArchiveException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return number of rows not yet stored by the sink
+     */
+    public int getPending() {
+        return queue.size() + (inFlightSince == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return milliseconds since the oldest row not yet stored was archived
+     */
+    public long getLag() {
+        long oldest = inFlightSince;
+        if (oldest == 0) {
+            final Pending head = queue.peek();
+            oldest = head == null ? 0 : head.archive.getTime();
+        }
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * @return number of rows stored by the sink
+     */
+    public long getArchived() {
+        return archived.get();
+    }
+
+    /**
+     * @return number of failed attempts to store a batch
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return number of rows moved to the dead letter file
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * @return the file with the rows the sink could not store
+     */
+    public File getDeadLetterFile() {
+        return new File(directory, DEAD_LETTER_FILE);
+    }
+
+    /**
+     * Stops draining the spool. Rows not yet stored are kept in the segment
+     * files until the spool is opened again.
+     * @throws InterruptedException if interrupted while waiting for the
+     * drainer to stop
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        drainer.interrupt();
+        drainer.join();
+        closeSegments();
+        releaseLock();
+        synchronized (SPOOLS) {
+            SPOOLS.remove(directory.getAbsoluteFile(), this);
+        }
+    }
+
+    private synchronized void closeSegments() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private void releaseLock() {
+        try {
+            lock.release();
+        } catch (IOException ex) {
+            LOG.warn("Could not release archive spool lock: " + ex.getMessage());
+        }
+        try {
+            lockFile.close();
+        } catch (IOException ex) {
+            LOG.warn("Could not close archive spool lock: " + ex.getMessage());
+        }
+    }
+
+    private void drain() {
+        final List<Pending> batch = new ArrayList<>(batchSize);
+        final List<SpooledArchive> archives = new ArrayList<>(batchSize);
+        long lastMetrics = System.currentTimeMillis();
+        long archivedAtLastMetrics = 0;
+        try {
+            while (!closed) {
+                final long now = System.currentTimeMillis();
+                if (now - lastMetrics >= METRICS_INTERVAL) {
+                    final long total = archived.get();
+                    if (total != archivedAtLastMetrics || !queue.isEmpty()) {
+                        LOG.info("Archive spool " + directory.getAbsolutePath() + ": "
+                                + getPending() + " pending, lag " + getLag() + " ms, "
+                                + (total - archivedAtLastMetrics) * 1000 / (now - lastMetrics)
+                                + " archived/s, " + deadLettered.get() + " dead letters");
+                    }
+                    lastMetrics = now;
+                    archivedAtLastMetrics = total;
+                }
+
+                final Pending first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.clear();
+                archives.clear();
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                for (Pending pending : batch) {
+                    archives.add(pending.archive);
+                }
+                inFlightSince = first.archive.getTime();
+
+                long wait = 100;
+                int attempts = 0;
+                while (true) {
+                    try {
+                        sink.insert(archives);
+                        break;
+                    } catch (ArchiveException | RuntimeException ex) {
+                        failures.incrementAndGet();
+                        attempts++;
+                        if (attempts >= maxAttempts) {
+                            LOG.error("Storing " + archives.size() + " archive rows failed " + attempts + " times, storing them one by one: " + ex.getMessage());
+                            if (insertEachOrDeadLetter(archives)) {
+                                break;
+                            }
+                        }
+                        LOG.error("Storing " + archives.size() + " archive rows failed, trying again in " + wait + " ms: " + ex.getMessage());
+                        Thread.sleep(wait);
+                        wait = Math.min(wait * 2, MAX_RETRY_WAIT);
+                    }
+                }
+                commit(batch);
+                archived.addAndGet(batch.size());
+                permits.release(batch.size());
+                inFlightSince = 0;
+            }
+        } catch (InterruptedException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Archive spool drainer stopped");
+            }
+        }
+    }
+
+    /**
+     * Gives the rows to the sink one at a time and moves the rows it fails
+     * to store to the dead letter file.
+     * @return false if a row could not be written to the dead letter file
+     * and the rows should be tried again
+     */
+    private boolean insertEachOrDeadLetter(final List<SpooledArchive> archives) {
+        for (SpooledArchive archive : archives) {
+            try {
+                sink.insert(Collections.singletonList(archive));
+            } catch (ArchiveException | RuntimeException ex) {
+                failures.incrementAndGet();
+                try {
+                    writeDeadLetter(archive);
+                } catch (IOException ioe) {
+                    LOG.error("Could not write to archive spool dead letter file: " + ioe.getMessage());
+                    return false;
+                }
+                deadLettered.incrementAndGet();
+                LOG.error("Moved archive row " + archive.getUniqueId() + " that could not be stored to "
+                        + getDeadLetterFile().getAbsolutePath() + ": " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the row to the dead letter file, forced to disk as the row is
+     * then removed from the spool.
+     */
+    private void writeDeadLetter(final SpooledArchive archive) throws IOException {
+        final byte[] data = archive.getEncoded();
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        try (FileOutputStream fout = new FileOutputStream(getDeadLetterFile(), true)) {
+            final DataOutputStream out = new DataOutputStream(fout);
+            out.writeInt(data.length);
+            out.writeInt((int) crc.getValue());
+            out.write(data);
+            out.flush();
+            fout.getFD().sync();
+        }
+    }
+
+    /**
+     * Marks the rows as delivered in their segments and removes segments
+     * with all rows delivered.
+     */
+    private synchronized void commit(final List<Pending> batch) {
+        final List<Segment> affected = new ArrayList<>(2);
+        for (Pending pending : batch) {
+            final Segment segment = pending.segment;
+            segment.committed = pending.end;
+            segment.pending--;
+            if (!affected.contains(segment)) {
+                affected.add(segment);
+            }
+        }
+        for (Segment segment : affected) {
+            segment.buffer.putInt(4, segment.committed);
+            if (sync) {
+                segment.buffer.force();
+            }
+            if (segment.pending == 0 && segment != current && !closed) {
+                segments.remove(segment);
+                removeSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Reads the segment files and queues the rows not yet delivered.
+     * @return number of rows queued
+     */
+    private int recover() throws IOException {
+        final File[] files = directory.listFiles();
+        final List<Long> sequences = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        LOG.warn("Ignoring unknown file in archive spool: " + file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        final Long[] sorted = sequences.toArray(new Long[sequences.size()]);
+        Arrays.sort(sorted);
+
+        int result = 0;
+        for (Long sequence : sorted) {
+            final Segment segment = openSegment(sequence, -1);
+            nextSequence = sequence + 1;
+            if (segment.size < HEADER_SIZE || segment.buffer.getInt(0) != MAGIC) {
+                LOG.error("Ignoring archive spool segment with unknown format: " + segment.file.getAbsolutePath());
+                segment.close();
+                continue;
+            }
+            int position = segment.buffer.getInt(4);
+            while (position + RECORD_HEADER_SIZE <= segment.size) {
+                final int length = segment.buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > segment.size) {
+                    LOG.error("Corrupt record length in archive spool segment " + segment.file.getAbsolutePath() + " at " + position);
+                    segment.corrupt = true;
+                    break;
+                }
+                final byte[] data = new byte[length];
+                final ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.position(position + RECORD_HEADER_SIZE);
+                buffer.get(data);
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != segment.buffer.getInt(position + 4)) {
+                    LOG.error("Corrupt record in archive spool segment " + segment.file.getAbsolutePath() + " at " + position);
+                    segment.corrupt = true;
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+                segment.pending++;
+                queue.add(new Pending(SpooledArchive.parse(data), segment, position));
+                result++;
+            }
+            if (segment.corrupt) {
+                // Do not overwrite the records after the corrupt one, the
+                // next row is appended to a new segment
+                segment.writePosition = segment.size;
+            } else {
+                segment.writePosition = position;
+            }
+            segment.committed = segment.buffer.getInt(4);
+
+            // Remove the previous segment if all its rows were delivered
+            if (current != null && current.pending == 0) {
+                removeSegment(current);
+            } else if (current != null) {
+                segments.add(current);
+            }
+            current = segment;
+        }
+        if (current != null) {
+            segments.add(current);
+        }
+        return result;
+    }
+
+    private Segment createSegment(final int size) throws IOException {
+        final Segment result = openSegment(nextSequence++, size);
+        result.buffer.putInt(0, MAGIC);
+        result.buffer.putInt(4, HEADER_SIZE);
+        result.committed = HEADER_SIZE;
+        result.writePosition = HEADER_SIZE;
+        segments.add(result);
+
+        // The previous segment can be removed if all its rows are delivered
+        if (current != null && current.pending == 0) {
+            segments.remove(current);
+            removeSegment(current);
+        }
+        return result;
+    }
+
+    /**
+     * Closes and deletes the segment with all rows delivered. A corrupt
+     * segment is kept with an other name as it might have records after the
+     * corrupt one.
+     */
+    private void removeSegment(final Segment segment) {
+        segment.close();
+        if (segment.corrupt) {
+            final File renamed = new File(directory, segment.file.getName() + CORRUPT_SUFFIX);
+            if (segment.file.renameTo(renamed)) {
+                LOG.warn("Kept corrupt archive spool segment as " + renamed.getAbsolutePath());
+            } else {
+                LOG.warn("Could not rename corrupt archive spool segment: " + segment.file.getAbsolutePath());
+            }
+        } else if (!segment.file.delete()) {
+            LOG.warn("Could not delete archive spool segment: " + segment.file.getAbsolutePath());
+        }
+    }
+
+    private Segment openSegment(final long sequence, final int size) throws IOException {
+        final File file = new File(directory, SEGMENT_PREFIX + String.format("%016d", sequence) + SEGMENT_SUFFIX);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final int mappedSize = size < 0 ? (int) channel.size() : size;
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+            return new Segment(file, raf, buffer, mappedSize);
+        } catch (IOException | RuntimeException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /** Segment file mapped into memory. */
+    private static class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final int size;
+
+        /** Guarded by the spool. */
+        private int writePosition;
+        private int committed;
+        private int pending;
+
+        /** If a corrupt record was found when recovering the segment. */
+        private boolean corrupt;
+
+        Segment(final File file, final RandomAccessFile raf, final MappedByteBuffer buffer, final int size) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                LOG.warn("Could not close archive spool segment: " + ex.getMessage());
+            }
+        }
+    }
+
+    /** Row in the spool not yet delivered. */
+    private static class Pending {
+        private final SpooledArchive archive;
+        private final Segment segment;
+
+        /** Offset after the record in the segment. */
+        private final int end;
+
+        Pending(final SpooledArchive archive, final Segment segment, final int end) {
+            this.archive = archive;
+            this.segment = segment;
+            this.end = end;
+        }
+    }
+}
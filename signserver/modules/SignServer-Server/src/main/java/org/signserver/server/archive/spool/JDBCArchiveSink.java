@@ -0,0 +1,141 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.signserver.common.CompileTimeSettings;
+import org.signserver.server.archive.ArchiveException;
+
+/**
+ * Inserts the archive rows into the ArchiveData table using JDBC batches
+ * in their own transactions, outside of the signing transaction.
+ *
+ * If a batch fails, for instance because some of the rows were already
+ * inserted before a restart, the rows are inserted one by one, skipping
+ * the rows already in the table.
+ *
+ * @version $Id$
+ */
+public class JDBCArchiveSink implements ArchiveSink {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(JDBCArchiveSink.class);
+
+    private static final String INSERT = "INSERT INTO ArchiveData (uniqueId, time, type, signerid, archiveid, requestIssuerDN, requestCertSerialnumber, requestIP, archiveData, dataEncoding) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String EXISTS = "SELECT uniqueId FROM ArchiveData WHERE uniqueId = ?";
+
+    private final String dataSourceName;
+    private volatile DataSource dataSource;
+
+    /**
+     * Creates a sink using the data source with the given JNDI name.
+     * @param dataSourceName JNDI name of the data source
+     */
+    public JDBCArchiveSink(final String dataSourceName) {
+        this.dataSourceName = dataSourceName;
+    }
+
+    /**
+     * Creates a sink using the same data source as SignServer.
+     * @return the new sink
+     */
+    public static JDBCArchiveSink createDefault() {
+        final CompileTimeSettings settings = CompileTimeSettings.getInstance();
+        return new JDBCArchiveSink(settings.getProperty(CompileTimeSettings.DATASOURCE_JNDINAMEPREFIX)
+                + settings.getProperty(CompileTimeSettings.DATASOURCE_JNDINAME));
+    }
+
+    @Override
+    public void insert(final List<SpooledArchive> batch) throws ArchiveException {
+        try (Connection con = getDataSource().getConnection()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement ps = con.prepareStatement(INSERT)) {
+                for (SpooledArchive archive : batch) {
+                    setParameters(ps, archive);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                con.commit();
+            } catch (SQLException ex) {
+                con.rollback();
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Batch insert failed, inserting one by one: " + ex.getMessage());
+                }
+                insertEach(con, batch);
+            }
+        } catch (SQLException | NamingException ex) {
+            throw new ArchiveException("Could not insert archive data: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void insertEach(final Connection con, final List<SpooledArchive> batch) throws SQLException {
+        try (PreparedStatement insert = con.prepareStatement(INSERT);
+                PreparedStatement exists = con.prepareStatement(EXISTS)) {
+            for (SpooledArchive archive : batch) {
+                exists.setString(1, archive.getUniqueId());
+                try (ResultSet rs = exists.executeQuery()) {
+                    if (rs.next()) {
+                        LOG.info("Archive data already inserted: " + archive.getUniqueId());
+                        continue;
+                    }
+                }
+                setParameters(insert, archive);
+                insert.executeUpdate();
+            }
+            con.commit();
+        } catch (SQLException ex) {
+            con.rollback();
+            throw ex;
+        }
+    }
+
+    private static void setParameters(final PreparedStatement ps, final SpooledArchive archive) throws SQLException {
+        ps.setString(1, archive.getUniqueId());
+        ps.setLong(2, archive.getTime());
+        ps.setInt(3, archive.getType());
+        ps.setInt(4, archive.getSignerId());
+        setString(ps, 5, archive.getArchiveId());
+        setString(ps, 6, archive.getRequestIssuerDN());
+        setString(ps, 7, archive.getRequestCertSerialnumber());
+        setString(ps, 8, archive.getRequestIP());
+        ps.setCharacterStream(9, new StringReader(archive.getArchiveData()), archive.getArchiveData().length());
+        ps.setInt(10, archive.getDataEncoding());
+    }
+
+    private static void setString(final PreparedStatement ps, final int index, final String value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.VARCHAR);
+        } else {
+            ps.setString(index, value);
+        }
+    }
+
+    private DataSource getDataSource() throws NamingException {
+        DataSource result = dataSource;
+        if (result == null) {
+            result = (DataSource) new InitialContext().lookup(dataSourceName);
+            dataSource = result;
+        }
+        return result;
+    }
+}
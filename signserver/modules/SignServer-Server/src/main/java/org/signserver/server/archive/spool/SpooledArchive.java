@@ -0,0 +1,190 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import org.cesecore.util.CertTools;
+
+/**
+ * One row of archive data waiting in the ArchiveSpool to be inserted into
+ * the ArchiveData table.
+ *
+ * @version $Id$
+ */
+public class SpooledArchive {
+
+    private final String uniqueId;
+    private final long time;
+    private final int type;
+    private final int signerId;
+    private final String archiveId;
+    private final String requestIssuerDN;
+    private final String requestCertSerialnumber;
+    private final String requestIP;
+    private final String archiveData;
+    private final int dataEncoding;
+
+    /**
+     * Creates a new archive row.
+     * @param uniqueId Unique ID (type;signerId;archiveId)
+     * @param time Time of archiving
+     * @param type Archive type
+     * @param signerId Signer ID
+     * @param archiveId Archive ID
+     * @param requestIssuerDN Issuer of the client certificate or null
+     * @param requestCertSerialnumber Serial number of the client certificate
+     * in hex or null
+     * @param requestIP Request IP address or null
+     * @param archiveData Encoded archive data
+     * @param dataEncoding Encoding of the archive data
+     */
+    public SpooledArchive(final String uniqueId, final long time, final int type,
+            final int signerId, final String archiveId, final String requestIssuerDN,
+            final String requestCertSerialnumber, final String requestIP,
+            final String archiveData, final int dataEncoding) {
+        this.uniqueId = uniqueId;
+        this.time = time;
+        this.type = type;
+        this.signerId = signerId;
+        this.archiveId = archiveId;
+        this.requestIssuerDN = requestIssuerDN;
+        this.requestCertSerialnumber = requestCertSerialnumber;
+        this.requestIP = requestIP;
+        this.archiveData = archiveData;
+        this.dataEncoding = dataEncoding;
+    }
+
+    /**
+     * Creates a new archive row the same way as ArchiveDataService.create.
+     * @param type Archive type
+     * @param signerId Signer ID
+     * @param archiveId Archive ID
+     * @param clientCert Client certificate or null
+     * @param requestIP Request IP address or null
+     * @param archiveData Encoded archive data
+     * @param dataEncoding Encoding of the archive data
+     * @return the new archive row
+     */
+    public static SpooledArchive create(final int type, final int signerId,
+            final String archiveId, final X509Certificate clientCert,
+            final String requestIP, final String archiveData, final int dataEncoding) {
+        return new SpooledArchive(type + ";" + signerId + ";" + archiveId,
+                System.currentTimeMillis(), type, signerId, archiveId,
+                clientCert == null ? null : CertTools.getIssuerDN(clientCert),
+                clientCert == null ? null : clientCert.getSerialNumber().toString(16),
+                requestIP, archiveData, dataEncoding);
+    }
+
+    public String getUniqueId() {
+        return uniqueId;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getSignerId() {
+        return signerId;
+    }
+
+    public String getArchiveId() {
+        return archiveId;
+    }
+
+    public String getRequestIssuerDN() {
+        return requestIssuerDN;
+    }
+
+    public String getRequestCertSerialnumber() {
+        return requestCertSerialnumber;
+    }
+
+    public String getRequestIP() {
+        return requestIP;
+    }
+
+    public String getArchiveData() {
+        return archiveData;
+    }
+
+    public int getDataEncoding() {
+        return dataEncoding;
+    }
+
+    /**
+     * @return the serialized form stored in the spool
+     */
+    byte[] getEncoded() {
+        try {
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream(256 + archiveData.length());
+            final DataOutputStream out = new DataOutputStream(bout);
+            writeString(out, uniqueId);
+            out.writeLong(time);
+            out.writeInt(type);
+            out.writeInt(signerId);
+            writeString(out, archiveId);
+            writeString(out, requestIssuerDN);
+            writeString(out, requestCertSerialnumber);
+            writeString(out, requestIP);
+            writeString(out, archiveData);
+            out.writeInt(dataEncoding);
+            out.flush();
+            return bout.toByteArray();
+        } catch (IOException ex) {
+            // Not expected when writing to memory
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param encoded serialized form stored in the spool
+     * @return the archive row
+     * @throws IOException in case of malformed data
+     */
+    static SpooledArchive parse(final byte[] encoded) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        return new SpooledArchive(readString(in), in.readLong(), in.readInt(),
+                in.readInt(), readString(in), readString(in), readString(in),
+                readString(in), readString(in), in.readInt());
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
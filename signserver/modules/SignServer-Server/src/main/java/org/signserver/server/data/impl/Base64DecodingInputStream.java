@@ -0,0 +1,181 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.bouncycastle.util.encoders.Base64Encoder;
+
+/**
+ * InputStream decoding base64 data read from an other stream.
+ *
+ * The data is decoded one chunk at a time so that the encoded data never has
+ * to be kept in memory all at once. Whitespace in the encoded data is ignored.
+ *
+ * @version $Id$
+ */
+public class Base64DecodingInputStream extends FilterInputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Stateless decoder shared by all instances. */
+    private static final Base64Encoder DECODER = new Base64Encoder();
+
+    private final byte[] encoded = new byte[BUFFER_SIZE];
+    private final byte[] quads = new byte[BUFFER_SIZE + 3];
+    private final DecodedBuffer decoded = new DecodedBuffer();
+
+    /** Number of characters in quads not yet decoded. */
+    private int pending;
+
+    /** Next position to read from the decoded buffer. */
+    private int position;
+
+    private boolean eof;
+
+    /**
+     * Creates a decoding stream reading the base64 data from the provided
+     * stream.
+     * @param in stream with the encoded data
+     */
+    public Base64DecodingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return decoded.getBuffer()[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, decoded.size() - position);
+        System.arraycopy(decoded.getBuffer(), position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            final int step = (int) Math.min(n - skipped, decoded.size() - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return decoded.size() - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // Not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Makes sure there is decoded data available.
+     * @return false if there is no more data
+     * @throws IOException in case of read failure or incorrect encoding
+     */
+    private boolean fill() throws IOException {
+        while (position >= decoded.size()) {
+            if (eof) {
+                return false;
+            }
+            decoded.reset();
+            position = 0;
+
+            final int n = in.read(encoded);
+            if (n == -1) {
+                eof = true;
+                if (pending != 0) {
+                    throw new IllegalEncodingException("Incomplete base64 data");
+                }
+                return false;
+            }
+
+            // Collect everything except whitespace
+            int count = pending;
+            for (int i = 0; i < n; i++) {
+                final byte c = encoded[i];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    quads[count++] = c;
+                }
+            }
+
+            // Decode complete groups of 4 characters and keep the rest
+            final int usable = count - count % 4;
+            if (usable > 0) {
+                try {
+                    DECODER.decode(quads, 0, usable, decoded);
+                } catch (IOException | RuntimeException ex) {
+                    throw new IllegalEncodingException("Incorrect base64 data: " + ex.getMessage());
+                }
+            }
+            pending = count - usable;
+            System.arraycopy(quads, usable, quads, 0, pending);
+        }
+        return true;
+    }
+
+    /**
+     * Buffer for the decoded data giving access to the internal array.
+     */
+    private static class DecodedBuffer extends ByteArrayOutputStream {
+
+        DecodedBuffer() {
+            super(BUFFER_SIZE);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Exception indicating that the data read is not correctly base64 encoded.
+     */
+    public static class IllegalEncodingException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public IllegalEncodingException(String message) {
+            super(message);
+        }
+    }
+}
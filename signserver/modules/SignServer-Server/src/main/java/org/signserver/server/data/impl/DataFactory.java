@@ -13,6 +13,8 @@
 package org.signserver.server.data.impl;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadException;
 import org.signserver.common.data.ReadableData;
@@ -43,21 +45,39 @@ public interface DataFactory {
      */
     CloseableReadableData createReadableData(FileItem item, File repository);
 
+    /**
+     * Create a readable data implementation by reading the provided stream.
+     * The data is kept in memory up to the size threshold and is otherwise
+     * written directly to a file so that it only has to be read once.
+     * @param input to read the data from
+     * @param maxSize to allow for data
+     * @param sizeThreshold maximum number of bytes to keep in memory
+     * @param repository to store the data as file in (if needed)
+     * @return a new readable data instance
+     * @throws FileUploadException in case the data is larger than maxSize
+     * @throws IOException in case reading or storing the data failed
+     */
+    CloseableReadableData createReadableData(InputStream input, long maxSize, int sizeThreshold, File repository) throws FileUploadException, IOException;
+
     /**
      * Create a writable data implementation with settings from the provided
      * readable data.
      * @param readableData with settings for how to create the writable data
+     * @param sizeThreshold maximum number of bytes to keep in memory before
+     * storing the data in a file
      * @param repository to store the data as file in (if requested)
      * @return a new writable data instance
      */
-    CloseableWritableData createWritableData(ReadableData readableData, File repository);
+    CloseableWritableData createWritableData(ReadableData readableData, int sizeThreshold, File repository);
     
     /**
      * Create a writable data implementation while hinting if it should be on
      * disk or not by default.
      * @param defaultToDisk if it should be backed by a file
+     * @param sizeThreshold maximum number of bytes to keep in memory before
+     * storing the data in a file
      * @param repository to store the data as file in (if requested)
      * @return a new readable data instance
      */
-    CloseableWritableData createWritableData(boolean defaultToDisk, File repository);
+    CloseableWritableData createWritableData(boolean defaultToDisk, int sizeThreshold, File repository);
 }
@@ -12,7 +12,15 @@
  *************************************************************************/
 package org.signserver.server.data.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileUploadException;
@@ -29,6 +37,8 @@ import org.signserver.common.data.ReadableData;
 public class DefaultDataFactory implements DataFactory {
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(DefaultDataFactory.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
     
     public DefaultDataFactory() {
         LOG.info("Loading default data factory");
@@ -55,13 +65,76 @@ public class DefaultDataFactory implements DataFactory {
     }
 
     @Override
-    public CloseableWritableData createWritableData(ReadableData readableData, File repository) {
-        return new TemporarlyWritableData(readableData.isFile(), repository);
+    public CloseableReadableData createReadableData(InputStream input, long maxSize, int sizeThreshold, File repository) throws FileUploadException, IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(0, Math.min(sizeThreshold, BUFFER_SIZE)));
+        File file = null;
+        FileChannel channel = null;
+        boolean successful = false;
+        try {
+            long length = 0;
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                length += n;
+                if (length > maxSize) {
+                    throw new FileUploadBase.SizeLimitExceededException(
+                            String.format("the request was rejected because its size (%s) exceeds the configured maximum (%s)",
+                                    length, maxSize),
+                            length, maxSize);
+                }
+
+                // Switch to a file when the threshold is passed
+                if (channel == null && length > sizeThreshold) {
+                    file = File.createTempFile("signserver-upload", ".tmp", repository);
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                    bout.writeTo(Channels.newOutputStream(channel));
+                    bout = null;
+                }
+
+                if (channel == null) {
+                    bout.write(buffer, 0, n);
+                } else {
+                    final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                    while (bb.hasRemaining()) {
+                        channel.write(bb);
+                    }
+                }
+            }
+
+            final CloseableReadableData result;
+            if (channel == null) {
+                result = new ByteArrayReadableData(bout.toByteArray(), repository);
+            } else {
+                channel.close();
+                result = new TemporaryFileReadableData(file);
+            }
+            successful = true;
+            return result;
+        } catch (FileUploadBase.FileUploadIOException ex) {
+            // Limit exceeded while reading a multipart item
+            throw (FileUploadException) ex.getCause();
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    LOG.warn("Unable to close temporary file: " + ex.getLocalizedMessage());
+                }
+            }
+            if (!successful && file != null) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    @Override
+    public CloseableWritableData createWritableData(ReadableData readableData, int sizeThreshold, File repository) {
+        return new TemporarlyWritableData(readableData.isFile(), repository, sizeThreshold);
     }
     
     @Override
-    public CloseableWritableData createWritableData(boolean defaultToDisk, File repository) {
-        return new TemporarlyWritableData(defaultToDisk, repository);
+    public CloseableWritableData createWritableData(boolean defaultToDisk, int sizeThreshold, File repository) {
+        return new TemporarlyWritableData(defaultToDisk, repository, sizeThreshold);
     }
 
 }
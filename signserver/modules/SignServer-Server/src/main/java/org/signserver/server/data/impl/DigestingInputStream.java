@@ -0,0 +1,106 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * InputStream updating any number of message digests with all bytes read
+ * from the underlying stream.
+ *
+ * Mark and reset is not supported and skipped bytes are read so that they
+ * are included in the digests.
+ *
+ * @version $Id$
+ */
+public class DigestingInputStream extends FilterInputStream {
+
+    private final MessageDigest[] digests;
+    private boolean endOfStream;
+
+    /**
+     * Creates an new instance of this stream.
+     * @param in the underlying stream
+     * @param digests to update with the data read
+     */
+    public DigestingInputStream(final InputStream in, final MessageDigest... digests) {
+        super(in);
+        this.digests = digests;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            endOfStream = true;
+        } else {
+            for (MessageDigest digest : digests) {
+                digest.update((byte) b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int n = in.read(b, off, len);
+        if (n == -1) {
+            endOfStream = true;
+        } else {
+            for (MessageDigest digest : digests) {
+                digest.update(b, off, n);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        // Not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark/reset not supported");
+    }
+
+    /**
+     * @return true if all data has been read from the underlying stream so
+     * that the digests covers all of it
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+}
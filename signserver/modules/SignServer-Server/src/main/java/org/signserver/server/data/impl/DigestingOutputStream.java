@@ -0,0 +1,55 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * OutputStream updating any number of message digests with all bytes
+ * written to the underlying stream.
+ *
+ * @version $Id$
+ */
+public class DigestingOutputStream extends FilterOutputStream {
+
+    private final MessageDigest[] digests;
+
+    /**
+     * Creates an new instance of this stream.
+     * @param out the underlying stream
+     * @param digests to update with the data written
+     */
+    public DigestingOutputStream(final OutputStream out, final MessageDigest... digests) {
+        super(out);
+        this.digests = digests;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        out.write(b);
+        for (MessageDigest digest : digests) {
+            digest.update((byte) b);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        for (MessageDigest digest : digests) {
+            digest.update(b, off, len);
+        }
+    }
+}
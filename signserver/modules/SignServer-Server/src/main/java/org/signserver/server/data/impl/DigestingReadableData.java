@@ -0,0 +1,128 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import org.signserver.common.data.ReadableData;
+
+/**
+ * ReadableData computing digests of the data while it is read by the
+ * worker so that the data does not have to be read an extra time.
+ *
+ * The first stream obtained updates the digests. If that stream was not
+ * read until the end, or if the data was never read as a stream, the
+ * digests are computed from the data when requested instead.
+ *
+ * @version $Id$
+ */
+public class DigestingReadableData implements ReadableData {
+
+    private final ReadableData delegate;
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+
+    private DigestingInputStream stream;
+    private Map<String, byte[]> result;
+
+    /**
+     * Creates an new instance of this ReadableData.
+     * @param delegate the data to read
+     * @param algorithms names of the digest algorithms to compute
+     * @throws NoSuchAlgorithmException in case a digest algorithm is not
+     * supported
+     */
+    public DigestingReadableData(final ReadableData delegate, final String... algorithms) throws NoSuchAlgorithmException {
+        this.delegate = delegate;
+        this.algorithms = algorithms;
+        this.digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            digests[i] = MessageDigest.getInstance(algorithms[i]);
+        }
+    }
+
+    @Override
+    public byte[] getAsByteArray() throws IOException {
+        final byte[] data = delegate.getAsByteArray();
+        if (result == null && stream == null) {
+            for (MessageDigest digest : digests) {
+                digest.update(data);
+            }
+            finish();
+        }
+        return data;
+    }
+
+    @Override
+    public InputStream getAsInputStream() throws IOException {
+        if (result == null && stream == null) {
+            stream = new DigestingInputStream(delegate.getAsInputStream(), digests);
+            return stream;
+        }
+        return delegate.getAsInputStream();
+    }
+
+    @Override
+    public File getAsFile() throws IOException {
+        return delegate.getAsFile();
+    }
+
+    @Override
+    public long getLength() {
+        return delegate.getLength();
+    }
+
+    @Override
+    public boolean isFile() {
+        return delegate.isFile();
+    }
+
+    /**
+     * Get the digest of all data.
+     * @param algorithm one of the algorithms given when creating this instance
+     * @return the digest value
+     * @throws IOException in case the data had to be read and that failed
+     */
+    public byte[] getDigest(final String algorithm) throws IOException {
+        if (result == null) {
+            if (stream == null || !stream.isEndOfStream()) {
+                // The data was not all read so read it again
+                for (MessageDigest digest : digests) {
+                    digest.reset();
+                }
+                try (InputStream in = new DigestingInputStream(delegate.getAsInputStream(), digests)) {
+                    final byte[] buffer = new byte[4096];
+                    while (in.read(buffer) != -1);
+                }
+            }
+            finish();
+        }
+        final byte[] digest = result.get(algorithm);
+        if (digest == null) {
+            throw new IllegalArgumentException("Digest not computed: " + algorithm);
+        }
+        return digest;
+    }
+
+    private void finish() {
+        result = new HashMap<>();
+        for (int i = 0; i < digests.length; i++) {
+            result.put(algorithms[i], digests[i].digest());
+        }
+    }
+}
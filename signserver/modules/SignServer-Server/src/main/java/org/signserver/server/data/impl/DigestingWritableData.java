@@ -0,0 +1,130 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import org.signserver.common.data.ReadableData;
+import org.signserver.common.data.WritableData;
+
+/**
+ * WritableData computing digests of the response while it is written by the
+ * worker so that the response does not have to be read again.
+ *
+ * If the worker writes to the file directly instead of using an output
+ * stream the digests are computed from the written data when requested.
+ *
+ * @version $Id$
+ */
+public class DigestingWritableData implements WritableData {
+
+    private final WritableData delegate;
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+
+    private OutputStream delegateStream;
+    private DigestingOutputStream stream;
+    private boolean recompute;
+    private Map<String, byte[]> result;
+
+    /**
+     * Creates an new instance of this WritableData.
+     * @param delegate to write the data to
+     * @param algorithms names of the digest algorithms to compute
+     * @throws NoSuchAlgorithmException in case a digest algorithm is not
+     * supported
+     */
+    public DigestingWritableData(final WritableData delegate, final String... algorithms) throws NoSuchAlgorithmException {
+        this.delegate = delegate;
+        this.algorithms = algorithms;
+        this.digests = new MessageDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            digests[i] = MessageDigest.getInstance(algorithms[i]);
+        }
+    }
+
+    @Override
+    public File getAsFile() throws IOException {
+        recompute = true;
+        return delegate.getAsFile();
+    }
+
+    @Override
+    public OutputStream getAsOutputStream() throws IOException {
+        return wrap(delegate.getAsOutputStream());
+    }
+
+    @Override
+    public OutputStream getAsFileOutputStream() throws IOException {
+        return wrap(delegate.getAsFileOutputStream());
+    }
+
+    @Override
+    public OutputStream getAsInMemoryOutputStream() {
+        return wrap(delegate.getAsInMemoryOutputStream());
+    }
+
+    @Override
+    public ReadableData toReadableData() {
+        return delegate.toReadableData();
+    }
+
+    /**
+     * Get the digest of all data written.
+     * @param algorithm one of the algorithms given when creating this instance
+     * @return the digest value
+     * @throws IOException in case the data had to be read and that failed
+     */
+    public byte[] getDigest(final String algorithm) throws IOException {
+        if (result == null) {
+            if (recompute) {
+                // Not all data was written through our stream so read it
+                for (MessageDigest digest : digests) {
+                    digest.reset();
+                }
+                try (InputStream in = new DigestingInputStream(delegate.toReadableData().getAsInputStream(), digests)) {
+                    final byte[] buffer = new byte[4096];
+                    while (in.read(buffer) != -1);
+                }
+            }
+            result = new HashMap<>();
+            for (int i = 0; i < digests.length; i++) {
+                result.put(algorithms[i], digests[i].digest());
+            }
+        }
+        final byte[] digest = result.get(algorithm);
+        if (digest == null) {
+            throw new IllegalArgumentException("Digest not computed: " + algorithm);
+        }
+        return digest;
+    }
+
+    private OutputStream wrap(final OutputStream out) {
+        // The same stream might be returned more than once
+        if (stream == null || out != delegateStream) {
+            if (stream != null) {
+                // Data might have been written to an other stream
+                recompute = true;
+            }
+            delegateStream = out;
+            stream = new DigestingOutputStream(out, digests);
+        }
+        return stream;
+    }
+}
@@ -0,0 +1,280 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * OutputStream keeping the data in memory in fixed-size chunks until a
+ * threshold is passed and then moving it to a file.
+ *
+ * The chunks are taken from a shared pool and given back when the stream
+ * is released. The data is never copied into one contiguous array unless
+ * explicitly asked for with toByteArray().
+ *
+ * @version $Id$
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(SpillingOutputStream.class);
+
+    /** Size of each in-memory chunk. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Maximum number of free chunks kept in the pool. */
+    private static final int MAX_POOLED_CHUNKS = 256;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final long threshold;
+    private final File repository;
+    private final String prefix;
+    private final String suffix;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private long size;
+
+    private File file;
+    private OutputStream fileOut;
+
+    private boolean closed;
+    private boolean released;
+
+    /**
+     * Creates a new stream.
+     * @param threshold maximum number of bytes to keep in memory
+     * @param repository to create the file in
+     * @param prefix of the file name
+     * @param suffix of the file name
+     */
+    public SpillingOutputStream(long threshold, File repository, String prefix, String suffix) {
+        this.threshold = threshold;
+        this.repository = repository;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (fileOut == null && size + 1 > threshold) {
+            spill();
+        }
+        if (fileOut != null) {
+            fileOut.write(b);
+        } else {
+            final int pos = (int) (size % CHUNK_SIZE);
+            if (pos == 0) {
+                chunks.add(takeChunk());
+            }
+            chunks.get(chunks.size() - 1)[pos] = (byte) b;
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (fileOut == null && size + len > threshold) {
+            spill();
+        }
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+            size += len;
+            return;
+        }
+        while (len > 0) {
+            final int pos = (int) (size % CHUNK_SIZE);
+            if (pos == 0) {
+                chunks.add(takeChunk());
+            }
+            final int n = Math.min(len, CHUNK_SIZE - pos);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), pos, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+    }
+
+    /**
+     * Moves the data written so far to a file and continues writing there.
+     * @throws IOException in case of failure writing the file
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile(prefix, suffix, repository);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Writing data to file after " + size + " bytes: " + file.getAbsolutePath());
+        }
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+        writeChunksTo(fileOut);
+        giveBackChunks();
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the file with the data or null if it is kept in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the in-memory data to the provided stream.
+     * @param out to write to
+     * @throws IOException in case of write failure
+     */
+    public void writeChunksTo(OutputStream out) throws IOException {
+        long remaining = size;
+        for (byte[] chunk : chunks) {
+            final int n = (int) Math.min(remaining, CHUNK_SIZE);
+            out.write(chunk, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * @return the in-memory data as a new array
+     */
+    public byte[] toByteArray() {
+        final byte[] result = new byte[(int) size];
+        int pos = 0;
+        for (byte[] chunk : chunks) {
+            final int n = Math.min(result.length - pos, CHUNK_SIZE);
+            System.arraycopy(chunk, 0, result, pos, n);
+            pos += n;
+        }
+        return result;
+    }
+
+    /**
+     * @return stream reading the in-memory data directly from the chunks
+     */
+    public InputStream newChunksInputStream() {
+        return new ChunksInputStream();
+    }
+
+    /**
+     * Gives back the chunks to the pool. The in-memory data can not be read
+     * after this.
+     */
+    public void release() {
+        if (!released) {
+            released = true;
+            giveBackChunks();
+        }
+    }
+
+    private void giveBackChunks() {
+        for (byte[] chunk : chunks) {
+            if (POOLED.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                POOL.offer(chunk);
+            } else {
+                POOLED.decrementAndGet();
+            }
+        }
+        chunks.clear();
+    }
+
+    private static byte[] takeChunk() {
+        final byte[] result = POOL.poll();
+        if (result == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return result;
+    }
+
+    /**
+     * InputStream over the chunks.
+     */
+    private class ChunksInputStream extends InputStream {
+
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            if (position >= size || released) {
+                return -1;
+            }
+            final int result = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)] & 0xff;
+            position++;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= size || released) {
+                return -1;
+            }
+            final int pos = (int) (position % CHUNK_SIZE);
+            final int n = (int) Math.min(Math.min(len, CHUNK_SIZE - pos), size - position);
+            System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), pos, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+    }
+}
@@ -13,8 +13,6 @@
 package org.signserver.server.data.impl;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -29,7 +27,10 @@ import org.signserver.common.data.ReadableData;
 
 /**
  * WritableData implementation backed by a file, byte array or
- * ByteArrayOutputStream and where the file is removed on close.
+ * SpillingOutputStream and where the file is removed on close.
+ *
+ * Data written in memory is kept in pooled chunks and moved to a file when
+ * it grows larger than the size threshold.
  * 
  * Create the instance in try-with-resource or manually call close().
  * The backing temporary file (if one) is removed when the instance is closed.
@@ -44,16 +45,20 @@ public class TemporarlyWritableData extends CloseableWritableData {
     
     private static final String FILE_PREFIX = "signserver-response_";
     private static final String FILE_SUFFIX = ".tmp";
+
+    /** Default maximum number of bytes to keep in memory. */
+    public static final int DEFAULT_SIZE_THRESHOLD = 1 * 1024 * 1024; // 1 MB
     
     private final boolean defaultToDisk;
     private final File repository;
+    private final int sizeThreshold;
     
     // Write
     private OutputStream outputStream;
     
     // Storage
     private File responseFile;
-    private ByteArrayOutputStream inMemoryOutputStream;
+    private SpillingOutputStream inMemoryOutputStream;
     private byte[] data;
 
     // State
@@ -66,8 +71,21 @@ public class TemporarlyWritableData extends CloseableWritableData {
      * @param repository to create the file in (if requested)
      */
     public TemporarlyWritableData(boolean defaultToDisk, File repository) {
+        this(defaultToDisk, repository, DEFAULT_SIZE_THRESHOLD);
+    }
+
+    /**
+     * Create an new instance of this WritableData.
+     * @param defaultToDisk if the getAsOutputStream method should be backed
+     * by a file or otherwise be in memory
+     * @param repository to create the file in (if requested)
+     * @param sizeThreshold maximum number of bytes to keep in memory before
+     * moving the data to a file
+     */
+    public TemporarlyWritableData(boolean defaultToDisk, File repository, int sizeThreshold) {
         this.defaultToDisk = defaultToDisk;
         this.repository = repository;
+        this.sizeThreshold = sizeThreshold;
     }
     
     @Override
@@ -97,7 +115,7 @@ public class TemporarlyWritableData extends CloseableWritableData {
             throw new IllegalStateException("Can not write response data after starting reading it");
         }
         if (outputStream == null) {
-            inMemoryOutputStream = new ByteArrayOutputStream();
+            inMemoryOutputStream = register(new SpillingOutputStream(sizeThreshold, repository, FILE_PREFIX, FILE_SUFFIX));
             outputStream = inMemoryOutputStream;
         }
         return outputStream;
@@ -126,12 +144,13 @@ public class TemporarlyWritableData extends CloseableWritableData {
             @Override
             public byte[] getAsByteArray() throws IOException {
                 noMoreWrite = true;
+                useSpilledFile();
                 if (data != null) {
                     return data;
-                } else if (inMemoryOutputStream != null) {
-                    data = inMemoryOutputStream.toByteArray();
                 } else if (responseFile != null) {
                     data = FileUtils.readFileToByteArray(responseFile);
+                } else if (inMemoryOutputStream != null) {
+                    data = inMemoryOutputStream.toByteArray();
                 } else {
                     data = new byte[0];
                 }
@@ -141,13 +160,14 @@ public class TemporarlyWritableData extends CloseableWritableData {
             @Override
             public InputStream getAsInputStream() throws IOException {
                 noMoreWrite = true;
+                useSpilledFile();
                 final InputStream result;
                 if (responseFile != null) {
                     // XXX was the file all written out, ie. we need to out.close and fd.sync() ?
                     result = register(new BufferedInputStream(new FileInputStream(responseFile)));
                 } else if (inMemoryOutputStream != null) {
-                    data = inMemoryOutputStream.toByteArray();
-                    result = new ByteArrayInputStream(data);
+                    // Read directly from the chunks without joining them
+                    result = inMemoryOutputStream.newChunksInputStream();
                 } else {
                     return new NullInputStream(0);
                 }
@@ -156,11 +176,16 @@ public class TemporarlyWritableData extends CloseableWritableData {
 
             @Override
             public File getAsFile() throws IOException {
+                useSpilledFile();
                 if (responseFile != null) {
                     return responseFile;
                 } else {
                     responseFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, repository);
-                    FileUtils.writeByteArrayToFile(responseFile, inMemoryOutputStream == null ? new byte[0] : inMemoryOutputStream.toByteArray());
+                    try (OutputStream out = new FileOutputStream(responseFile)) {
+                        if (inMemoryOutputStream != null) {
+                            inMemoryOutputStream.writeChunksTo(out);
+                        }
+                    }
                 }
                 return responseFile;
             }
@@ -168,7 +193,9 @@ public class TemporarlyWritableData extends CloseableWritableData {
             @Override
             public long getLength() {
                 noMoreWrite = true;
-                if (responseFile != null) {
+                if (inMemoryOutputStream != null && inMemoryOutputStream.getFile() != null) {
+                    return inMemoryOutputStream.size();
+                } else if (responseFile != null) {
                     return responseFile.length();
                 } else if (inMemoryOutputStream != null) {
                     return inMemoryOutputStream.size();
@@ -179,16 +206,35 @@ public class TemporarlyWritableData extends CloseableWritableData {
 
             @Override
             public boolean isFile() {
-                return responseFile != null;
+                return responseFile != null
+                        || (inMemoryOutputStream != null && inMemoryOutputStream.getFile() != null);
             }
             
         };
     }
 
+    /**
+     * Reads from the file the in-memory data has been moved to, if any.
+     * @throws IOException in case of failure writing the file
+     */
+    private void useSpilledFile() throws IOException {
+        if (inMemoryOutputStream != null && inMemoryOutputStream.getFile() != null && responseFile == null) {
+            // Make sure everything written so far is in the file
+            inMemoryOutputStream.flush();
+            responseFile = inMemoryOutputStream.getFile();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         // Close resources
         super.close();
+        if (inMemoryOutputStream != null) {
+            inMemoryOutputStream.release();
+            
+            // Also remove the file in case nothing was read from it
+            useSpilledFile();
+        }
         inMemoryOutputStream = null;
         data = null;
         
@@ -0,0 +1,56 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.apache.log4j.Logger;
+
+/**
+ * ReadableData backed by a temporary file that is removed when the instance
+ * is closed.
+ *
+ * Create the instance in try-with-resource or manually call close().
+ *
+ * @version $Id$
+ */
+public class TemporaryFileReadableData extends FileReadableData {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(TemporaryFileReadableData.class);
+
+    private final File file;
+
+    /**
+     * Creates a ReadableData backed by the provided temporary file.
+     * @param file that will back this instance and be removed on close
+     */
+    public TemporaryFileReadableData(File file) {
+        super(file);
+        this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Close resources
+        super.close();
+
+        // Remove the file
+        final boolean existed = Files.deleteIfExists(file.toPath());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Temporary file was " + file.getAbsolutePath() + (existed ? " removed" : " not removed as it did not exist"));
+        }
+    }
+
+}
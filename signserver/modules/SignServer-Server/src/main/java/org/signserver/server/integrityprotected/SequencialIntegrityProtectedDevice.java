@@ -12,7 +12,11 @@
  *************************************************************************/
 package org.signserver.server.integrityprotected;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -74,6 +78,17 @@ import org.signserver.common.ServiceLocator;
  * This implementation makes this information available via AuditRecordData.getRowProtection() and this is also
  * included in exported log files.
  * 
+ * Group commit:
+ * With the device property groupcommit set to true, concurrent log calls
+ * are queued and the first caller to find no other caller writing becomes
+ * the leader. The leader assigns contiguous sequence numbers to all queued
+ * events (up to groupcommit.maxbatchsize) and stores them in one
+ * transaction. Each caller returns when the transaction with its event has
+ * been committed. The rows are the same as when logging one at the time,
+ * so the integrity of the log is verified the same way. If storing a batch
+ * fails, its events are retried one at the time so that only the failing
+ * events are reported as failed and no sequence numbers are skipped.
+ *
  * Based on SVN Id IntegrityProtectedDevice.java 18194 2013-11-21 18:09:12Z jeklund
  * Modify to log sequentially.
  * @see IntegrityProtectedDevice
@@ -86,6 +101,20 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
         /** Global lock for updating the sequence number. */
         private static final ReentrantLock LOCK = new ReentrantLock(true);
 
+        /** Device property for enabling group commit. */
+        public static final String PROPERTY_GROUP_COMMIT = "groupcommit";
+
+        /** Device property for the maximum number of events stored in one transaction. */
+        public static final String PROPERTY_GROUP_COMMIT_MAX_BATCH_SIZE = "groupcommit.maxbatchsize";
+
+        public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE = 100;
+
+        /** Events waiting to be stored, guarded by itself. */
+        private final Deque<PendingEvent> queue = new ArrayDeque<>();
+
+        /** If a caller is currently storing queued events, guarded by queue. */
+        private boolean leaderActive;
+
 	private Map<Class<?>, ?> ejbs;
         
         private long sequenceNumber;
@@ -116,10 +145,21 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
 	}
 
 	@Override
-        @SuppressWarnings("UseSpecificCatch") // We really need to catch and handle any failure
 	public void log(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken, String customId,
 			String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties) throws AuditRecordStorageException {
+            if (properties != null && Boolean.parseBoolean(properties.getProperty(PROPERTY_GROUP_COMMIT, Boolean.FALSE.toString()).trim())) {
+                logGrouped(new SequencialAuditEvent(trustedTime, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties),
+                        getMaxBatchSize(properties));
+            } else {
+                logSingle(new SequencialAuditEvent(trustedTime, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties));
+            }
+        }
 
+        /**
+         * Stores the event in its own transaction.
+         */
+        @SuppressWarnings("UseSpecificCatch") // We really need to catch and handle any failure
+        private void logSingle(final SequencialAuditEvent event) throws AuditRecordStorageException {
             LOCK.lock();  // block until condition holds
             try {
                 sequenceNumber++;
@@ -129,7 +169,8 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
                 }
                 
                 try {
-                    ServiceLocator.getInstance().lookupLocal(SequencialIntegrityProtectedLoggerSessionLocal.class).logWithSequenceNumber(trustedTime, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties, sequenceNumber);
+                    getLoggerSession().logWithSequenceNumber(event.getTrustedTime(), event.getEventType(), event.getEventStatus(), event.getModule(), event.getService(), event.getAuthToken(),
+                            event.getCustomId(), event.getSearchDetail1(), event.getSearchDetail2(), event.getAdditionalDetails(), event.getProperties(), sequenceNumber);
                     if (log.isTraceEnabled()) {
                         log.trace("Success sequencial logging");
                     }
@@ -153,6 +194,151 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
             }
 	}
 
+        /**
+         * Queues the event and waits until it has been stored, storing the
+         * queued events if no other caller is doing so.
+         */
+        private void logGrouped(final SequencialAuditEvent event, final int maxBatchSize) throws AuditRecordStorageException {
+            final PendingEvent pending = new PendingEvent(event);
+            boolean interrupted = false;
+            try {
+                synchronized (queue) {
+                    queue.add(pending);
+                    while (!pending.done && leaderActive) {
+                        try {
+                            queue.wait();
+                        } catch (InterruptedException ex) {
+                            // The event is queued so we have to wait for the outcome
+                            interrupted = true;
+                        }
+                    }
+                    if (!pending.done) {
+                        leaderActive = true;
+                    }
+                }
+
+                // Store batches until our own event has been stored
+                try {
+                    while (!pending.done) {
+                        final List<PendingEvent> batch = new ArrayList<>();
+                        synchronized (queue) {
+                            while (batch.size() < maxBatchSize && !queue.isEmpty()) {
+                                batch.add(queue.poll());
+                            }
+                        }
+                        try {
+                            storeBatch(batch);
+                        } catch (Throwable ex) { // NOPMD: The waiting callers must get an outcome
+                            failBatch(batch, pending, new AuditRecordStorageException(ex));
+                        }
+                        synchronized (queue) {
+                            queue.notifyAll();
+                        }
+                    }
+                } finally {
+                    synchronized (queue) {
+                        // Hand over to one of the waiting callers
+                        leaderActive = false;
+                        queue.notifyAll();
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (pending.error != null) {
+                throw pending.error;
+            }
+        }
+
+        /**
+         * Stores the events in one transaction or if that fails one at the time.
+         * Each event is marked as done with or without an error.
+         */
+        @SuppressWarnings("UseSpecificCatch") // We really need to catch and handle any failure
+        private void storeBatch(final List<PendingEvent> batch) {
+            if (batch.size() > 1) {
+                final List<SequencialAuditEvent> events = new ArrayList<>(batch.size());
+                for (PendingEvent pending : batch) {
+                    events.add(pending.event);
+                }
+                LOCK.lock();
+                try {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Before sequencial logging of " + batch.size() + " events");
+                    }
+                    getLoggerSession().logWithSequenceNumbers(events, sequenceNumber + 1);
+                    sequenceNumber += batch.size();
+                    if (log.isTraceEnabled()) {
+                        log.trace("Success sequencial logging of " + batch.size() + " events");
+                    }
+                    setDone(batch, null);
+                    return;
+                } catch (Throwable ex) {
+                    // Try them one by one instead so only the failing ones fail
+                    log.warn("Failed sequencial logging of " + batch.size() + " events, retrying one at the time: " + ex.getMessage());
+                } finally {
+                    LOCK.unlock();
+                }
+            }
+            for (PendingEvent pending : batch) {
+                try {
+                    logSingle(pending.event);
+                    setDone(Collections.singletonList(pending), null);
+                } catch (AuditRecordStorageException ex) {
+                    setDone(Collections.singletonList(pending), ex);
+                }
+            }
+        }
+
+        /**
+         * Fails the events in the batch not already stored and our own event
+         * if it is still queued, so that it is not stored after the failure
+         * has been reported.
+         */
+        private void failBatch(final List<PendingEvent> batch, final PendingEvent own, final AuditRecordStorageException error) {
+            synchronized (queue) {
+                for (PendingEvent pending : batch) {
+                    if (!pending.done) {
+                        pending.error = error;
+                        pending.done = true;
+                    }
+                }
+                if (!own.done && queue.remove(own)) {
+                    own.error = error;
+                    own.done = true;
+                }
+            }
+        }
+
+        private void setDone(final List<PendingEvent> events, final AuditRecordStorageException error) {
+            synchronized (queue) {
+                for (PendingEvent pending : events) {
+                    pending.error = error;
+                    pending.done = true;
+                }
+            }
+        }
+
+        private static int getMaxBatchSize(final Properties properties) {
+            final String value = properties.getProperty(PROPERTY_GROUP_COMMIT_MAX_BATCH_SIZE);
+            if (value != null) {
+                try {
+                    return Math.max(1, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException ignored) {} // NOPMD
+            }
+            return DEFAULT_GROUP_COMMIT_MAX_BATCH_SIZE;
+        }
+
+        /**
+         * @return the session bean to store the events with
+         * @throws NamingException in case of lookup failure
+         */
+        protected SequencialIntegrityProtectedLoggerSessionLocal getLoggerSession() throws NamingException {
+            return ServiceLocator.getInstance().lookupLocal(SequencialIntegrityProtectedLoggerSessionLocal.class);
+        }
+
 	@Override
 	public boolean isSupportingQueries() {
 		return true;
@@ -173,4 +359,15 @@ public class SequencialIntegrityProtectedDevice implements AuditLogDevice {
 		 */
 		NodeSequenceHolder.INSTANCE.reset();
 	}
+
+        /** Queued event and its outcome, guarded by the queue. */
+        private static class PendingEvent {
+            private final SequencialAuditEvent event;
+            private boolean done;
+            private AuditRecordStorageException error;
+
+            PendingEvent(final SequencialAuditEvent event) {
+                this.event = event;
+            }
+        }
 }
@@ -15,6 +15,7 @@ package org.signserver.server.statistics;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An Event is the base element in collecting statistics.
@@ -37,9 +38,16 @@ import java.util.Map;
  */
 public class Event {
 
-    private Date startTimeStamp;
-    
-    private Date endTimeStamp;
+    /** Wall clock time in milliseconds when started or 0 if not started. */
+    private long startTime;
+
+    /** Value of System.nanoTime() when started. */
+    private long startNanos;
+
+    /** Value of System.nanoTime() when ended. */
+    private long endNanos;
+
+    private boolean ended;
     
     private int workerId = 0;
     
@@ -53,14 +61,16 @@ public class Event {
      * Marks the event as started by setting the timestamp
      */
     public void start() {
-        this.startTimeStamp = new Date();
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
     }
 
     /**
      * Marks the event as ended by setting the timestamp
      */
     public void stop() {
-        this.endTimeStamp = new Date();
+        this.endNanos = System.nanoTime();
+        this.ended = true;
     }
 
     /**
@@ -74,14 +84,22 @@ public class Event {
      * @return the time the event started or null if it haven't started yet.
      */
     public Date getStartTimeStamp() {
-        return startTimeStamp;
+        return startTime == 0 ? null : new Date(startTime);
     }
 
     /**
      * @return the time the event started or null if it haven't ended yet.
      */
     public Date getEndTimeStamp() {
-        return endTimeStamp;
+        return startTime == 0 || !ended ? null : new Date(startTime + TimeUnit.NANOSECONDS.toMillis(getDuration()));
+    }
+
+    /**
+     * @return the time in nanoseconds between start and stop or -1 if the
+     * event has not both started and ended
+     */
+    public long getDuration() {
+        return startTime == 0 || !ended ? -1 : endNanos - startNanos;
     }
 
     /**
@@ -53,6 +53,13 @@ public interface IStatisticsCollector {
      */
     void flush();
 
+    /**
+     * Signal to the Statistics Collector that it will not be used anymore,
+     * i.e. when the statistics of the worker are reset or the application
+     * is undeployed, so that it can release any resources it holds.
+     */
+    void destroy();
+
     /**
      * Method used to fetch a list of StatisticsEntries maintained
      * by the statistics collector.
@@ -0,0 +1,112 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds with a fixed number of buckets.
+ *
+ * <p>Values below 32 get a bucket each. Above that every power of two range
+ * is divided into 16 buckets so a value is recorded with a relative error
+ * of at most 1/16 (6.25%). Values above about 12 days are counted in the
+ * last bucket.</p>
+ *
+ * <p>Recording a value is a single atomic increment without any locking or
+ * allocation and can be done concurrently with reading percentiles.</p>
+ *
+ * @version $Id$
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Highest power of two tracked. */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records one value.
+     * @param micros latency in microseconds, negative values are ignored
+     */
+    public void record(final long micros) {
+        if (micros >= 0) {
+            counts.incrementAndGet(getIndex(micros));
+        }
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        long result = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            result += counts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the value at the given percentile. The value is the highest
+     * value that could have been recorded in the same bucket.
+     *
+     * @param percentile percentile between 0 and 100, ie 99 for the 99th
+     * percentile
+     * @return the latency in microseconds or 0 if no values are recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return getHighestValue(i);
+            }
+        }
+        return getHighestValue(BUCKETS - 1);
+    }
+
+    static int getIndex(final long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long getHighestValue(final int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
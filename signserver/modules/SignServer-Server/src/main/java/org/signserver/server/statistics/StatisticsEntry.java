@@ -15,13 +15,19 @@ package org.signserver.server.statistics;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A statistics entry is a summarization of one or more events
  * during a defined period of time, either as a single event or
  * longer such as minute or hour.
+ *
+ * Events can be added concurrently without locking. The counters are
+ * striped so that threads adding events do not contend on a single value.
  * 
  * @author Philip Vendil 28 apr 2008
  * @version $Id$
@@ -31,8 +37,9 @@ public class StatisticsEntry implements Delayed {
     private Date periodStart;
     private Date periodEnd;
     private Date expireDate;
-    private Map<String, Integer> customData;
-    private Integer numberOfEvents = 0;
+    private final ConcurrentMap<String, LongAdder> customData = new ConcurrentHashMap<>();
+    private final LongAdder numberOfEvents = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
 
     /**
      * Creates one StatisticsEntry object.
@@ -54,17 +61,22 @@ public class StatisticsEntry implements Delayed {
      * @param event Event to add
      */
     public void addEvent(Event event) {
-        numberOfEvents++;
+        numberOfEvents.increment();
+        final long duration = event.getDuration();
+        if (duration >= 0) {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(duration));
+        }
         if (event.getCustomData() != null) {
-            for (String next : event.getCustomData().keySet()) {
-                if (customData == null) {
-                    customData = new HashMap<>();
-                }
-                if (customData.get(next) == null) {
-                    customData.put(next, event.getCustomData().get(next));
-                } else {
-                    customData.put(next, customData.get(next) + event.getCustomData().get(next));
+            for (Map.Entry<String, Integer> next : event.getCustomData().entrySet()) {
+                LongAdder value = customData.get(next.getKey());
+                if (value == null) {
+                    final LongAdder created = new LongAdder();
+                    value = customData.putIfAbsent(next.getKey(), created);
+                    if (value == null) {
+                        value = created;
+                    }
                 }
+                value.add(next.getValue());
             }
         }
     }
@@ -95,7 +107,18 @@ public class StatisticsEntry implements Delayed {
      * defined period of time.
      */
     public Integer getNumberOfEvents() {
-        return numberOfEvents;
+        return numberOfEvents.intValue();
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100, ie 95 for the 95th
+     * percentile
+     * @return the time in microseconds that the given percentile of the events
+     * during the period took at most, or 0 if no events have been recorded
+     * @see LatencyHistogram#getValueAtPercentile(double)
+     */
+    public long getLatencyPercentile(double percentile) {
+        return latencies.getValueAtPercentile(percentile);
     }
 
     /**
@@ -103,7 +126,14 @@ public class StatisticsEntry implements Delayed {
      * if no custom data have been recorded.
      */
     Map<String, Integer> getCustomData() {
-        return customData;
+        if (customData.isEmpty()) {
+            return null;
+        }
+        final Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<String, LongAdder> next : customData.entrySet()) {
+            result.put(next.getKey(), next.getValue().intValue());
+        }
+        return result;
     }
 
     /**
@@ -77,7 +77,7 @@ public class InternalTimeStampTokenFetcher {
         final UploadConfig uploadConfig = new UploadConfig();
         try (
                 CloseableReadableData requestData = new ByteArrayReadableData(requestBytes, uploadConfig.getRepository());
-                CloseableWritableData responseData = new TemporarlyWritableData(false, uploadConfig.getRepository());
+                CloseableWritableData responseData = new TemporarlyWritableData(false, uploadConfig.getRepository(), uploadConfig.getSizeThreshold());
             ) {
         
             final RequestContext context = new RequestContext();
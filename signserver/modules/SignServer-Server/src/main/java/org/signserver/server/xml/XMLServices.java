@@ -0,0 +1,243 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Provider;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.log4j.Logger;
+import org.signserver.common.SignServerException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Shared XML parsing, serialization and signature factories.
+ *
+ * The JSR-105 provider is instantiated once per provider class. The
+ * XMLSignatureFactory instances created from it, and the DocumentBuilder and
+ * Transformer instances created from shared factories, are kept in bounded
+ * pools shared by all threads, as their instance methods are not required
+ * to be thread-safe. Nothing is left in the threads of the application
+ * server when the application is undeployed.
+ * The DocumentBuilderFactory is namespace aware and does not allow DOCTYPE
+ * declarations or external entities.
+ *
+ * @version $Id$
+ */
+public final class XMLServices {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(XMLServices.class);
+
+    /** System property with the class name of the JSR-105 provider. */
+    public static final String JSR105_PROVIDER_PROPERTY = "jsr105Provider";
+
+    /** JSR-105 provider used if the system property is not set. */
+    public static final String DEFAULT_JSR105_PROVIDER = "org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI";
+
+    /** Maximum number of idle instances kept in each pool. */
+    static final int POOL_SIZE = 32;
+
+    private static final ConcurrentMap<String, Provider> PROVIDERS = new ConcurrentHashMap<>();
+
+    /** Idle signature factories by provider class name. */
+    private static final ConcurrentMap<String, BlockingQueue<XMLSignatureFactory>> SIGNATURE_FACTORIES = new ConcurrentHashMap<>();
+
+    /** Idle builders. */
+    private static final BlockingQueue<DocumentBuilder> BUILDERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /** Idle transformers. */
+    private static final BlockingQueue<Transformer> TRANSFORMERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private static DocumentBuilderFactory documentBuilderFactory;
+    private static TransformerFactory transformerFactory;
+
+    private XMLServices() {}
+
+    /**
+     * Takes a pooled XMLSignatureFactory, or creates a new one, for the shared
+     * instance of the JSR-105 provider configured by the jsr105Provider
+     * system property.
+     * The caller should give it back using releaseXMLSignatureFactory when
+     * done with it and not use it after that.
+     *
+     * @return the DOM XMLSignatureFactory
+     * @throws SignServerException in case the provider could not be created
+     */
+    public static XMLSignatureFactory getXMLSignatureFactory() throws SignServerException {
+        final String providerName = System.getProperty(JSR105_PROVIDER_PROPERTY, DEFAULT_JSR105_PROVIDER);
+        final XMLSignatureFactory result = getSignatureFactories(providerName).poll();
+        if (result != null) {
+            return result;
+        }
+        return XMLSignatureFactory.getInstance("DOM", getProvider(providerName));
+    }
+
+    /**
+     * Gives back an XMLSignatureFactory obtained from getXMLSignatureFactory
+     * to the pool.
+     *
+     * @param factory to give back or null
+     */
+    public static void releaseXMLSignatureFactory(final XMLSignatureFactory factory) {
+        if (factory != null) {
+            getSignatureFactories(factory.getProvider().getClass().getName()).offer(factory);
+        }
+    }
+
+    private static BlockingQueue<XMLSignatureFactory> getSignatureFactories(final String providerName) {
+        BlockingQueue<XMLSignatureFactory> result = SIGNATURE_FACTORIES.get(providerName);
+        if (result == null) {
+            result = new ArrayBlockingQueue<>(POOL_SIZE);
+            final BlockingQueue<XMLSignatureFactory> existing = SIGNATURE_FACTORIES.putIfAbsent(providerName, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    private static Provider getProvider(final String providerName) throws SignServerException {
+        Provider result = PROVIDERS.get(providerName);
+        if (result == null) {
+            try {
+                result = (Provider) Class.forName(providerName).newInstance();
+            } catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
+                throw new SignServerException("Problem with JSR105 provider", e);
+            }
+            final Provider existing = PROVIDERS.putIfAbsent(providerName, result);
+            if (existing != null) {
+                result = existing;
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("Created JSR105 provider " + providerName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses the XML document using a pooled DocumentBuilder.
+     *
+     * @param in to read the document from
+     * @return the parsed document
+     * @throws ParserConfigurationException in case the parser does not support the required features
+     * @throws SAXException in case the document could not be parsed
+     * @throws IOException in case of read failure
+     */
+    public static Document parse(final InputStream in) throws ParserConfigurationException, SAXException, IOException {
+        DocumentBuilder builder = BUILDERS.poll();
+        if (builder == null) {
+            builder = newDocumentBuilder();
+        }
+        try {
+            return builder.parse(in);
+        } finally {
+            builder.reset();
+            BUILDERS.offer(builder);
+        }
+    }
+
+    /**
+     * Writes the node to the output stream using a pooled identity
+     * Transformer.
+     *
+     * @param node to serialize, typically a Document
+     * @param out to write to
+     * @throws TransformerException in case of transformation failure
+     */
+    public static void transform(final Node node, final OutputStream out) throws TransformerException {
+        Transformer transformer = TRANSFORMERS.poll();
+        if (transformer == null) {
+            transformer = newTransformer();
+        }
+        try {
+            transformer.transform(new DOMSource(node), new StreamResult(out));
+        } finally {
+            transformer.reset();
+            TRANSFORMERS.offer(transformer);
+        }
+    }
+
+    /**
+     * @return number of idle XMLSignatureFactory instances in the pool for
+     * the configured provider
+     */
+    static int getIdleSignatureFactories() {
+        return getSignatureFactories(System.getProperty(JSR105_PROVIDER_PROPERTY, DEFAULT_JSR105_PROVIDER)).size();
+    }
+
+    /**
+     * @return number of idle DocumentBuilder instances in the pool
+     */
+    static int getIdleBuilders() {
+        return BUILDERS.size();
+    }
+
+    /**
+     * @return number of idle Transformer instances in the pool
+     */
+    static int getIdleTransformers() {
+        return TRANSFORMERS.size();
+    }
+
+    private static synchronized DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        if (documentBuilderFactory == null) {
+            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+
+            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-general-entities
+            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-general-entities
+            dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
+
+            // Xerces 1 - http://xerces.apache.org/xerces-j/features.html#external-parameter-entities
+            // Xerces 2 - http://xerces.apache.org/xerces2-j/features.html#external-parameter-entities
+            dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+
+            // Xerces 2 only - http://xerces.apache.org/xerces2-j/features.html#disallow-doctype-decl
+            dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+
+            documentBuilderFactory = dbf;
+        }
+        return documentBuilderFactory.newDocumentBuilder();
+    }
+
+    private static synchronized Transformer newTransformer() throws TransformerConfigurationException {
+        if (transformerFactory == null) {
+            final TransformerFactory tf = TransformerFactory.newInstance();
+            try {
+                tf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            } catch (TransformerConfigurationException ex) {
+                LOG.debug("Secure processing not supported by transformer factory", ex);
+            }
+            transformerFactory = tf;
+        }
+        return transformerFactory.newTransformer();
+    }
+}
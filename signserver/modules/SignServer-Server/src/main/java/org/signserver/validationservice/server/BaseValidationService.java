@@ -71,7 +71,14 @@ public abstract class BaseValidationService implements IValidationService {
             log.error("Error in Validation Service " + workerId + " setting " + ValidationServiceConstants.VALIDATIONSERVICE_TIMEINCACHE + " should only contain numbers, using default value");
         }
 
-        validationCache = new ValidationCache(getCachedIssuers(config.getProperties()), cacheTime * 1000);
+        int maxCacheSize = Integer.parseInt(ValidationServiceConstants.DEFAULT_MAXCACHESIZE);
+        try {
+            maxCacheSize = Integer.parseInt(config.getProperties().getProperty(ValidationServiceConstants.VALIDATIONSERVICE_MAXCACHESIZE, ValidationServiceConstants.DEFAULT_MAXCACHESIZE));
+        } catch (NumberFormatException e) {
+            log.error("Error in Validation Service " + workerId + " setting " + ValidationServiceConstants.VALIDATIONSERVICE_MAXCACHESIZE + " should only contain numbers, using default value");
+        }
+
+        validationCache = new ValidationCache(getCachedIssuers(config.getProperties()), cacheTime * 1000, maxCacheSize);
     }
 
     private List<String> getCachedIssuers(Properties props) {
@@ -101,6 +108,15 @@ public abstract class BaseValidationService implements IValidationService {
             briefEntries.add(new WorkerStatusInfo.Entry("Number of validators", String.valueOf(validators.size())));
         }
 
+        // Validation cache
+        if (validationCache != null) {
+            briefEntries.add(new WorkerStatusInfo.Entry("Validation cache",
+                    validationCache.size() + " cached, "
+                    + validationCache.getHits() + " hits, "
+                    + validationCache.getMisses() + " misses, "
+                    + validationCache.getEvictions() + " evictions"));
+        }
+
         // Properties
         final StringBuilder configValue = new StringBuilder();
         Properties properties = config.getProperties();
@@ -0,0 +1,411 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.NoSuchProviderException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.signserver.common.SignServerException;
+
+/**
+ * Server-wide cache of CRLs by distribution point URL, shared by the
+ * validators and signers.
+ *
+ * A CRL is used until its nextUpdate (or for DEFAULT_MAX_AGE if it has no
+ * nextUpdate). After three quarters of that time a request for it starts a
+ * refresh in the background while the cached CRL is still returned. Only
+ * when the CRL has expired does a request wait for it to be fetched.
+ *
+ * HTTP requests are conditional using the ETag and Last-Modified headers
+ * from the previous response so that an unchanged CRL is not downloaded
+ * and parsed again. CRLs from file URLs are instead read again as soon as
+ * the modification time of the file changes.
+ *
+ * At most maxEntries CRLs are kept, the least recently used one is removed
+ * when a new one is added. Concurrent requests for a CRL that needs to be
+ * fetched share the same fetch, which is forgotten when completed.
+ *
+ * @version $Id$
+ */
+public class CRLCache {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(CRLCache.class);
+
+    /** Time to use a CRL without nextUpdate. */
+    public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000L;
+
+    /** Time to use a CRL already expired when fetched before trying again. */
+    public static final long DEFAULT_MIN_AGE = 60 * 1000L;
+
+    /** Maximum number of CRLs in the shared instance. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final int RETRIES = 3;
+    private static final long RETRY_WAIT = 100;
+
+    private static final CRLCache INSTANCE = new CRLCache(DEFAULT_MAX_AGE, DEFAULT_MIN_AGE, DEFAULT_MAX_ENTRIES);
+
+    private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread result = new Thread(r, "CRLCacheRefresher");
+            result.setDaemon(true);
+            return result;
+        }
+    });
+
+    private final long maxAge;
+    private final long minAge;
+    private final Map<String, CachedCRL> entries;
+    private final ConcurrentMap<String, FutureTask<CachedCRL>> pendingFetches = new ConcurrentHashMap<>();
+    private final AtomicLong fetches = new AtomicLong();
+
+    /**
+     * Creates a new instance of the cache. Normally the shared instance
+     * should be used.
+     * @param maxAge time in milliseconds to use a CRL without nextUpdate
+     * @param minAge time in milliseconds to use a CRL already expired when
+     * fetched
+     */
+    public CRLCache(final long maxAge, final long minAge) {
+        this(maxAge, minAge, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a new instance of the cache. Normally the shared instance
+     * should be used.
+     * @param maxAge time in milliseconds to use a CRL without nextUpdate
+     * @param minAge time in milliseconds to use a CRL already expired when
+     * fetched
+     * @param maxEntries maximum number of CRLs to keep
+     */
+    public CRLCache(final long maxAge, final long minAge, final int maxEntries) {
+        this.maxAge = maxAge;
+        this.minAge = minAge;
+        this.entries = new LinkedHashMap<String, CachedCRL>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedCRL> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the instance shared by all workers
+     */
+    public static CRLCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the CRL for the distribution point.
+     * @param url of the CRL
+     * @return the CRL or null if an empty CRL was fetched
+     * @throws SignServerException in case the CRL could not be fetched
+     */
+    public X509CRL getCRL(final URL url) throws SignServerException {
+        final CachedCRL result = getCachedCRL(url);
+        return result == null ? null : result.getCRL();
+    }
+
+    /**
+     * Get the cached CRL for the distribution point fetching it if not
+     * cached or expired.
+     * @param url of the CRL
+     * @return the cached CRL with its index of revoked serial numbers or null
+     * if an empty CRL was fetched
+     * @throws SignServerException in case the CRL could not be fetched
+     */
+    public CachedCRL getCachedCRL(final URL url) throws SignServerException {
+        final String key = url.toExternalForm();
+        final CachedCRL cached = getEntry(key);
+        final long now = System.currentTimeMillis();
+
+        if (cached != null && now < cached.getExpires() && !isFileModified(url, cached)) {
+            if (now >= cached.getRefreshAt() && cached.startRefresh()) {
+                refreshLater(url, key, cached);
+            }
+            return cached;
+        }
+
+        return fetchShared(key, new Callable<CachedCRL>() {
+            @Override
+            public CachedCRL call() throws SignServerException {
+                CachedCRL result = getEntry(key);
+                if (result == null || System.currentTimeMillis() >= result.getExpires()
+                        || isFileModified(url, result)) {
+                    result = fetchWithRetry(url, result);
+                    if (result == null) {
+                        removeEntry(key);
+                    } else {
+                        putEntry(key, result);
+                    }
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * @return the number of requests made to fetch CRLs
+     */
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    /**
+     * Removes all CRLs from the cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached CRLs
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of fetches currently in progress
+     */
+    int getPendingFetches() {
+        return pendingFetches.size();
+    }
+
+    private CachedCRL getEntry(final String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private void putEntry(final String key, final CachedCRL value) {
+        synchronized (entries) {
+            entries.put(key, value);
+        }
+    }
+
+    private void removeEntry(final String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Runs the fetch unless one is already in progress for the same key in
+     * which case its result is waited for instead.
+     */
+    private CachedCRL fetchShared(final String key, final Callable<CachedCRL> fetch) throws SignServerException {
+        final FutureTask<CachedCRL> task = new FutureTask<>(fetch);
+        FutureTask<CachedCRL> pending = pendingFetches.putIfAbsent(key, task);
+        if (pending == null) {
+            pending = task;
+            try {
+                task.run();
+            } finally {
+                pendingFetches.remove(key, task);
+            }
+        }
+        try {
+            return pending.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SignServerException) {
+                throw (SignServerException) ex.getCause();
+            }
+            throw new SignServerException("CRL fetch failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SignServerException("Interrupted while waiting for CRL fetch", ex);
+        }
+    }
+
+    /**
+     * @return true if the CRL is from a file with an other modification time
+     * than when it was read
+     */
+    private static boolean isFileModified(final URL url, final CachedCRL cached) {
+        final String modified = getFileModified(url);
+        return modified != null && !modified.equals(cached.getLastModified());
+    }
+
+    /**
+     * @return the modification time of the file or null if not a file URL
+     */
+    private static String getFileModified(final URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return String.valueOf(new File(url.toURI()).lastModified());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void refreshLater(final URL url, final String key, final CachedCRL previous) {
+        REFRESHER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetchShared(key, new Callable<CachedCRL>() {
+                        @Override
+                        public CachedCRL call() throws SignServerException {
+                            final CachedCRL current = getEntry(key);
+                            if (current != previous) {
+                                return current;
+                            }
+                            final CachedCRL fetched = fetch(url, previous);
+                            if (fetched == null) {
+                                throw new SignServerException("Empty CRL fetched from address : " + url.toString());
+                            }
+                            putEntry(key, fetched);
+                            return fetched;
+                        }
+                    });
+                } catch (SignServerException ex) {
+                    LOG.info("CRL refresh failed, using the cached CRL until it expires: " + ex.getMessage());
+                    previous.setRefreshAt(System.currentTimeMillis() + minAge);
+                } finally {
+                    previous.endRefresh();
+                }
+            }
+        });
+    }
+
+    private CachedCRL fetchWithRetry(final URL url, final CachedCRL previous) throws SignServerException {
+        CachedCRL result = null;
+        SignServerException lastException = null;
+        for (int i = 0; i < RETRIES && result == null; i++) {
+            try {
+                result = fetch(url, previous);
+            } catch (SignServerException ex) {
+                lastException = ex;
+                LOG.info("CRL fetch (" + (i + 1) + " of " + RETRIES + ")" + " failed: " + ex.getMessage());
+                try {
+                    Thread.sleep(RETRY_WAIT);
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+            }
+        }
+        if (result == null && lastException != null) {
+            throw lastException;
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the CRL, conditionally if there is a previous one.
+     * @return the cached CRL or null if the CRL was empty
+     */
+    private CachedCRL fetch(final URL url, final CachedCRL previous) throws SignServerException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Fetching CRL from: " + url);
+        }
+        fetches.incrementAndGet();
+        final String fileModified = getFileModified(url);
+        try {
+            final URLConnection connection = url.openConnection();
+            connection.setDoInput(true);
+
+            HttpURLConnection http = null;
+            if (connection instanceof HttpURLConnection) {
+                http = (HttpURLConnection) connection;
+                if (previous != null && previous.getETag() != null) {
+                    http.setRequestProperty("If-None-Match", previous.getETag());
+                }
+                if (previous != null && previous.getLastModified() != null) {
+                    http.setRequestProperty("If-Modified-Since", previous.getLastModified());
+                }
+                if (previous != null && http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("CRL not modified: " + url);
+                    }
+                    http.disconnect();
+                    final long expires = getExpires(previous.getCRL());
+                    return new CachedCRL(previous, expires, getRefreshAt(expires));
+                }
+            }
+
+            final byte[] bytes;
+            try (InputStream in = connection.getInputStream()) {
+                bytes = IOUtils.toByteArray(in);
+            }
+
+            final X509CRL crl;
+            try {
+                crl = (X509CRL) CertificateFactory.getInstance("X509", "BC").generateCRL(new ByteArrayInputStream(bytes));
+            } catch (CertificateException | NoSuchProviderException e) {
+                throw new SignServerException("Error creating BC CertificateFactory provider", e);
+            } catch (CRLException e) {
+                throw new SignServerException(
+                        "Error creating CRL object with bytes from address : "
+                        + url.toString(), e);
+            }
+            if (crl == null) {
+                return null;
+            }
+
+            final long expires = getExpires(crl);
+            return new CachedCRL(crl,
+                    http == null ? null : http.getHeaderField("ETag"),
+                    http == null ? fileModified : http.getHeaderField("Last-Modified"),
+                    expires, getRefreshAt(expires));
+        } catch (IOException e) {
+            throw new SignServerException(
+                    "Error reading CRL from address : " + url.toString(), e);
+        }
+    }
+
+    private long getExpires(final X509CRL crl) {
+        final long now = System.currentTimeMillis();
+        if (crl.getNextUpdate() == null) {
+            return now + maxAge;
+        }
+        return Math.max(crl.getNextUpdate().getTime(), now + minAge);
+    }
+
+    private long getRefreshAt(final long expires) {
+        final long now = System.currentTimeMillis();
+        return now + (expires - now) * 3 / 4;
+    }
+}
@@ -217,14 +217,14 @@ public class CRLValidator extends BaseValidator {
 
             //fetch CRLs obtained form the CDP extension of certificates
             for (URL url : cDPURLs) {
-                certsAndCRLS.add(ValidationUtils.fetchCRLFromURL(url, certFactory));
+                certsAndCRLS.add(CRLCache.getInstance().getCRL(url));
             }
 
             // retrieve and add the crls from CRLPath property of issuer to certStore
             // in case all certificates have CDP extension, CRLPath is ignored
             if (atLeastOneCDPNotFound && CRLPaths != null) {
                 for (URL url : CRLPaths) {
-                    certsAndCRLS.add(ValidationUtils.fetchCRLFromURL(url, certFactory));
+                    certsAndCRLS.add(CRLCache.getInstance().getCRL(url));
                 }
             }
 
@@ -0,0 +1,255 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A CRL held by the CRLCache together with an index of the revoked serial
+ * numbers and the information needed to refresh it.
+ *
+ * The serial numbers are kept sorted in one byte array, each padded to the
+ * same length, so that a lookup is a binary search instead of the linear
+ * scan done by X509CRL.getRevokedCertificate.
+ *
+ * @version $Id$
+ */
+public class CachedCRL {
+
+    /** Numeric order of magnitudes without leading zeros. */
+    private static final Comparator<byte[]> MAGNITUDE_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(final byte[] a, final byte[] b) {
+            if (a.length != b.length) {
+                return a.length - b.length;
+            }
+            for (int i = 0; i < a.length; i++) {
+                final int x = a[i] & 0xff;
+                final int y = b[i] & 0xff;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private final X509CRL crl;
+
+    /** Sorted serial numbers each of serialLength bytes or null if not indexed. */
+    private final byte[] serials;
+    private final int serialLength;
+    private final int count;
+
+    private final String eTag;
+    private final String lastModified;
+    private final long expires;
+    private volatile long refreshAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    /** Public key the CRL signature was last verified with. */
+    private volatile PublicKey verifiedKey;
+
+    /**
+     * Creates a new cached CRL and indexes its serial numbers.
+     * @param crl the CRL
+     * @param eTag HTTP ETag header or null
+     * @param lastModified HTTP Last-Modified header, modification time for
+     * file URLs or null
+     * @param expires time in milliseconds to fetch it again at the latest
+     * @param refreshAt time in milliseconds to start refreshing it
+     */
+    public CachedCRL(final X509CRL crl, final String eTag, final String lastModified, final long expires, final long refreshAt) {
+        this.crl = crl;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+        this.refreshAt = refreshAt;
+
+        final Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+        final byte[][] magnitudes = new byte[entries == null ? 0 : entries.size()][];
+        int maxLength = 1;
+        int i = 0;
+        boolean indexable = true;
+        if (entries != null) {
+            for (X509CRLEntry entry : entries) {
+                final BigInteger serial = entry.getSerialNumber();
+                // Indirect CRLs and negative serial numbers are looked up
+                // in the CRL instead
+                if (entry.getCertificateIssuer() != null || serial.signum() < 0) {
+                    indexable = false;
+                    break;
+                }
+                magnitudes[i] = toMagnitude(serial);
+                maxLength = Math.max(maxLength, magnitudes[i].length);
+                i++;
+            }
+        }
+        if (indexable) {
+            Arrays.sort(magnitudes, MAGNITUDE_ORDER);
+            this.serialLength = maxLength;
+            this.count = magnitudes.length;
+            this.serials = new byte[count * serialLength];
+            for (int j = 0; j < count; j++) {
+                System.arraycopy(magnitudes[j], 0, serials, (j + 1) * serialLength - magnitudes[j].length, magnitudes[j].length);
+            }
+        } else {
+            this.serialLength = 0;
+            this.count = 0;
+            this.serials = null;
+        }
+    }
+
+    /**
+     * Creates a new instance for the same CRL with new expire times, used
+     * when it was not modified.
+     * @param previous cached CRL to copy the CRL and index from
+     * @param expires time in milliseconds to fetch it again at the latest
+     * @param refreshAt time in milliseconds to start refreshing it
+     */
+    public CachedCRL(final CachedCRL previous, final long expires, final long refreshAt) {
+        this.crl = previous.crl;
+        this.serials = previous.serials;
+        this.serialLength = previous.serialLength;
+        this.count = previous.count;
+        this.eTag = previous.eTag;
+        this.lastModified = previous.lastModified;
+        this.verifiedKey = previous.verifiedKey;
+        this.expires = expires;
+        this.refreshAt = refreshAt;
+    }
+
+    public X509CRL getCRL() {
+        return crl;
+    }
+
+    /**
+     * @param serial serial number to look for
+     * @return true if the serial number is in the CRL
+     */
+    public boolean isRevoked(final BigInteger serial) {
+        if (serials == null) {
+            return crl.getRevokedCertificate(serial) != null;
+        }
+        if (serial.signum() < 0) {
+            return false;
+        }
+        final byte[] magnitude = toMagnitude(serial);
+        if (magnitude.length > serialLength) {
+            return false;
+        }
+        final byte[] key = new byte[serialLength];
+        System.arraycopy(magnitude, 0, key, serialLength - magnitude.length, magnitude.length);
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(mid * serialLength, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the CRL entry for a certificate using the index to only look in
+     * the CRL when the serial number is revoked.
+     * @param cert certificate to look for
+     * @return the CRL entry or null if the certificate is not revoked
+     */
+    public X509CRLEntry getRevokedCertificate(final X509Certificate cert) {
+        if (serials != null && !isRevoked(cert.getSerialNumber())) {
+            return null;
+        }
+        return crl.getRevokedCertificate(cert);
+    }
+
+    /**
+     * Verifies the CRL signature unless already verified with the same key.
+     * @param key public key of the issuer
+     * @param provider provider to use
+     * @throws GeneralSecurityException if the signature did not verify
+     */
+    public void verify(final PublicKey key, final String provider) throws GeneralSecurityException {
+        if (!key.equals(verifiedKey)) {
+            crl.verify(key, provider);
+            verifiedKey = key;
+        }
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    long getRefreshAt() {
+        return refreshAt;
+    }
+
+    void setRefreshAt(final long refreshAt) {
+        this.refreshAt = refreshAt;
+    }
+
+    /**
+     * @return true if the caller should do the refresh, false if it is
+     * already in progress
+     */
+    boolean startRefresh() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+    void endRefresh() {
+        refreshing.set(false);
+    }
+
+    private static byte[] toMagnitude(final BigInteger serial) {
+        final byte[] bytes = serial.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            return Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return bytes;
+    }
+
+    private int compare(final int offset, final byte[] key) {
+        for (int i = 0; i < serialLength; i++) {
+            final int a = serials[offset + i] & 0xff;
+            final int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+}
@@ -201,13 +201,18 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
      */
     private void parseAndVerifyCRL(X509Certificate x509Cert, URL crlURL)
             throws SignServerException, CRLCertRevokedException {
-        X509CRL certCRL = null;
+        final CachedCRL cachedCRL = CRLCache.getInstance().getCachedCRL(crlURL);
         String msg;
 
-        certCRL = ValidationUtils.fetchCRLFromURL(crlURL);
+        if (cachedCRL == null) {
+            msg = "Empty CRL fetched from url: " + crlURL.toString();
+            log.error(msg);
+            throw new SignServerException(msg);
+        }
+        final X509CRL certCRL = cachedCRL.getCRL();
 
         try {
-            certCRL.verify(cACert.getPublicKey(), "BC");
+            cachedCRL.verify(cACert.getPublicKey(), "BC");
         } catch (Exception e) {
             msg = "Exception on verifying CRL fetched from url: "
                     + crlURL.toString() + " using CA certificate : "
@@ -241,7 +246,7 @@ public class OCSPCRLPathChecker extends OCSPPathChecker {
         }
 
         // check if certificate is revoked
-        X509CRLEntry crlEntry = certCRL.getRevokedCertificate(x509Cert);
+        X509CRLEntry crlEntry = cachedCRL.getRevokedCertificate(x509Cert);
         if (crlEntry != null) {
 //            msg = "The certificate " + CertTools.getSubjectDN(x509Cert)
 //                    + " has been revoked on " + crlEntry.getRevocationDate();
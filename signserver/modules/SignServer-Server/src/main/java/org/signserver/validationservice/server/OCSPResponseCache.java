@@ -0,0 +1,296 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.cert.ocsp.jcajce.JcaCertificateID;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.signserver.common.SignServerException;
+
+/**
+ * Server-wide cache of OCSP responses for signer certificates, for signers
+ * embedding the OCSP response of their own certificate in the signature.
+ *
+ * A response is used until shortly before its nextUpdate (or for
+ * DEFAULT_MAX_AGE if it has no nextUpdate) and is refreshed in the
+ * background after three quarters of that time so that a signing request
+ * normally never waits for the responder. Only when there is no usable
+ * response in the cache is the responder queried while signing.
+ *
+ * A response not used since the previous refresh is not refreshed again
+ * but removed from the cache, so that responses for certificates no
+ * longer used for signing are not kept alive.
+ *
+ * @version $Id$
+ */
+public class OCSPResponseCache {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(OCSPResponseCache.class);
+
+    /** Time to use a response without nextUpdate. */
+    public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000L;
+
+    /** Time before nextUpdate to stop using a response. */
+    public static final long DEFAULT_MARGIN = 60 * 1000L;
+
+    /** Time to wait before trying again after a failed refresh. */
+    private static final long RETRY_WAIT = 30 * 1000L;
+
+    private static final int TIMEOUT = 10000;
+
+    private static final OCSPResponseCache INSTANCE = new OCSPResponseCache(DEFAULT_MAX_AGE, DEFAULT_MARGIN);
+
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread result = new Thread(r, "OCSPResponseCacheRefresher");
+            result.setDaemon(true);
+            return result;
+        }
+    });
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long maxAge;
+    private final long margin;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> fetchLocks = new ConcurrentHashMap<>();
+    private final AtomicLong fetches = new AtomicLong();
+
+    /**
+     * Creates a new instance of the cache. Normally the shared instance
+     * should be used.
+     * @param maxAge time in milliseconds to use a response without nextUpdate
+     * @param margin time in milliseconds before nextUpdate to stop using a
+     * response
+     */
+    public OCSPResponseCache(final long maxAge, final long margin) {
+        this.maxAge = maxAge;
+        this.margin = margin;
+    }
+
+    /**
+     * @return the instance shared by all workers
+     */
+    public static OCSPResponseCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the OCSP response for the certificate, querying the responder
+     * only if there is no usable response in the cache.
+     * @param cert certificate to get the status for
+     * @param issuer certificate of the issuer of cert
+     * @param url address of the OCSP responder
+     * @return the DER encoded BasicOCSPResponse with status good or null if
+     * the responder did not return exactly one single response
+     * @throws SignServerException in case the response could not be fetched
+     * or the status of the certificate is not good
+     */
+    public byte[] getEncoded(final X509Certificate cert, final X509Certificate issuer, final String url) throws SignServerException {
+        final String key = url + ";" + issuer.getSubjectX500Principal().getName() + ";" + cert.getSerialNumber().toString(16);
+        Entry result = entries.get(key);
+
+        if (result == null || System.currentTimeMillis() >= result.expires) {
+            synchronized (getFetchLock(key)) {
+                result = entries.get(key);
+                if (result == null || System.currentTimeMillis() >= result.expires) {
+                    result = fetch(cert, issuer, url);
+                    if (result == null) {
+                        entries.remove(key);
+                        return null;
+                    }
+                    entries.put(key, result);
+                    scheduleRefresh(key, cert, issuer, url, result);
+                }
+            }
+        }
+        result.used = true;
+        return result.encoded;
+    }
+
+    /**
+     * @return the number of requests made to OCSP responders
+     */
+    public long getFetches() {
+        return fetches.get();
+    }
+
+    /**
+     * Removes all responses from the cache.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private Object getFetchLock(final String key) {
+        Object result = fetchLocks.get(key);
+        if (result == null) {
+            final Object created = new Object();
+            result = fetchLocks.putIfAbsent(key, created);
+            if (result == null) {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    private void scheduleRefresh(final String key, final X509Certificate cert, final X509Certificate issuer, final String url, final Entry previous) {
+        final long now = System.currentTimeMillis();
+        scheduleRefresh(key, cert, issuer, url, previous, (previous.expires - now) * 3 / 4);
+    }
+
+    private void scheduleRefresh(final String key, final X509Certificate cert, final X509Certificate issuer, final String url, final Entry previous, final long delay) {
+        REFRESHER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (getFetchLock(key)) {
+                    if (entries.get(key) != previous) {
+                        return;
+                    }
+                    if (!previous.used) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("OCSP response not used since last refresh, removing: " + key);
+                        }
+                        entries.remove(key, previous);
+                        return;
+                    }
+                    try {
+                        final Entry fetched = fetch(cert, issuer, url);
+                        if (fetched == null) {
+                            throw new SignServerException("No single OCSP response from: " + url);
+                        }
+                        entries.put(key, fetched);
+                        scheduleRefresh(key, cert, issuer, url, fetched);
+                    } catch (SignServerException ex) {
+                        final long remaining = previous.expires - System.currentTimeMillis();
+                        LOG.info("OCSP response refresh failed, using the cached response until it expires: " + ex.getMessage());
+                        if (remaining > 0) {
+                            scheduleRefresh(key, cert, issuer, url, previous, Math.min(RETRY_WAIT, remaining / 2));
+                        }
+                    }
+                }
+            }
+        }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queries the responder for the status of the certificate.
+     * @return the cache entry or null if there was not exactly one single
+     * response
+     */
+    private Entry fetch(final X509Certificate cert, final X509Certificate issuer, final String url) throws SignServerException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Fetching OCSP response from: " + url);
+        }
+        fetches.incrementAndGet();
+        try {
+            final CertificateID id = new JcaCertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1), issuer, cert.getSerialNumber());
+            final byte[] nonce = new byte[16];
+            RANDOM.nextBytes(nonce);
+            final OCSPReqBuilder gen = new OCSPReqBuilder();
+            gen.addRequest(id);
+            gen.setRequestExtensions(new Extensions(new Extension[] { new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, new DEROctetString(new DEROctetString(nonce).getEncoded())) }));
+            final byte[] request = gen.build().getEncoded();
+
+            final HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+            con.setConnectTimeout(TIMEOUT);
+            con.setReadTimeout(TIMEOUT);
+            con.setRequestProperty("Content-Type", "application/ocsp-request");
+            con.setRequestProperty("Accept", "application/ocsp-response");
+            con.setDoOutput(true);
+            try (OutputStream out = con.getOutputStream()) {
+                out.write(request);
+            }
+            if (con.getResponseCode() / 100 != 2) {
+                throw new SignServerException("Invalid HTTP response from OCSP responder: " + con.getResponseCode());
+            }
+            final OCSPResp response;
+            try (InputStream in = con.getInputStream()) {
+                response = new OCSPResp(IOUtils.toByteArray(in));
+            }
+
+            if (response.getStatus() != OCSPResp.SUCCESSFUL) {
+                throw new SignServerException("Invalid OCSP response status: " + response.getStatus());
+            }
+            final BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+            if (basicResponse == null || basicResponse.getResponses().length != 1) {
+                return null;
+            }
+            final SingleResp single = basicResponse.getResponses()[0];
+            final Object status = single.getCertStatus();
+            if (status instanceof RevokedStatus) {
+                throw new SignServerException("OCSP status is revoked");
+            } else if (status != CertificateStatus.GOOD) {
+                throw new SignServerException("OCSP status is unknown");
+            }
+            return new Entry(basicResponse.getEncoded(), getExpires(single));
+        } catch (IOException | OCSPException | OperatorCreationException | CertificateEncodingException e) {
+            throw new SignServerException("Error getting OCSP response from: " + url, e);
+        }
+    }
+
+    private long getExpires(final SingleResp response) {
+        final long now = System.currentTimeMillis();
+        if (response.getNextUpdate() == null) {
+            return now + maxAge;
+        }
+        final long nextUpdate = response.getNextUpdate().getTime();
+        // Use short lived responses for at least half their lifetime
+        return Math.max(nextUpdate - margin, now + (nextUpdate - now) / 2);
+    }
+
+    /** Cached response. */
+    private static class Entry {
+        private final byte[] encoded;
+        private final long expires;
+
+        /** If the response has been used since it was fetched. */
+        private volatile boolean used;
+
+        Entry(final byte[] encoded, final long expires) {
+            this.encoded = encoded;
+            this.expires = expires;
+        }
+    }
+}
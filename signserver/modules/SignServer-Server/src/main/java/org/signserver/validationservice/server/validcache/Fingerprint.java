@@ -0,0 +1,76 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.validcache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 fingerprint of a certificate used as key in the validation cache
+ * instead of the certificate itself, with the hash code computed once.
+ *
+ * @version $Id$
+ */
+final class Fingerprint {
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("SHA-256 not available", ex);
+            }
+        }
+    };
+
+    private final byte[] digest;
+    private final int hash;
+
+    private Fingerprint(final byte[] digest) {
+        this.digest = digest;
+        this.hash = Arrays.hashCode(digest);
+    }
+
+    /**
+     * @param cert certificate to create the fingerprint of
+     * @return the fingerprint or null if the certificate could not be encoded
+     */
+    static Fingerprint of(final Certificate cert) {
+        try {
+            return new Fingerprint(DIGEST.get().digest(cert.getEncoded()));
+        } catch (CertificateEncodingException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Fingerprint)) {
+            return false;
+        }
+        final Fingerprint other = (Fingerprint) obj;
+        return hash == other.hash && Arrays.equals(digest, other.digest);
+    }
+}
@@ -21,41 +21,57 @@ import org.cesecore.util.CertTools;
 import org.signserver.validationservice.common.Validation;
 
 /**
- * Validation Cache remembering a certificate validation for a 
+ * Validation Cache remembering a certificate validation for a
  * configured amount of time. It only caches certificate
- * of a given issuers.
+ * of a given issuers and at most a configured number of validations,
+ * evicting the least recently used ones when full.
  *
  * @author Philip Vendil 26 nov 2007
  * @version $Id$
  */
 public class ValidationCache {
 
+    /** Default maximum number of cached validations. */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
     private Set<String> cachedIssuersDNSet = new HashSet<>();
-    private ValidationMap validationMap = new ValidationMap();
-    private TimeQueue timeQueue;
+    private ValidationMap validationMap;
 
     /**
-     * Constructor creating a ValidationCache
-     * 
+     * Constructor creating a ValidationCache with the default maximum size.
+     *
      * @param cachedIssuersDN a list of issuer DNs that should be cached.
      * @param cacheTimeMS time in milliseconds of how long it should be cached.
      */
     public ValidationCache(List<String> cachedIssuersDN, long cacheTimeMS) {
+        this(cachedIssuersDN, cacheTimeMS, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Constructor creating a ValidationCache
+     *
+     * @param cachedIssuersDN a list of issuer DNs that should be cached.
+     * @param cacheTimeMS time in milliseconds of how long it should be cached.
+     * @param maxSize maximum number of validations to cache.
+     */
+    public ValidationCache(List<String> cachedIssuersDN, long cacheTimeMS, int maxSize) {
         cachedIssuersDNSet.addAll(cachedIssuersDN);
-        timeQueue = new TimeQueue(validationMap, cacheTimeMS);
+        validationMap = new ValidationMap(maxSize, cacheTimeMS);
     }
 
     /**
      * Adds a validation to the cache if the issuer of the certificate
      * is one of the cachedIssuerDNs
-     * 
+     *
      * @param cert certificate used as key in the cache.
      * @param validation the validation to add.
      */
     public void put(Certificate cert, Validation validation) {
         if (cachedIssuersDNSet.contains(CertTools.getIssuerDN(cert))) {
-            timeQueue.pushNew(cert);
-            validationMap.put(cert, validation);
+            final Fingerprint key = Fingerprint.of(cert);
+            if (key != null) {
+                validationMap.put(key, validation);
+            }
         }
     }
 
@@ -65,7 +81,38 @@ public class ValidationCache {
      * @return the validation if it exists otherwise null.
      */
     public Validation get(Certificate cert) {
-        timeQueue.popOld();
-        return validationMap.get(cert);
+        if (cachedIssuersDNSet.isEmpty()) {
+            return null;
+        }
+        final Fingerprint key = Fingerprint.of(cert);
+        return key == null ? null : validationMap.get(key);
+    }
+
+    /**
+     * @return the number of cached validations
+     */
+    public int size() {
+        return validationMap.size();
+    }
+
+    /**
+     * @return the number of lookups that found a validation
+     */
+    public long getHits() {
+        return validationMap.getHits();
+    }
+
+    /**
+     * @return the number of lookups that did not find a validation
+     */
+    public long getMisses() {
+        return validationMap.getMisses();
+    }
+
+    /**
+     * @return the number of validations removed to make room for new ones
+     */
+    public long getEvictions() {
+        return validationMap.getEvictions();
     }
 }
@@ -12,48 +12,184 @@
  *************************************************************************/
 package org.signserver.validationservice.server.validcache;
 
-import java.security.cert.Certificate;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.signserver.validationservice.common.Validation;
 
 /**
- * 
- * Validation Map containing the Certificate -> validation mappings.
+ *
+ * Validation Map containing the fingerprint -> validation mappings,
+ * bounded in size and with a time to live for each validation.
+ *
+ * The map is split into segments each holding at most its share of the
+ * entries. Lookups only read from a ConcurrentHashMap and mark the entry
+ * as referenced. When a segment is full an insert evicts entries using the
+ * CLOCK algorithm: entries are visited in insertion order and an entry
+ * referenced since the last visit gets a second chance, so recently used
+ * validations are kept like with LRU but without reordering on reads.
  *
  * @author Philip Vendil 26 nov 2007
  * @version $Id$
  */
 class ValidationMap {
 
-    Map<Certificate, Validation> validationMap = Collections.synchronizedMap(new HashMap<Certificate, Validation>());
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long cacheTimeMS;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Main constructor for a validation map.
+     *
+     * @param maxSize maximum number of validations to hold, 0 to not hold any
+     * @param cacheTimeMS time in milliseconds that a validation should be cached.
+     */
+    ValidationMap(int maxSize, long cacheTimeMS) {
+        this.cacheTimeMS = cacheTimeMS;
+        final int count = maxSize < 1 ? 1 : Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxSize));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(0, maxSize) / count);
+        }
+    }
 
     /**
      * Adds a entry to the map.
-     * @param cert key 
+     * @param key fingerprint of the certificate
      * @param validation validation
      */
-    void put(Certificate cert, Validation validation) {
-        validationMap.put(cert, validation);
+    void put(Fingerprint key, Validation validation) {
+        final Segment segment = segmentFor(key);
+        if (segment.capacity > 0) {
+            segment.put(new Entry(key, validation, System.currentTimeMillis() + cacheTimeMS));
+        }
     }
 
     /**
      * Returning the validation from the map if it still exists there.
-     * @param cert the certificate to search a validation for
-     * @return the validation of null if it doesn't exists in map.
+     * @param key fingerprint of the certificate to search a validation for
+     * @return the validation of null if it doesn't exists in map or has expired.
+     */
+    Validation get(Fingerprint key) {
+        final Segment segment = segmentFor(key);
+        final Entry entry = segment.map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            if (segment.map.remove(key, entry)) {
+                entry.removed = true;
+            }
+            misses.increment();
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        hits.increment();
+        return entry.validation;
+    }
+
+    /**
+     * @return the number of validations in the map, including expired ones
+     * not yet removed
+     */
+    int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            result += segment.map.size();
+        }
+        return result;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(Fingerprint key) {
+        final int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Part of the map with its own eviction order.
      */
-    Validation get(Certificate cert) {
-        return validationMap.get(cert);
+    private class Segment {
+
+        private final ConcurrentMap<Fingerprint, Entry> map = new ConcurrentHashMap<>();
+
+        /** Entries in the order visited by the clock hand, guarded by this. */
+        private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void put(Entry entry) {
+            final Entry previous = map.put(entry.key, entry);
+            if (previous != null) {
+                previous.removed = true;
+            }
+            clock.addLast(entry);
+
+            // Evict while full and drop entries already removed from the map
+            final long now = System.currentTimeMillis();
+            while (map.size() > capacity || clock.size() > 2 * capacity) {
+                final Entry candidate = clock.pollFirst();
+                if (candidate == null) {
+                    break;
+                }
+                if (candidate.removed) {
+                    continue;
+                }
+                if (candidate.referenced && candidate.expires > now) {
+                    candidate.referenced = false;
+                    clock.addLast(candidate);
+                } else if (map.remove(candidate.key, candidate)) {
+                    candidate.removed = true;
+                    evictions.increment();
+                }
+            }
+        }
     }
 
     /**
-     * Removing and entry from the cache.
-     * 
-     * @param cert key that should be removed from the cache.
+     * Validation with its expire time and eviction state.
      */
-    void remove(Certificate cert) {
-        validationMap.remove(cert);
+    private static class Entry {
+
+        private final Fingerprint key;
+        private final Validation validation;
+        private final long expires;
+
+        /** If looked up since the clock hand last passed. */
+        private volatile boolean referenced;
+
+        /** If no longer in the map. */
+        private volatile boolean removed;
+
+        Entry(Fingerprint key, Validation validation, long expires) {
+            this.key = key;
+            this.validation = validation;
+            this.expires = expires;
+        }
     }
 }
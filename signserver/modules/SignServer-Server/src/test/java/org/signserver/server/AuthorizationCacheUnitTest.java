@@ -0,0 +1,94 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.util.LinkedList;
+import java.util.List;
+import org.signserver.common.WorkerConfig;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the AuthorizationCache.
+ *
+ * @version $Id$
+ */
+public class AuthorizationCacheUnitTest {
+
+    /**
+     * Tests that the cache is bounded and counts hits and misses.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testBoundedWithStatistics() throws Exception {
+        final AuthorizationCache<String> instance = new AuthorizationCache<>(10);
+        for (int i = 0; i < 100; i++) {
+            assertNull(instance.get("client" + i));
+            instance.put("client" + i, i % 2 == 0);
+            assertEquals(i % 2 == 0, instance.get("client" + i));
+        }
+        assertEquals("size", 10, instance.size());
+        assertEquals("hits", 100, instance.getHits());
+        assertEquals("misses", 100, instance.getMisses());
+        assertEquals("10 of 10 decisions, 100 hits, 100 misses, 50% hit rate", instance.getStatistics());
+
+        instance.clear();
+        assertEquals("size", 0, instance.size());
+    }
+
+    /**
+     * Tests that the least recently used decision is the one removed when
+     * the cache is full.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLeastRecentlyUsedRemoved() throws Exception {
+        final AuthorizationCache<String> instance = new AuthorizationCache<>(3);
+        instance.put("client1", true);
+        instance.put("client2", true);
+        instance.put("client3", false);
+
+        // Use client1 so that client2 becomes the least recently used
+        assertEquals(Boolean.TRUE, instance.get("client1"));
+        instance.put("client4", true);
+
+        assertEquals("size", 3, instance.size());
+        assertNull("client2 removed", instance.get("client2"));
+        assertEquals(Boolean.TRUE, instance.get("client1"));
+        assertEquals(Boolean.FALSE, instance.get("client3"));
+        assertEquals(Boolean.TRUE, instance.get("client4"));
+    }
+
+    /**
+     * Tests the configuration of the cache size.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConfiguration() throws Exception {
+        final WorkerConfig config = new WorkerConfig();
+        final List<String> errors = new LinkedList<>();
+        assertEquals("default", AuthorizationCache.DEFAULT_SIZE, AuthorizationCache.create(config, errors).getMaxSize());
+
+        config.setProperty(AuthorizationCache.PROPERTY_SIZE, "0");
+        final AuthorizationCache<String> disabled = AuthorizationCache.create(config, errors);
+        disabled.put("client", true);
+        assertNull("not cached", disabled.get("client"));
+        assertTrue("errors: " + errors, errors.isEmpty());
+
+        config.setProperty(AuthorizationCache.PROPERTY_SIZE, "-1");
+        AuthorizationCache.create(config, errors);
+        config.setProperty(AuthorizationCache.PROPERTY_SIZE, "lots");
+        AuthorizationCache.create(config, errors);
+        assertEquals("errors: " + errors, 2, errors.size());
+    }
+}
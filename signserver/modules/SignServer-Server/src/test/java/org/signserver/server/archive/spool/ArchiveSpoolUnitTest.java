@@ -0,0 +1,447 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.spool;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.signserver.server.archive.ArchiveException;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the ArchiveSpool.
+ *
+ * @version $Id$
+ */
+public class ArchiveSpoolUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ArchiveSpoolUnitTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that a row survives being written to and read from the spool.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testEncoding() throws Exception {
+        final SpooledArchive expected = new SpooledArchive("1;2;abc", 123456789L, 1, 2,
+                "abc", "CN=Issuer", "1a2b", null, "dataåäö", 3);
+        final SpooledArchive actual = SpooledArchive.parse(expected.getEncoded());
+        assertEquals("uniqueId", expected.getUniqueId(), actual.getUniqueId());
+        assertEquals("time", expected.getTime(), actual.getTime());
+        assertEquals("type", expected.getType(), actual.getType());
+        assertEquals("signerId", expected.getSignerId(), actual.getSignerId());
+        assertEquals("archiveId", expected.getArchiveId(), actual.getArchiveId());
+        assertEquals("issuer", expected.getRequestIssuerDN(), actual.getRequestIssuerDN());
+        assertEquals("serial", expected.getRequestCertSerialnumber(), actual.getRequestCertSerialnumber());
+        assertNull("ip", actual.getRequestIP());
+        assertEquals("data", expected.getArchiveData(), actual.getArchiveData());
+        assertEquals("encoding", expected.getDataEncoding(), actual.getDataEncoding());
+    }
+
+    /**
+     * Tests that appended rows are delivered in order, also over several
+     * segments.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDelivery() throws Exception {
+        final File dir = folder.newFolder();
+        final MemorySink sink = new MemorySink();
+        final ArchiveSpool instance = new ArchiveSpool(dir, 1000, false, 10, 4096, sink);
+        try {
+            for (int i = 0; i < 200; i++) {
+                instance.append(createArchive(i), 1000);
+            }
+            sink.await(200);
+            assertEquals("order", createIds(0, 200), sink.getIds());
+            waitFor(instance, 200);
+            assertEquals("pending", 0, instance.getPending());
+            final int segments = countSegments(dir);
+            assertTrue("old segments removed: " + segments, segments <= 1);
+        } finally {
+            instance.close();
+        }
+    }
+
+    /**
+     * Tests that archiving fails after the timeout when the spool is full.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFull() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final ArchiveSpool instance = new ArchiveSpool(folder.newFolder(), 5, false, 10, 4096, new ArchiveSink() {
+            @Override
+            public void insert(List<SpooledArchive> batch) throws ArchiveException {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {
+                    throw new ArchiveException("Interrupted");
+                }
+            }
+        });
+        try {
+            for (int i = 0; i < 5; i++) {
+                instance.append(createArchive(i), 1000);
+            }
+            try {
+                instance.append(createArchive(5), 100);
+                fail("Should have failed as the spool is full");
+            } catch (ArchiveException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("full"));
+            }
+            blocked.countDown();
+            instance.append(createArchive(5), 5000);
+        } finally {
+            blocked.countDown();
+            instance.close();
+        }
+    }
+
+    /**
+     * Tests that rows not stored when the spool is closed are delivered when
+     * it is opened again and that stored rows are not delivered again.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRecovery() throws Exception {
+        final File dir = folder.newFolder();
+        final MemorySink first = new MemorySink();
+        ArchiveSpool instance = new ArchiveSpool(dir, 1000, true, 10, 4096, first);
+        for (int i = 0; i < 50; i++) {
+            instance.append(createArchive(i), 1000);
+        }
+        first.await(50);
+        waitFor(instance, 50);
+        first.setFailing(true);
+        for (int i = 50; i < 120; i++) {
+            instance.append(createArchive(i), 1000);
+        }
+        instance.close();
+        assertEquals("stored before close", createIds(0, 50), first.getIds());
+
+        final MemorySink second = new MemorySink();
+        instance = new ArchiveSpool(dir, 1000, false, 10, 4096, second);
+        try {
+            second.await(70);
+            assertEquals("recovered", createIds(50, 120), second.getIds());
+
+            instance.append(createArchive(120), 1000);
+            second.await(71);
+            assertEquals("after recovery", createIds(50, 121), second.getIds());
+        } finally {
+            instance.close();
+        }
+    }
+
+    /**
+     * Tests that a row the sink can never store is moved to the dead letter
+     * file after the configured attempts and that the other rows of its
+     * batch and the rows after it are still delivered.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDeadLetter() throws Exception {
+        final File dir = folder.newFolder();
+        final MemorySink sink = new MemorySink();
+        sink.setRejected("1;42;archive-3");
+        final ArchiveSpool instance = new ArchiveSpool(dir, 1000, false, 10, 4096, 2, sink);
+        try {
+            for (int i = 0; i < 10; i++) {
+                instance.append(createArchive(i), 1000);
+            }
+            sink.await(9);
+            waitFor(instance, 10);
+            assertEquals("dead letters", 1, instance.getDeadLettered());
+
+            instance.append(createArchive(10), 1000);
+            sink.await(10);
+            assertFalse("rejected row not stored", sink.getIds().contains("1;42;archive-3"));
+        } finally {
+            instance.close();
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(instance.getDeadLetterFile()))) {
+            final byte[] data = new byte[in.readInt()];
+            in.readInt();
+            in.readFully(data);
+            assertEquals("dead letter", "1;42;archive-3", SpooledArchive.parse(data).getUniqueId());
+            assertEquals("only one dead letter", -1, in.read());
+        }
+    }
+
+    /**
+     * Tests that the rows before a corrupt record are recovered and that
+     * new rows are not written over the records after it.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRecoverCorruptRecord() throws Exception {
+        final File dir = folder.newFolder();
+        final MemorySink first = new MemorySink();
+        first.setFailing(true);
+        ArchiveSpool instance = new ArchiveSpool(dir, 1000, true, 10, 4096, first);
+        for (int i = 0; i < 10; i++) {
+            instance.append(createArchive(i), 1000);
+        }
+        instance.close();
+
+        // Change the data of the sixth record
+        final File[] files = dir.listFiles();
+        File segment = null;
+        for (File file : files) {
+            if (file.getName().endsWith(".spool")) {
+                segment = file;
+            }
+        }
+        assertNotNull("segment", segment);
+        final byte[] before;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            int position = 8;
+            for (int i = 0; i < 5; i++) {
+                raf.seek(position);
+                position += 8 + raf.readInt();
+            }
+            raf.seek(position + 8);
+            final int b = raf.read();
+            raf.seek(position + 8);
+            raf.write(b ^ 0xff);
+            before = new byte[(int) raf.length()];
+            raf.seek(0);
+            raf.readFully(before);
+        }
+
+        final MemorySink second = new MemorySink();
+        instance = new ArchiveSpool(dir, 1000, false, 10, 4096, second);
+        try {
+            second.await(5);
+            assertEquals("recovered", createIds(0, 5), second.getIds());
+
+            instance.append(createArchive(10), 1000);
+            second.await(6);
+            waitFor(instance, 6);
+        } finally {
+            instance.close();
+        }
+
+        final File corrupt = new File(dir, segment.getName() + ".corrupt");
+        assertTrue("kept corrupt segment", corrupt.exists());
+        final byte[] after;
+        try (RandomAccessFile raf = new RandomAccessFile(corrupt, "r")) {
+            after = new byte[(int) raf.length()];
+            raf.readFully(after);
+        }
+        assertTrue("records not overwritten", Arrays.equals(
+                Arrays.copyOfRange(before, 8, before.length),
+                Arrays.copyOfRange(after, 8, after.length)));
+    }
+
+    /**
+     * Tests that a directory can only be drained by one spool at a time and
+     * that it can be opened again after the spool is closed.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDirectoryLocked() throws Exception {
+        final File dir = folder.newFolder();
+        final ArchiveSpool instance = new ArchiveSpool(dir, 1000, false, 10, 4096, new MemorySink());
+        try {
+            new ArchiveSpool(dir, 1000, false, 10, 4096, new MemorySink());
+            fail("Should not open the same directory twice");
+        } catch (IOException expected) { // NOPMD
+            // OK
+        } finally {
+            instance.close();
+        }
+        new ArchiveSpool(dir, 1000, false, 10, 4096, new MemorySink()).close();
+    }
+
+    /**
+     * Tests that getInstance shares the spool for the same settings, rejects
+     * other settings and that closeAll closes the spool.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testGetInstance() throws Exception {
+        final File dir = folder.newFolder();
+        final MemorySink sink = new MemorySink();
+        final ArchiveSpool instance = ArchiveSpool.getInstance(dir, 1000, false, sink);
+        try {
+            assertSame("same settings", instance, ArchiveSpool.getInstance(dir, 1000, false, sink));
+            try {
+                ArchiveSpool.getInstance(dir, 2000, false, sink);
+                fail("Should reject other max pending");
+            } catch (IOException expected) { // NOPMD
+                // OK
+            }
+            try {
+                ArchiveSpool.getInstance(dir, 1000, true, sink);
+                fail("Should reject other sync");
+            } catch (IOException expected) { // NOPMD
+                // OK
+            }
+        } finally {
+            ArchiveSpool.closeAll();
+        }
+        try {
+            instance.append(createArchive(1), 1000);
+            fail("Should be closed");
+        } catch (ArchiveException expected) { // NOPMD
+            // OK
+        }
+        final ArchiveSpool reopened = ArchiveSpool.getInstance(dir, 2000, false, sink);
+        try {
+            assertNotSame("reopened", instance, reopened);
+        } finally {
+            ArchiveSpool.closeAll();
+        }
+    }
+
+    /**
+     * Tests archiving from 64 concurrent threads and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final int threads = 64;
+        final int perThread = 500;
+        final MemorySink sink = new MemorySink();
+        final ArchiveSpool instance = new ArchiveSpool(folder.newFolder(), 10000, false,
+                ArchiveSpool.DEFAULT_BATCH_SIZE, 1024 * 1024, sink);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t * perThread;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            instance.append(createArchive(offset + i), 10000);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Spooled archivings per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+
+            sink.await(threads * perThread);
+            assertEquals("delivered", threads * perThread, sink.getIds().size());
+        } finally {
+            executor.shutdown();
+            instance.close();
+        }
+    }
+
+    private static void waitFor(final ArchiveSpool spool, final long archived) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (spool.getArchived() < archived && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals("archived", archived, spool.getArchived());
+    }
+
+    private static int countSegments(final File dir) {
+        int result = 0;
+        for (String name : dir.list()) {
+            if (name.endsWith(".spool")) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static SpooledArchive createArchive(final int i) {
+        return SpooledArchive.create(1, 42, "archive-" + i, null, "127.0.0.1",
+                "data " + i, 0);
+    }
+
+    private static List<String> createIds(final int from, final int to) {
+        final List<String> result = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            result.add("1;42;archive-" + i);
+        }
+        return result;
+    }
+
+    /** Sink keeping the rows in memory, ignoring rows already stored. */
+    private static class MemorySink implements ArchiveSink {
+        private final Map<String, SpooledArchive> rows = new LinkedHashMap<>();
+        private volatile boolean failing;
+        private volatile String rejected;
+
+        @Override
+        public synchronized void insert(List<SpooledArchive> batch) throws ArchiveException {
+            if (failing) {
+                throw new ArchiveException("Database unavailable");
+            }
+            for (SpooledArchive archive : batch) {
+                if (archive.getUniqueId().equals(rejected)) {
+                    throw new ArchiveException("Constraint violation: " + rejected);
+                }
+            }
+            for (SpooledArchive archive : batch) {
+                if (!rows.containsKey(archive.getUniqueId())) {
+                    rows.put(archive.getUniqueId(), archive);
+                }
+            }
+            notifyAll();
+        }
+
+        public void setFailing(final boolean failing) {
+            this.failing = failing;
+        }
+
+        public void setRejected(final String rejected) {
+            this.rejected = rejected;
+        }
+
+        public synchronized List<String> getIds() {
+            return new ArrayList<>(rows.keySet());
+        }
+
+        public synchronized void await(final int count) throws InterruptedException {
+            final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            while (rows.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+            assertEquals("rows", count, rows.size());
+        }
+    }
+}
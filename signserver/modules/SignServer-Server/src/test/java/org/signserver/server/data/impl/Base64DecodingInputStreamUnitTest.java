@@ -0,0 +1,77 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Base64DecodingInputStream.
+ *
+ * @version $Id$
+ */
+public class Base64DecodingInputStreamUnitTest {
+
+    /**
+     * Tests decoding data spanning several buffers, with and without padding
+     * and with line breaks in the encoded data.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDecode() throws Exception {
+        for (int length : new int[] { 0, 1, 2, 3, 4, 8191, 8192, 8193, 100000 }) {
+            final byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (i * 7);
+            }
+            final String encoded = new String(Base64.encode(data), StandardCharsets.US_ASCII);
+
+            // Insert line breaks as in PEM
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < encoded.length(); i += 64) {
+                sb.append(encoded, i, Math.min(i + 64, encoded.length())).append("\r\n");
+            }
+
+            for (String input : new String[] { encoded, sb.toString() }) {
+                final byte[] decoded = IOUtils.toByteArray(new Base64DecodingInputStream(
+                        new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII))));
+                assertEquals("length " + length, Hex.toHexString(data), Hex.toHexString(decoded));
+            }
+        }
+    }
+
+    /**
+     * Tests that incorrect characters gives an exception.
+     * @throws Exception in case of error
+     */
+    @Test(expected = Base64DecodingInputStream.IllegalEncodingException.class)
+    public void testIllegalCharacters() throws Exception {
+        IOUtils.toByteArray(new Base64DecodingInputStream(
+                new ByteArrayInputStream("QUJD*EVG".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    /**
+     * Tests that data not ending with a complete group gives an exception.
+     * @throws Exception in case of error
+     */
+    @Test(expected = Base64DecodingInputStream.IllegalEncodingException.class)
+    public void testIncomplete() throws Exception {
+        IOUtils.toByteArray(new Base64DecodingInputStream(
+                new ByteArrayInputStream("QUJDREVG\nQUJ".getBytes(StandardCharsets.US_ASCII))));
+    }
+}
@@ -124,7 +124,7 @@ public class DataFactoryUnitTest {
         File file;
         
         // As FileOutputStream
-        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, fileRepository)) {
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, TemporarlyWritableData.DEFAULT_SIZE_THRESHOLD, fileRepository)) {
             // Write data to file
             try (OutputStream fos = writeableData.getAsFileOutputStream()) {
                 fos.write(bytes);
@@ -152,7 +152,7 @@ public class DataFactoryUnitTest {
         assertFalse("file removed", file.exists());
         
         // As in-memory outputstream
-        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, fileRepository)) {
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, TemporarlyWritableData.DEFAULT_SIZE_THRESHOLD, fileRepository)) {
             // Write data to file
             try (OutputStream fos = writeableData.getAsInMemoryOutputStream()) {
                 fos.write(bytes);
@@ -180,7 +180,7 @@ public class DataFactoryUnitTest {
         assertFalse("file removed", file.exists());
         
         // As any OutPutStream with defaultToDisk=false
-        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, fileRepository)) {
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, TemporarlyWritableData.DEFAULT_SIZE_THRESHOLD, fileRepository)) {
             // Write data to file
             try (OutputStream fos = writeableData.getAsOutputStream()) {
                 fos.write(bytes);
@@ -208,7 +208,7 @@ public class DataFactoryUnitTest {
         assertFalse("file removed", file.exists());
         
         // As any OutputStream with defaultToDisk=true
-        try (CloseableWritableData writeableData = dataFactory.createWritableData(true, fileRepository)) {
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(true, TemporarlyWritableData.DEFAULT_SIZE_THRESHOLD, fileRepository)) {
             // Write data to file
             try (OutputStream fos = writeableData.getAsFileOutputStream()) {
                 fos.write(bytes);
@@ -236,7 +236,7 @@ public class DataFactoryUnitTest {
         assertFalse("file removed", file.exists());
         
         // As File
-        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, fileRepository)) {
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, TemporarlyWritableData.DEFAULT_SIZE_THRESHOLD, fileRepository)) {
             // Write data to file
             File outFile = writeableData.getAsFile();
             FileUtils.writeByteArrayToFile(outFile, bytes);
@@ -324,4 +324,144 @@ public class DataFactoryUnitTest {
         try (CloseableReadableData readableData = dataFactory.createReadableData(upload.parseTheRequest(), fileRepository)) {}
     }
 
+    /**
+     * Tests the method DataFactory.createReadabeData(InputStream,...) with
+     * data below the size threshold.
+     * @throws Exception 
+     */
+    @Test
+    public void testDataFactoryCreateReadableData_stream() throws Exception {
+        DataFactory dataFactory = createDataFactory();
+
+        byte[] bytes = "ABCDEFGHIJKLM".getBytes(StandardCharsets.US_ASCII);
+
+        try (CloseableReadableData readableData = dataFactory.createReadableData(new ByteArrayInputStream(bytes), 10000, 500, fileRepository)) {
+            assertEquals("length", bytes.length, readableData.getLength());
+            assertFalse("not file", readableData.isFile());
+            assertEquals("byte array", Hex.toHexString(bytes), Hex.toHexString(readableData.getAsByteArray()));
+            assertEquals("stream", Hex.toHexString(bytes), Hex.toHexString(IOUtils.toByteArray(readableData.getAsInputStream())));
+        }
+    }
+
+    /**
+     * Tests that the method DataFactory.createReadabeData(InputStream,...)
+     * writes data above the size threshold directly to a file.
+     * @throws Exception 
+     */
+    @Test
+    public void testDataFactoryCreateReadableData_stream_aboveThreshold() throws Exception {
+        DataFactory dataFactory = createDataFactory();
+
+        byte[] bytes = new byte[200 * 1024];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+
+        File file;
+        try (CloseableReadableData readableData = dataFactory.createReadableData(new ByteArrayInputStream(bytes), 1000000, 1000, fileRepository)) {
+            assertEquals("length", bytes.length, readableData.getLength());
+            assertTrue("file", readableData.isFile());
+            file = readableData.getAsFile();
+            assertEquals("file", Hex.toHexString(bytes), Hex.toHexString(FileUtils.readFileToByteArray(file)));
+            assertEquals("byte array", Hex.toHexString(bytes), Hex.toHexString(readableData.getAsByteArray()));
+            assertEquals("stream", Hex.toHexString(bytes), Hex.toHexString(IOUtils.toByteArray(readableData.getAsInputStream())));
+        }
+        // File removed (auto-closeable)
+        assertFalse("file removed", file.exists());
+    }
+
+    /**
+     * Tests that the method DataFactory.createReadabeData(InputStream,...)
+     * throws an Exception on too large data (+1).
+     * @throws Exception 
+     */
+    @Test(expected = FileUploadBase.SizeLimitExceededException.class)
+    public void testDataFactoryCreateReadableData_stream_tooLarge1() throws Exception {
+        DataFactory dataFactory = createDataFactory();
+        byte[] bytes = new byte[1001];
+        try (CloseableReadableData readableData = dataFactory.createReadableData(new ByteArrayInputStream(bytes), 1000, 20, fileRepository)) {}
+    }
+
+    /**
+     * Tests that in-memory writable data is moved to a file when it gets
+     * larger than the size threshold, and that it can still be read in
+     * all ways.
+     * @throws Exception 
+     */
+    @Test
+    public void testTemporarlyWritableData_spillToFile() throws Exception {
+        final byte[] bytes = new byte[300 * 1024 + 17];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+
+        File file;
+        try (CloseableWritableData writeableData = new TemporarlyWritableData(false, fileRepository, 100 * 1024)) {
+            final OutputStream out = writeableData.getAsInMemoryOutputStream();
+            out.write(bytes, 0, 1000);
+            out.write(bytes[1000]);
+            out.write(bytes, 1001, bytes.length - 1001);
+
+            ReadableData readableData = writeableData.toReadableData();
+            assertEquals("length", bytes.length, readableData.getLength());
+            assertTrue("moved to file", readableData.isFile());
+            assertEquals("stream", Hex.toHexString(bytes), Hex.toHexString(IOUtils.toByteArray(readableData.getAsInputStream())));
+            assertEquals("byte array", Hex.toHexString(bytes), Hex.toHexString(readableData.getAsByteArray()));
+            file = readableData.getAsFile();
+            assertEquals("file", Hex.toHexString(bytes), Hex.toHexString(FileUtils.readFileToByteArray(file)));
+        }
+        // File removed (auto-closeable)
+        assertFalse("file removed", file.exists());
+    }
+
+    /**
+     * Tests that in-memory writable data spanning several chunks but below
+     * the size threshold is kept in memory.
+     * @throws Exception 
+     */
+    @Test
+    public void testTemporarlyWritableData_chunks() throws Exception {
+        final byte[] bytes = new byte[3 * SpillingOutputStream.CHUNK_SIZE + 5];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 13);
+        }
+
+        try (CloseableWritableData writeableData = new TemporarlyWritableData(false, fileRepository, bytes.length)) {
+            try (OutputStream out = writeableData.getAsInMemoryOutputStream()) {
+                out.write(bytes);
+            }
+
+            ReadableData readableData = writeableData.toReadableData();
+            assertEquals("length", bytes.length, readableData.getLength());
+            assertFalse("in memory", readableData.isFile());
+            assertEquals("stream", Hex.toHexString(bytes), Hex.toHexString(IOUtils.toByteArray(readableData.getAsInputStream())));
+            assertEquals("byte array", Hex.toHexString(bytes), Hex.toHexString(readableData.getAsByteArray()));
+        }
+    }
+
+    /**
+     * Tests that the size threshold given to the data factory is used for
+     * the writable data.
+     * @throws Exception 
+     */
+    @Test
+    public void testDataFactoryCreateWritableData_sizeThreshold() throws Exception {
+        DataFactory dataFactory = createDataFactory();
+        final byte[] bytes = new byte[1000];
+
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, 100, fileRepository)) {
+            try (OutputStream out = writeableData.getAsOutputStream()) {
+                out.write(bytes);
+            }
+            assertTrue("moved to file", writeableData.toReadableData().isFile());
+        }
+
+        try (CloseableWritableData writeableData = dataFactory.createWritableData(false, bytes.length, fileRepository)) {
+            try (OutputStream out = writeableData.getAsOutputStream()) {
+                out.write(bytes);
+            }
+            assertFalse("in memory", writeableData.toReadableData().isFile());
+        }
+    }
+
 }
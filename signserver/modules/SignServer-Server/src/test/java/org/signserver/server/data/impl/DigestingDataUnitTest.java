@@ -0,0 +1,127 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.data.impl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the DigestingReadableData and DigestingWritableData
+ * classes.
+ *
+ * @version $Id$
+ */
+public class DigestingDataUnitTest {
+
+    private final File fileRepository = new UploadConfig().getRepository();
+
+    private final byte[] data = createData(100000);
+
+    /**
+     * Tests that the digests are computed while the data is read.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReadableDigestWhileReading() throws Exception {
+        try (ByteArrayReadableData delegate = new ByteArrayReadableData(data, fileRepository)) {
+            final DigestingReadableData instance = new DigestingReadableData(delegate, "SHA-256", "SHA-1");
+            try (InputStream in = instance.getAsInputStream()) {
+                assertArrayEquals(data, IOUtils.toByteArray(in));
+            }
+            assertArrayEquals(digest("SHA-256", data), instance.getDigest("SHA-256"));
+            assertArrayEquals(digest("SHA-1", data), instance.getDigest("SHA-1"));
+        }
+    }
+
+    /**
+     * Tests that the digests are correct even if the stream was not read
+     * until the end.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReadableDigestPartiallyRead() throws Exception {
+        try (ByteArrayReadableData delegate = new ByteArrayReadableData(data, fileRepository)) {
+            final DigestingReadableData instance = new DigestingReadableData(delegate, "SHA-256");
+            try (InputStream in = instance.getAsInputStream()) {
+                assertEquals(1000, in.read(new byte[1000]));
+                assertEquals(500, in.skip(500));
+            }
+            assertArrayEquals(digest("SHA-256", data), instance.getDigest("SHA-256"));
+        }
+    }
+
+    /**
+     * Tests that the digests are computed when the data is read as a byte
+     * array.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReadableDigestByteArray() throws Exception {
+        try (ByteArrayReadableData delegate = new ByteArrayReadableData(data, fileRepository)) {
+            final DigestingReadableData instance = new DigestingReadableData(delegate, "SHA-256");
+            assertArrayEquals(data, instance.getAsByteArray());
+            assertArrayEquals(data, instance.getAsByteArray());
+            assertArrayEquals(digest("SHA-256", data), instance.getDigest("SHA-256"));
+        }
+    }
+
+    /**
+     * Tests that the digests are computed while the response is written.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testWritableDigestWhileWriting() throws Exception {
+        try (TemporarlyWritableData delegate = new TemporarlyWritableData(true, fileRepository)) {
+            final DigestingWritableData instance = new DigestingWritableData(delegate, "SHA-256");
+            try (OutputStream out = instance.getAsFileOutputStream()) {
+                out.write(data, 0, 10);
+                out.write(data[10]);
+                out.write(data, 11, data.length - 11);
+            }
+            assertArrayEquals(digest("SHA-256", data), instance.getDigest("SHA-256"));
+            assertArrayEquals(data, instance.toReadableData().getAsByteArray());
+        }
+    }
+
+    /**
+     * Tests that the digests are computed from the written file when it was
+     * written directly.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testWritableDigestFile() throws Exception {
+        try (TemporarlyWritableData delegate = new TemporarlyWritableData(true, fileRepository)) {
+            final DigestingWritableData instance = new DigestingWritableData(delegate, "SHA-256");
+            FileUtils.writeByteArrayToFile(instance.getAsFile(), data);
+            assertArrayEquals(digest("SHA-256", data), instance.getDigest("SHA-256"));
+        }
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) throws Exception {
+        return MessageDigest.getInstance(algorithm).digest(data);
+    }
+
+    private static byte[] createData(int size) {
+        final byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) (i * 31);
+        }
+        return result;
+    }
+}
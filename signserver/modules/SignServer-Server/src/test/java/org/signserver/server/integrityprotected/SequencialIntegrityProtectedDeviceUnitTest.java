@@ -0,0 +1,225 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.integrityprotected;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.cesecore.audit.enums.EventStatus;
+import org.cesecore.audit.enums.EventType;
+import org.cesecore.audit.enums.ModuleType;
+import org.cesecore.audit.enums.ServiceType;
+import org.cesecore.audit.log.AuditRecordStorageException;
+import org.cesecore.time.TrustedTime;
+import org.signserver.server.log.SignServerEventTypes;
+import org.signserver.server.log.SignServerModuleTypes;
+import org.signserver.server.log.SignServerServiceTypes;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the group commit mode of the
+ * SequencialIntegrityProtectedDevice.
+ *
+ * @version $Id$
+ */
+public class SequencialIntegrityProtectedDeviceUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(SequencialIntegrityProtectedDeviceUnitTest.class);
+
+    private static final int THREADS = 64;
+    private static final int PER_THREAD = 20;
+
+    /**
+     * Tests that events logged concurrently get contiguous sequence numbers
+     * and are stored in fewer transactions with group commit.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        final MockLoggerSession session = new MockLoggerSession(null);
+        final long time = logConcurrently(new MockDevice(session), createProperties(true), null);
+        LOG.info("Group commit: " + (THREADS * PER_THREAD * 1000000000L / time) + " events per second in "
+                + session.transactions + " transactions");
+
+        assertSequence(session, THREADS * PER_THREAD);
+        assertTrue("fewer transactions: " + session.transactions, session.transactions < THREADS * PER_THREAD);
+    }
+
+    /**
+     * Tests logging one event at the time for comparison.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testWithoutGroupCommit() throws Exception {
+        final MockLoggerSession session = new MockLoggerSession(null);
+        final long time = logConcurrently(new MockDevice(session), createProperties(false), null);
+        LOG.info("Without group commit: " + (THREADS * PER_THREAD * 1000000000L / time) + " events per second in "
+                + session.transactions + " transactions");
+
+        assertSequence(session, THREADS * PER_THREAD);
+        assertEquals("transactions", THREADS * PER_THREAD, session.transactions);
+    }
+
+    /**
+     * Tests that only the callers with failing events fail and that no
+     * sequence numbers are skipped.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFailingEvent() throws Exception {
+        final MockLoggerSession session = new MockLoggerSession("fail");
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        logConcurrently(new MockDevice(session), createProperties(true), failures);
+
+        assertEquals("failures: " + failures, THREADS, failures.size());
+        for (Throwable failure : failures) {
+            assertTrue(failure.toString(), failure instanceof AuditRecordStorageException);
+        }
+        assertSequence(session, THREADS * (PER_THREAD - 1));
+    }
+
+    private static long logConcurrently(final SequencialIntegrityProtectedDevice device,
+            final Properties properties, final List<Throwable> failures) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < PER_THREAD; i++) {
+                            // The first event of each thread fails if failures are expected
+                            final String authToken = failures != null && i == 0 ? "fail" : "thread" + thread;
+                            try {
+                                device.log(new TrustedTime(), SignServerEventTypes.PROCESS, EventStatus.SUCCESS,
+                                        SignServerModuleTypes.WORKER, SignServerServiceTypes.SIGNSERVER,
+                                        authToken, null, null, null, null, properties);
+                            } catch (AuditRecordStorageException ex) {
+                                if (failures == null) {
+                                    throw ex;
+                                }
+                                failures.add(ex);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    throw new Exception(ex.getCause());
+                }
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertSequence(final MockLoggerSession session, final int expected) {
+        final List<Long> sequenceNumbers;
+        synchronized (session) {
+            sequenceNumbers = new ArrayList<>(session.sequenceNumbers);
+        }
+        assertEquals("events", expected, sequenceNumbers.size());
+        for (int i = 0; i < expected; i++) {
+            assertEquals("sequence number", Long.valueOf(i + 1), sequenceNumbers.get(i));
+        }
+    }
+
+    private static Properties createProperties(final boolean groupCommit) {
+        final Properties result = new Properties();
+        result.setProperty(SequencialIntegrityProtectedDevice.PROPERTY_GROUP_COMMIT, String.valueOf(groupCommit));
+        result.setProperty(SequencialIntegrityProtectedDevice.PROPERTY_GROUP_COMMIT_MAX_BATCH_SIZE, "16");
+        return result;
+    }
+
+    /** Device using the mock session. */
+    private static class MockDevice extends SequencialIntegrityProtectedDevice {
+        private final MockLoggerSession session;
+
+        MockDevice(final MockLoggerSession session) {
+            this.session = session;
+        }
+
+        @Override
+        protected SequencialIntegrityProtectedLoggerSessionLocal getLoggerSession() {
+            return session;
+        }
+    }
+
+    /**
+     * Session storing the sequence numbers in memory and taking a
+     * millisecond per transaction. Events with the failing auth token fail
+     * and roll back the whole transaction.
+     */
+    private static class MockLoggerSession implements SequencialIntegrityProtectedLoggerSessionLocal {
+        private final String failingAuthToken;
+        private final List<Long> sequenceNumbers = new ArrayList<>();
+        private int transactions;
+
+        MockLoggerSession(final String failingAuthToken) {
+            this.failingAuthToken = failingAuthToken;
+        }
+
+        @Override
+        public void logWithSequenceNumber(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service,
+                String authToken, String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties,
+                Long sequenceNumber) throws AuditRecordStorageException {
+            logWithSequenceNumbers(Collections.singletonList(new SequencialAuditEvent(trustedTime, eventType, eventStatus, module, service,
+                    authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties)), sequenceNumber);
+        }
+
+        @Override
+        public void logWithSequenceNumbers(List<SequencialAuditEvent> events, long firstSequenceNumber) throws AuditRecordStorageException {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                throw new AuditRecordStorageException("Interrupted");
+            }
+            synchronized (this) {
+                transactions++;
+                for (SequencialAuditEvent event : events) {
+                    if (event.getAuthToken().equals(failingAuthToken)) {
+                        throw new AuditRecordStorageException("Failing event");
+                    }
+                }
+                long sequenceNumber = firstSequenceNumber;
+                for (SequencialAuditEvent event : events) {
+                    sequenceNumbers.add(sequenceNumber++);
+                }
+            }
+        }
+
+        @Override
+        public void log(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken,
+                String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties)
+                throws AuditRecordStorageException {
+            throw new AuditRecordStorageException("Not supported");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.statistics;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the LatencyHistogram class.
+ *
+ * @version $Id$
+ */
+public class LatencyHistogramUnitTest {
+
+    /**
+     * Tests that every value ends up in a bucket not lower than the value and
+     * within the precision.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testBuckets() throws Exception {
+        int lastIndex = 0;
+        for (long value = 0; value < 1000000; value += 1 + value / 100) {
+            final int index = LatencyHistogram.getIndex(value);
+            assertTrue("increasing for " + value, index >= lastIndex);
+            final long highest = LatencyHistogram.getHighestValue(index);
+            assertTrue("highest " + highest + " for " + value, highest >= value);
+            assertTrue("precision " + highest + " for " + value, highest - value <= value / 16);
+            lastIndex = index;
+        }
+        assertEquals("last bucket", LatencyHistogram.getIndex((1L << 41) - 1), LatencyHistogram.getIndex(Long.MAX_VALUE));
+    }
+
+    /**
+     * Tests the percentiles of some known values.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram instance = new LatencyHistogram();
+        assertEquals("empty", 0, instance.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            instance.record(i * 1000);
+        }
+        instance.record(-1);
+        assertEquals("count", 100, instance.getCount());
+        assertWithinPrecision(50000, instance.getValueAtPercentile(50));
+        assertWithinPrecision(95000, instance.getValueAtPercentile(95));
+        assertWithinPrecision(99000, instance.getValueAtPercentile(99));
+        assertWithinPrecision(100000, instance.getValueAtPercentile(100));
+        assertWithinPrecision(1000, instance.getValueAtPercentile(0));
+    }
+
+    private void assertWithinPrecision(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual, actual >= expected && actual - expected <= expected / 16);
+    }
+}
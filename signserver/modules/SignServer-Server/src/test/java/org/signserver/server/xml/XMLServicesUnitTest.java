@@ -0,0 +1,265 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the XMLServices class.
+ *
+ * @version $Id$
+ */
+public class XMLServicesUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(XMLServicesUnitTest.class);
+
+    /** JSR-105 provider included in the JDK. */
+    private static final String JDK_PROVIDER = "org.jcp.xml.dsig.internal.dom.XMLDSigRI";
+
+    private static final String SMALL_DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<ns:root xmlns:ns=\"urn:test\"><ns:item id=\"1\">First</ns:item>"
+            + "<ns:item id=\"2\">Second</ns:item><ns:item id=\"3\">Third</ns:item></ns:root>";
+
+    private String oldProvider;
+
+    @Before
+    public void setUp() {
+        oldProvider = System.getProperty(XMLServices.JSR105_PROVIDER_PROPERTY);
+        System.setProperty(XMLServices.JSR105_PROVIDER_PROPERTY, JDK_PROVIDER);
+    }
+
+    @After
+    public void tearDown() {
+        if (oldProvider == null) {
+            System.clearProperty(XMLServices.JSR105_PROVIDER_PROPERTY);
+        } else {
+            System.setProperty(XMLServices.JSR105_PROVIDER_PROPERTY, oldProvider);
+        }
+    }
+
+    /**
+     * Tests parsing and writing a document several times with the pooled
+     * instances.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testParseAndTransform() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            final Document doc = XMLServices.parse(new ByteArrayInputStream(SMALL_DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+            assertEquals("namespace", "urn:test", doc.getDocumentElement().getNamespaceURI());
+            assertEquals("items", 3, doc.getElementsByTagNameNS("urn:test", "item").getLength());
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XMLServices.transform(doc, out);
+            final String result = new String(out.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue("content: " + result, result.contains("<ns:item id=\"2\">Second</ns:item>"));
+        }
+    }
+
+    /**
+     * Tests that a document with a DOCTYPE is rejected and that the pooled
+     * builder can be used after the failure.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDoctypeNotAllowed() throws Exception {
+        final String doctype = "<?xml version=\"1.0\"?><!DOCTYPE root [<!ENTITY e \"entity\">]><root>&e;</root>";
+        try {
+            XMLServices.parse(new ByteArrayInputStream(doctype.getBytes(StandardCharsets.UTF_8)));
+            fail("Should have failed with DOCTYPE");
+        } catch (SAXException expected) { // NOPMD
+            // OK
+        }
+        final Document doc = XMLServices.parse(new ByteArrayInputStream(SMALL_DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("root", "root", doc.getDocumentElement().getLocalName());
+    }
+
+    /**
+     * Tests that an XMLSignatureFactory is not given to two callers at the
+     * same time, that a released factory is reused and that the provider
+     * instance is shared.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testXMLSignatureFactory() throws Exception {
+        final XMLSignatureFactory fac = XMLServices.getXMLSignatureFactory();
+        final XMLSignatureFactory second = XMLServices.getXMLSignatureFactory();
+        assertNotSame("not released", fac, second);
+        assertSame("shared provider", fac.getProvider(), second.getProvider());
+        assertEquals("provider", JDK_PROVIDER, fac.getProvider().getClass().getName());
+        final int idle = XMLServices.getIdleSignatureFactories();
+        XMLServices.releaseXMLSignatureFactory(second);
+        assertEquals("released", idle + 1, XMLServices.getIdleSignatureFactories());
+
+        final AtomicReference<XMLSignatureFactory> other = new AtomicReference<>();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other.set(XMLServices.getXMLSignatureFactory());
+                } catch (Exception ex) {
+                    LOG.error("Failed to get factory", ex);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertNotNull("other thread", other.get());
+        assertNotSame("other thread", fac, other.get());
+        assertSame("shared provider", fac.getProvider(), other.get().getProvider());
+        XMLServices.releaseXMLSignatureFactory(fac);
+        XMLServices.releaseXMLSignatureFactory(other.get());
+    }
+
+    /**
+     * Tests parsing and writing different documents from concurrent threads
+     * and that the pools do not grow larger than the maximum size.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final int threads = 2 * XMLServices.POOL_SIZE;
+        final int perThread = 50;
+        final AtomicInteger counter = new AtomicInteger();
+
+        runThreads(threads, perThread, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final XMLSignatureFactory fac = XMLServices.getXMLSignatureFactory();
+                    fac.newDigestMethod(DigestMethod.SHA256, null);
+                    XMLServices.releaseXMLSignatureFactory(fac);
+                    final String value = "value-" + counter.incrementAndGet();
+                    final String xml = "<ns:root xmlns:ns=\"urn:test\"><ns:item>" + value + "</ns:item></ns:root>";
+                    final Document doc = XMLServices.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    XMLServices.transform(doc, out);
+                    final String result = new String(out.toByteArray(), StandardCharsets.UTF_8);
+                    if (!result.contains("<ns:item>" + value + "</ns:item>")) {
+                        throw new IllegalStateException("Expected " + value + " but got: " + result);
+                    }
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+
+        assertEquals("documents", threads * perThread, counter.get());
+        assertTrue("idle builders: " + XMLServices.getIdleBuilders(),
+                XMLServices.getIdleBuilders() > 0 && XMLServices.getIdleBuilders() <= XMLServices.POOL_SIZE);
+        assertTrue("idle transformers: " + XMLServices.getIdleTransformers(),
+                XMLServices.getIdleTransformers() > 0 && XMLServices.getIdleTransformers() <= XMLServices.POOL_SIZE);
+        assertTrue("idle signature factories: " + XMLServices.getIdleSignatureFactories(),
+                XMLServices.getIdleSignatureFactories() > 0 && XMLServices.getIdleSignatureFactories() <= XMLServices.POOL_SIZE);
+    }
+
+    /**
+     * Compares the throughput of parsing and writing small documents and
+     * getting the XMLSignatureFactory, with new factories for each document
+     * as before and with XMLServices.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testThroughput() throws Exception {
+        final int threads = 8;
+        final int perThread = 500;
+        final byte[] data = SMALL_DOCUMENT.getBytes(StandardCharsets.UTF_8);
+
+        final long newFactoriesTime = runThreads(threads, perThread, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    XMLSignatureFactory.getInstance("DOM", (Provider) Class.forName(JDK_PROVIDER).newInstance());
+                    final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+                    dbf.setNamespaceAware(true);
+                    dbf.setFeature("http://xml.org/sax/features/external-general-entities", false);
+                    dbf.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+                    dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                    final Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(data));
+                    TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc), new StreamResult(new ByteArrayOutputStream()));
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+
+        final long pooledTime = runThreads(threads, perThread, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    XMLServices.releaseXMLSignatureFactory(XMLServices.getXMLSignatureFactory());
+                    final Document doc = XMLServices.parse(new ByteArrayInputStream(data));
+                    XMLServices.transform(doc, new ByteArrayOutputStream());
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+
+        LOG.info("New factories, documents per second: " + (threads * perThread * 1000000000L / Math.max(newFactoriesTime, 1)));
+        LOG.info("XMLServices, documents per second: " + (threads * perThread * 1000000000L / Math.max(pooledTime, 1)));
+    }
+
+    private static long runThreads(final int threads, final int perThread, final Runnable call) throws Exception {
+        final List<Thread> workers = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            call.run();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        final long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final long time = System.nanoTime() - start;
+        if (failure.get() != null) {
+            throw new Exception("Call failed", failure.get());
+        }
+        return time;
+    }
+}
@@ -0,0 +1,286 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for the CRLCache using a local HTTP server counting the
+ * number of CRL downloads.
+ *
+ * @version $Id$
+ */
+public class CRLCacheUnitTest {
+
+    private static KeyPair caKeyPair;
+
+    private HttpServer server;
+    private URL url;
+    private volatile byte[] crlBytes;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        caKeyPair = kpg.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ca.crl", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                final byte[] body = crlBytes;
+                final String eTag = "\"" + body.length + "-" + java.util.Arrays.hashCode(body) + "\"";
+                if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    downloads.incrementAndGet();
+                    exchange.getResponseHeaders().set("ETag", eTag);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    /**
+     * Tests that the CRL is only downloaded once while valid.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCachedWhileValid() throws Exception {
+        crlBytes = createCRL(new Date(System.currentTimeMillis() + 3600000L), BigInteger.ONE).getEncoded();
+        final CRLCache instance = new CRLCache(CRLCache.DEFAULT_MAX_AGE, CRLCache.DEFAULT_MIN_AGE);
+
+        final X509CRL crl = instance.getCRL(url);
+        for (int i = 0; i < 100; i++) {
+            assertSame(crl, instance.getCRL(url));
+        }
+        assertEquals("downloads", 1, downloads.get());
+        assertEquals("fetches", 1, instance.getFetches());
+    }
+
+    /**
+     * Tests that the least recently used CRL is removed when the maximum
+     * number of entries is reached.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMaxEntries() throws Exception {
+        crlBytes = createCRL(new Date(System.currentTimeMillis() + 3600000L), BigInteger.ONE).getEncoded();
+        final CRLCache instance = new CRLCache(CRLCache.DEFAULT_MAX_AGE, CRLCache.DEFAULT_MIN_AGE, 3);
+        final URL first = new URL(url, "/ca.crl?1");
+
+        final X509CRL crl = instance.getCRL(first);
+        for (int i = 2; i <= 10; i++) {
+            instance.getCRL(new URL(url, "/ca.crl?" + i));
+            assertSame("recently used", crl, instance.getCRL(first));
+        }
+        assertEquals("size", 3, instance.getSize());
+        assertEquals("downloads", 10, downloads.get());
+
+        instance.getCRL(new URL(url, "/ca.crl?2"));
+        assertEquals("evicted fetched again", 11, downloads.get());
+        assertEquals("pending fetches", 0, instance.getPendingFetches());
+    }
+
+    /**
+     * Tests that concurrent requests for a CRL not cached share one fetch
+     * and that the fetch is not kept after it completed.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentFetch() throws Exception {
+        crlBytes = createCRL(new Date(System.currentTimeMillis() + 3600000L), BigInteger.ONE).getEncoded();
+        final CRLCache instance = new CRLCache(CRLCache.DEFAULT_MAX_AGE, CRLCache.DEFAULT_MIN_AGE);
+        final List<Thread> threads = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        assertNotNull(instance.getCRL(url));
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("failures", 0, failures.get());
+        assertEquals("downloads", 1, downloads.get());
+        assertEquals("pending fetches", 0, instance.getPendingFetches());
+    }
+
+    /**
+     * Tests that an expired CRL is fetched again with a conditional request
+     * and that the parsed CRL is kept if not modified.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConditionalGet() throws Exception {
+        crlBytes = createCRL(new Date(System.currentTimeMillis() - 1000L), BigInteger.ONE).getEncoded();
+        final CRLCache instance = new CRLCache(CRLCache.DEFAULT_MAX_AGE, 0);
+
+        final X509CRL crl = instance.getCRL(url);
+        Thread.sleep(5);
+        assertSame("not modified", crl, instance.getCRL(url));
+        assertEquals("requests", 2, requests.get());
+        assertEquals("downloads", 1, downloads.get());
+
+        crlBytes = createCRL(new Date(System.currentTimeMillis() - 1000L), BigInteger.TEN).getEncoded();
+        Thread.sleep(5);
+        assertNotSame("modified", crl, instance.getCRL(url));
+        assertEquals("downloads", 2, downloads.get());
+    }
+
+    /**
+     * Tests that the CRL is refreshed in the background before it expires
+     * while the cached one is returned.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        crlBytes = createCRL(null, BigInteger.ONE).getEncoded();
+        final CRLCache instance = new CRLCache(800, 0);
+
+        final X509CRL crl = instance.getCRL(url);
+        crlBytes = createCRL(null, BigInteger.TEN).getEncoded();
+        Thread.sleep(650);
+
+        assertSame("cached returned", crl, instance.getCRL(url));
+        for (int i = 0; i < 100 && downloads.get() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("refreshed", 2, downloads.get());
+        for (int i = 0; i < 100 && instance.getCRL(url) == crl; i++) {
+            Thread.sleep(20);
+        }
+        assertNotNull("new CRL", instance.getCRL(url).getRevokedCertificate(BigInteger.TEN));
+    }
+
+    /**
+     * Tests that a CRL in a file is read again when the file is modified.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFileModified() throws Exception {
+        final File file = File.createTempFile("crlcache", ".crl");
+        try {
+            FileUtils.writeByteArrayToFile(file, createCRL(new Date(System.currentTimeMillis() + 3600000L), BigInteger.ONE).getEncoded());
+            final URL fileURL = file.toURI().toURL();
+            final CRLCache instance = new CRLCache(CRLCache.DEFAULT_MAX_AGE, CRLCache.DEFAULT_MIN_AGE);
+
+            final X509CRL crl = instance.getCRL(fileURL);
+            assertSame("not modified", crl, instance.getCRL(fileURL));
+
+            FileUtils.writeByteArrayToFile(file, createCRL(new Date(System.currentTimeMillis() + 3600000L), BigInteger.TEN).getEncoded());
+            file.setLastModified(file.lastModified() + 2000);
+            assertNotNull("new CRL", instance.getCRL(fileURL).getRevokedCertificate(BigInteger.TEN));
+            assertEquals("fetches", 2, instance.getFetches());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests the index of revoked serial numbers with serial numbers of
+     * different lengths.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRevokedIndex() throws Exception {
+        final Random random = new Random(1);
+        final List<BigInteger> revoked = new ArrayList<>();
+        revoked.add(BigInteger.ZERO);
+        revoked.add(BigInteger.valueOf(255));
+        for (int i = 0; i < 500; i++) {
+            revoked.add(new BigInteger(1 + random.nextInt(159), random));
+        }
+        final X509CRL crl = createCRL(null, revoked.toArray(new BigInteger[revoked.size()]));
+        final CachedCRL instance = new CachedCRL(crl, null, null, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        for (BigInteger serial : revoked) {
+            assertTrue("revoked " + serial, instance.isRevoked(serial));
+        }
+        for (int i = 0; i < 500; i++) {
+            final BigInteger serial = new BigInteger(1 + random.nextInt(159), random);
+            assertEquals("not revoked " + serial, crl.getRevokedCertificate(serial) != null, instance.isRevoked(serial));
+        }
+        assertFalse(instance.isRevoked(BigInteger.ONE.shiftLeft(200)));
+        assertFalse(instance.isRevoked(BigInteger.ONE.negate()));
+    }
+
+    private X509CRL createCRL(final Date nextUpdate, final BigInteger... serials) throws Exception {
+        final Date now = new Date(System.currentTimeMillis() - 60000L);
+        final X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        if (nextUpdate != null) {
+            builder.setNextUpdate(nextUpdate);
+        }
+        for (BigInteger serial : serials) {
+            builder.addCRLEntry(serial, now, CRLReason.keyCompromise);
+        }
+        return new JcaX509CRLConverter().getCRL(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeyPair.getPrivate())));
+    }
+}
@@ -0,0 +1,251 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ocsp.BasicOCSPResponse;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.signserver.common.SignServerException;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for the OCSPResponseCache using a local OCSP responder
+ * counting the number of requests.
+ *
+ * @version $Id$
+ */
+public class OCSPResponseCacheUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(OCSPResponseCacheUnitTest.class);
+
+    private static KeyPair caKeyPair;
+    private static X509Certificate caCert;
+    private static X509Certificate signerCert;
+
+    private HttpServer server;
+    private String url;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile long validity;
+    private volatile boolean revoked;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        caKeyPair = kpg.generateKeyPair();
+        caCert = createCertificate("CN=Test CA", BigInteger.ONE, caKeyPair);
+        signerCert = createCertificate("CN=Test Signer", BigInteger.valueOf(4711), kpg.generateKeyPair());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        validity = 3600000L;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ocsp", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    final OCSPReq request = new OCSPReq(IOUtils.toByteArray(exchange.getRequestBody()));
+                    final BasicOCSPRespBuilder gen = new BasicOCSPRespBuilder(new RespID(new X500Name("CN=Test CA")));
+                    final Date now = new Date();
+                    gen.addResponse(request.getRequestList()[0].getCertID(),
+                            revoked ? new RevokedStatus(now, CRLReason.keyCompromise) : CertificateStatus.GOOD,
+                            now, new Date(now.getTime() + validity), null);
+                    final BasicOCSPResp basic = gen.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeyPair.getPrivate()), null, now);
+                    final byte[] body = new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded();
+                    exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                } catch (Exception ex) {
+                    throw new IOException(ex);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    /**
+     * Tests that the responder is only queried once while the response is
+     * valid and that the response is a basic OCSP response.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCachedWhileValid() throws Exception {
+        final OCSPResponseCache instance = new OCSPResponseCache(OCSPResponseCache.DEFAULT_MAX_AGE, OCSPResponseCache.DEFAULT_MARGIN);
+
+        final byte[] encoded = instance.getEncoded(signerCert, caCert, url);
+        for (int i = 0; i < 100; i++) {
+            assertSame(encoded, instance.getEncoded(signerCert, caCert, url));
+        }
+        assertEquals("requests", 1, requests.get());
+
+        final BasicOCSPResp response = new BasicOCSPResp(BasicOCSPResponse.getInstance(encoded));
+        assertEquals("serial number", signerCert.getSerialNumber(), response.getResponses()[0].getCertID().getSerialNumber());
+    }
+
+    /**
+     * Tests that the response is refreshed in the background before
+     * nextUpdate so that the responder is not queried while signing.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        validity = 1000;
+        final OCSPResponseCache instance = new OCSPResponseCache(OCSPResponseCache.DEFAULT_MAX_AGE, 200);
+
+        final byte[] first = instance.getEncoded(signerCert, caCert, url);
+        for (int i = 0; i < 100 && requests.get() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals("refreshed", 2, requests.get());
+
+        for (int i = 0; i < 100 && instance.getEncoded(signerCert, caCert, url) == first; i++) {
+            Thread.sleep(20);
+        }
+        assertNotSame("new response", first, instance.getEncoded(signerCert, caCert, url));
+        assertEquals("fetches", 2, instance.getFetches());
+    }
+
+    /**
+     * Tests that a response not used since the last refresh is not
+     * refreshed again.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testUnusedNotRefreshed() throws Exception {
+        validity = 400;
+        final OCSPResponseCache instance = new OCSPResponseCache(OCSPResponseCache.DEFAULT_MAX_AGE, 0);
+
+        instance.getEncoded(signerCert, caCert, url);
+        Thread.sleep(1500);
+        assertEquals("refreshed once", 2, requests.get());
+    }
+
+    /**
+     * Tests that a revoked status gives an error and is not cached.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRevoked() throws Exception {
+        revoked = true;
+        final OCSPResponseCache instance = new OCSPResponseCache(OCSPResponseCache.DEFAULT_MAX_AGE, OCSPResponseCache.DEFAULT_MARGIN);
+        for (int i = 0; i < 2; i++) {
+            try {
+                instance.getEncoded(signerCert, caCert, url);
+                fail("Should have failed");
+            } catch (SignServerException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("revoked"));
+            }
+        }
+        assertEquals("requests", 2, requests.get());
+    }
+
+    /**
+     * Tests getting the response from 64 concurrent threads, checks that the
+     * responder is only queried once and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final OCSPResponseCache instance = new OCSPResponseCache(OCSPResponseCache.DEFAULT_MAX_AGE, OCSPResponseCache.DEFAULT_MARGIN);
+        final int threads = 64;
+        final int perThread = 10000;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int result = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            result += instance.getEncoded(signerCert, caCert, url).length > 0 ? 1 : 0;
+                        }
+                        return result;
+                    }
+                }));
+            }
+            int count = 0;
+            for (Future<Integer> future : futures) {
+                count += future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("OCSP responses per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+
+            assertEquals("responses", threads * perThread, count);
+            assertEquals("requests", 1, requests.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static X509Certificate createCertificate(final String dn, final BigInteger serial, final KeyPair keyPair) throws Exception {
+        final long now = System.currentTimeMillis();
+        final X509CertificateHolder holder = new JcaX509v3CertificateBuilder(new X500Name("CN=Test CA"), serial,
+                new Date(now - 60000L), new Date(now + 3600000L), new X500Name(dn), keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeyPair.getPrivate()));
+        return new JcaX509CertificateConverter().getCertificate(holder);
+    }
+}
@@ -0,0 +1,191 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.validationservice.server.validcache;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.cesecore.util.CertTools;
+import org.signserver.validationservice.common.Validation;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Unit tests for the bounded ValidationCache.
+ *
+ * @version $Id$
+ */
+public class ValidationCacheUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ValidationCacheUnitTest.class);
+
+    private static final int CERTS = 1000;
+
+    private static List<X509Certificate> certs;
+    private static List<String> issuers;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        final KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        final KeyPair keyPair = kpg.generateKeyPair();
+        final ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate());
+        final long now = System.currentTimeMillis();
+
+        certs = new ArrayList<>(CERTS);
+        for (int i = 0; i < CERTS; i++) {
+            certs.add(new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                    new X500Name("CN=Test CA"), BigInteger.valueOf(i + 1),
+                    new Date(now - 60000L), new Date(now + 3600000L),
+                    new X500Name("CN=Cert " + i), keyPair.getPublic()).build(signer)));
+        }
+        issuers = Collections.singletonList(CertTools.getIssuerDN(certs.get(0)));
+    }
+
+    /**
+     * Tests that validations expire and that certificates of other issuers
+     * are not cached.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        final ValidationCache instance = new ValidationCache(issuers, 200);
+        final X509Certificate cert = certs.get(0);
+        instance.put(cert, createValidation(cert));
+
+        assertNotNull("cached", instance.get(cert));
+        assertNotNull("same certificate", instance.get(certs.get(0)));
+        assertNull("other", instance.get(certs.get(1)));
+        Thread.sleep(300);
+        assertNull("expired", instance.get(cert));
+
+        assertEquals("hits", 2, instance.getHits());
+        assertEquals("misses", 2, instance.getMisses());
+        assertEquals("size", 0, instance.size());
+
+        final ValidationCache other = new ValidationCache(Collections.singletonList("CN=Other CA"), 10000);
+        other.put(cert, createValidation(cert));
+        assertNull("not cached issuer", other.get(cert));
+    }
+
+    /**
+     * Tests that the number of validations is bounded.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testMaxSize() throws Exception {
+        final ValidationCache instance = new ValidationCache(issuers, 60000, 64);
+        for (X509Certificate cert : certs) {
+            instance.put(cert, createValidation(cert));
+        }
+        assertTrue("size: " + instance.size(), instance.size() <= 64);
+        assertEquals("evictions", CERTS - instance.size(), instance.getEvictions());
+
+        final ValidationCache disabled = new ValidationCache(issuers, 60000, 0);
+        disabled.put(certs.get(0), createValidation(certs.get(0)));
+        assertNull("disabled", disabled.get(certs.get(0)));
+    }
+
+    /**
+     * Tests that recently used validations are kept when new ones are added.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRecentlyUsedKept() throws Exception {
+        final int maxSize = 256;
+        final ValidationCache instance = new ValidationCache(issuers, 60000, maxSize);
+        final List<X509Certificate> hot = certs.subList(0, maxSize / 2);
+        for (X509Certificate cert : hot) {
+            instance.put(cert, createValidation(cert));
+        }
+        for (X509Certificate cert : certs.subList(maxSize / 2, CERTS)) {
+            for (X509Certificate used : hot) {
+                instance.get(used);
+            }
+            instance.put(cert, createValidation(cert));
+        }
+        for (X509Certificate cert : hot) {
+            assertNotNull("kept " + cert.getSubjectDN(), instance.get(cert));
+        }
+    }
+
+    /**
+     * Tests lookups from 64 concurrent threads and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        final ValidationCache instance = new ValidationCache(issuers, 60000);
+        for (X509Certificate cert : certs) {
+            instance.put(cert, createValidation(cert));
+        }
+        final int threads = 64;
+        final int perThread = 10000;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int result = 0;
+                        for (int i = 0; i < perThread; i++) {
+                            if (instance.get(certs.get((offset + i) % CERTS)) != null) {
+                                result++;
+                            }
+                        }
+                        return result;
+                    }
+                }));
+            }
+            int found = 0;
+            for (Future<Integer> future : futures) {
+                found += future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Cached validations per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+
+            assertEquals("found", threads * perThread, found);
+            assertEquals("hits", threads * perThread, instance.getHits());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Validation createValidation(final X509Certificate cert) {
+        return new Validation(cert, null, Validation.Status.VALID, "TESTMESSAGE");
+    }
+}
@@ -508,6 +508,16 @@ public class InternalKeystoreCryptoTokenTest extends CryptoTokenTestBase {
             public boolean isWithinLimit(String keyHash, long keyUsageLimit) {
                 throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
             }
+
+            @Override
+            public long reserve(String keyHash, long count, long limit) {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
+
+            @Override
+            public void release(String keyHash, long count) {
+                throw new UnsupportedOperationException("Not supported yet.");
+            }
         };
         return KeyUsageCounterDataService;
     }
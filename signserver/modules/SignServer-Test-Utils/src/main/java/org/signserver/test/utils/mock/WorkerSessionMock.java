@@ -37,6 +37,7 @@ import org.signserver.common.RequestContext;
 import org.signserver.common.SignServerException;
 import org.signserver.common.WorkerConfig;
 import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerPropertiesUpdate;
 import org.signserver.common.WorkerStatus;
 import org.signserver.common.WorkerType;
 import org.signserver.common.data.Request;
@@ -227,6 +228,24 @@ public class WorkerSessionMock implements WorkerSessionLocal,
         return removeWorkerProperty(null, workerId, key);
     }
 
+    @Override
+    public void updateWorkerProperties(List<WorkerPropertiesUpdate> updates) {
+        updateWorkerProperties(null, updates);
+    }
+
+    @Override
+    public void updateWorkerProperties(AdminInfo adminInfo,
+            List<WorkerPropertiesUpdate> updates) {
+        for (WorkerPropertiesUpdate update : updates) {
+            for (Map.Entry<String, String> entry : update.getSetProperties().entrySet()) {
+                setWorkerProperty(adminInfo, update.getWorkerId(), entry.getKey(), entry.getValue());
+            }
+            for (String key : update.getRemoveProperties()) {
+                removeWorkerProperty(adminInfo, update.getWorkerId(), key);
+            }
+        }
+    }
+
     @Override
     public Collection<AuthorizedClient> getAuthorizedClients(int signerId) {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -306,6 +306,29 @@ public class AdminWS {
         return worker.removeWorkerProperty(adminInfo, workerId, key);
     }
 
+    /**
+     * Set and remove properties of several workers at once.
+     *
+     * All changes are stored in one transaction and each affected worker is
+     * then reloaded once.
+     *
+     * @param updates properties to set and remove for each worker
+     * @throws AdminNotAuthorizedException If the admin is not authorized
+     */
+    @WebMethod(operationName = "updateWorkerProperties")
+    public void updateWorkerProperties(
+            @WebParam(name = "updates") final List<WorkerPropertiesUpdate> updates)
+            throws AdminNotAuthorizedException {
+        final String[] workerIds = new String[updates.size()];
+        for (int i = 0; i < workerIds.length; i++) {
+            workerIds[i] = String.valueOf(updates.get(i).getWorkerId());
+        }
+        final AdminInfo adminInfo = auth.requireAdminAuthorization(getCertificate(), "updateWorkerProperties",
+                workerIds);
+
+        worker.updateWorkerProperties(adminInfo, updates);
+    }
+
     /**
      * Get a collection of all authorized client certificate serial numbers and
      * issuer DN:s accepted by the worker.
@@ -954,7 +977,7 @@ public class AdminWS {
                     // Upload handling (Note: close in finally clause)
                     UploadConfig uploadConfig = UploadConfig.create(global);
                     requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                     req2 = new SignatureRequest(requestID, requestData, responseData);
                 } else if (req instanceof GenericValidationRequest) {
                     byte[] data = ((GenericValidationRequest) req).getRequestData();
@@ -979,7 +1002,7 @@ public class AdminWS {
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
                     propReq.getProperties().store(bout, null);
                     requestData = dataFactory.createReadableData(bout.toByteArray(), uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                     req2 = new SignatureRequest(propReq.hashCode(), requestData, responseData);
                 } else {
                     // Passthrough for all legacy requests
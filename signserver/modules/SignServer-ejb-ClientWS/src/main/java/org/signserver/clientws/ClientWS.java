@@ -38,7 +38,6 @@ import org.signserver.common.data.SODResponse;
 import org.signserver.ejb.interfaces.GlobalConfigurationSessionLocal;
 import org.signserver.ejb.interfaces.ProcessSessionLocal;
 import org.signserver.server.CredentialUtils;
-import org.signserver.server.data.impl.TemporarlyWritableData;
 import org.signserver.common.data.SignatureRequest;
 import org.signserver.common.data.SignatureResponse;
 import org.signserver.server.data.impl.CloseableReadableData;
@@ -108,7 +107,7 @@ public class ClientWS {
         final UploadConfig uploadConfig = UploadConfig.create(globalSession);
         try (
                 CloseableReadableData requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                CloseableWritableData responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                CloseableWritableData responseData = dataFactory.createWritableData(requestData, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
             ) {
             final RequestContext requestContext = handleRequestContext(requestMetadata);
             final int requestId = ThreadLocalRandom.current().nextInt();
@@ -185,7 +184,8 @@ public class ClientWS {
             @WebParam(name = "metadata") final List<Metadata> requestMetadata,
             @WebParam(name = "sodData") final org.signserver.clientws.SODRequest data) throws RequestFailedException, InternalServerException {
         final org.signserver.clientws.SODResponse result;
-        try (CloseableWritableData responseData = new TemporarlyWritableData(false, new UploadConfig().getRepository())) {
+        final UploadConfig uploadConfig = UploadConfig.create(globalSession);
+        try (CloseableWritableData responseData = dataFactory.createWritableData(false, uploadConfig.getSizeThreshold(), uploadConfig.getRepository())) {
             final RequestContext requestContext = handleRequestContext(requestMetadata);
             final int requestId = ThreadLocalRandom.current().nextInt();
         
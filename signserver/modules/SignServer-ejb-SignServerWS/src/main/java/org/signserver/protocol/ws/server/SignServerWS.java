@@ -294,7 +294,7 @@ public class SignServerWS implements ISignServerWS {
                     // Upload handling (Note: close in finally clause)
                     UploadConfig uploadConfig = UploadConfig.create(globalSession);
                     requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                     req2 = new SignatureRequest(requestID, requestData, responseData);
                 } else if (req instanceof GenericValidationRequest) {
                     byte[] data = ((GenericValidationRequest) req).getRequestData();
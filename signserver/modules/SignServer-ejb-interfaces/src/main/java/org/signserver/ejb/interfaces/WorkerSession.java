@@ -35,6 +35,7 @@ import org.signserver.common.KeyTestResult;
 import org.signserver.common.OperationUnsupportedException;
 import org.signserver.common.SignServerException;
 import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerPropertiesUpdate;
 import org.signserver.common.WorkerStatus;
 import org.signserver.common.WorkerType;
 
@@ -153,6 +154,16 @@ public interface WorkerSession {
      */
     boolean removeWorkerProperty(int workerId, String key);
 
+    /**
+     * Sets and removes properties of several workers at once.
+     *
+     * All changes are stored in one transaction and each affected worker is
+     * then reloaded once.
+     *
+     * @param updates properties to set and remove for each worker
+     */
+    void updateWorkerProperties(List<WorkerPropertiesUpdate> updates);
+
     /**
      * Method that returns a collection of AuthorizedClient of
      * client certificate sn and issuerid accepted for a given signer.
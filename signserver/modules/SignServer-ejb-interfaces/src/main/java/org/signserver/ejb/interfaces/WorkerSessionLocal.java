@@ -35,6 +35,7 @@ import org.signserver.common.OperationUnsupportedException;
 import org.signserver.common.QueryException;
 import org.signserver.common.SignServerException;
 import org.signserver.common.UnsupportedCryptoTokenParameter;
+import org.signserver.common.WorkerPropertiesUpdate;
 import org.signserver.server.cryptotokens.TokenSearchResults;
 import org.signserver.server.log.AdminInfo;
 
@@ -140,6 +141,17 @@ public interface WorkerSessionLocal extends WorkerSession {
      */
     boolean removeWorkerProperty(final AdminInfo adminInfo, int workerId, String key);
 
+    /**
+     * Sets and removes properties of several workers at once.
+     *
+     * All changes are stored in one transaction and each affected worker is
+     * then reloaded once.
+     *
+     * @param adminInfo
+     * @param updates properties to set and remove for each worker
+     */
+    void updateWorkerProperties(final AdminInfo adminInfo, List<WorkerPropertiesUpdate> updates);
+
     /**
      * Method adding an authorized client to a signer.
      *
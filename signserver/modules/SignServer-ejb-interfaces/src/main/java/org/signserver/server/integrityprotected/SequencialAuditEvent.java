@@ -0,0 +1,101 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.integrityprotected;
+
+import java.util.Map;
+import java.util.Properties;
+import org.cesecore.audit.enums.EventStatus;
+import org.cesecore.audit.enums.EventType;
+import org.cesecore.audit.enums.ModuleType;
+import org.cesecore.audit.enums.ServiceType;
+import org.cesecore.time.TrustedTime;
+
+/**
+ * Holder for the arguments of one audit log event to be stored as part of a
+ * batch by SequencialIntegrityProtectedLoggerSessionLocal.
+ *
+ * @version $Id$
+ */
+public class SequencialAuditEvent {
+
+    private final TrustedTime trustedTime;
+    private final EventType eventType;
+    private final EventStatus eventStatus;
+    private final ModuleType module;
+    private final ServiceType service;
+    private final String authToken;
+    private final String customId;
+    private final String searchDetail1;
+    private final String searchDetail2;
+    private final Map<String, Object> additionalDetails;
+    private final Properties properties;
+
+    public SequencialAuditEvent(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken,
+            String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties) {
+        this.trustedTime = trustedTime;
+        this.eventType = eventType;
+        this.eventStatus = eventStatus;
+        this.module = module;
+        this.service = service;
+        this.authToken = authToken;
+        this.customId = customId;
+        this.searchDetail1 = searchDetail1;
+        this.searchDetail2 = searchDetail2;
+        this.additionalDetails = additionalDetails;
+        this.properties = properties;
+    }
+
+    public TrustedTime getTrustedTime() {
+        return trustedTime;
+    }
+
+    public EventType getEventType() {
+        return eventType;
+    }
+
+    public EventStatus getEventStatus() {
+        return eventStatus;
+    }
+
+    public ModuleType getModule() {
+        return module;
+    }
+
+    public ServiceType getService() {
+        return service;
+    }
+
+    public String getAuthToken() {
+        return authToken;
+    }
+
+    public String getCustomId() {
+        return customId;
+    }
+
+    public String getSearchDetail1() {
+        return searchDetail1;
+    }
+
+    public String getSearchDetail2() {
+        return searchDetail2;
+    }
+
+    public Map<String, Object> getAdditionalDetails() {
+        return additionalDetails;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+}
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.server.integrityprotected;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import org.cesecore.audit.enums.EventStatus;
@@ -50,4 +51,17 @@ public interface SequencialIntegrityProtectedLoggerSessionLocal extends Integrit
      */
     void logWithSequenceNumber(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken,
             String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties, Long sequenceNumber) throws AuditRecordStorageException;
+
+    /**
+     * Creates signed logs for all the events and stores them in the database
+     * in one transaction, with sequence numbers starting at the provided one.
+     *
+     * @param events to store, in order
+     * @param firstSequenceNumber to use for the first event, the following
+     * events get the following sequence numbers
+     *
+     * @throws AuditRecordStorageException if unable to store the log records,
+     * in which case none of them are stored
+     */
+    void logWithSequenceNumbers(List<SequencialAuditEvent> events, long firstSequenceNumber) throws AuditRecordStorageException;
 }
@@ -78,7 +78,6 @@ import org.signserver.server.data.impl.CloseableReadableData;
 import org.signserver.server.data.impl.CloseableWritableData;
 import org.signserver.server.data.impl.DataFactory;
 import org.signserver.server.data.impl.DataUtils;
-import org.signserver.server.data.impl.TemporarlyWritableData;
 import org.signserver.server.data.impl.UploadConfig;
 import org.signserver.statusrepo.StatusRepositorySessionLocal;
 import org.signserver.validationservice.common.ValidateRequest;
@@ -193,7 +192,7 @@ public class ProcessSessionBean implements ProcessSessionRemote, ProcessSessionL
                 // Upload handling
                 UploadConfig uploadConfig = UploadConfig.create(globalConfigurationSession);
                 requestData = dataFactory.createReadableData(data, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                responseData = dataFactory.createWritableData(requestData, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                 req2 = new SignatureRequest(requestID, requestData, responseData);
             } else if (request instanceof GenericValidationRequest) {
                 byte[] data = ((GenericValidationRequest) request).getRequestData();
@@ -210,7 +209,8 @@ public class ProcessSessionBean implements ProcessSessionRemote, ProcessSessionL
                 req2 = new CertificateValidationRequest(vr.getCertificate(), vr.getCertPurposesString());
             } else if (request instanceof SODSignRequest) {
                 SODSignRequest sod = (SODSignRequest) request;
-                responseData = new TemporarlyWritableData(false, new UploadConfig().getRepository());
+                UploadConfig uploadConfig = UploadConfig.create(globalConfigurationSession);
+                responseData = dataFactory.createWritableData(false, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                 req2 = new SODRequest(sod.getRequestID(), sod.getDataGroupHashes(), sod.getLdsVersion(), sod.getUnicodeVersion(), responseData);
             } else if (request instanceof GenericPropertiesRequest) {
                 GenericPropertiesRequest prop = (GenericPropertiesRequest) request;
@@ -221,7 +221,7 @@ public class ProcessSessionBean implements ProcessSessionRemote, ProcessSessionL
                     // Upload handling
                     UploadConfig uploadConfig = UploadConfig.create(globalConfigurationSession);
                     requestData = dataFactory.createReadableData(bout.toByteArray(), uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getRepository());
+                    responseData = dataFactory.createWritableData(requestData, uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                     req2 = new SignatureRequest(prop.hashCode(), requestData, responseData);
 
                 } catch (IOException ex) {
@@ -164,7 +164,12 @@ public class StartupSingletonBean {
             }
             
             // Table upgrades
-            new FileBasedWorkerConfigDataService(nodb).upgrade();
+            try {
+                new FileBasedWorkerConfigDataService(nodb).upgrade();
+            } catch (FileBasedDatabaseException ex) {
+                LOG.error("Upgrade of file based database failed", ex);
+                throw new EJBException(ex.getMessage());
+            }
         }
 
         // Perform database upgrade if needed
@@ -63,6 +63,7 @@ import org.signserver.server.statistics.Event;
 import org.signserver.server.statistics.StatisticsManager;
 import org.signserver.ejb.interfaces.WorkerSession;
 import org.signserver.ejb.interfaces.WorkerSessionLocal;
+import org.signserver.ejb.worker.impl.KeyUsageCounterReservations;
 import org.signserver.ejb.worker.impl.PreloadedWorkerConfig;
 import org.signserver.server.IServices;
 import org.signserver.server.log.ExceptionLoggable;
@@ -243,7 +244,7 @@ class WorkerProcessImpl {
 
             // Check key usage limit
             if (!pwc.isDisableKeyUsageCounter() || pwc.isKeyUsageLimitSpecified()) {
-                checkSignerKeyUsageCounter(signerCertificate, workerId, pwc.getKeyUsageLimit(), em, true, requestContext.getServices());
+                checkSignerKeyUsageCounter(signerCertificate, workerId, pwc.getKeyUsageLimit(), pwc.getKeyUsageCounterBlockSize(), em, true, requestContext.getServices());
             }
 
             // Output successfully
@@ -323,8 +324,8 @@ class WorkerProcessImpl {
      * @throws CryptoTokenOfflineException
      */
     private void checkSignerKeyUsageCounter(final Certificate cert,
-            final int workerId, final long keyUsageLimit, EntityManager em,
-            final boolean increment, final IServices services)
+            final int workerId, final long keyUsageLimit, final long blockSize,
+            EntityManager em, final boolean increment, final IServices services)
         throws CryptoTokenOfflineException {
 
         if (cert != null) {
@@ -338,8 +339,17 @@ class WorkerProcessImpl {
                         + "Key hash: " + keyHash);
             }
 
+            final KeyUsageCounterReservations reservations
+                    = blockSize > 1 ? workerManagerSession.getKeyUsageCounterReservations() : null;
+
             if (increment) {
-                if (!keyUsageCounterDataService.incrementIfWithinLimit(keyHash, keyUsageLimit)) {
+                final boolean incremented;
+                if (reservations == null) {
+                    incremented = keyUsageCounterDataService.incrementIfWithinLimit(keyHash, keyUsageLimit);
+                } else {
+                    incremented = reservations.incrementIfWithinLimit(keyHash, keyUsageLimit, blockSize);
+                }
+                if (!incremented) {
                     final String message
                             = "Key usage limit exceeded or not initialized for worker "
                             + workerId;
@@ -350,7 +360,9 @@ class WorkerProcessImpl {
             } else {
                 // Just check the value without updating
                 if (keyUsageLimit > -1) {
-                    if (!keyUsageCounterDataService.isWithinLimit(keyHash, keyUsageLimit)) {
+                    // Usages already reserved are within the limit
+                    if ((reservations == null || !reservations.hasReserved(keyHash, keyUsageLimit))
+                            && !keyUsageCounterDataService.isWithinLimit(keyHash, keyUsageLimit)) {
                         final String message
                                 = "Key usage limit exceeded or not initialized for worker "
                                 + workerId;
@@ -475,8 +487,8 @@ class WorkerProcessImpl {
                     LOG.debug("Key usage counter disabled: " + pwc.isDisableKeyUsageCounter());
                 }
                 if (!pwc.isDisableKeyUsageCounter() || pwc.isKeyUsageLimitSpecified()) {
-                    checkSignerKeyUsageCounter(signerCertificate, workerId, pwc.getKeyUsageLimit(), em,
-                            false, requestContext.getServices());
+                    checkSignerKeyUsageCounter(signerCertificate, workerId, pwc.getKeyUsageLimit(),
+                            pwc.getKeyUsageCounterBlockSize(), em, false, requestContext.getServices());
                 }
             } catch (CryptoTokenOfflineException ex) {
                 final CryptoTokenOfflineException exception =
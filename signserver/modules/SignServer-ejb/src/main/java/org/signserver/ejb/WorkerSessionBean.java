@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.ejb;
 
+import java.io.File;
 import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStoreException;
@@ -47,6 +48,8 @@ import org.signserver.common.KeyTestResult;
 import org.signserver.common.util.PropertiesConstants;
 import org.signserver.ejb.worker.impl.WorkerManagerSingletonBean;
 import org.signserver.server.*;
+import org.signserver.server.archive.ArchiveContentResolver;
+import org.signserver.server.archive.filestorearchiver.FileStoreArchiver;
 import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
 import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
 import org.signserver.server.cesecore.AlwaysAllowLocalAuthenticationToken;
@@ -131,7 +134,12 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
                 LOG.debug("EntityManager injected. Running with database.");
             }
             workerConfigService = new WorkerConfigDataService(em);
-            archiveDataService = new ArchiveDataService(em);
+            archiveDataService = new ArchiveDataService(em, new ArchiveContentResolver() {
+                @Override
+                public List<File> getDirectories(int signerId) {
+                    return FileStoreArchiver.getDirectories(getWorkerConfig(signerId));
+                }
+            });
             keyUsageCounterDataService = new KeyUsageCounterDataService(em);
         }
 
@@ -250,7 +258,9 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
                 if (signings == null) {
                     result = -1;
                 } else {
-                    result = signings.getCounter();
+                    // Do not count usages reserved by this node but not used
+                    result = signings.getCounter()
+                            - workerManagerSession.getKeyUsageCounterReservations().getUnused(pk);
                 }
             }
             return result;
@@ -283,8 +293,19 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
             }
             
             errorsAtEjbLevel.addAll(worker.getCreateErrors());
-        
-            return new StaticWorkerStatus(worker.getWorker().getStatus(errorsAtEjbLevel, servicesImpl));
+
+            final WorkerStatusInfo status = worker.getWorker().getStatus(errorsAtEjbLevel, servicesImpl);
+            if (worker.getAuthorizer() instanceof ICachingAuthorizer && status.getCompleteEntries() != null) {
+                final AuthorizationCache<?> cache = ((ICachingAuthorizer) worker.getAuthorizer()).getAuthorizationCache();
+                if (cache != null) {
+                    status.getCompleteEntries().add(new WorkerStatusInfo.Entry("Authorization cache", cache.getStatistics()));
+                }
+            }
+            final String latencies = StatisticsManager.getLatencySummary(worker.getId());
+            if (latencies != null && status.getCompleteEntries() != null) {
+                status.getCompleteEntries().add(new WorkerStatusInfo.Entry("Latencies", latencies));
+            }
+            return new StaticWorkerStatus(status);
         } catch (NoSuchWorkerException ex) {
             throw new InvalidWorkerIdException(ex.getMessage());
         }
@@ -643,6 +664,89 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
         auditLogWorkerPropertyChange(adminInfo, new WorkerIdentifier(workerId), config, key, value);
     }
     
+    @Override
+    public void updateWorkerProperties(final List<WorkerPropertiesUpdate> updates) {
+        updateWorkerProperties(new AdminInfo("CLI user", null, null), updates);
+    }
+
+    @Override
+    public void updateWorkerProperties(final AdminInfo adminInfo, final List<WorkerPropertiesUpdate> updates) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(">updateWorkerProperties(" + updates.size() + " updates)");
+        }
+        // Apply all updates for each worker to one config
+        final Map<Integer, WorkerConfig> configs = new LinkedHashMap<>();
+        final Map<Integer, Map<String, String>> changedProperties = new HashMap<>();
+        final Set<Integer> detectType = new HashSet<>();
+        for (final WorkerPropertiesUpdate update : updates) {
+            final int workerId = update.getWorkerId();
+            WorkerConfig config = configs.get(workerId);
+            if (config == null) {
+                config = getWorkerConfig(workerId);
+                configs.put(workerId, config);
+                changedProperties.put(workerId, new LinkedHashMap<String, String>());
+            }
+            final Map<String, String> changed = changedProperties.get(workerId);
+            for (final Map.Entry<String, String> entry : update.getSetProperties().entrySet()) {
+                final String key = entry.getKey().toUpperCase();
+                final String value = entry.getValue() == null ? "" : entry.getValue();
+                // Special case for auto-detecting worker type, done when the
+                // implementation class has been stored
+                if (WorkerConfig.TYPE.equals(key) && value.trim().isEmpty()) {
+                    detectType.add(workerId);
+                } else {
+                    detectType.remove(workerId);
+                }
+                config.setProperty(key, value);
+                changed.put(key, value);
+            }
+            for (final String key : update.getRemoveProperties()) {
+                config.removeProperty(key.toUpperCase());
+                changed.put(key.toUpperCase(), "");
+            }
+        }
+
+        for (final Map.Entry<Integer, WorkerConfig> entry : configs.entrySet()) {
+            final int workerId = entry.getKey();
+            final WorkerConfig config = entry.getValue();
+            if (config.getProperties().size() <= config.getVirtualPropertiesNumber()) {
+                workerConfigService.removeWorkerConfig(workerId);
+                LOG.debug("WorkerConfig is empty and therefore removed.");
+                auditLog(adminInfo, SignServerEventTypes.SET_WORKER_CONFIG, SignServerModuleTypes.WORKER_CONFIG, new WorkerIdentifier(workerId));
+            } else {
+                setWorkerConfig(adminInfo, workerId, config, null, null);
+            }
+        }
+
+        for (final int workerId : detectType) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Auto-detecting worker type");
+            }
+            try {
+                // Make sure the worker is created with the new configuration
+                workerManagerSession.reloadWorker(new WorkerIdentifier(workerId));
+                final IWorker obj = workerManagerSession.getWorker(new WorkerIdentifier(workerId));
+                final WorkerConfig config = configs.get(workerId);
+                config.setProperty(WorkerConfig.TYPE, obj.getWorkerType().name());
+                setWorkerConfig(adminInfo, workerId, config, null, null);
+            } catch (NoSuchWorkerException ex) {
+                LOG.error("Unable to auto-detect worker type as the worker can not be found: " + ex.getWorkerIdOrName());
+            }
+        }
+
+        for (final Map.Entry<Integer, Map<String, String>> entry : changedProperties.entrySet()) {
+            final WorkerIdentifier wi = new WorkerIdentifier(entry.getKey());
+            for (final Map.Entry<String, String> property : entry.getValue().entrySet()) {
+                auditLogWorkerPropertyChange(adminInfo, wi, configs.get(entry.getKey()), property.getKey(), property.getValue());
+            }
+        }
+
+        // Reload each worker once now that all changes are stored
+        for (final int workerId : configs.keySet()) {
+            reloadConfiguration(adminInfo, workerId);
+        }
+    }
+    
     private void auditLogCertInstalled(final AdminInfo adminInfo, final WorkerIdentifier workerId, final String value, final String scope, final String node) {
         final HashMap<String, Object> auditMap = new HashMap<>();
         auditMap.put(AdditionalDetailsTypes.CERTIFICATE.name(), value);
@@ -1153,7 +1257,7 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
              for (Object o : list) {
                  if (o instanceof ArchiveDataBean) {
                      final ArchiveDataBean adb = (ArchiveDataBean) o;
-                     result.add(adb.getArchiveDataVO());
+                     result.add(archiveDataService.getArchiveDataVO(adb));
                  }
              }
         }
@@ -1175,7 +1279,7 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
         } else {
             Collection<ArchiveDataBean> archives = archiveDataService.findAllByRequestIP(signerId, requestIP);
             for (ArchiveDataBean archive : archives) {
-                retval.add(archive.getArchiveDataVO());
+                retval.add(archiveDataService.getArchiveDataVO(archive));
             }
         }
 
@@ -1202,7 +1306,7 @@ public class WorkerSessionBean implements WorkerSessionLocal, WorkerSessionRemot
             Collection<ArchiveDataBean> archives = archiveDataService.
                     findAllByRequestCertificate(signerId, issuerDN, serialNumber);
             for (ArchiveDataBean archive : archives) {
-                retval.add(archive.getArchiveDataVO());
+                retval.add(archiveDataService.getArchiveDataVO(archive));
             }
         }
 
@@ -0,0 +1,257 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory layer on top of the key usage counter handing out key usages
+ * from blocks reserved in advance.
+ *
+ * A block is reserved by increasing the persisted counter with the block
+ * size (but never above the limit) so the persisted value is always an upper
+ * bound of the number of usages handed out by all nodes. Usages are then
+ * taken from the local block without touching the database until it is
+ * exhausted.
+ *
+ * Blocks are kept per key and limit, so workers sharing a key but having
+ * different limits each use their own block. When a block can not be
+ * refilled, the unused usages in the blocks of the same key with other
+ * limits (for instance after the limit was changed) are given back and the
+ * reservation is tried again. All reserved usages not used are given back
+ * when the node shuts down.
+ *
+ * @version $Id$
+ */
+public class KeyUsageCounterReservations {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(KeyUsageCounterReservations.class);
+
+    /**
+     * Persistence of the key usage counter. Implementations should persist
+     * the reservations in their own transaction.
+     */
+    public interface Backend {
+
+        /**
+         * Reserve up to count usages.
+         * @param keyHash Hash of the key
+         * @param count Number of usages to reserve
+         * @param limit The key usage limit or a negative value for no limit
+         * @return The number of usages reserved
+         */
+        long reserve(String keyHash, long count, long limit);
+
+        /**
+         * Give back unused usages.
+         * @param keyHash Hash of the key
+         * @param count Number of usages to give back
+         */
+        void release(String keyHash, long count);
+    }
+
+    private final Backend backend;
+    private final ConcurrentMap<BlockKey, Block> blocks = new ConcurrentHashMap<>();
+
+    public KeyUsageCounterReservations(final Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Take one usage from the reserved block, reserving a new block of the
+     * given size if needed.
+     * @param keyHash Hash of the key
+     * @param limit The key usage limit or a negative value for no limit
+     * @param blockSize Number of usages to reserve at a time
+     * @return True if a usage was taken or false if the limit was exceeded or
+     * the counter not initialized
+     */
+    public boolean incrementIfWithinLimit(final String keyHash, final long limit, final long blockSize) {
+        final BlockKey key = new BlockKey(keyHash, limit);
+        boolean othersReleased = false;
+        while (true) {
+            final Block block = getBlock(key);
+
+            // Fast path: no locking
+            if (block.tryTake()) {
+                return true;
+            }
+
+            synchronized (block) {
+                if (block.retired) {
+                    continue;
+                }
+                // Another thread might have reserved while we were waiting
+                if (block.tryTake()) {
+                    return true;
+                }
+                final long reserved = backend.reserve(keyHash, blockSize, limit);
+                if (reserved > 0) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Reserved " + reserved + " key usages for " + keyHash);
+                    }
+                    block.remaining.addAndGet(reserved - 1);
+                    return true;
+                }
+            }
+
+            // Try once more after giving back the usages reserved with other
+            // limits, without holding the lock as that takes their locks
+            if (othersReleased || !releaseOthers(key)) {
+                return false;
+            }
+            othersReleased = true;
+        }
+    }
+
+    /**
+     * @param keyHash Hash of the key
+     * @param limit The key usage limit
+     * @return True if there are reserved usages left for the key and limit
+     */
+    public boolean hasReserved(final String keyHash, final long limit) {
+        final Block block = blocks.get(new BlockKey(keyHash, limit));
+        return block != null && block.remaining.get() > 0;
+    }
+
+    /**
+     * @param keyHash Hash of the key
+     * @return Number of usages reserved by this node but not yet used, for
+     * all limits
+     */
+    public long getUnused(final String keyHash) {
+        long result = 0;
+        for (Map.Entry<BlockKey, Block> entry : blocks.entrySet()) {
+            if (entry.getKey().keyHash.equals(keyHash)) {
+                result += entry.getValue().remaining.get();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Give back all reserved but unused usages.
+     */
+    public void releaseAll() {
+        for (Map.Entry<BlockKey, Block> entry : blocks.entrySet()) {
+            if (blocks.remove(entry.getKey(), entry.getValue())) {
+                retire(entry.getKey().keyHash, entry.getValue());
+            }
+        }
+    }
+
+    private Block getBlock(final BlockKey key) {
+        Block block = blocks.get(key);
+        if (block == null) {
+            final Block created = new Block();
+            block = blocks.putIfAbsent(key, created);
+            if (block == null) {
+                block = created;
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Give back the unused usages of the same key reserved with other limits.
+     * @return True if any usages were given back
+     */
+    private boolean releaseOthers(final BlockKey key) {
+        boolean result = false;
+        for (Map.Entry<BlockKey, Block> entry : blocks.entrySet()) {
+            if (entry.getKey().keyHash.equals(key.keyHash) && !entry.getKey().equals(key)
+                    && entry.getValue().remaining.get() > 0
+                    && blocks.remove(entry.getKey(), entry.getValue())) {
+                result |= retire(key.keyHash, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Give back the unused usages of the block, which is no longer used.
+     * @return True if any usages were given back
+     */
+    private boolean retire(final String keyHash, final Block block) {
+        final long unused;
+        synchronized (block) {
+            block.retired = true;
+            unused = block.remaining.getAndSet(0);
+        }
+        if (unused > 0) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Releasing " + unused + " key usages for " + keyHash);
+            }
+            try {
+                backend.release(keyHash, unused);
+                return true;
+            } catch (RuntimeException ex) {
+                LOG.warn("Unable to release " + unused + " reserved key usages for " + keyHash + ": " + ex.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Key and limit the usages are reserved for.
+     */
+    private static class BlockKey {
+        private final String keyHash;
+        private final long limit;
+
+        BlockKey(final String keyHash, final long limit) {
+            this.keyHash = keyHash;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            final BlockKey other = (BlockKey) obj;
+            return limit == other.limit && keyHash.equals(other.keyHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * keyHash.hashCode() + (int) (limit ^ (limit >>> 32));
+        }
+    }
+
+    /**
+     * Usages reserved for one key and limit.
+     */
+    private static class Block {
+        private final AtomicLong remaining = new AtomicLong();
+        private volatile boolean retired;
+
+        boolean tryTake() {
+            long current;
+            while ((current = remaining.get()) > 0) {
+                if (remaining.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
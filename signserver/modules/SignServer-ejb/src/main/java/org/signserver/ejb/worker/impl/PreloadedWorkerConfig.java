@@ -34,6 +34,7 @@ public class PreloadedWorkerConfig {
     private final boolean disableKeyUsageCounter;
     private final long keyUsageLimit;
     private final boolean keyUsageLimitSpecified;
+    private final long keyUsageCounterBlockSize;
     
     private final boolean checkCertValidity;
     private final boolean checkPrivateKeyValidity;
@@ -64,6 +65,19 @@ public class PreloadedWorkerConfig {
             fatalErrors.add("Configuration error: " + SignServerConstants.DISABLEKEYUSAGECOUNTER + "=TRUE but " + SignServerConstants.KEYUSAGELIMIT + " is also configured.");
         }
 
+        long keyUsageCounterBlockSizeValue;
+        try {
+            keyUsageCounterBlockSizeValue = Long.parseLong(config.getProperty(SignServerConstants.KEYUSAGECOUNTERBLOCKSIZE, "1").trim());
+            if (keyUsageCounterBlockSizeValue < 1) {
+                fatalErrors.add("Incorrect value in worker property " + SignServerConstants.KEYUSAGECOUNTERBLOCKSIZE + ": Must be a positive number");
+                keyUsageCounterBlockSizeValue = 1;
+            }
+        } catch (NumberFormatException ex) {
+            fatalErrors.add("Incorrect value in worker property " + SignServerConstants.KEYUSAGECOUNTERBLOCKSIZE + ": " + ex.getMessage());
+            keyUsageCounterBlockSizeValue = 1;
+        }
+        this.keyUsageCounterBlockSize = keyUsageCounterBlockSizeValue;
+
         this.checkCertValidity = config.getProperty(SignServerConstants.CHECKCERTVALIDITY, Boolean.TRUE.toString()).equalsIgnoreCase(Boolean.TRUE.toString());
         this.checkPrivateKeyValidity = config.getProperty(SignServerConstants.CHECKCERTPRIVATEKEYVALIDITY, Boolean.TRUE.toString()).equalsIgnoreCase(Boolean.TRUE.toString());
 
@@ -98,6 +112,14 @@ public class PreloadedWorkerConfig {
         return keyUsageLimitSpecified;
     }
 
+    /**
+     * @return Number of key usages to reserve at a time, 1 if reservations
+     * are not used
+     */
+    public long getKeyUsageCounterBlockSize() {
+        return keyUsageCounterBlockSize;
+    }
+
     public boolean isCheckCertValidity() {
         return checkCertValidity;
     }
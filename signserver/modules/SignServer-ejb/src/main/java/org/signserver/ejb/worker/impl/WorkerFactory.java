@@ -13,6 +13,10 @@
 package org.signserver.ejb.worker.impl;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
 import org.signserver.common.*;
@@ -31,6 +35,11 @@ import org.signserver.server.UnloadableWorker;
  * Loads worker configurations and instantiates the implementations and caches
  * those.
  *
+ * Cached instances are returned without any locking. A worker is loaded or
+ * reloaded while holding a lock for that worker only so it is only loaded
+ * once and without blocking requests for other workers. Flushing all
+ * workers waits for ongoing loads to finish.
+ *
  * @author Philip Vendil
  * @version $Id$
  */
@@ -47,6 +56,12 @@ public class WorkerFactory {
 
     private final WorkerStore cache = new WorkerStore();
 
+    /** Locks used while loading each worker. */
+    private final ConcurrentMap<Integer, Object> loadLocks = new ConcurrentHashMap<>();
+
+    /** Shared while loading workers and exclusive while flushing all. */
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+
     protected WorkerFactory(IWorkerConfigDataService workerConfigHome, SignServerContext workerContext) {
         this.workerConfigHome = workerConfigHome;
         this.workerContext = workerContext;
@@ -64,13 +79,25 @@ public class WorkerFactory {
      * for the specified signerId could be found.
      * @throws NoSuchWorkerException In case the worker ID does not exist
      */
-    public synchronized IWorker getWorker(WorkerIdentifier wi) throws NoSuchWorkerException {
+    public IWorker getWorker(WorkerIdentifier wi) throws NoSuchWorkerException {
         if (LOG.isTraceEnabled()) {
             LOG.trace(">getWorker(" + wi + ")");
         }
         IWorker result = cache.getWorkerOnly(wi);
         if (result == null) {
-            result = loadWorker(wi);
+            final int workerId = getWorkerId(wi);
+            flushLock.readLock().lock();
+            try {
+                synchronized (getLoadLock(workerId)) {
+                    // Could have been loaded while we were waiting
+                    result = cache.getWorkerOnly(wi);
+                    if (result == null) {
+                        result = loadWorker(workerId);
+                    }
+                }
+            } finally {
+                flushLock.readLock().unlock();
+            }
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("<getWorker(" + wi + "): " + result);
@@ -78,10 +105,22 @@ public class WorkerFactory {
         return result;
     }
 
-    public synchronized WorkerWithComponents getWorkerWithComponents(final WorkerIdentifier wi, final SignServerContext context) throws NoSuchWorkerException {
+    public WorkerWithComponents getWorkerWithComponents(final WorkerIdentifier wi, final SignServerContext context) throws NoSuchWorkerException {
         WorkerWithComponents result = cache.getWorkerWithComponents(wi);
         if (result == null) {
-            result = loadWorkerWithComponents(wi, context);
+            final int workerId = getWorkerId(wi);
+            flushLock.readLock().lock();
+            try {
+                synchronized (getLoadLock(workerId)) {
+                    // Could have been loaded while we were waiting
+                    result = cache.getWorkerWithComponents(wi);
+                    if (result == null) {
+                        result = loadWorkerWithComponents(workerId, context);
+                    }
+                }
+            } finally {
+                flushLock.readLock().unlock();
+            }
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("getWorkerWithComponents(" + wi + ") returning instance: " + result + " containing " + result.getWorker());
@@ -89,16 +128,26 @@ public class WorkerFactory {
         return result;
     }
 
-    private IWorker loadWorker(final WorkerIdentifier wi) throws NoSuchWorkerException {
-        if (LOG.isTraceEnabled()) {
-            LOG.trace(">loadWorker(" + wi + ")");
-        }
+    private int getWorkerId(final WorkerIdentifier wi) throws NoSuchWorkerException {
         final int workerId;
         if (wi.hasId()) {
             workerId = wi.getId();
         } else {
             workerId = workerConfigHome.findId(wi.getName());
         }
+        return workerId;
+    }
+
+    private Object getLoadLock(final int workerId) {
+        final Object lock = new Object();
+        final Object existing = loadLocks.putIfAbsent(workerId, lock);
+        return existing == null ? lock : existing;
+    }
+
+    private IWorker loadWorker(final int workerId) throws NoSuchWorkerException {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace(">loadWorker(" + workerId + ")");
+        }
 
         // Load worker from database
         IWorker result;
@@ -137,24 +186,20 @@ public class WorkerFactory {
             cache.putWorkerOnly(workerId, result);
         }
         if (LOG.isTraceEnabled()) {
-            LOG.trace("<loadWorker(" + wi + "): " + result);
+            LOG.trace("<loadWorker(" + workerId + "): " + result);
         }
         return result;
     }
     
-    private WorkerWithComponents loadWorkerWithComponents(final WorkerIdentifier wi, final SignServerContext context) throws NoSuchWorkerException {
-        final int workerId;
-        if (wi.hasId()) {
-            workerId = wi.getId();
-        } else {
-            workerId = workerConfigHome.findId(wi.getName());
-        }
-        
+    private WorkerWithComponents loadWorkerWithComponents(final int workerId, final SignServerContext context) throws NoSuchWorkerException {
         WorkerWithComponents result;
         if (LOG.isTraceEnabled()) {
             LOG.trace(">loadWorkerWithComponents(" + workerId + ")");
         }
-        final IWorker worker = getWorker(wi);
+        IWorker worker = cache.getWorkerOnly(new WorkerIdentifier(workerId));
+        if (worker == null) {
+            worker = loadWorker(workerId);
+        }
 
         final WorkerConfig config = worker.getConfig();
 
@@ -223,21 +268,22 @@ public class WorkerFactory {
 
                 @Override
                 public ICryptoTokenV4 getCurrentCryptoToken(final IServices services) throws SignServerException {
-                    synchronized (WorkerFactory.this) {
-                        try {
-                            IWorker cryptoWorker = getWorker(new WorkerIdentifier(cryptoTokenName));
-                            if (cryptoWorker instanceof BaseProcessable) {
+                    try {
+                        IWorker cryptoWorker = getWorker(new WorkerIdentifier(cryptoTokenName));
+                        if (cryptoWorker instanceof BaseProcessable) {
+                            // Only lock the crypto worker while its token is created
+                            synchronized (cryptoWorker) {
                                 return ((BaseProcessable) cryptoWorker).getCryptoToken(services);
-                            } else {
-                                if (LOG.isDebugEnabled()) {
-                                    LOG.debug("Not a processable worker: " + cryptoWorker);
-                                }
-                                return null;
                             }
-                        } catch (NoSuchWorkerException ex) {
-                            LOG.info("Unable to get crypto worker: " + cryptoTokenName);
+                        } else {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("Not a processable worker: " + cryptoWorker);
+                            }
                             return null;
                         }
+                    } catch (NoSuchWorkerException ex) {
+                        LOG.info("Unable to get crypto worker: " + cryptoTokenName);
+                        return null;
                     }
                 }
 
@@ -255,30 +301,43 @@ public class WorkerFactory {
      * Should be called from the GlobalConfigurationFileParser.reloadConfiguration() method
      *
      */
-    public synchronized void flush() {
+    public void flush() {
         if (LOG.isTraceEnabled()) {
             LOG.trace(">flush()");
         }
-        cache.clearAll();
+        flushLock.writeLock().lock();
+        try {
+            cache.clearAll();
+        } finally {
+            flushLock.writeLock().unlock();
+        }
     }
 
     /**
      * Method used to force a reload of worker.
      * @param wi of worker
      */
-    public synchronized void reloadWorker(WorkerIdentifier wi) {
+    public void reloadWorker(WorkerIdentifier wi) {
         if (LOG.isTraceEnabled()) {
             LOG.trace(">reloadWorker(" + wi + ")");
         }
-        if (wi.hasName() || (wi.hasId() && wi.getId() != null)) {
-            cache.clear(wi);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("reloadWorker(" + wi + "): removed instance");
-            }
-        }
-
+        // Clear first so the ID is not resolved using a stale name mapping
+        cache.clear(wi);
         try {
-            loadWorker(wi);
+            final int workerId = getWorkerId(wi);
+            flushLock.readLock().lock();
+            try {
+                synchronized (getLoadLock(workerId)) {
+                    // Could have been loaded again with the old configuration
+                    cache.clear(new WorkerIdentifier(workerId));
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("reloadWorker(" + wi + "): removed instance");
+                    }
+                    loadWorker(workerId);
+                }
+            } finally {
+                flushLock.readLock().unlock();
+            }
         } catch (NoSuchWorkerException ex) {
             LOG.error("Error reloading worker : " + ex.getMessage());
         }
@@ -287,7 +346,7 @@ public class WorkerFactory {
         }
     }
     
-    public synchronized Collection<Integer> getCachedWorkerIds() {
+    public Collection<Integer> getCachedWorkerIds() {
         return cache.keySet();
     }
 
@@ -14,9 +14,14 @@ package org.signserver.ejb.worker.impl;
 
 import java.util.List;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
 import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
 import org.signserver.common.NoSuchWorkerException;
@@ -24,13 +29,18 @@ import org.signserver.common.WorkerIdentifier;
 import org.signserver.common.WorkerType;
 import org.signserver.server.IWorker;
 import org.signserver.server.SignServerContext;
+import org.signserver.server.archive.spool.ArchiveSpool;
 import org.signserver.server.config.entities.FileBasedWorkerConfigDataService;
+import org.signserver.server.config.entities.FileBasedWorkerConfigJournal;
 import org.signserver.server.config.entities.IWorkerConfigDataService;
 import org.signserver.server.config.entities.WorkerConfigDataService;
 import org.signserver.server.entities.FileBasedKeyUsageCounterDataService;
+import org.signserver.server.entities.FileBasedKeyUsageCounterJournal;
 import org.signserver.server.entities.IKeyUsageCounterDataService;
 import org.signserver.server.entities.KeyUsageCounterDataService;
+import org.signserver.server.log.AsyncLogWriter;
 import org.signserver.server.nodb.FileBasedDatabaseManager;
+import org.signserver.server.statistics.StatisticsManager;
 
 /**
  * Singleton bean managing the worker life-cycle.
@@ -55,6 +65,11 @@ public class WorkerManagerSingletonBean {
     
     private SignServerContext workerContext;
 
+    private KeyUsageCounterReservations keyUsageCounterReservations;
+
+    @Resource
+    private SessionContext ctx;
+
     @PostConstruct
     public void create() {
         if (em == null) {
@@ -75,6 +90,41 @@ public class WorkerManagerSingletonBean {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Created WorkerFactory instance: " + workerFactory);
         }
+
+        // Reservations are done through the business object so that they
+        // are committed in their own transactions
+        final WorkerManagerSingletonBean session = ctx.getBusinessObject(WorkerManagerSingletonBean.class);
+        keyUsageCounterReservations = new KeyUsageCounterReservations(new KeyUsageCounterReservations.Backend() {
+            @Override
+            public long reserve(String keyHash, long count, long limit) {
+                return session.reserveKeyUsages(keyHash, count, limit);
+            }
+
+            @Override
+            public void release(String keyHash, long count) {
+                session.releaseKeyUsages(keyHash, count);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        keyUsageCounterReservations.releaseAll();
+
+        // Stop draining the archive spools so that a new deployment can open them
+        ArchiveSpool.closeAll();
+
+        // Write the pending log lines and stop the log writer threads
+        AsyncLogWriter.closeAll();
+
+        // Write the pending statistics and stop the statistics writer thread
+        StatisticsManager.flush(0);
+
+        // Release the key usage counter journal so that a new deployment can open it
+        FileBasedKeyUsageCounterJournal.closeAll();
+
+        // Release the worker configuration journal so that a new deployment can open it
+        FileBasedWorkerConfigJournal.closeAll();
     }
 
     /**
@@ -139,5 +189,38 @@ public class WorkerManagerSingletonBean {
     public void upgradeWorkerNames() {
         workerConfigService.populateNameColumn();
     }
+
+    /**
+     * @return The key usages reserved in advance by this node
+     */
+    public KeyUsageCounterReservations getKeyUsageCounterReservations() {
+        return keyUsageCounterReservations;
+    }
+
+    /**
+     * Reserve a block of key usages in a new transaction.
+     *
+     * @param keyHash Hash of the key
+     * @param count Number of usages to reserve
+     * @param limit The key usage limit or a negative value for no limit
+     * @return The number of usages reserved
+     * @see KeyUsageCounterReservations
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public long reserveKeyUsages(final String keyHash, final long count, final long limit) {
+        return keyUsageCounterDataService.reserve(keyHash, count, limit);
+    }
+
+    /**
+     * Give back unused key usages in a new transaction.
+     *
+     * @param keyHash Hash of the key
+     * @param count Number of usages to give back
+     * @see KeyUsageCounterReservations
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void releaseKeyUsages(final String keyHash, final long count) {
+        keyUsageCounterDataService.release(keyHash, count);
+    }
     
 }
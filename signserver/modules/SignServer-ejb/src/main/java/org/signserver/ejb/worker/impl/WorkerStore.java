@@ -13,8 +13,8 @@
 package org.signserver.ejb.worker.impl;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.Logger;
 import org.signserver.common.util.PropertiesConstants;
 import org.signserver.common.WorkerIdentifier;
@@ -24,6 +24,9 @@ import org.signserver.server.IWorker;
  * Holder for loaded workers and workers+components as well as the mapping from
  * worker name to worker ID.
  *
+ * Lookups can be done concurrently without locking. Updates of one worker are
+ * expected to be serialized by the caller.
+ *
  * @author Markus Kilås
  * @version $Id$
  */
@@ -32,9 +35,9 @@ public class WorkerStore {
     /** Logger for this class. */
     private final Logger LOG = Logger.getLogger(WorkerStore.class);
     
-    private final Map<Integer, WorkerWithComponents> workersWithComponents = new HashMap<>();
-    private final Map<Integer, IWorker> workersOnly = new HashMap<>();
-    private final Map<String, Integer> nameToIdMap = new HashMap<>();
+    private final Map<Integer, WorkerWithComponents> workersWithComponents = new ConcurrentHashMap<>();
+    private final Map<Integer, IWorker> workersOnly = new ConcurrentHashMap<>();
+    private final Map<String, Integer> nameToIdMap = new ConcurrentHashMap<>();
     
     protected WorkerStore() {
         
@@ -94,9 +97,8 @@ public class WorkerStore {
     
     private String getName(int workerId) {
         String result = null;
-        WorkerWithComponents w = workersWithComponents.get(workerId);
-        if (w != null) {
-            IWorker worker = w.getWorker();
+        final IWorker worker = workersOnly.get(workerId);
+        if (worker != null) {
             result = getName(worker);
         }
         return result;
@@ -126,9 +128,12 @@ public class WorkerStore {
             workerId = getWorkerId(id.getName());
         }
         if (workerId != null) {
+            final String name = getName(workerId);
             workersOnly.remove(workerId);
             workersWithComponents.remove(workerId);
-            nameToIdMap.remove(getName(workerId));
+            if (name != null) {
+                nameToIdMap.remove(name);
+            }
         }
     }
 
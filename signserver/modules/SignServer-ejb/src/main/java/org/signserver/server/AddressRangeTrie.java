@@ -0,0 +1,394 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.util.Arrays;
+
+/**
+ * Set of IPv4 and IPv6 address ranges in CIDR notation (i.e. 10.0.0.0/8 or
+ * 2001:db8::/32) or single addresses, stored as a prefix trie.
+ *
+ * Each trie node covers 4 bits of the address and has 16 slots, which is
+ * 64 bytes and thus normally one cache line. A slot refers to a child node
+ * or marks the whole subtree as covered by a range. Ranges with a prefix
+ * length that is not a multiple of 4 are stored by marking all slots they
+ * cover in the last node.
+ *
+ * Addresses are parsed directly from their textual form without using the
+ * resolver and lookups do not allocate any objects. IPv4-mapped IPv6
+ * addresses (::ffff:a.b.c.d) are treated as the corresponding IPv4
+ * address, as is done by InetAddress.
+ *
+ * The trie is not thread-safe while ranges are added but can be used by
+ * multiple threads once built.
+ *
+ * @version $Id$
+ */
+public class AddressRangeTrie {
+
+    private static final int ROOT_IPV4 = 0;
+    private static final int ROOT_IPV6 = 1;
+
+    /** Slot value meaning no child. Root nodes are never children. */
+    private static final int NONE = 0;
+
+    /** Slot value meaning all addresses below are covered by a range. */
+    private static final int COVERED = -1;
+
+    private static final int STRIDE = 4;
+    private static final int SLOTS = 1 << STRIDE;
+
+    private static final int IPV4_BITS = 32;
+    private static final int IPV6_BITS = 128;
+
+    /** Buffer for the parsed IPv6 address used by lookups. */
+    private static final ThreadLocal<long[]> ADDRESS_BUFFER = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    /** Slots of node n at index 16n to 16n + 15. */
+    private int[] slots = new int[16 * SLOTS];
+    private int nodes = 2;
+    private int ranges;
+
+    /**
+     * Adds an address or address range.
+     * @param range IP address or range in CIDR notation
+     * @throws IllegalArgumentException if the value is not an IP address
+     * literal or has an illegal prefix length
+     */
+    public void add(final String range) throws IllegalArgumentException {
+        final String value = range.trim();
+        final int slash = value.indexOf('/');
+        final int end = slash < 0 ? value.length() : slash;
+
+        final long ipv4 = parseIPv4(value, 0, end);
+        if (ipv4 >= 0) {
+            final int prefixLength = slash < 0 ? IPV4_BITS : parsePrefixLength(value, slash + 1, IPV4_BITS);
+            insert(ROOT_IPV4, ipv4 << 32, 0, prefixLength);
+        } else {
+            final long[] address = new long[2];
+            if (!parseIPv6(value, 0, end, address)) {
+                throw new IllegalArgumentException("Not an IP address: " + value);
+            }
+            final int prefixLength = slash < 0 ? IPV6_BITS : parsePrefixLength(value, slash + 1, IPV6_BITS);
+            if (isIPv4Mapped(address) && prefixLength >= IPV6_BITS - IPV4_BITS) {
+                insert(ROOT_IPV4, address[1] << 32, 0, prefixLength - (IPV6_BITS - IPV4_BITS));
+            } else {
+                insert(ROOT_IPV6, address[0], address[1], prefixLength);
+            }
+        }
+    }
+
+    /**
+     * Adds an address range.
+     * @param address IPv4 (4 bytes) or IPv6 (16 bytes) address
+     * @param prefixLength number of leading bits to match
+     * @throws IllegalArgumentException if the address has an illegal length
+     * or the prefix length is out of range
+     */
+    public void add(final byte[] address, final int prefixLength) throws IllegalArgumentException {
+        if (address.length != 4 && address.length != 16) {
+            throw new IllegalArgumentException("Illegal address length: " + address.length);
+        }
+        if (prefixLength < 0 || prefixLength > address.length * 8) {
+            throw new IllegalArgumentException("Illegal prefix length: " + prefixLength);
+        }
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < address.length; i++) {
+            if (i < 8) {
+                hi = (hi << 8) | (address[i] & 0xff);
+            } else {
+                lo = (lo << 8) | (address[i] & 0xff);
+            }
+        }
+        if (address.length == 4) {
+            insert(ROOT_IPV4, hi << 32, 0, prefixLength);
+        } else {
+            insert(ROOT_IPV6, hi, lo, prefixLength);
+        }
+    }
+
+    /**
+     * Checks if an address is within any of the ranges.
+     * @param address IP address literal
+     * @return true if the address is in one of the ranges
+     * @throws IllegalArgumentException if the value is not an IP address
+     * literal
+     */
+    public boolean contains(final String address) throws IllegalArgumentException {
+        if (address == null) {
+            throw new IllegalArgumentException("Missing IP address");
+        }
+        final long ipv4 = parseIPv4(address, 0, address.length());
+        if (ipv4 >= 0) {
+            return matches(ROOT_IPV4, ipv4 << 32, 0, IPV4_BITS);
+        }
+        final long[] buffer = ADDRESS_BUFFER.get();
+        if (!parseIPv6(address, 0, address.length(), buffer)) {
+            throw new IllegalArgumentException("Not an IP address: " + address);
+        }
+        if (isIPv4Mapped(buffer)) {
+            return matches(ROOT_IPV4, buffer[1] << 32, 0, IPV4_BITS);
+        }
+        return matches(ROOT_IPV6, buffer[0], buffer[1], IPV6_BITS);
+    }
+
+    /**
+     * @return number of ranges added
+     */
+    public int size() {
+        return ranges;
+    }
+
+    private void insert(final int root, final long hi, final long lo, final int prefixLength) {
+        ranges++;
+        int node = root;
+        int depth = 0;
+        while (prefixLength - depth > STRIDE) {
+            final int index = node * SLOTS + nibble(hi, lo, depth);
+            int child = slots[index];
+            if (child == COVERED) {
+                // Already covered by a larger range
+                return;
+            }
+            if (child == NONE) {
+                child = newNode();
+                slots[index] = child;
+            }
+            node = child;
+            depth += STRIDE;
+        }
+
+        // Mark the slots for all values of the remaining bits, any smaller
+        // ranges below them are covered by this one
+        final int remaining = prefixLength - depth;
+        final int count = 1 << (STRIDE - remaining);
+        final int first = remaining == 0 ? 0 : nibble(hi, lo, depth) & -count;
+        Arrays.fill(slots, node * SLOTS + first, node * SLOTS + first + count, COVERED);
+    }
+
+    private int newNode() {
+        if ((nodes + 1) * SLOTS > slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        return nodes++;
+    }
+
+    private boolean matches(final int root, final long hi, final long lo, final int bits) {
+        final int[] slots = this.slots;
+        int node = root;
+        for (int depth = 0; depth < bits; depth += STRIDE) {
+            node = slots[node * SLOTS + nibble(hi, lo, depth)];
+            if (node == COVERED) {
+                return true;
+            }
+            if (node == NONE) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static int nibble(final long hi, final long lo, final int depth) {
+        return (int) (depth < 64 ? hi >>> (60 - depth) : lo >>> (124 - depth)) & (SLOTS - 1);
+    }
+
+    private static boolean isIPv4Mapped(final long[] address) {
+        return address[0] == 0 && address[1] >>> 32 == 0xffffL;
+    }
+
+    private static int parsePrefixLength(final String value, final int start, final int max) {
+        final int length = value.length() - start;
+        if (length < 1 || length > 3) {
+            throw new IllegalArgumentException("Illegal prefix length: " + value);
+        }
+        int result = 0;
+        for (int i = start; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Illegal prefix length: " + value);
+            }
+            result = result * 10 + (c - '0');
+        }
+        if (result > max) {
+            throw new IllegalArgumentException("Illegal prefix length: " + value);
+        }
+        return result;
+    }
+
+    /**
+     * Parses an IPv4 address in dotted decimal notation.
+     * @param s string to parse
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return the address as an unsigned 32-bit value or -1 if not an IPv4
+     * address
+     */
+    static long parseIPv4(final String s, final int start, final int end) {
+        long result = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value < 0 ? c - '0' : value * 10 + (c - '0');
+                if (value > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && value >= 0 && octets < 3) {
+                result = (result << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                return -1;
+            }
+        }
+        if (value < 0 || octets != 3) {
+            return -1;
+        }
+        return (result << 8) | value;
+    }
+
+    /**
+     * Parses an IPv6 address, optionally within brackets and with a zone
+     * index, which is ignored.
+     * @param s string to parse
+     * @param start index of the first character
+     * @param end index after the last character
+     * @param out the high and low 64 bits of the address
+     * @return false if not an IPv6 address
+     */
+    static boolean parseIPv6(final String s, int start, int end, final long[] out) {
+        if (end - start >= 2 && s.charAt(start) == '[' && s.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+        if (start == end) {
+            return false;
+        }
+
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int groups = 0;
+        int headGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (s.charAt(i) == ':') {
+            if (end - i < 2 || s.charAt(i + 1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int groupEnd = i;
+            int value = 0;
+            int digit;
+            while (groupEnd < end && groupEnd - i < 4 && (digit = hexValue(s.charAt(groupEnd))) >= 0) {
+                value = (value << 4) | digit;
+                groupEnd++;
+            }
+            final int count;
+            if (groupEnd < end && s.charAt(groupEnd) == '.') {
+                // Embedded IPv4 address as the last two groups
+                final long ipv4 = parseIPv4(s, i, end);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                value = (int) ipv4;
+                count = 2;
+                groupEnd = end;
+            } else if (groupEnd == i) {
+                return false;
+            } else {
+                count = 1;
+            }
+            groups += count;
+            if (groups > 8) {
+                return false;
+            }
+            final int bits = 16 * count;
+            final long mask = count == 2 ? 0xffffffffL : 0xffffL;
+            if (compressed) {
+                tailHi = (tailHi << bits) | (tailLo >>> (64 - bits));
+                tailLo = (tailLo << bits) | (value & mask);
+            } else {
+                headHi = (headHi << bits) | (headLo >>> (64 - bits));
+                headLo = (headLo << bits) | (value & mask);
+                headGroups += count;
+            }
+
+            if (groupEnd == end) {
+                break;
+            }
+            if (s.charAt(groupEnd) != ':') {
+                return false;
+            }
+            i = groupEnd + 1;
+            if (i < end && s.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            } else if (i == end) {
+                return false;
+            }
+        }
+
+        if (compressed ? groups > 7 : groups != 8) {
+            return false;
+        }
+
+        // Move the groups before :: to the top
+        final int shift = 16 * (8 - headGroups);
+        if (shift >= 128) {
+            headHi = 0;
+            headLo = 0;
+        } else if (shift >= 64) {
+            headHi = headLo << (shift - 64);
+            headLo = 0;
+        } else if (shift > 0) {
+            headHi = (headHi << shift) | (headLo >>> (64 - shift));
+            headLo <<= shift;
+        }
+        out[0] = headHi | tailHi;
+        out[1] = headLo | tailLo;
+        return true;
+    }
+
+    private static int hexValue(final char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
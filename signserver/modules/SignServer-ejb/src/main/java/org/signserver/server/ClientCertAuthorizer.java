@@ -12,12 +12,16 @@
  *************************************************************************/
 package org.signserver.server;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
-import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
 import org.cesecore.util.CertTools;
 import org.signserver.common.ClientEntry;
 import org.signserver.common.IllegalRequestException;
@@ -30,10 +34,14 @@ import org.signserver.common.data.Request;
 /**
  * Client certificate authorizer.
  *
+ * Decisions are cached by the SHA-256 fingerprint of the client
+ * certificate so that the issuer DN only needs to be parsed the first time
+ * a certificate is seen.
+ *
  * @author Philip Vendil 24 nov 2007
  * @version $Id$
  */
-public class ClientCertAuthorizer implements IAuthorizer {
+public class ClientCertAuthorizer implements ICachingAuthorizer {
 
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(ClientCertAuthorizer.class);
@@ -41,6 +49,10 @@ public class ClientCertAuthorizer implements IAuthorizer {
     private int workerId;
 
     private Set<ClientEntry> authorizedClients;
+
+    private AuthorizationCache<String> cache;
+
+    private List<String> fatalErrors;
     
     /**
      * Initialize a ClientCertAuthorizer.
@@ -54,6 +66,8 @@ public class ClientCertAuthorizer implements IAuthorizer {
     public void init(final int workerId, final WorkerConfig workerConfig,
             final EntityManager em)  throws SignServerException {
         this.workerId = workerId;
+        this.fatalErrors = new LinkedList<>();
+        this.cache = AuthorizationCache.create(workerConfig, fatalErrors);
         this.authorizedClients =
                 ClientEntry.clientEntriesFromAuthClients(workerConfig.getAuthorizedClients());
         if (LOG.isDebugEnabled()) {
@@ -63,7 +77,12 @@ public class ClientCertAuthorizer implements IAuthorizer {
     
     @Override
     public List<String> getFatalErrors() {
-        return Collections.emptyList();
+        return fatalErrors;
+    }
+
+    @Override
+    public AuthorizationCache<?> getAuthorizationCache() {
+        return cache;
     }
 
     /**
@@ -95,6 +114,22 @@ public class ClientCertAuthorizer implements IAuthorizer {
     }
 
     private boolean authorizedToRequestSignature(final X509Certificate clientCert) {
+        final String fingerprint = getFingerprint(clientCert);
+        if (fingerprint != null) {
+            final Boolean cached = cache.get(fingerprint);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final boolean result = isAuthorizedClient(clientCert);
+        if (fingerprint != null) {
+            cache.put(fingerprint, result);
+        }
+        return result;
+    }
+
+    private boolean isAuthorizedClient(final X509Certificate clientCert) {
         final String clientDN = CertTools.stringToBCDNString(
                 clientCert.getIssuerX500Principal().getName());
 
@@ -103,4 +138,13 @@ public class ClientCertAuthorizer implements IAuthorizer {
         
         return authorizedClients.contains(client);
     }
+
+    private static String getFingerprint(final X509Certificate clientCert) {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(clientCert.getEncoded()));
+        } catch (NoSuchAlgorithmException | CertificateEncodingException ex) {
+            LOG.warn("Unable to compute fingerprint of client certificate: " + ex.getMessage());
+            return null;
+        }
+    }
 }
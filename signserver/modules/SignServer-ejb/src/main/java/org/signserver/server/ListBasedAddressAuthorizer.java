@@ -14,10 +14,8 @@ package org.signserver.server;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 import javax.persistence.EntityManager;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -34,6 +32,10 @@ import org.signserver.server.log.Loggable;
 /**
  * Authorizer with the ability to accept or deny remote and
  * forwarded addresses based on white and black listing.
+ *
+ * The lists can contain both single addresses and address ranges in CIDR
+ * notation (i.e. 10.0.0.0/8). Addresses in requests are matched without
+ * any name lookups.
  * 
  * @author Marcus Lundblad
  * @version $Id$
@@ -53,8 +55,8 @@ public class ListBasedAddressAuthorizer implements IAuthorizer {
     
     private static final int MAX_FORWARDED_ADDRESSES_DEFAULT = 1;
     
-    private Set<InetAddress> addressesDirect;
-    private Set<InetAddress> addressesForwarded;
+    private AddressRangeTrie addressesDirect;
+    private AddressRangeTrie addressesForwarded;
     private boolean isDirectWhitelisting;
     private boolean isForwardedWhitelisting;
     private String whitelistedDirectAddresses;
@@ -111,21 +113,31 @@ public class ListBasedAddressAuthorizer implements IAuthorizer {
     /**
      * Helper method to extract addresses from configuration properties. Will also set fatal errors for malformed addresses.
      * 
-     * @param addresses Comma-separated list of IP addresses (taken from the configuration)
+     * @param addresses Comma-separated list of IP addresses or address ranges (taken from the configuration)
      * @param component Used to prefix a possible error string
-     * @return A set of InetAddress objects representing the list
+     * @return A trie with the addresses in the list
      */
-    private Set<InetAddress> splitAddresses(final String addresses, final String component) {
-        final Set<InetAddress> res = new HashSet<>();
+    private AddressRangeTrie splitAddresses(final String addresses, final String component) {
+        final AddressRangeTrie res = new AddressRangeTrie();
         final String[] addressArr = addresses.split(",");
         
         for (String address : addressArr) {
             address = address.trim();
             if (address.length() > 0) {
                 try {
-                    res.add(InetAddress.getByName(address));
-                } catch (UnknownHostException e) {
-                    fatalErrors.add(component + ", illegal address specified: " + e.getMessage());
+                    res.add(address);
+                } catch (IllegalArgumentException e) {
+                    if (address.indexOf('/') >= 0) {
+                        fatalErrors.add(component + ", illegal address specified: " + e.getMessage());
+                    } else {
+                        // Not an IP address literal, resolve it once here
+                        try {
+                            final byte[] resolved = InetAddress.getByName(address).getAddress();
+                            res.add(resolved, resolved.length * 8);
+                        } catch (UnknownHostException ex) {
+                            fatalErrors.add(component + ", illegal address specified: " + ex.getMessage());
+                        }
+                    }
                 }
             }
         }
@@ -139,20 +151,21 @@ public class ListBasedAddressAuthorizer implements IAuthorizer {
             AccessDeniedException, SignServerException {
         final String remote = (String) requestContext.get(RequestContext.REMOTE_IP);
         final String[] forwardedAddresses = XForwardedForUtils.getXForwardedForIPs(requestContext, maxForwardedAddresses);
-        InetAddress remoteAddress;
-        try {
-            remoteAddress = InetAddress.getByName(remote);
-        } catch (UnknownHostException e) {
-            throw new IllegalRequestException("Illegal remote address in request: " + e.getMessage());
-        }
         
         if (!fatalErrors.isEmpty()) {
             throw new SignServerException("Misconfigured");
         }
         
+        final boolean remoteListed;
+        try {
+            remoteListed = addressesDirect.contains(remote);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalRequestException("Illegal remote address in request: " + e.getMessage());
+        }
+        
         // check direct address
-        if ((isDirectWhitelisting && !addressesDirect.contains(remoteAddress)) ||
-                (!isDirectWhitelisting && addressesDirect.contains(remoteAddress))) {
+        if ((isDirectWhitelisting && !remoteListed) ||
+                (!isDirectWhitelisting && remoteListed)) {
             LOG.error("Worker " + workerId + ": "
                     + "Not authorized remote address: " + remote);
             throw new AccessDeniedException("Remote address not authorized");
@@ -166,14 +179,7 @@ public class ListBasedAddressAuthorizer implements IAuthorizer {
             }
            
             for (final String forwarded : forwardedAddresses) {
-                InetAddress forwardedAddress;
-                try {
-                    forwardedAddress = InetAddress.getByName(forwarded);
-                } catch (UnknownHostException e) {
-                    throw new IllegalRequestException("Illegal forwarded address in request: " + e.getMessage());
-                }
-                
-                if (!addressesForwarded.contains(forwardedAddress)) {
+                if (!isForwardedListed(forwarded)) {
                     LOG.error("Worker " + workerId + ": "
                             + "No authorized forwarded address among inspected addesses");
                     throw new AccessDeniedException("Forwarded address not athorized");
@@ -182,14 +188,7 @@ public class ListBasedAddressAuthorizer implements IAuthorizer {
         } else {
             if (forwardedAddresses != null && forwardedAddresses.length > 0) {
                 for (final String forwarded : forwardedAddresses) {
-                    InetAddress forwardedAddress;
-                    try {
-                        forwardedAddress = InetAddress.getByName(forwarded);
-                    } catch (UnknownHostException e) {
-                        throw new IllegalRequestException("Illegal forwarded address in request: " + e.getMessage());
-                    }
-                    
-                    if (addressesForwarded.contains(forwardedAddress)) {
+                    if (isForwardedListed(forwarded)) {
                         LOG.error("Worker " + workerId + ": "
                                 + "Found blacklisted address among inspected addresses: " + forwarded);
                         throw new AccessDeniedException("Forwarded address not athorized");
@@ -201,6 +200,14 @@ public class ListBasedAddressAuthorizer implements IAuthorizer {
         logRemoteAddress(remote, forwardedAddresses, requestContext);
     }
     
+    private boolean isForwardedListed(final String forwarded) throws IllegalRequestException {
+        try {
+            return addressesForwarded.contains(forwarded);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalRequestException("Illegal forwarded address in request: " + e.getMessage());
+        }
+    }
+    
     /**
      * Sets fatal errors based on members set in init().
      * 
@@ -12,13 +12,19 @@
  *************************************************************************/
 package org.signserver.server;
 
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.persistence.EntityManager;
 import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Hex;
@@ -33,10 +39,15 @@ import org.signserver.server.log.Loggable;
 
 /**
  * Authorizer requiring a username password pair.
+ *
+ * Successful authentications are cached by the username and an HMAC of
+ * the password, using a random key generated when the authorizer is
+ * created, so that the configured password hash does not have to be
+ * computed for every request and no passwords are kept in the cache.
  * 
  * @version $Id$
  */
-public class UsernamePasswordAuthorizer implements IAuthorizer {
+public class UsernamePasswordAuthorizer implements ICachingAuthorizer {
 
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(
@@ -52,19 +63,44 @@ public class UsernamePasswordAuthorizer implements IAuthorizer {
      */
     private static final String USER_PREFIX = "USER.";
 
+    private static final String CACHE_KEY_ALGORITHM = "HmacSHA256";
+
     private Map<String, Account> userMap = Collections.emptyMap();
 
+    private AuthorizationCache<String> cache;
+
+    /** Initialized MAC to clone for computing cache keys. */
+    private Mac cacheKeyMac;
+
+    private List<String> fatalErrors = Collections.emptyList();
+
     
     @Override
     public void init(final int workerId, final WorkerConfig config,
             final EntityManager em)
             throws SignServerException {
+        fatalErrors = new LinkedList<>();
+        cache = AuthorizationCache.create(config, fatalErrors);
+        try {
+            final byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            cacheKeyMac = Mac.getInstance(CACHE_KEY_ALGORITHM);
+            cacheKeyMac.init(new SecretKeySpec(key, CACHE_KEY_ALGORITHM));
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            LOG.warn("Authorization cache disabled: " + ex.getMessage());
+            cacheKeyMac = null;
+        }
         loadAccounts(config);
     }
     
     @Override
     public List<String> getFatalErrors() {
-        return Collections.emptyList();
+        return fatalErrors;
+    }
+
+    @Override
+    public AuthorizationCache<?> getAuthorizationCache() {
+        return cache;
     }
 
     @Override
@@ -138,6 +174,41 @@ public class UsernamePasswordAuthorizer implements IAuthorizer {
 
     private boolean isAuthorized(
             final UsernamePasswordClientCredential credential) {
+        if (credential.getUsername() == null
+                || credential.getUsername().isEmpty()) {
+            return false;
+        }
+
+        // Only successful authentications are cached so that attempts with
+        // wrong passwords can not push out the valid ones
+        final String cacheKey = getCacheKey(credential);
+        if (cacheKey != null && cache.get(cacheKey) != null) {
+            return true;
+        }
+
+        final boolean result = isValidPassword(credential);
+        if (result && cacheKey != null) {
+            cache.put(cacheKey, true);
+        }
+        return result;
+    }
+
+    private String getCacheKey(final UsernamePasswordClientCredential credential) {
+        if (cacheKeyMac == null || credential.getPassword() == null) {
+            return null;
+        }
+        try {
+            final Mac mac = (Mac) cacheKeyMac.clone();
+            mac.update(credential.getUsername().toUpperCase().getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Hex.toHexString(mac.doFinal(credential.getPassword().getBytes(StandardCharsets.UTF_8)));
+        } catch (CloneNotSupportedException ex) {
+            return null;
+        }
+    }
+
+    private boolean isValidPassword(
+            final UsernamePasswordClientCredential credential) {
         final boolean result;
 
         if (credential.getUsername() == null
@@ -154,8 +225,11 @@ public class UsernamePasswordAuthorizer implements IAuthorizer {
 
                 String password = credential.getPassword() + a.getSalt();
                 if (a.getDigest() != null) {
-                    a.getDigest().reset();
-                    password = new String(Hex.encode(a.getDigest().digest(password.getBytes())));
+                    // The digest is shared by concurrent requests
+                    synchronized (a.getDigest()) {
+                        a.getDigest().reset();
+                        password = new String(Hex.encode(a.getDigest().digest(password.getBytes())));
+                    }
                 }
                 result = password.equals(a.getPassword());
             }
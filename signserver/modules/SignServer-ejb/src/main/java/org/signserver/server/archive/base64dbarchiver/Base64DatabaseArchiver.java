@@ -33,7 +33,10 @@ import org.signserver.server.archive.Archiver;
 import org.signserver.server.archive.ArchiverInitException;
 import org.signserver.server.archive.BaseArchiver;
 import org.signserver.server.archive.olddbarchiver.ArchiveOfTypes;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
 import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
+import org.signserver.server.archive.spool.ArchiveSpool;
+import org.signserver.server.archive.spool.SpooledArchive;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
@@ -64,6 +67,9 @@ public class Base64DatabaseArchiver extends BaseArchiver implements Archiver {
     private int maxForwardedAddresses;
     private boolean includeDirectAddress;
 
+    private ArchiveSpool spool;
+    private long spoolTimeout;
+
     @Override
     public void init(int listIndex, WorkerConfig config, SignServerContext context) throws ArchiverInitException {
         if (!context.isDatabaseConfigured()) {
@@ -101,6 +107,15 @@ public class Base64DatabaseArchiver extends BaseArchiver implements Archiver {
                 Integer.valueOf(config.getProperty(propertyMaxForwardedAddresses,
                         String.valueOf(DEFAULT_MAX_FORWARDED_ADDRESSES)));
         includeDirectAddress = Boolean.valueOf(config.getProperty(propertyIncludeDirect));
+
+        // configuration for archiving asynchronously through a local spool
+        final String prefix = "ARCHIVER" + listIndex + ".";
+        final List<String> spoolErrors = new LinkedList<>();
+        spool = ArchiveSpool.fromConfig(prefix, config, spoolErrors);
+        spoolTimeout = ArchiveSpool.getTimeout(prefix, config, spoolErrors);
+        for (String error : spoolErrors) {
+            addFatalError(error);
+        }
     }
 
     @Override
@@ -121,10 +136,9 @@ public class Base64DatabaseArchiver extends BaseArchiver implements Archiver {
                 || (archiveOfTypes == ArchiveOfTypes.RESPONSE && archiveType == ArchiveDataVO.TYPE_RESPONSE)
                 || (archiveOfTypes == ArchiveOfTypes.REQUEST_AND_RESPONSE && (archiveType == ArchiveDataVO.TYPE_RESPONSE || archiveType == ArchiveDataVO.TYPE_REQUEST))) {
             final EntityManager em = requestContext.getEntityManager();
-            if (em == null) {
+            if (spool == null && em == null) {
                 throw new ArchiveException("Could not archive as archiver was not successfully initialized");
             }
-            final ArchiveDataService dataService = new ArchiveDataService(em);
             final Integer workerId = (Integer) requestContext.get(RequestContext.WORKER_ID);
             final X509Certificate certificate = (X509Certificate) requestContext.get(RequestContext.CLIENT_CERTIFICATE);
             String remoteIp = (String) requestContext.get(RequestContext.REMOTE_IP);
@@ -151,12 +165,21 @@ public class Base64DatabaseArchiver extends BaseArchiver implements Archiver {
                 }
             }
 
-            uniqueId = dataService.create(archiveType,
+            final String archiveData = new String(Base64.encode(archivable.getContentEncoded()));
+            if (spool == null) {
+                uniqueId = new ArchiveDataService(em).create(archiveType,
                             workerId,
                             archivable.getArchiveId(),
                             certificate,
                             remoteIp,
-                        new String(Base64.encode(archivable.getContentEncoded())));
+                            archiveData);
+            } else {
+                final SpooledArchive spooled = SpooledArchive.create(archiveType,
+                        workerId, archivable.getArchiveId(), certificate,
+                        remoteIp, archiveData, ArchiveDataBean.DATA_ENCODING_BASE64);
+                spool.append(spooled, spoolTimeout);
+                uniqueId = spooled.getUniqueId();
+            }
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Archived with uniqueId: " + uniqueId);
@@ -0,0 +1,276 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.archive.filestorearchiver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import javax.persistence.EntityManager;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.signserver.common.ArchiveDataVO;
+import org.signserver.common.RequestContext;
+import org.signserver.common.SignServerConstants;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.util.XForwardedForUtils;
+import org.signserver.server.SignServerContext;
+import org.signserver.server.archive.AbstractArchivable;
+import org.signserver.server.archive.Archivable;
+import org.signserver.server.archive.ArchiveContentStore;
+import org.signserver.server.archive.ArchiveException;
+import org.signserver.server.archive.Archiver;
+import org.signserver.server.archive.ArchiverInitException;
+import org.signserver.server.archive.BaseArchiver;
+import org.signserver.server.archive.olddbarchiver.ArchiveOfTypes;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
+import org.signserver.server.archive.spool.ArchiveSpool;
+import org.signserver.server.archive.spool.SpooledArchive;
+import org.signserver.server.log.IWorkerLogger;
+import org.signserver.server.log.LogMap;
+import org.signserver.server.log.Loggable;
+
+/**
+ * Archiver streaming the archived bytes to a content-addressed file store,
+ * optionally compressed, and adding a row to the database table ArchiveData
+ * referencing the stored file.
+ *
+ * Identical content is only stored once. The rows reference the files
+ * relative to the configured directory and the data is read from there on
+ * the server when the archive is queried.
+ *
+ * @version $Id$
+ * @see ArchiveContentStore
+ */
+public class FileStoreArchiver extends BaseArchiver implements Archiver {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(FileStoreArchiver.class);
+
+    private static final String PROPERTY_DIRECTORY = "DIRECTORY";
+    private static final String PROPERTY_COMPRESSION = "COMPRESSION";
+    private static final String COMPRESSION_NONE = "NONE";
+    private static final String COMPRESSION_DEFLATE = "DEFLATE";
+
+    private static final String PROPERTY_ARCHIVE_OF_TYPE = "ARCHIVE_OF_TYPE";
+    private static final String PROPERTY_USE_FORWARDED_ADDRESS = "USE_FORWARDED_ADDRESS";
+    private static final String PROPERTY_MAX_FORWARDED_ADDRESSES = "MAX_FORWARDED_ADDRESSES";
+    private static final String PROPERTY_INCLUDE_DIRECT_ADDRESS = "INCLUDE_DIRECT_ADDRESS";
+    private static final int DEFAULT_MAX_FORWARDED_ADDRESSES = 1;
+    
+    private ArchiveOfTypes archiveOfTypes;
+    
+    private boolean useXForwardedFor = false;
+    private int maxForwardedAddresses;
+    private boolean includeDirectAddress;
+
+    private ArchiveContentStore store;
+
+    private ArchiveSpool spool;
+    private long spoolTimeout;
+
+    /**
+     * Gives the directories of the FileStoreArchivers configured for a
+     * worker, to read the archived data from.
+     *
+     * @param config worker configuration
+     * @return list of directories, empty if there are none
+     */
+    public static List<File> getDirectories(final WorkerConfig config) {
+        final List<File> result = new LinkedList<>();
+        final String list = config.getProperty(SignServerConstants.ARCHIVERS);
+        if (list != null) {
+            int index = 0;
+            for (String className : list.split(",")) {
+                className = className.trim();
+                if (!className.isEmpty()) {
+                    if (FileStoreArchiver.class.getName().equals(className)) {
+                        final String directory = config.getProperty("ARCHIVER" + index + "." + PROPERTY_DIRECTORY);
+                        if (directory != null && !directory.trim().isEmpty()) {
+                            result.add(new File(directory.trim()));
+                        }
+                    }
+                    index++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void init(int listIndex, WorkerConfig config, SignServerContext context) throws ArchiverInitException {
+        if (!context.isDatabaseConfigured()) {
+            addFatalError("FileStoreArchiver requires a database connection.");
+        }
+
+        // Configuration of where to store
+        final String propertyDirectory = "ARCHIVER" + listIndex + "." + PROPERTY_DIRECTORY;
+        final String propertyCompression = "ARCHIVER" + listIndex + "." + PROPERTY_COMPRESSION;
+        final String directory = config.getProperty(propertyDirectory);
+        final String compression = config.getProperty(propertyCompression, COMPRESSION_NONE).trim().toUpperCase(Locale.ENGLISH);
+        if (directory == null || directory.trim().isEmpty()) {
+            addFatalError("Missing worker property " + propertyDirectory);
+        } else if (!COMPRESSION_NONE.equals(compression) && !COMPRESSION_DEFLATE.equals(compression)) {
+            addFatalError("Illegal value for worker property " + propertyCompression + ": " + compression);
+        } else {
+            store = new ArchiveContentStore(new File(directory.trim()), COMPRESSION_DEFLATE.equals(compression));
+        }
+        
+        // Configuration of what to archive
+        final String propertyArchiveOfType = "ARCHIVER" + listIndex + "." + PROPERTY_ARCHIVE_OF_TYPE;
+        try {
+            archiveOfTypes = ArchiveOfTypes.valueOf(config.getProperty(propertyArchiveOfType, ArchiveOfTypes.RESPONSE.name()));
+        } catch (IllegalArgumentException ex) {
+            final String error =
+                    "Illegal value for worker property " + propertyArchiveOfType;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(error + ": " + ex.getMessage());
+            }
+
+            addFatalError(error);
+        }
+        
+        final boolean noRequestArchiving = Boolean.valueOf(config.getProperty(WorkerConfig.NO_REQUEST_ARCHIVING));
+        if (noRequestArchiving &&
+            (archiveOfTypes == ArchiveOfTypes.REQUEST || archiveOfTypes == ArchiveOfTypes.REQUEST_AND_RESPONSE)) {
+            addFatalError("Can not specifiy " + PROPERTY_ARCHIVE_OF_TYPE + " " + archiveOfTypes.name() + " when " +
+                          WorkerConfig.NO_REQUEST_ARCHIVING + " is set to true");
+        }
+        
+        // configuration for using the X-FORWARDED-FOR header to determine source IP
+        final String propertyXForwardedFor = "ARCHIVER" + listIndex + "." + PROPERTY_USE_FORWARDED_ADDRESS;
+        final String propertyMaxForwardedAddresses =
+                "ARCHIVER" + listIndex + "." + PROPERTY_MAX_FORWARDED_ADDRESSES; 
+        final String propertyIncludeDirect = "ARCHIVER" + listIndex + "." + PROPERTY_INCLUDE_DIRECT_ADDRESS;
+        useXForwardedFor = Boolean.valueOf(config.getProperty(propertyXForwardedFor));
+        maxForwardedAddresses =
+                Integer.valueOf(config.getProperty(propertyMaxForwardedAddresses,
+                        String.valueOf(DEFAULT_MAX_FORWARDED_ADDRESSES)));
+        includeDirectAddress = Boolean.valueOf(config.getProperty(propertyIncludeDirect));
+
+        // configuration for archiving asynchronously through a local spool
+        final String prefix = "ARCHIVER" + listIndex + ".";
+        final List<String> spoolErrors = new LinkedList<>();
+        spool = ArchiveSpool.fromConfig(prefix, config, spoolErrors);
+        spoolTimeout = ArchiveSpool.getTimeout(prefix, config, spoolErrors);
+        for (String error : spoolErrors) {
+            addFatalError(error);
+        }
+    }
+
+    @Override
+    public boolean archive(Archivable archivable, RequestContext requestContext)
+            throws ArchiveException {
+        final boolean archived;
+        
+        // Get the type of this request
+        int archiveType = -1;
+        if (Archivable.TYPE_RESPONSE.equals(archivable.getType())) {
+            archiveType = ArchiveDataVO.TYPE_RESPONSE;
+        } else if (Archivable.TYPE_REQUEST.equals(archivable.getType())) {
+            archiveType = ArchiveDataVO.TYPE_REQUEST;
+        }
+        
+        // Only archive if the type of this request is the type configured for this Archiver
+        if ((archiveOfTypes == ArchiveOfTypes.REQUEST && archiveType == ArchiveDataVO.TYPE_REQUEST)
+                || (archiveOfTypes == ArchiveOfTypes.RESPONSE && archiveType == ArchiveDataVO.TYPE_RESPONSE)
+                || (archiveOfTypes == ArchiveOfTypes.REQUEST_AND_RESPONSE && (archiveType == ArchiveDataVO.TYPE_RESPONSE || archiveType == ArchiveDataVO.TYPE_REQUEST))) {
+            final EntityManager em = requestContext.getEntityManager();
+            if (store == null || (spool == null && em == null)) {
+                throw new ArchiveException("Could not archive as archiver was not successfully initialized");
+            }
+            final Integer workerId = (Integer) requestContext.get(RequestContext.WORKER_ID);
+            final X509Certificate certificate = (X509Certificate) requestContext.get(RequestContext.CLIENT_CERTIFICATE);
+            String remoteIp = (String) requestContext.get(RequestContext.REMOTE_IP);
+
+            final String uniqueId;
+            
+            if (useXForwardedFor) {
+                final List<String> ips = new LinkedList<>();
+                final String[] forwardedIps =
+                        XForwardedForUtils.getXForwardedForIPs(requestContext, maxForwardedAddresses);
+                
+                if (includeDirectAddress) {
+                    ips.add(remoteIp);
+                }
+
+                if (forwardedIps != null) {
+                    ips.addAll(Arrays.asList(forwardedIps));
+                }
+   
+                Collections.reverse(ips);
+                
+                if (!ips.isEmpty()) {
+                    remoteIp = StringUtils.join(ips, ", ");
+                }
+            }
+
+            final String archiveData;
+            try (InputStream in = archivable instanceof AbstractArchivable
+                    ? ((AbstractArchivable) archivable).getContentInputStream()
+                    : new ByteArrayInputStream(archivable.getContentEncoded())) {
+                archiveData = store.getLocation(store.store(in));
+            } catch (IOException ex) {
+                throw new ArchiveException("Could not store archive data: " + ex.getMessage(), ex);
+            }
+            if (spool == null) {
+                uniqueId = new ArchiveDataService(em).create(archiveType,
+                            workerId,
+                            archivable.getArchiveId(),
+                            certificate,
+                            remoteIp,
+                            archiveData,
+                            ArchiveDataBean.DATA_ENCODING_REFERENCE);
+            } else {
+                final SpooledArchive spooled = SpooledArchive.create(archiveType,
+                        workerId, archivable.getArchiveId(), certificate,
+                        remoteIp, archiveData, ArchiveDataBean.DATA_ENCODING_REFERENCE);
+                spool.append(spooled, spoolTimeout);
+                uniqueId = spooled.getUniqueId();
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Archived with uniqueId: " + uniqueId);
+            }
+
+            final LogMap logMap = LogMap.getInstance(requestContext);
+            final Object loggable = logMap.get(IWorkerLogger.LOG_ARCHIVE_IDS);
+
+            logMap.put(IWorkerLogger.LOG_ARCHIVE_IDS, new Loggable() {
+                @Override
+                public String toString() {
+                    final String ids;
+                    
+                    if (loggable == null) {
+                        ids = uniqueId;
+                    } else {
+                        ids = loggable.toString() + ", " + uniqueId;
+                    }
+                    return ids;
+                }
+            });
+
+            archived = true;
+        } else {
+            archived = false;
+        }
+        return archived;
+    }
+}
@@ -33,7 +33,10 @@ import org.signserver.server.archive.ArchiveException;
 import org.signserver.server.archive.Archiver;
 import org.signserver.server.archive.ArchiverInitException;
 import org.signserver.server.archive.BaseArchiver;
+import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataBean;
 import org.signserver.server.archive.olddbarchiver.entities.ArchiveDataService;
+import org.signserver.server.archive.spool.ArchiveSpool;
+import org.signserver.server.archive.spool.SpooledArchive;
 import org.signserver.server.log.IWorkerLogger;
 import org.signserver.server.log.LogMap;
 import org.signserver.server.log.Loggable;
@@ -60,6 +63,9 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
     private boolean useXForwardedFor = false;
     private int maxForwardedAddresses;
     private boolean includeDirectAddress;
+
+    private ArchiveSpool spool;
+    private long spoolTimeout;
     
     @Override
     public void init(int listIndex, WorkerConfig config, SignServerContext context) throws ArchiverInitException {
@@ -97,6 +103,15 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
                 Integer.valueOf(config.getProperty(propertyMaxForwardedAddresses,
                         String.valueOf(DEFAULT_MAX_FORWARDED_ADDRESSES)));
         includeDirectAddress = Boolean.valueOf(config.getProperty(propertyIncludeDirect));
+
+        // configuration for archiving asynchronously through a local spool
+        final String prefix = "ARCHIVER" + listIndex + ".";
+        final List<String> spoolErrors = new LinkedList<>();
+        spool = ArchiveSpool.fromConfig(prefix, config, spoolErrors);
+        spoolTimeout = ArchiveSpool.getTimeout(prefix, config, spoolErrors);
+        for (String error : spoolErrors) {
+            addFatalError(error);
+        }
     }
 
     @Override
@@ -124,10 +139,9 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
             }
          
             final EntityManager em = requestContext.getEntityManager();
-            if (em == null) {
+            if (spool == null && em == null) {
                 throw new ArchiveException("Could not archive as archiver was not successfully initialized");
             }
-            final ArchiveDataService dataService = new ArchiveDataService(em);
             final Integer workerId = (Integer) requestContext.get(RequestContext.WORKER_ID);
             final X509Certificate certificate = (X509Certificate) requestContext.get(RequestContext.CLIENT_CERTIFICATE);
             String remoteIp = (String) requestContext.get(RequestContext.REMOTE_IP);
@@ -153,12 +167,21 @@ public class OldDatabaseArchiver extends BaseArchiver implements Archiver {
             }
 
             final String uniqueId;
-            uniqueId = dataService.create(archiveType,
+            if (spool == null) {
+                uniqueId = new ArchiveDataService(em).create(archiveType,
                         workerId,
                         archivable.getArchiveId(),
                         certificate,
                         remoteIp,
                             archiveData);
+            } else {
+                final SpooledArchive spooled = SpooledArchive.create(archiveType,
+                        workerId, archivable.getArchiveId(), certificate,
+                        remoteIp, ArchiveDataBean.encodeArchiveData(archiveData),
+                        ArchiveDataBean.DATA_ENCODING_XML);
+                spool.append(spooled, spoolTimeout);
+                uniqueId = spooled.getUniqueId();
+            }
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Archived with uniqueId: " + uniqueId);
             }
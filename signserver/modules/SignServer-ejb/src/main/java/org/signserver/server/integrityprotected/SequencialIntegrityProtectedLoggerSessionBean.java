@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.signserver.server.integrityprotected;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -116,4 +117,35 @@ public class SequencialIntegrityProtectedLoggerSessionBean implements Sequencial
             }
         }
     }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    // Always persist audit log
+    public void logWithSequenceNumbers(final List<SequencialAuditEvent> events, final long firstSequenceNumber) throws AuditRecordStorageException {
+        if (log.isTraceEnabled()) {
+            log.trace(">logWithSequenceNumbers: " + events.size() + " events from " + firstSequenceNumber);
+        }
+        try {
+            final long startSequenceNumber = SequencialNodeSequenceHolder.INSTANCE.getStartSequence(sequenceHolderInitialization);
+            final String nodeId = SequencialNodeSequenceHolder.INSTANCE.getNodeId();
+            long sequenceNumber = startSequenceNumber + firstSequenceNumber;
+            for (final SequencialAuditEvent event : events) {
+                final Long timeStamp = event.getTrustedTime().getTime().getTime();
+                final AuditRecordData auditRecordData = new AuditRecordData(nodeId, sequenceNumber, timeStamp, event.getEventType(), event.getEventStatus(),
+                        event.getAuthToken(), event.getService(), event.getModule(), event.getCustomId(), event.getSearchDetail1(), event.getSearchDetail2(),
+                        event.getAdditionalDetails());
+                entityManager.persist(auditRecordData);
+                sequenceNumber++;
+            }
+            // Make sure all rows are written before the events are reported as logged
+            entityManager.flush();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            throw new AuditRecordStorageException(e.getMessage(), e);
+        } finally {
+            if (log.isTraceEnabled()) {
+                log.trace("<logWithSequenceNumbers");
+            }
+        }
+    }
 }
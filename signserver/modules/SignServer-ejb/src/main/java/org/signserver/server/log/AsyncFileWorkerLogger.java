@@ -0,0 +1,116 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.log;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+import org.signserver.common.RequestContext;
+import org.signserver.common.WorkerConfig;
+import org.signserver.server.SignServerContext;
+
+/**
+ * An IWorkerLogger that appends log lines with all the log fields to a
+ * rolling file, formatted and written by a background thread.
+ *
+ * Workers configured with the same file share the same writer. If a worker
+ * is initialized with other buffer or rolling settings for the file, the
+ * writer is replaced and all workers continue with the new writer.
+ *
+ * @version $Id$
+ * @see AsyncLogWriter
+ */
+public class AsyncFileWorkerLogger extends BaseWorkerLogger implements IWorkerLogger {
+
+    private static final String FILE_PATH_PROPERTY_NAME = "LOG_FILE_PATH";
+    private static final String BUFFER_SIZE_PROPERTY_NAME = "LOG_BUFFER_SIZE";
+    private static final String OVERFLOW_POLICY_PROPERTY_NAME = "LOG_OVERFLOW_POLICY";
+    private static final String MAX_FILE_SIZE_PROPERTY_NAME = "LOG_MAX_FILE_SIZE";
+    private static final String MAX_BACKUP_INDEX_PROPERTY_NAME = "LOG_MAX_BACKUP_INDEX";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final long DEFAULT_MAX_FILE_SIZE = 100L * 1024 * 1024;
+    private static final int DEFAULT_MAX_BACKUP_INDEX = 10;
+
+    private File file;
+    private volatile AsyncLogWriter writer;
+    private AsyncLogWriter.OverflowPolicy policy;
+
+    @Override
+    public void init(final int workerId, final WorkerConfig config, final SignServerContext context) {
+        final String logFilePath = config.getProperty(FILE_PATH_PROPERTY_NAME);
+        if (logFilePath == null) {
+            addFatalError("Log file path not specified");
+        }
+
+        final String policyValue = config.getProperty(OVERFLOW_POLICY_PROPERTY_NAME,
+                AsyncLogWriter.OverflowPolicy.BLOCK.name());
+        try {
+            policy = AsyncLogWriter.OverflowPolicy.valueOf(policyValue.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            addFatalError("Illegal value for " + OVERFLOW_POLICY_PROPERTY_NAME + ": " + policyValue);
+        }
+
+        final int bufferSize = getInt(config, BUFFER_SIZE_PROPERTY_NAME, DEFAULT_BUFFER_SIZE);
+        final long maxFileSize = getLong(config, MAX_FILE_SIZE_PROPERTY_NAME, DEFAULT_MAX_FILE_SIZE);
+        final int maxBackups = getInt(config, MAX_BACKUP_INDEX_PROPERTY_NAME, DEFAULT_MAX_BACKUP_INDEX);
+
+        if (!hasErrors()) {
+            file = new File(logFilePath);
+            writer = AsyncLogWriter.getInstance(file, bufferSize, maxFileSize, maxBackups);
+        }
+    }
+
+    @Override
+    public void log(final AdminInfo adminInfo, final Map<String, Object> fields, final RequestContext context) throws WorkerLoggerException {
+        AsyncLogWriter current = writer;
+        if (current == null) {
+            throw new WorkerLoggerException("Logger not initialized");
+        }
+        if (current.isClosed()) {
+            // Replaced by an other worker using the same file
+            current = AsyncLogWriter.getCurrentInstance(file);
+            if (current == null) {
+                throw new WorkerLoggerException("Log writer closed: " + file.getAbsolutePath());
+            }
+            writer = current;
+        }
+        current.publish(fields, System.currentTimeMillis(), policy);
+    }
+
+    private int getInt(final WorkerConfig config, final String property, final int defaultValue) {
+        try {
+            final int result = Integer.parseInt(config.getProperty(property, String.valueOf(defaultValue)).trim());
+            if (result < 0) {
+                addFatalError("Illegal value for " + property + ": " + result);
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            addFatalError("Illegal value for " + property + ": " + ex.getMessage());
+            return defaultValue;
+        }
+    }
+
+    private long getLong(final WorkerConfig config, final String property, final long defaultValue) {
+        try {
+            final long result = Long.parseLong(config.getProperty(property, String.valueOf(defaultValue)).trim());
+            if (result < 1) {
+                addFatalError("Illegal value for " + property + ": " + result);
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            addFatalError("Illegal value for " + property + ": " + ex.getMessage());
+            return defaultValue;
+        }
+    }
+}
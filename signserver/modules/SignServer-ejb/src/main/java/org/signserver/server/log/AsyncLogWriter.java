@@ -0,0 +1,492 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes log lines to a rolling file from a single background thread.
+ *
+ * Request threads claim a slot in a pre-allocated ring buffer, copy the log
+ * fields into it and publish it. The background thread formats all
+ * published entries, writes them to the file in one write and then frees
+ * the slots. No locks are taken on the request threads.
+ *
+ * When the file has grown larger than the configured size it is renamed
+ * to file.1, any file.1 to file.2 and so on up to the configured number of
+ * backups.
+ *
+ * Threads using the BLOCK policy wait on a monitor when the buffer is full
+ * and are notified by the background thread when slots have been freed.
+ * The background thread waits on an other monitor when there is nothing to
+ * write and is only notified by a publishing thread if it is waiting.
+ *
+ * Publishing threads are counted so that the background thread, when the
+ * writer is closed, first waits for the threads that already passed the
+ * closed check and writes their log lines.
+ *
+ * @version $Id$
+ */
+public class AsyncLogWriter {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(AsyncLogWriter.class);
+
+    /** What to do when the ring buffer is full. */
+    public enum OverflowPolicy {
+        /** Wait for a free slot. */
+        BLOCK,
+        /** Drop the log line. */
+        DROP,
+        /** Fail the log call and thus the request. */
+        FAIL
+    }
+
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final long FULL_WAIT_MILLIS = 10;
+
+    /** Writers shared by all loggers using the same file. */
+    private static final Map<File, AsyncLogWriter> WRITERS = new HashMap<>();
+
+    private final File file;
+    private final int bufferSize;
+    private final long maxFileSize;
+    private final int maxBackups;
+
+    private final Entry[] entries;
+    private final int mask;
+
+    /** Last claimed sequence. */
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    /** Last sequence written and free for reuse. */
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    /** Sequence published in each slot. */
+    private final AtomicLongArray published;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /** Monitor for threads waiting for a free slot. */
+    private final Object space = new Object();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** Monitor for the background thread waiting for published entries. */
+    private final Object available = new Object();
+    private volatile boolean consumerWaiting;
+
+    /** Number of threads currently publishing. */
+    private final AtomicInteger publishing = new AtomicInteger();
+
+    private final Thread consumer;
+    private volatile boolean closed;
+
+    /**
+     * Creates a writer and starts its background thread.
+     * @param file log file to append to
+     * @param bufferSize number of entries in the ring buffer, rounded up to
+     * a power of two
+     * @param maxFileSize size in bytes after which the file is rolled
+     * @param maxBackups number of rolled files to keep
+     */
+    public AsyncLogWriter(final File file, final int bufferSize, final long maxFileSize, final int maxBackups) {
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.maxFileSize = maxFileSize;
+        this.maxBackups = maxBackups;
+
+        final int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.entries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+        }
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "AsyncLogWriter-" + file.getName());
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Get the writer for the file, creating it if not already created.
+     * Later calls for the same file return the same writer unless the other
+     * arguments differ, in which case the existing writer is closed after
+     * writing its pending log lines and a new writer is created.
+     * @param file log file
+     * @param bufferSize number of entries in the ring buffer
+     * @param maxFileSize size in bytes after which the file is rolled
+     * @param maxBackups number of rolled files to keep
+     * @return the writer
+     */
+    public static AsyncLogWriter getInstance(final File file, final int bufferSize,
+            final long maxFileSize, final int maxBackups) {
+        final File key = file.getAbsoluteFile();
+        synchronized (WRITERS) {
+            AsyncLogWriter result = WRITERS.get(key);
+            if (result != null && (result.bufferSize != bufferSize
+                    || result.maxFileSize != maxFileSize || result.maxBackups != maxBackups)) {
+                LOG.info("Log settings changed for " + key.getAbsolutePath());
+                try {
+                    result.close();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    LOG.warn("Interrupted while closing log writer for " + key.getAbsolutePath());
+                }
+                result = null;
+            }
+            if (result == null) {
+                result = new AsyncLogWriter(key, bufferSize, maxFileSize, maxBackups);
+                WRITERS.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param file log file
+     * @return the writer currently used for the file or null if none
+     */
+    public static AsyncLogWriter getCurrentInstance(final File file) {
+        synchronized (WRITERS) {
+            return WRITERS.get(file.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Closes all writers, writing their pending log lines first.
+     * Called when the application is stopped.
+     */
+    public static void closeAll() {
+        final List<AsyncLogWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<>(WRITERS.values());
+        }
+        for (AsyncLogWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                LOG.warn("Interrupted while closing log writers");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes a log line with the fields.
+     * The values are converted to strings on the calling thread as they
+     * might refer to request data only valid during the request.
+     * @param fields log fields
+     * @param time time of the log line
+     * @param policy what to do if the buffer is full
+     * @return false if the line was dropped
+     * @throws WorkerLoggerException if the buffer is full and the policy
+     * is FAIL or the writer is closed
+     */
+    public boolean publish(final Map<String, Object> fields, final long time,
+            final OverflowPolicy policy) throws WorkerLoggerException {
+        // Counted before the closed check so that the background thread
+        // does not stop before this line is written
+        publishing.incrementAndGet();
+        try {
+            final long sequence = claim(policy);
+            if (sequence < 0) {
+                return false;
+            }
+            final Entry entry = entries[(int) sequence & mask];
+            try {
+                entry.set(fields, time);
+            } catch (RuntimeException ex) {
+                // The claimed slot must still be published
+                entry.clear();
+                throw ex;
+            } finally {
+                published.set((int) sequence & mask, sequence);
+            }
+            return true;
+        } finally {
+            publishing.decrementAndGet();
+            if (consumerWaiting || closed) {
+                signalAvailable();
+            }
+        }
+    }
+
+    private void signalAvailable() {
+        synchronized (available) {
+            available.notifyAll();
+        }
+    }
+
+    private long claim(final OverflowPolicy policy) throws WorkerLoggerException {
+        while (true) {
+            if (closed) {
+                throw new WorkerLoggerException("Log writer closed: " + file.getAbsolutePath());
+            }
+            final long current = cursor.get();
+            final long next = current + 1;
+            if (next - entries.length > consumed.get()) {
+                switch (policy) {
+                    case DROP:
+                        dropped.increment();
+                        return -1;
+                    case FAIL:
+                        throw new WorkerLoggerException("Log buffer full for " + file.getAbsolutePath());
+                    default:
+                        awaitSpace(next);
+                        continue;
+                }
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private void awaitSpace(final long next) throws WorkerLoggerException {
+        waiting.incrementAndGet();
+        try {
+            synchronized (space) {
+                if (!closed && next - entries.length > consumed.get()) {
+                    space.wait(FULL_WAIT_MILLIS);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WorkerLoggerException("Interrupted while waiting for log buffer for " + file.getAbsolutePath());
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void signalSpace() {
+        if (waiting.get() > 0) {
+            synchronized (space) {
+                space.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return number of log lines written
+     */
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * @return number of log lines dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of log lines published but not yet written
+     */
+    public long getPending() {
+        return cursor.get() - consumed.get();
+    }
+
+    /**
+     * @return true if the writer has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Writes the already published log lines and stops the background
+     * thread.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        synchronized (space) {
+            space.notifyAll();
+        }
+        signalAvailable();
+        consumer.join();
+        synchronized (WRITERS) {
+            WRITERS.remove(file.getAbsoluteFile(), this);
+        }
+    }
+
+    private void consume() {
+        final StringBuilder sb = new StringBuilder(WRITE_BUFFER_SIZE);
+        FileChannel channel = null;
+        long size = 0;
+        try {
+            while (true) {
+                final long first = consumed.get() + 1;
+                long last = first - 1;
+                while (published.get((int) (last + 1) & mask) == last + 1
+                        && last - first < entries.length && sb.length() < WRITE_BUFFER_SIZE) {
+                    last++;
+                    entries[(int) last & mask].format(sb);
+                }
+                if (last < first) {
+                    if (closed && publishing.get() == 0 && cursor.get() == consumed.get()) {
+                        break;
+                    }
+                    awaitPublished(first);
+                    continue;
+                }
+
+                // Slots can be reused as soon as the entries are formatted
+                consumed.set(last);
+                signalSpace();
+
+                try {
+                    if (channel == null || size >= maxFileSize) {
+                        if (channel != null) {
+                            channel.close();
+                            roll();
+                        }
+                        channel = new FileOutputStream(file, true).getChannel();
+                        size = channel.size();
+                    }
+                    final ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    while (bytes.hasRemaining()) {
+                        size += channel.write(bytes);
+                    }
+                    written.add(last - first + 1);
+                } catch (IOException ex) {
+                    LOG.error("Could not write " + (last - first + 1) + " log lines to " + file.getAbsolutePath() + ": " + ex.getMessage());
+                    if (channel != null) {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {} // NOPMD
+                        channel = null;
+                    }
+                }
+                sb.setLength(0);
+            }
+        } catch (InterruptedException ex) {
+            LOG.warn("Log writer for " + file.getAbsolutePath() + " interrupted with " + getPending() + " log lines not written");
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {} // NOPMD
+            }
+        }
+    }
+
+    /**
+     * Waits until the entry is published or the writer is closed and no
+     * thread is publishing.
+     */
+    private void awaitPublished(final long sequence) throws InterruptedException {
+        synchronized (available) {
+            consumerWaiting = true;
+            try {
+                // Checked after announcing the wait so that a publishing
+                // thread either is seen here or sees consumerWaiting
+                if (published.get((int) sequence & mask) != sequence
+                        && !(closed && publishing.get() == 0)) {
+                    available.wait();
+                }
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+    }
+
+    private void roll() {
+        if (maxBackups < 1) {
+            if (!file.delete()) {
+                LOG.warn("Could not remove log file: " + file.getAbsolutePath());
+            }
+            return;
+        }
+        final File oldest = new File(file.getPath() + "." + maxBackups);
+        if (oldest.exists() && !oldest.delete()) {
+            LOG.warn("Could not remove log file: " + oldest.getAbsolutePath());
+        }
+        for (int i = maxBackups - 1; i >= 1; i--) {
+            final File backup = new File(file.getPath() + "." + i);
+            if (backup.exists() && !backup.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                LOG.warn("Could not rename log file: " + backup.getAbsolutePath());
+            }
+        }
+        if (!file.renameTo(new File(file.getPath() + ".1"))) {
+            LOG.warn("Could not rename log file: " + file.getAbsolutePath());
+        }
+    }
+
+    /** Slot in the ring buffer. Fields are reused between log lines. */
+    private static class Entry {
+        private String[] keys = new String[32];
+        private String[] values = new String[32];
+        private int count;
+        private long time;
+
+        void set(final Map<String, Object> fields, final long time) {
+            if (fields.size() > keys.length) {
+                keys = new String[fields.size()];
+                values = new String[fields.size()];
+            }
+            int i = 0;
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                keys[i] = field.getKey();
+                values[i] = String.valueOf(field.getValue());
+                i++;
+            }
+            this.count = i;
+            this.time = time;
+        }
+
+        /** Marks the entry as not to be written. */
+        void clear() {
+            Arrays.fill(values, 0, values.length, null);
+            count = -1;
+        }
+
+        void format(final StringBuilder sb) {
+            if (count < 0) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                sb.append(keys[i]).append(": ").append(values[i]).append("; ");
+            }
+            sb.append(IWorkerLogger.LOG_REPLY_TIME).append(':').append(time).append('\n');
+            Arrays.fill(values, 0, count, null);
+        }
+    }
+}
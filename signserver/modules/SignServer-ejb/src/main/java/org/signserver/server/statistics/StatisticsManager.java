@@ -12,11 +12,13 @@
  *************************************************************************/
 package org.signserver.server.statistics;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.EntityManager;
 
 import org.apache.log4j.Logger;
+import org.signserver.common.NonPersistentStatisticsConstants;
 import org.signserver.common.SignServerException;
 import org.signserver.common.StatisticsConstants;
 import org.signserver.common.WorkerConfig;
@@ -30,6 +32,9 @@ import org.signserver.server.statistics.nonpersistent.NonPersistantStatisticsCol
  * a statistics collector for a worker if it's configured to do so, and endEvent
  * managing the storage of that event.
  *
+ * The collectors are kept in a concurrent map so that looking up the
+ * collector for an event does not take any lock.
+ *
  * @author Philip Vendil 9 maj 2008
  * @version $Id$
  */
@@ -38,7 +43,15 @@ public class StatisticsManager {
     /** Logger for this class. */
     private static final Logger LOG = Logger.getLogger(StatisticsManager.class);
 
-    private static HashMap<Integer, IStatisticsCollector> instances = new HashMap<>();
+    private static final ConcurrentMap<Integer, IStatisticsCollector> instances = new ConcurrentHashMap<>();
+
+    /** Periods included in the latency summary. */
+    private static final String[] LATENCY_QUERYTYPES = {
+        NonPersistentStatisticsConstants.QUERYTYPE_SECOND,
+        NonPersistentStatisticsConstants.QUERYTYPE_MINUTE,
+        NonPersistentStatisticsConstants.QUERYTYPE_HOUR,
+        NonPersistentStatisticsConstants.QUERYTYPE_DAY
+    };
 
     /**
      * Method used to signal to the StatisticsManager to create a statistics event using the
@@ -91,8 +104,9 @@ public class StatisticsManager {
             return null;
         }
 
-        if (instances.get(workerId) != null) {
-            return instances.get(workerId);
+        final IStatisticsCollector result = instances.get(workerId);
+        if (result != null) {
+            return result;
         }
 
         return genStatisticsCollector(workerId,
@@ -102,6 +116,11 @@ public class StatisticsManager {
 
     private synchronized static IStatisticsCollector genStatisticsCollector(int workerId,
             WorkerConfig config, EntityManager em) {
+        // Could have been created while we were waiting
+        final IStatisticsCollector existing = instances.get(workerId);
+        if (existing != null) {
+            return existing;
+        }
 
         String typeValue = config.getProperty(StatisticsConstants.TYPE);
 
@@ -129,15 +148,59 @@ public class StatisticsManager {
         return null;
     }
 
+    /**
+     * Gives a summary of the latencies in the latest second, minute, hour
+     * and day entries of the statistics collected for the worker.
+     *
+     * @param workerId id of the worker
+     * @return one line per period with the 50th, 95th and 99th percentiles
+     * in microseconds, or null if no statistics have been collected for the
+     * worker
+     */
+    public static String getLatencySummary(int workerId) {
+        final IStatisticsCollector sc = instances.get(workerId);
+        if (sc == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (String type : LATENCY_QUERYTYPES) {
+            StatisticsEntry latest = null;
+            for (StatisticsEntry entry : sc.fetchStatistics(type, null, null)) {
+                if (latest == null || entry.getPeriodStart().after(latest.getPeriodStart())) {
+                    latest = entry;
+                }
+            }
+            if (latest != null) {
+                if (sb.length() > 0) {
+                    sb.append("\n");
+                }
+                sb.append(type).append(": ")
+                        .append(latest.getNumberOfEvents()).append(" events, p50 ")
+                        .append(latest.getLatencyPercentile(50)).append(" us, p95 ")
+                        .append(latest.getLatencyPercentile(95)).append(" us, p99 ")
+                        .append(latest.getLatencyPercentile(99)).append(" us");
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
     /**
      * resets the statistics of the given workerId
      * @param workerId of worker to reset statistics for or '0' for all workers.
      */
     public static void flush(int workerId) {
         if (workerId == 0) {
-            instances.clear();
+            for (Integer id : instances.keySet()) {
+                destroy(instances.remove(id));
+            }
         } else {
-            instances.remove(workerId);
+            destroy(instances.remove(workerId));
+        }
+    }
+
+    private static void destroy(IStatisticsCollector sc) {
+        if (sc != null) {
+            sc.destroy();
         }
     }
 }
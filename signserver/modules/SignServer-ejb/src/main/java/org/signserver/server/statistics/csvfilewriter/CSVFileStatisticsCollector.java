@@ -17,9 +17,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 
@@ -36,11 +45,18 @@ import org.signserver.server.statistics.StatisticsEntry;
  * 
  * It supports both just event count and custom data
  *
+ * Rows are put on a bounded queue and written to disk by a background
+ * thread so that the request threads never wait for file IO. If the queue is
+ * full the row is dropped and counted. The thread is shared by all
+ * collectors and stopped when the last of them is destroyed.
+ *
  * Configuration: 
  * STATISTICS.CSVFILE.COLUMNHEADER.n the column header where n should be a number between 0 and 255
  * STATISTICS.CSVFILE.COLUMNCUSTOMKEY.n The key used to fetch values from the custom data in the event, a number between 0 and 255
  * STATISTICS.CSVFILE.OUTPUTDIR the directory  to write the CSV to.
- * STATISTICS.CSVFILE.MINFLUSHINTERVAL minimum number of seconds between disk writes (default is 3 seconds);
+ * STATISTICS.CSVFILE.MINFLUSHINTERVAL minimum number of milliseconds between disk writes (default is 3 seconds);
+ * STATISTICS.CSVFILE.FLUSHSIZE number of queued rows that causes a disk write before the interval has passed (default is 1000);
+ * STATISTICS.CSVFILE.QUEUESIZE maximum number of rows waiting to be written (default is 100000);
  */
 public class CSVFileStatisticsCollector implements IStatisticsCollector {
 
@@ -52,17 +68,49 @@ public class CSVFileStatisticsCollector implements IStatisticsCollector {
     public static final String PROPERTY_COLUMNCUSTOMKEY = "STATISTICS.CSVFILE.COLUMNCUSTOMKEY.";
     public static final String PROPERTY_OUTPUTDIR_NAME = "STATISTICS.CSVFILE.OUTPUTDIR";
     public static final String PROPERTY_MINFLUSHINTERVAL_NAME = "STATISTICS.CSVFILE.MINFLUSHINTERVAL";
+    public static final String PROPERTY_FLUSHSIZE_NAME = "STATISTICS.CSVFILE.FLUSHSIZE";
+    public static final String PROPERTY_QUEUESIZE_NAME = "STATISTICS.CSVFILE.QUEUESIZE";
     private static final String DEFAULT_MINFLUSHINTERVAL = "3000";
-    private static long minimumFlushInterval;
-    private long lastFlush = 0;
+    private static final String DEFAULT_FLUSHSIZE = "1000";
+    private static final String DEFAULT_QUEUESIZE = "100000";
+
+    /** Thread writing the files of all collectors, guarded by the class. */
+    private static ScheduledExecutorService sharedWriter;
+
+    /** Number of collectors using the shared writer, guarded by the class. */
+    private static int sharedWriterUsers;
+
+    private long minimumFlushInterval;
+    private int flushSize;
+    private int queueSize;
     private int workerId;
-    private boolean missConfigured = false;
+    private volatile boolean missConfigured = false;
     private ArrayList<String> columnHeaders;
     private ArrayList<String> customDataKeys;
     private File file;
-    private ArrayList<ArrayList<String>> writeCache = new ArrayList<>();
-    
-    private Boolean locked = false;
+    private ScheduledExecutorService writer;
+    private volatile boolean destroyed;
+
+    private final Queue<Row> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicLong droppedRows = new AtomicLong();
+    private final AtomicLong writtenRows = new AtomicLong();
+
+    /** Only used by the writer thread. */
+    private final StringBuilder buffer = new StringBuilder();
+    private long lastReportedDropped;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled.set(false);
+            writeRows();
+            if (queued.get() > 0) {
+                scheduleWrite(minimumFlushInterval);
+            }
+        }
+    };
 
     public CSVFileStatisticsCollector() {
     }
@@ -79,101 +127,175 @@ public class CSVFileStatisticsCollector implements IStatisticsCollector {
         file = getOutputFile(config);
         columnHeaders = getColumnHeaders(config);
         customDataKeys = getColumnValues(config);
-        minimumFlushInterval = getMinimumFlushInterval(config);
+        minimumFlushInterval = getLongProperty(config, PROPERTY_MINFLUSHINTERVAL_NAME, DEFAULT_MINFLUSHINTERVAL);
+        flushSize = (int) getLongProperty(config, PROPERTY_FLUSHSIZE_NAME, DEFAULT_FLUSHSIZE);
+        queueSize = (int) getLongProperty(config, PROPERTY_QUEUESIZE_NAME, DEFAULT_QUEUESIZE);
+        writer = acquireWriter();
+    }
+
+    private static synchronized ScheduledExecutorService acquireWriter() {
+        if (sharedWriter == null) {
+            sharedWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread result = new Thread(r, "CSVFileStatisticsWriter");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+        }
+        sharedWriterUsers++;
+        return sharedWriter;
+    }
+
+    private static synchronized void releaseWriter() {
+        sharedWriterUsers--;
+        if (sharedWriterUsers == 0) {
+            // Already scheduled writes are still done before the thread stops
+            sharedWriter.shutdown();
+            sharedWriter = null;
+        }
     }
 
     @Override
     public void addEvent(Event event) throws SignServerException {
-        if (!missConfigured) {
-            if (customDataKeys.isEmpty()) {
-                addRow();
-            } else {
-                ArrayList<String> values = new ArrayList<>();
-                for (String customKey : customDataKeys) {
-                    Integer value = event.getCustomData().get(customKey);
-                    if (value == null) {
-                        values.add("");
-                    } else {
-                        values.add(value.toString());
-                    }
+        if (!missConfigured && !destroyed) {
+            final Integer[] values = new Integer[customDataKeys.size()];
+            if (event.getCustomData() != null) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = event.getCustomData().get(customDataKeys.get(i));
                 }
-                addRow(values);
             }
+            addRow(new Row(values, System.currentTimeMillis()));
         }
     }
 
     /**
-     * Add a single timestamp.
+     * Put the row on the queue and make sure a write is scheduled. Writes are
+     * done after STATISTICS.CSVFILE.MINFLUSHINTERVAL milliseconds or as soon
+     * as STATISTICS.CSVFILE.FLUSHSIZE rows are queued.
+     *
+     * @param row to add to the CSV
      */
-    private void addRow() {
-        ArrayList<String> strings = new ArrayList<>();
-        addRow(strings, true);
+    private void addRow(Row row) {
+        final int size = queued.incrementAndGet();
+        if (size > queueSize) {
+            queued.decrementAndGet();
+            droppedRows.incrementAndGet();
+            return;
+        }
+        queue.offer(row);
+        if (size == flushSize) {
+            execute(writeTask);
+        } else {
+            scheduleWrite(minimumFlushInterval);
+        }
     }
 
-    /**
-     * Add an array of values and a timestamp.
-     */
-    private void addRow(ArrayList<String> strings) {
-        addRow(strings, true);
+    private void scheduleWrite(final long delay) {
+        if (writeScheduled.compareAndSet(false, true)) {
+            try {
+                writer.schedule(writeTask, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Destroyed concurrently
+                writeScheduled.set(false);
+                LOG.debug("Statistics writer stopped for worker " + workerId);
+            }
+        }
+    }
+
+    private void execute(final Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // Destroyed concurrently
+            LOG.debug("Statistics writer stopped for worker " + workerId);
+        }
     }
 
     /**
-     * Add new line of variables to cache and flush cache to CSV-file if it's been more
-     * than STATISTICS.CSVFILE.MINFLUSHINTERVAL seconds since last time.
-     * 
-     * @param strings variables to add to CSV
-     * @param addTime adds the current time in milliseconds to the last column
+     * Write all queued rows to the CSV file. Only called by the writer thread.
      */
-    private void addRow(ArrayList<String> strings, boolean addTime) {
-        // Synchronized does not work when the method contains disk IO operations..
-        while (!setLock(true)) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                LOG.error(e);
-            }
-        }
-        if (addTime) {
-            strings.add("" + System.currentTimeMillis());
+    private void writeRows() {
+        if (missConfigured) {
+            queue.clear();
+            queued.set(0);
+            return;
         }
-        writeCache.add(strings);
-        if (lastFlush + minimumFlushInterval < System.currentTimeMillis()) {
-            lastFlush = System.currentTimeMillis();
-            try {
-                String data = "";
-                if (!file.exists()) {
-                    new File(file.getParent()).mkdirs();
-                    file.createNewFile();
-                    for (String header : columnHeaders) {
-                        if (data.equals("")) {
-                            data += header;
-                        } else {
-                            data += ";" + header;
-                        }
+        buffer.setLength(0);
+        try {
+            if (!queue.isEmpty() && !file.exists()) {
+                new File(file.getParent()).mkdirs();
+                file.createNewFile();
+                for (int i = 0; i < columnHeaders.size(); i++) {
+                    if (i > 0) {
+                        buffer.append(';');
                     }
-                    data += "\n";
+                    buffer.append(columnHeaders.get(i));
                 }
-                try (FileOutputStream fos = new FileOutputStream(file, true)) {
-                    for (ArrayList<String> currentRow : writeCache) {
-                        Iterator<String> i = currentRow.iterator();
-                        while (i.hasNext()) {
-                            if (data.equals("") || data.endsWith("\n")) {
-                                data += i.next();
-                            } else {
-                                data += ";" + i.next();
-                            }
-                        }
-                        data += "\n";
+                buffer.append('\n');
+            }
+            long rows = 0;
+            Row row;
+            while ((row = queue.poll()) != null) {
+                queued.decrementAndGet();
+                for (Integer value : row.values) {
+                    if (value != null) {
+                        buffer.append(value);
                     }
-                    fos.write(data.getBytes());
+                    buffer.append(';');
+                }
+                buffer.append(row.time).append('\n');
+                rows++;
+            }
+            if (rows > 0) {
+                try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                    fos.write(buffer.toString().getBytes());
                 }
-                writeCache = new ArrayList<>();
-            } catch (IOException e) {
-                LOG.error("Could not write to output file \"" + file.getName() + "\". Disabling collection.", e);
-                missConfigured = true;
+                writtenRows.addAndGet(rows);
             }
+        } catch (IOException e) {
+            LOG.error("Could not write to output file \"" + file.getName() + "\". Disabling collection.", e);
+            missConfigured = true;
+        }
+        final long dropped = droppedRows.get();
+        if (dropped != lastReportedDropped) {
+            LOG.warn("Statistics for worker " + workerId + ": " + (dropped - lastReportedDropped) + " rows dropped as the queue of " + queueSize + " rows was full");
+            lastReportedDropped = dropped;
         }
-        setLock(false);
+        if (buffer.capacity() > 1024 * 1024) {
+            // Do not keep a large buffer after a burst
+            buffer.setLength(0);
+            buffer.trimToSize();
+        }
+    }
+
+    /**
+     * @return true if the shared writer thread is used by any collector
+     */
+    static synchronized boolean isWriterRunning() {
+        return sharedWriter != null;
+    }
+
+    /**
+     * @return number of rows waiting to be written
+     */
+    public int getQueuedRows() {
+        return queued.get();
+    }
+
+    /**
+     * @return number of rows dropped as the queue was full
+     */
+    public long getDroppedRows() {
+        return droppedRows.get();
+    }
+
+    /**
+     * @return number of rows written to the file
+     */
+    public long getWrittenRows() {
+        return writtenRows.get();
     }
 
     /**
@@ -188,7 +310,28 @@ public class CSVFileStatisticsCollector implements IStatisticsCollector {
 
     @Override
     public void flush() {
-        file.delete();
+        if (file == null) {
+            // Not configured so nothing written
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    /**
+     * Writes the rows still in the queue and stops using the writer thread.
+     */
+    @Override
+    public synchronized void destroy() {
+        if (!destroyed && writer != null) {
+            destroyed = true;
+            execute(writeTask);
+            releaseWriter();
+        }
     }
 
     /**
@@ -220,12 +363,12 @@ public class CSVFileStatisticsCollector implements IStatisticsCollector {
         return file;
     }
 
-    private long getMinimumFlushInterval(WorkerConfig config) {
-        long retval = Long.parseLong(DEFAULT_MINFLUSHINTERVAL);
+    private long getLongProperty(WorkerConfig config, String property, String defaultValue) {
+        long retval = Long.parseLong(defaultValue);
         try {
-            retval = Long.parseLong(config.getProperty(PROPERTY_MINFLUSHINTERVAL_NAME, DEFAULT_MINFLUSHINTERVAL));
+            retval = Long.parseLong(config.getProperty(property, defaultValue));
         } catch (NumberFormatException e) {
-            LOG.error("Error CSVFileStatisticsCollector for worker with id '" + workerId + "' is missconfigured, the property " + PROPERTY_MINFLUSHINTERVAL_NAME + " having the value " + config.getProperty(PROPERTY_MINFLUSHINTERVAL_NAME) + " can only contain digits, using the default value.");
+            LOG.error("Error CSVFileStatisticsCollector for worker with id '" + workerId + "' is missconfigured, the property " + property + " having the value " + config.getProperty(property) + " can only contain digits, using the default value.");
         }
         return retval;
     }
@@ -239,19 +382,15 @@ public class CSVFileStatisticsCollector implements IStatisticsCollector {
     }
 
     /**
-     * Request new mutex lock state.
-     * @param state true to get lock, false to release
-     * @return true if successful
+     * Values of one line in the CSV.
      */
-    private synchronized boolean setLock(boolean state) {
-        if (state) {
-            if (locked) {
-                return false;
-            }
-            locked = true;
-        } else {
-            locked = false;
+    private static class Row {
+        private final Integer[] values;
+        private final long time;
+
+        Row(Integer[] values, long time) {
+            this.values = values;
+            this.time = time;
         }
-        return true;
     }
 }
@@ -30,6 +30,10 @@ import org.signserver.server.statistics.StatisticsEntry;
  * Base class containing help methods to implement
  * a StatisticsCollector using a FIFO queue stored in
  * memory.
+ *
+ * Events are added to the current entry without locking. Only when the
+ * period of the current entry has ended is a lock taken to create the next
+ * entry and to remove expired entries from the queue.
  * 
  * @author Philip Vendil 28 apr 2008
  * @version $Id$
@@ -38,7 +42,7 @@ public abstract class BaseFIFOStatisticsCollector implements IStatisticsCollecto
     protected int workerId = 0;
     protected WorkerConfig config;
     protected EntityManager em;
-    protected StatisticsEntry currentStatisticsEntry;
+    protected volatile StatisticsEntry currentStatisticsEntry;
     protected DelayQueue<StatisticsEntry> fIFOQueue = new DelayQueue<>();
     
     private Long expireTime;
@@ -59,35 +63,57 @@ public abstract class BaseFIFOStatisticsCollector implements IStatisticsCollecto
      */
     @Override
     public void addEvent(Event event) throws SignServerException {
-        Date endPeriod = genCurrentEndPeriod();
-        Date startPeriod = genCurrentStartPeriod();
-        if (currentStatisticsEntry != null) {
-            if (endPeriod == null || System.currentTimeMillis() > currentStatisticsEntry.getPeriodEnd().getTime()) {
-                currentStatisticsEntry = null;
-            }
+        StatisticsEntry entry = currentStatisticsEntry;
+        if (entry == null || System.currentTimeMillis() > entry.getPeriodEnd().getTime()) {
+            entry = nextStatisticsEntry();
         }
+        entry.addEvent(event);
+    }
 
-        if (currentStatisticsEntry == null) {
+    /**
+     * Creates a new statistics entry for the current period unless an other
+     * thread already did so and removes expired entries.
+     *
+     * @return the entry to add events to
+     */
+    private synchronized StatisticsEntry nextStatisticsEntry() {
+        StatisticsEntry result = currentStatisticsEntry;
+        if (result == null || System.currentTimeMillis() > result.getPeriodEnd().getTime()) {
+            final Date endPeriod = genCurrentEndPeriod();
+            final Date startPeriod = genCurrentStartPeriod();
             if (endPeriod == null || startPeriod == null) {
-                currentStatisticsEntry = new StatisticsEntry(new Date(), new Date(), new Date(getExpireTime() + System.currentTimeMillis()));
+                final Date now = new Date();
+                result = new StatisticsEntry(now, now, new Date(getExpireTime() + now.getTime()));
+
+                // An entry per event
+                currentStatisticsEntry = null;
             } else {
-                currentStatisticsEntry = new StatisticsEntry(startPeriod, endPeriod, new Date(getExpireTime() + System.currentTimeMillis()));
+                result = new StatisticsEntry(startPeriod, endPeriod, new Date(getExpireTime() + System.currentTimeMillis()));
+                currentStatisticsEntry = result;
             }
-            fIFOQueue.add(currentStatisticsEntry);
+            fIFOQueue.add(result);
+            while (fIFOQueue.poll() != null);
         }
-
-        currentStatisticsEntry.addEvent(event);
-        while (fIFOQueue.poll() != null);
+        return result;
     }
 
     /**
      * @see org.signserver.server.statistics.IStatisticsCollector#flush()
      */
     @Override
-    public void flush() {
+    public synchronized void flush() {
+        currentStatisticsEntry = null;
         fIFOQueue.clear();
     }
 
+    /**
+     * @see org.signserver.server.statistics.IStatisticsCollector#destroy()
+     */
+    @Override
+    public void destroy() {
+        // Nothing to release
+    }
+
     /** 
      * Returns the expire time in seconds before a statistics entry should be
      * considered as invalid.
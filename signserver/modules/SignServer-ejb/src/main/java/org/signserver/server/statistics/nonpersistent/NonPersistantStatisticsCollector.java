@@ -80,4 +80,12 @@ public class NonPersistantStatisticsCollector implements IStatisticsCollector {
         hourStatisticsCollector.flush();
         dayStatisticsCollector.flush();
     }
+
+    @Override
+    public void destroy() {
+        secondStatisticsCollector.destroy();
+        minuteStatisticsCollector.destroy();
+        hourStatisticsCollector.destroy();
+        dayStatisticsCollector.destroy();
+    }
 }
@@ -0,0 +1,214 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the KeyUsageCounterReservations class.
+ *
+ * @version $Id$
+ */
+public class KeyUsageCounterReservationsUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(KeyUsageCounterReservationsUnitTest.class);
+
+    private static final String KEY1 = "key1";
+
+    /**
+     * Tests that usages are taken from the reserved block and that the
+     * counter is only updated when the block is exhausted.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReserveInBlocks() throws Exception {
+        final MockBackend backend = new MockBackend();
+        backend.counters.put(KEY1, 0L);
+        final KeyUsageCounterReservations instance = new KeyUsageCounterReservations(backend);
+
+        assertTrue(instance.incrementIfWithinLimit(KEY1, -1, 10));
+        assertEquals("counter", 10L, (long) backend.counters.get(KEY1));
+        assertEquals("unused", 9, instance.getUnused(KEY1));
+
+        for (int i = 0; i < 9; i++) {
+            assertTrue(instance.incrementIfWithinLimit(KEY1, -1, 10));
+        }
+        assertEquals("reservations", 1, backend.reservations.get());
+
+        assertTrue(instance.incrementIfWithinLimit(KEY1, -1, 10));
+        assertEquals("reservations", 2, backend.reservations.get());
+        assertEquals("counter", 20L, (long) backend.counters.get(KEY1));
+    }
+
+    /**
+     * Tests that the limit is never exceeded even if it is not a multiple of
+     * the block size.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLimitNotExceeded() throws Exception {
+        final MockBackend backend = new MockBackend();
+        backend.counters.put(KEY1, 0L);
+        final KeyUsageCounterReservations instance = new KeyUsageCounterReservations(backend);
+
+        for (int i = 0; i < 25; i++) {
+            assertTrue("usage " + i, instance.incrementIfWithinLimit(KEY1, 25, 10));
+        }
+        assertFalse(instance.incrementIfWithinLimit(KEY1, 25, 10));
+        assertFalse(instance.hasReserved(KEY1, 25));
+        assertEquals("counter", 25L, (long) backend.counters.get(KEY1));
+    }
+
+    /**
+     * Tests that uninitialized counters are not incremented.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testNotInitialized() throws Exception {
+        final KeyUsageCounterReservations instance = new KeyUsageCounterReservations(new MockBackend());
+        assertFalse(instance.incrementIfWithinLimit(KEY1, -1, 10));
+    }
+
+    /**
+     * Tests that each limit has its own block and that unused usages are
+     * given back when releasing all.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRelease() throws Exception {
+        final MockBackend backend = new MockBackend();
+        backend.counters.put(KEY1, 0L);
+        final KeyUsageCounterReservations instance = new KeyUsageCounterReservations(backend);
+
+        assertTrue(instance.incrementIfWithinLimit(KEY1, 100, 10));
+        assertTrue(instance.hasReserved(KEY1, 100));
+        assertFalse(instance.hasReserved(KEY1, 50));
+
+        // Other limit: a block of its own, the first one is kept
+        assertTrue(instance.incrementIfWithinLimit(KEY1, 50, 10));
+        assertTrue(instance.hasReserved(KEY1, 100));
+        assertTrue(instance.hasReserved(KEY1, 50));
+        assertEquals("counter", 20L, (long) backend.counters.get(KEY1));
+        assertEquals("unused", 18, instance.getUnused(KEY1));
+
+        instance.releaseAll();
+        assertEquals("counter", 2L, (long) backend.counters.get(KEY1));
+        assertEquals("unused", 0, instance.getUnused(KEY1));
+    }
+
+    /**
+     * Tests that the usages reserved with another limit are given back when
+     * the new limit is reached, so that the new limit can be used fully.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLimitChanged() throws Exception {
+        final MockBackend backend = new MockBackend();
+        backend.counters.put(KEY1, 0L);
+        final KeyUsageCounterReservations instance = new KeyUsageCounterReservations(backend);
+
+        assertTrue(instance.incrementIfWithinLimit(KEY1, 100, 10));
+
+        // 1 usage with the old limit and 14 with the new one
+        for (int i = 0; i < 14; i++) {
+            assertTrue("usage " + i, instance.incrementIfWithinLimit(KEY1, 15, 10));
+        }
+        assertFalse(instance.hasReserved(KEY1, 100));
+        assertFalse(instance.incrementIfWithinLimit(KEY1, 15, 10));
+        assertEquals("counter", 15L, (long) backend.counters.get(KEY1));
+        assertEquals("unused", 0, instance.getUnused(KEY1));
+    }
+
+    /**
+     * Tests that the limit holds with 64 concurrent signers and prints the
+     * throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentSigners() throws Exception {
+        final int threads = 64;
+        final int perThread = 5000;
+        final long limit = threads * perThread / 2 + 3;
+        final MockBackend backend = new MockBackend();
+        backend.counters.put(KEY1, 0L);
+        final KeyUsageCounterReservations instance = new KeyUsageCounterReservations(backend);
+        final AtomicInteger granted = new AtomicInteger();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            if (instance.incrementIfWithinLimit(KEY1, limit, 100)) {
+                                granted.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Increments per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("granted", limit, granted.get());
+        assertEquals("counter", limit, (long) backend.counters.get(KEY1));
+        assertTrue("reservations: " + backend.reservations.get(), backend.reservations.get() < limit / 50);
+    }
+
+    private static class MockBackend implements KeyUsageCounterReservations.Backend {
+        private final Map<String, Long> counters = new HashMap<>();
+        /** Number of successful reservations. */
+        private final AtomicInteger reservations = new AtomicInteger();
+
+        @Override
+        public synchronized long reserve(String keyHash, long count, long limit) {
+            final Long value = counters.get(keyHash);
+            if (value == null) {
+                return 0;
+            }
+            final long result = limit < 0 ? count : Math.max(0, Math.min(count, limit - value));
+            if (result > 0) {
+                reservations.incrementAndGet();
+                counters.put(keyHash, value + result);
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized void release(String keyHash, long count) {
+            counters.put(keyHash, counters.get(keyHash) - count);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.ejb.worker.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import org.apache.log4j.Logger;
+import org.signserver.common.NoSuchWorkerException;
+import org.signserver.common.WorkerConfig;
+import org.signserver.common.WorkerIdentifier;
+import org.signserver.common.WorkerStatusInfo;
+import org.signserver.common.WorkerType;
+import org.signserver.server.IServices;
+import org.signserver.server.IWorker;
+import org.signserver.server.SignServerContext;
+import org.signserver.server.WorkerContext;
+import org.signserver.server.config.entities.IWorkerConfigDataService;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the WorkerFactory class.
+ *
+ * @version $Id$
+ */
+public class WorkerFactoryUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(WorkerFactoryUnitTest.class);
+
+    private static final int WORKERS = 16;
+
+    /** Number of worker instances created. */
+    private static final AtomicInteger CREATED = new AtomicInteger();
+
+    private WorkerFactory instance;
+
+    @Before
+    public void setUp() throws Exception {
+        CREATED.set(0);
+        instance = new WorkerFactory(new MockWorkerConfigDataService(), new SignServerContext());
+    }
+
+    /**
+     * Tests that a worker is only loaded once and then returned from the
+     * cache, by id as well as by name.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLoadedOnce() throws Exception {
+        final IWorker worker = instance.getWorker(new WorkerIdentifier(1));
+        assertSame("by id", worker, instance.getWorker(new WorkerIdentifier(1)));
+        assertSame("by name", worker, instance.getWorker(new WorkerIdentifier("WORKER1")));
+        assertEquals("created", 1, CREATED.get());
+        assertTrue("cached", instance.getCachedWorkerIds().contains(1));
+    }
+
+    /**
+     * Tests that a reload or flush gives a new instance.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testReloadAndFlush() throws Exception {
+        final IWorker worker = instance.getWorker(new WorkerIdentifier(1));
+        final IWorker other = instance.getWorker(new WorkerIdentifier(2));
+
+        instance.reloadWorker(new WorkerIdentifier("WORKER1"));
+        final IWorker reloaded = instance.getWorker(new WorkerIdentifier(1));
+        assertNotSame("reloaded", worker, reloaded);
+        assertSame("other not reloaded", other, instance.getWorker(new WorkerIdentifier(2)));
+
+        instance.flush();
+        assertTrue("flushed", instance.getCachedWorkerIds().isEmpty());
+        assertNotSame("after flush", reloaded, instance.getWorker(new WorkerIdentifier(1)));
+        assertEquals("created", 4, CREATED.get());
+    }
+
+    /**
+     * Tests that an unknown worker gives an exception.
+     * @throws Exception in case of error
+     */
+    @Test(expected = NoSuchWorkerException.class)
+    public void testNoSuchWorker() throws Exception {
+        instance.getWorker(new WorkerIdentifier(WORKERS + 1));
+    }
+
+    /**
+     * Tests lookups of a number of workers from 64 concurrent threads,
+     * checks that each worker is only loaded once and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final int threads = 64;
+        final int perThread = 20000;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            final int workerId = 1 + (offset + i) % WORKERS;
+                            final IWorker worker;
+                            if (i % 2 == 0) {
+                                worker = instance.getWorker(new WorkerIdentifier(workerId));
+                            } else {
+                                worker = instance.getWorker(new WorkerIdentifier("WORKER" + workerId));
+                            }
+                            assertEquals(workerId, ((MockWorker) worker).workerId);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Lookups per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("created", WORKERS, CREATED.get());
+    }
+
+    /**
+     * Tests getting the workers with components from concurrent threads while
+     * one of them is reloaded, and checks that the other workers are only
+     * loaded once and that all threads get the same instance.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentGetWorkerWithComponents() throws Exception {
+        final int threads = 32;
+        final int perThread = 2000;
+        final SignServerContext context = new SignServerContext();
+        final ConcurrentMap<Integer, WorkerWithComponents> seen = new ConcurrentHashMap<>();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            final int workerId = 2 + (offset + i) % (WORKERS - 1);
+                            final WorkerWithComponents worker;
+                            if (i % 2 == 0) {
+                                worker = instance.getWorkerWithComponents(new WorkerIdentifier(workerId), context);
+                            } else {
+                                worker = instance.getWorkerWithComponents(new WorkerIdentifier("WORKER" + workerId), context);
+                            }
+                            assertEquals(workerId, worker.getId());
+                            assertEquals(workerId, ((MockWorker) worker.getWorker()).workerId);
+                            assertNotNull("worker logger", worker.getWorkerLogger());
+
+                            final WorkerWithComponents existing = seen.putIfAbsent(workerId, worker);
+                            assertSame("same instance", existing == null ? worker : existing, worker);
+
+                            final WorkerWithComponents reloaded = instance.getWorkerWithComponents(new WorkerIdentifier(1), context);
+                            assertEquals(1, ((MockWorker) reloaded.getWorker()).workerId);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < 100; i++) {
+                        instance.reloadWorker(i % 2 == 0 ? new WorkerIdentifier(1) : new WorkerIdentifier("WORKER1"));
+                    }
+                    return null;
+                }
+            }));
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Worker 1 is created by each reload and possibly also by a lookup
+        // done after the reload cleared the cache but before it took the lock
+        assertEquals("loaded", WORKERS - 1, seen.size());
+        assertTrue("created: " + CREATED.get(), CREATED.get() >= WORKERS - 1 + 100 && CREATED.get() <= WORKERS + 2 * 100);
+    }
+
+    /**
+     * Worker counting the number of instances created.
+     */
+    public static class MockWorker implements IWorker {
+
+        private int workerId;
+        private WorkerConfig config;
+
+        public MockWorker() {
+            CREATED.incrementAndGet();
+        }
+
+        @Override
+        public WorkerType getWorkerType() {
+            return WorkerType.PROCESSABLE;
+        }
+
+        @Override
+        public void init(int workerId, WorkerConfig config, WorkerContext workerContext, EntityManager workerEntityManager) {
+            this.workerId = workerId;
+            this.config = config;
+        }
+
+        @Override
+        public WorkerConfig getConfig() {
+            return config;
+        }
+
+        @Override
+        public WorkerStatusInfo getStatus(List<String> additionalFatalErrors, IServices services) {
+            return null;
+        }
+    }
+
+    /**
+     * Configuration of the workers 1 to WORKERS named WORKER followed by
+     * the id.
+     */
+    private static class MockWorkerConfigDataService implements IWorkerConfigDataService {
+
+        @Override
+        public WorkerConfig getWorkerProperties(int workerId, boolean create) {
+            WorkerConfig result = null;
+            if (workerId >= 1 && workerId <= WORKERS) {
+                result = new WorkerConfig();
+                result.setProperty(WorkerConfig.IMPLEMENTATION_CLASS, MockWorker.class.getName());
+                result.setProperty("NAME", "WORKER" + workerId);
+            }
+            return result;
+        }
+
+        @Override
+        public int findId(String workerName) throws NoSuchWorkerException {
+            for (int workerId = 1; workerId <= WORKERS; workerId++) {
+                if (("WORKER" + workerId).equals(workerName)) {
+                    return workerId;
+                }
+            }
+            throw new NoSuchWorkerException(workerName);
+        }
+
+        @Override
+        public boolean removeWorkerConfig(int workerId) {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public void setWorkerConfig(int workerId, WorkerConfig config) {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public void create(int workerId, String implClassName) {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public List<Integer> findAllIds() {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public List<String> findAllNames() {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public void populateNameColumn() {
+            throw new UnsupportedOperationException("Not supported");
+        }
+
+        @Override
+        public List<Integer> findAllIds(WorkerType workerType) {
+            throw new UnsupportedOperationException("Not supported");
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the AddressRangeTrie.
+ *
+ * @version $Id$
+ */
+public class AddressRangeTrieUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(AddressRangeTrieUnitTest.class);
+
+    /**
+     * Tests matching of single IPv4 addresses and IPv4 ranges.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIPv4Ranges() throws Exception {
+        final AddressRangeTrie instance = new AddressRangeTrie();
+        instance.add("10.0.0.0/8");
+        instance.add("192.168.1.0/24");
+        instance.add("172.16.5.4");
+        instance.add("203.0.113.7/32");
+
+        assertTrue(instance.contains("10.0.0.1"));
+        assertTrue(instance.contains("10.255.255.255"));
+        assertFalse(instance.contains("11.0.0.0"));
+        assertTrue(instance.contains("192.168.1.200"));
+        assertFalse(instance.contains("192.168.2.1"));
+        assertTrue(instance.contains("172.16.5.4"));
+        assertFalse(instance.contains("172.16.5.5"));
+        assertTrue(instance.contains("203.0.113.7"));
+        assertFalse(instance.contains("203.0.113.6"));
+        assertEquals("size", 4, instance.size());
+    }
+
+    /**
+     * Tests ranges with prefix lengths not on a node boundary.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testUnalignedPrefixLengths() throws Exception {
+        final AddressRangeTrie instance = new AddressRangeTrie();
+        instance.add("198.51.100.0/22");
+        instance.add("192.0.2.6/31");
+        instance.add("0.0.0.0/2");
+
+        assertTrue(instance.contains("198.51.100.0"));
+        assertTrue(instance.contains("198.51.103.255"));
+        assertFalse(instance.contains("198.51.104.0"));
+        assertFalse(instance.contains("198.51.99.255"));
+        assertTrue(instance.contains("192.0.2.6"));
+        assertTrue(instance.contains("192.0.2.7"));
+        assertFalse(instance.contains("192.0.2.5"));
+        assertFalse(instance.contains("192.0.2.8"));
+        assertTrue(instance.contains("63.255.255.255"));
+        assertFalse(instance.contains("64.0.0.0"));
+    }
+
+    /**
+     * Tests that the range 0.0.0.0/0 matches all IPv4 addresses but no IPv6
+     * addresses.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testAllIPv4() throws Exception {
+        final AddressRangeTrie instance = new AddressRangeTrie();
+        instance.add("0.0.0.0/0");
+        assertTrue(instance.contains("1.2.3.4"));
+        assertTrue(instance.contains("255.255.255.255"));
+        assertFalse(instance.contains("::1"));
+    }
+
+    /**
+     * Tests matching of IPv6 addresses in different notations.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIPv6Ranges() throws Exception {
+        final AddressRangeTrie instance = new AddressRangeTrie();
+        instance.add("2001:db8::/32");
+        instance.add("::1");
+        instance.add("fe80:0:0:0:0:0:0:1/128");
+        instance.add("2001:db9:1:2::/64");
+
+        assertTrue(instance.contains("2001:db8::1"));
+        assertTrue(instance.contains("2001:0DB8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(instance.contains("2001:db9::1"));
+        assertTrue(instance.contains("0000:0000:0000:0000:0000:0000:0000:0001"));
+        assertTrue(instance.contains("[::1]"));
+        assertFalse(instance.contains("::2"));
+        assertTrue(instance.contains("fe80::1%eth0"));
+        assertTrue(instance.contains("2001:db9:1:2:a:b:c:d"));
+        assertFalse(instance.contains("2001:db9:1:3::"));
+        assertFalse(instance.contains("127.0.0.1"));
+    }
+
+    /**
+     * Tests that IPv4-mapped IPv6 addresses match IPv4 ranges.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIPv4MappedAddresses() throws Exception {
+        final AddressRangeTrie instance = new AddressRangeTrie();
+        instance.add("10.1.0.0/16");
+        instance.add("::ffff:192.0.2.0/120");
+
+        assertTrue(instance.contains("::ffff:10.1.2.3"));
+        assertTrue(instance.contains("::ffff:a01:203"));
+        assertTrue(instance.contains("192.0.2.99"));
+        assertFalse(instance.contains("192.0.3.1"));
+    }
+
+    /**
+     * Tests that the parser agrees with InetAddress for valid literals.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testParseLikeInetAddress() throws Exception {
+        final String[] addresses = {
+            "::", "::1", "1::", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6::8", "1::8",
+            "abcd:ef01:2345:6789:ABCD:EF01:2345:6789", "::1.2.3.4", "1:2:3:4:5:6:1.2.3.4",
+            "64:ff9b::192.0.2.33", "fe80::", "ff02::1:ff00:1"
+        };
+        final long[] out = new long[2];
+        for (String address : addresses) {
+            assertTrue(address, AddressRangeTrie.parseIPv6(address, 0, address.length(), out));
+            final byte[] expected = InetAddress.getByName(address).getAddress();
+            if (expected.length == 16) {
+                final byte[] actual = new byte[16];
+                for (int i = 0; i < 8; i++) {
+                    actual[i] = (byte) (out[0] >>> (56 - 8 * i));
+                    actual[i + 8] = (byte) (out[1] >>> (56 - 8 * i));
+                }
+                assertArrayEquals(address, expected, actual);
+            }
+        }
+        assertEquals(0x01020304L, AddressRangeTrie.parseIPv4("1.2.3.4", 0, 7));
+        assertEquals(0xffffffffL, AddressRangeTrie.parseIPv4("255.255.255.255", 0, 15));
+    }
+
+    /**
+     * Tests that invalid addresses and ranges are rejected.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testInvalid() throws Exception {
+        final AddressRangeTrie instance = new AddressRangeTrie();
+        for (String range : new String[] {"1.2.3.256", "1.2.3", "1.2.3.4.5", "1.2.3.4/33",
+            "1.2.3.4/", "::1/129", "1:2:3:4:5:6:7:8:9", "1::2::3", "12345::", ":1", "1:",
+            "localhost", "", "g::1"}) {
+            try {
+                instance.add(range);
+                fail("Should have failed: " + range);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains(range));
+            }
+        }
+        for (String address : new String[] {"1.2.3.256", "example.com", "1.2.3.4/8", ""}) {
+            try {
+                instance.contains(address);
+                fail("Should have failed: " + address);
+            } catch (IllegalArgumentException expected) { // NOPMD
+                // OK
+            }
+        }
+    }
+
+    /**
+     * Compares lookups in 100 000 ranges with lookups of the same addresses
+     * in a set of InetAddress objects.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLookupPerformance() throws Exception {
+        final int rangeCount = 100000;
+        final int lookups = 200000;
+        final Random random = new Random(4711);
+
+        final AddressRangeTrie trie = new AddressRangeTrie();
+        final Set<InetAddress> set = new HashSet<>();
+        final String[] addresses = new String[lookups];
+        long start = System.nanoTime();
+        for (int i = 0; i < rangeCount; i++) {
+            final String address = randomIPv4(random);
+            if (i % 2 == 0) {
+                trie.add(address);
+            } else {
+                trie.add(address + "/" + (16 + random.nextInt(17)));
+            }
+            set.add(InetAddress.getByName(address));
+            if (i < lookups) {
+                addresses[i] = address;
+            }
+        }
+        LOG.info("Built trie with " + trie.size() + " ranges in " + (System.nanoTime() - start) / 1000000 + " ms");
+        for (int i = rangeCount; i < lookups; i++) {
+            addresses[i] = randomIPv4(random);
+        }
+
+        long trieTime = 0;
+        long setTime = 0;
+        // First round is warm-up
+        for (int round = 0; round < 2; round++) {
+            int matches = 0;
+            start = System.nanoTime();
+            for (String address : addresses) {
+                if (trie.contains(address)) {
+                    matches++;
+                }
+            }
+            trieTime = System.nanoTime() - start;
+            assertTrue("all listed addresses match", matches >= rangeCount);
+
+            matches = 0;
+            start = System.nanoTime();
+            for (String address : addresses) {
+                if (set.contains(InetAddress.getByName(address))) {
+                    matches++;
+                }
+            }
+            setTime = System.nanoTime() - start;
+            assertEquals("exact matches", rangeCount, matches);
+        }
+
+        LOG.info("AddressRangeTrie lookups per second: " + lookups * 1000000000L / Math.max(trieTime, 1));
+        LOG.info("InetAddress set lookups per second: " + lookups * 1000000000L / Math.max(setTime, 1));
+    }
+
+    private static String randomIPv4(final Random random) {
+        return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+}
@@ -360,4 +360,62 @@ public class ClientCertAuthorizerTest {
         // Check that the DN in the error message is represented as expected.
         assertTrue("message: " + message, message.contains(TEST_ISSUER2));
     }
+
+    /**
+     * Test that decisions are cached by certificate and that a new cache is
+     * used after the authorizer is initialized with a new configuration.
+     * @throws Exception
+     */
+    @Test
+    public void testCachedDecisions() throws Exception {
+        final X509Certificate cert = createCert(TEST_SERIALNUMBER, TEST_ISSUER);
+        final X509Certificate other = createCert(OTHER_SERIALNUMBER, OTHER_ISSUER);
+        final WorkerConfig config = new WorkerConfig();
+        config.addAuthorizedClient(new AuthorizedClient(TEST_SERIALNUMBER, TEST_ISSUER));
+        ClientCertAuthorizer instance = new ClientCertAuthorizer();
+        instance.init(DUMMY_WORKER_ID, config, null);
+
+        for (int i = 0; i < 3; i++) {
+            final RequestContext context = new RequestContext();
+            context.put(RequestContext.CLIENT_CERTIFICATE, cert);
+            instance.isAuthorized(null, context);
+            context.put(RequestContext.CLIENT_CERTIFICATE, other);
+            try {
+                instance.isAuthorized(null, context);
+                fail("Should not be authorized");
+            } catch (IllegalRequestException expected) { // NOPMD
+                // OK
+            }
+        }
+        final AuthorizationCache<?> cache = instance.getAuthorizationCache();
+        assertEquals("cached decisions", 2, cache.size());
+        assertEquals("hits", 4, cache.getHits());
+        assertEquals("misses", 2, cache.getMisses());
+
+        // Removing the client takes effect when the authorizer is created again
+        config.removeAuthorizedClient(new AuthorizedClient(TEST_SERIALNUMBER, TEST_ISSUER));
+        instance = new ClientCertAuthorizer();
+        instance.init(DUMMY_WORKER_ID, config, null);
+        final RequestContext context = new RequestContext();
+        context.put(RequestContext.CLIENT_CERTIFICATE, cert);
+        try {
+            instance.isAuthorized(null, context);
+            fail("Should not be authorized");
+        } catch (IllegalRequestException expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Test that an illegal cache size gives a fatal error.
+     * @throws Exception
+     */
+    @Test
+    public void testIllegalCacheSize() throws Exception {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("AUTHORIZATION_CACHE_SIZE", "many");
+        final ClientCertAuthorizer instance = new ClientCertAuthorizer();
+        instance.init(DUMMY_WORKER_ID, config, null);
+        assertEquals("errors: " + instance.getFatalErrors(), 1, instance.getFatalErrors().size());
+    }
 }
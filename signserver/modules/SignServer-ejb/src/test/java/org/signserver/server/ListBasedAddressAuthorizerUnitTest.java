@@ -0,0 +1,138 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import org.signserver.common.AccessDeniedException;
+import org.signserver.common.IllegalRequestException;
+import org.signserver.common.RequestContext;
+import org.signserver.common.SignServerException;
+import org.signserver.common.WorkerConfig;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Unit tests for the address ranges in the ListBasedAddressAuthorizer.
+ *
+ * @version $Id$
+ */
+public class ListBasedAddressAuthorizerUnitTest {
+
+    /**
+     * Tests whitelisting direct addresses and blacklisting forwarded
+     * addresses using ranges.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDirectWhitelistForwardedBlacklistRanges() throws Exception {
+        final ListBasedAddressAuthorizer instance = createAuthorizer(
+                "WHITELISTED_DIRECT_ADDRESSES", "10.0.0.0/24, 2001:db8::/32",
+                "BLACKLISTED_FORWARDED_ADDRESSES", "203.0.113.0/28");
+
+        assertAuthorized(instance, "10.0.0.17", null);
+        assertAuthorized(instance, "2001:db8::5", "198.51.100.1");
+        assertNotAuthorized(instance, "10.0.1.17", null);
+        assertNotAuthorized(instance, "10.0.0.17", "203.0.113.15");
+        assertAuthorized(instance, "10.0.0.17", "203.0.113.16");
+    }
+
+    /**
+     * Tests blacklisting direct addresses and whitelisting forwarded
+     * addresses using ranges.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDirectBlacklistForwardedWhitelistRanges() throws Exception {
+        final ListBasedAddressAuthorizer instance = createAuthorizer(
+                "BLACKLISTED_DIRECT_ADDRESSES", "192.168.0.0/16",
+                "WHITELISTED_FORWARDED_ADDRESSES", "198.51.100.0/24, 127.0.0.1");
+
+        assertAuthorized(instance, "10.0.0.1", "198.51.100.200");
+        assertAuthorized(instance, "10.0.0.1", "127.0.0.1");
+        assertNotAuthorized(instance, "192.168.4.4", "198.51.100.200");
+        assertNotAuthorized(instance, "10.0.0.1", "198.51.101.1");
+        assertNotAuthorized(instance, "10.0.0.1", null);
+    }
+
+    /**
+     * Tests that illegal addresses in the request are rejected.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIllegalRequestAddresses() throws Exception {
+        final ListBasedAddressAuthorizer instance = createAuthorizer(
+                "BLACKLISTED_DIRECT_ADDRESSES", "192.168.0.0/16",
+                "BLACKLISTED_FORWARDED_ADDRESSES", "192.168.0.0/16");
+        try {
+            instance.isAuthorized(null, createContext("10.0.0.1", "not-an-address"));
+            fail("Should have failed");
+        } catch (IllegalRequestException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("forwarded"));
+        }
+        try {
+            instance.isAuthorized(null, createContext("10.0.0.999", null));
+            fail("Should have failed");
+        } catch (IllegalRequestException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("remote"));
+        }
+    }
+
+    /**
+     * Tests that an illegal range gives a fatal error.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testIllegalRange() throws Exception {
+        try {
+            createAuthorizer("WHITELISTED_DIRECT_ADDRESSES", "10.0.0.0/40",
+                    "BLACKLISTED_FORWARDED_ADDRESSES", "");
+            fail("Should have failed");
+        } catch (SignServerException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains(
+                    "WHITELISTED_DIRECT_ADDRESSES, illegal address specified"));
+        }
+    }
+
+    private static ListBasedAddressAuthorizer createAuthorizer(final String directProperty, final String direct,
+            final String forwardedProperty, final String forwarded) throws SignServerException {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty(directProperty, direct);
+        config.setProperty(forwardedProperty, forwarded);
+        final ListBasedAddressAuthorizer result = new ListBasedAddressAuthorizer();
+        result.init(1, config, null);
+        return result;
+    }
+
+    private static RequestContext createContext(final String remote, final String forwarded) {
+        final RequestContext result = new RequestContext();
+        result.put(RequestContext.REMOTE_IP, remote);
+        if (forwarded != null) {
+            result.put(RequestContext.X_FORWARDED_FOR, forwarded);
+        }
+        return result;
+    }
+
+    private static void assertAuthorized(final ListBasedAddressAuthorizer instance,
+            final String remote, final String forwarded) throws Exception {
+        instance.isAuthorized(null, createContext(remote, forwarded));
+    }
+
+    private static void assertNotAuthorized(final ListBasedAddressAuthorizer instance,
+            final String remote, final String forwarded) throws Exception {
+        try {
+            instance.isAuthorized(null, createContext(remote, forwarded));
+            fail("Should not be authorized: " + remote + ", " + forwarded);
+        } catch (AccessDeniedException expected) { // NOPMD
+            // OK
+        }
+    }
+}
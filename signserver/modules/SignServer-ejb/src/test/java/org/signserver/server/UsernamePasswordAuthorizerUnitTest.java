@@ -0,0 +1,93 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server;
+
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.signserver.common.AuthorizationRequiredException;
+import org.signserver.common.RequestContext;
+import org.signserver.common.WorkerConfig;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the authorization cache in the UsernamePasswordAuthorizer.
+ *
+ * @version $Id$
+ */
+public class UsernamePasswordAuthorizerUnitTest {
+
+    @Before
+    public void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    /**
+     * Tests that only successful authentications are cached.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCachedSuccessfulAuthentications() throws Exception {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("USER.USER1", "foo123");
+        // SHA-256 of "foo123" with the salt "s1"
+        config.setProperty("USER.USER2", "7179bca5ab28145282d8c048de3f71ab749dc7b989b4206a6a1a86bdeecc76e3:SHA-256:s1");
+        final UsernamePasswordAuthorizer instance = new UsernamePasswordAuthorizer();
+        instance.init(1, config, null);
+
+        for (int i = 0; i < 3; i++) {
+            assertAuthorized(instance, "user1", "foo123", true);
+            assertAuthorized(instance, "USER1", "foo1234", false);
+            assertAuthorized(instance, "user3", "foo123", false);
+        }
+        final AuthorizationCache<?> cache = instance.getAuthorizationCache();
+        assertEquals("cached", 1, cache.size());
+        assertEquals("hits", 2, cache.getHits());
+
+        assertAuthorized(instance, "user2", "wrong", false);
+        assertEquals("cached", 1, cache.size());
+        assertAuthorized(instance, "user2", "foo123", true);
+        assertEquals("cached", 2, cache.size());
+    }
+
+    /**
+     * Tests that the cache can be disabled.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCacheDisabled() throws Exception {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("USER.USER1", "foo123");
+        config.setProperty("AUTHORIZATION_CACHE_SIZE", "0");
+        final UsernamePasswordAuthorizer instance = new UsernamePasswordAuthorizer();
+        instance.init(1, config, null);
+
+        assertAuthorized(instance, "user1", "foo123", true);
+        assertAuthorized(instance, "user1", "foo123", true);
+        assertEquals("cached", 0, instance.getAuthorizationCache().size());
+        assertEquals("hits", 0, instance.getAuthorizationCache().getHits());
+    }
+
+    private static void assertAuthorized(final UsernamePasswordAuthorizer instance, final String username,
+            final String password, final boolean expected) throws Exception {
+        final RequestContext context = new RequestContext();
+        context.put(RequestContext.CLIENT_CREDENTIAL_PASSWORD, new UsernamePasswordClientCredential(username, password));
+        try {
+            instance.isAuthorized(null, context);
+            assertTrue("Should not be authorized: " + username, expected);
+        } catch (AuthorizationRequiredException ex) {
+            assertFalse("Should be authorized: " + username, expected);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.log;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Appender;
+import org.apache.log4j.Logger;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.PatternLayout;
+import org.signserver.common.WorkerConfig;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the AsyncFileWorkerLogger and AsyncLogWriter.
+ *
+ * @version $Id$
+ */
+public class AsyncFileWorkerLoggerUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(AsyncFileWorkerLoggerUnitTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests that all log lines from concurrent threads are written.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testAllLinesWritten() throws Exception {
+        final File file = new File(folder.getRoot(), "worker.log");
+        final AsyncLogWriter writer = new AsyncLogWriter(file, 64, Long.MAX_VALUE, 0);
+        runThreads(8, 1000, new LogCall() {
+            @Override
+            public void log(final Map<String, Object> fields) throws Exception {
+                writer.publish(fields, System.currentTimeMillis(), AsyncLogWriter.OverflowPolicy.BLOCK);
+            }
+        });
+        writer.close();
+
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("lines", 8000, lines.size());
+        final Set<String> ids = new HashSet<>();
+        for (String line : lines) {
+            assertTrue(line, line.startsWith("LOG_ID: "));
+            assertTrue(line, line.contains("; REPLY_TIME:"));
+            ids.add(line.substring(0, line.indexOf(';')));
+        }
+        assertEquals("unique lines", 8000, ids.size());
+        assertEquals("written", 8000, writer.getWritten());
+    }
+
+    /**
+     * Tests that the file is rolled when it has grown too large.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testRolling() throws Exception {
+        final File file = new File(folder.getRoot(), "rolling.log");
+        final AsyncLogWriter writer = new AsyncLogWriter(file, 16, 1000, 2);
+        for (int i = 0; i < 500; i++) {
+            writer.publish(createFields(0, i), i, AsyncLogWriter.OverflowPolicy.BLOCK);
+        }
+        writer.close();
+
+        assertTrue("file", file.exists());
+        assertTrue("backup 1", new File(file.getPath() + ".1").exists());
+        assertTrue("backup 2", new File(file.getPath() + ".2").exists());
+        assertFalse("backup 3", new File(file.getPath() + ".3").exists());
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertTrue("last line in file", lines.get(lines.size() - 1).contains("REPLY_TIME:499"));
+    }
+
+    /**
+     * Tests the DROP and FAIL overflow policies when the writer can not keep
+     * up.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        final File file = new File(folder.getRoot(), "overflow.log");
+        final AsyncLogWriter writer = new AsyncLogWriter(file, 2, Long.MAX_VALUE, 0);
+        final Map<String, Object> fields = createFields(0, 0);
+
+        int dropped = 0;
+        boolean failed = false;
+        for (int i = 0; i < 100000 && (dropped == 0 || !failed); i++) {
+            if (!writer.publish(fields, i, AsyncLogWriter.OverflowPolicy.DROP)) {
+                dropped++;
+            }
+            try {
+                writer.publish(fields, i, AsyncLogWriter.OverflowPolicy.FAIL);
+            } catch (WorkerLoggerException expected) {
+                failed = true;
+            }
+        }
+        writer.close();
+        assertTrue("dropped", dropped > 0);
+        assertEquals("dropped count", dropped, writer.getDropped());
+        assertTrue("failed", failed);
+    }
+
+    /**
+     * Tests the configuration of the worker logger.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConfiguration() throws Exception {
+        final WorkerConfig config = new WorkerConfig();
+        AsyncFileWorkerLogger instance = new AsyncFileWorkerLogger();
+        instance.init(1, config, null);
+        assertEquals("errors", 1, instance.getFatalErrors(null).size());
+
+        config.setProperty("LOG_FILE_PATH", new File(folder.getRoot(), "config.log").getAbsolutePath());
+        config.setProperty("LOG_OVERFLOW_POLICY", "sometimes");
+        instance = new AsyncFileWorkerLogger();
+        instance.init(1, config, null);
+        assertTrue("policy error: " + instance.getFatalErrors(null),
+                instance.getFatalErrors(null).get(0).contains("LOG_OVERFLOW_POLICY"));
+
+        config.setProperty("LOG_OVERFLOW_POLICY", "fail");
+        instance = new AsyncFileWorkerLogger();
+        instance.init(1, config, null);
+        assertEquals("errors: " + instance.getFatalErrors(null), 0, instance.getFatalErrors(null).size());
+        instance.log(null, createFields(1, 1), null);
+        AsyncLogWriter.getCurrentInstance(new File(folder.getRoot(), "config.log")).close();
+    }
+
+    /**
+     * Tests that no log lines are lost or duplicated when 64 threads log
+     * through a small buffer with the BLOCK policy so that most of them
+     * have to wait for the background thread.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testBlockUnderContention() throws Exception {
+        final int threads = 64;
+        final int perThread = 500;
+        final File file = new File(folder.getRoot(), "contention.log");
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("LOG_FILE_PATH", file.getAbsolutePath());
+        config.setProperty("LOG_BUFFER_SIZE", "8");
+        final AsyncFileWorkerLogger logger = new AsyncFileWorkerLogger();
+        logger.init(1, config, null);
+
+        runThreads(threads, perThread, new LogCall() {
+            @Override
+            public void log(final Map<String, Object> fields) throws Exception {
+                logger.log(null, fields, null);
+            }
+        });
+        final AsyncLogWriter writer = AsyncLogWriter.getCurrentInstance(file);
+        writer.close();
+
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        final Set<String> ids = new HashSet<>();
+        for (String line : lines) {
+            ids.add(line.substring(0, line.indexOf(';')));
+        }
+        assertEquals("lines", threads * perThread, lines.size());
+        assertEquals("unique lines", threads * perThread, ids.size());
+        assertEquals("dropped", 0, writer.getDropped());
+    }
+
+    /**
+     * Tests that the writer is replaced when a worker is initialized with
+     * other settings for the same file and that the other workers continue
+     * logging with the new writer.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testSettingsChanged() throws Exception {
+        final File file = new File(folder.getRoot(), "shared.log");
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty("LOG_FILE_PATH", file.getAbsolutePath());
+        final AsyncFileWorkerLogger first = new AsyncFileWorkerLogger();
+        first.init(1, config, null);
+        final AsyncLogWriter oldWriter = AsyncLogWriter.getCurrentInstance(file);
+        first.log(null, createFields(1, 1), null);
+
+        final AsyncFileWorkerLogger second = new AsyncFileWorkerLogger();
+        second.init(2, config, null);
+        assertSame("same settings", oldWriter, AsyncLogWriter.getCurrentInstance(file));
+
+        config.setProperty("LOG_BUFFER_SIZE", "16");
+        final AsyncFileWorkerLogger third = new AsyncFileWorkerLogger();
+        third.init(3, config, null);
+        final AsyncLogWriter newWriter = AsyncLogWriter.getCurrentInstance(file);
+        assertNotSame("new settings", oldWriter, newWriter);
+        assertTrue("old writer closed", oldWriter.isClosed());
+
+        first.log(null, createFields(1, 2), null);
+        third.log(null, createFields(3, 1), null);
+        AsyncLogWriter.closeAll();
+        assertTrue("new writer closed", newWriter.isClosed());
+        assertNull("no writer", AsyncLogWriter.getCurrentInstance(file));
+
+        assertEquals("lines", 3, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+        try {
+            second.log(null, createFields(2, 1), null);
+            fail("Should fail after closeAll");
+        } catch (WorkerLoggerException expected) { // NOPMD
+            // OK
+        }
+    }
+
+    /**
+     * Tests that every log line accepted while the writer is being closed
+     * is written, as a thread might pass the closed check just before the
+     * writer is closed.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testCloseWhilePublishing() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final File file = new File(folder.getRoot(), "closing-" + round + ".log");
+            final AsyncLogWriter writer = new AsyncLogWriter(file, 64, Long.MAX_VALUE, 0);
+            final AtomicLong accepted = new AtomicLong();
+            final ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                final List<Future<Void>> futures = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    final int thread = t;
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            try {
+                                for (int i = 0; ; i++) {
+                                    writer.publish(createFields(thread, i), i, AsyncLogWriter.OverflowPolicy.BLOCK);
+                                    accepted.incrementAndGet();
+                                }
+                            } catch (WorkerLoggerException expected) { // NOPMD
+                                // Closed
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                Thread.sleep(5);
+                writer.close();
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            final long lines = file.exists() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size() : 0;
+            assertEquals("lines written in round " + round, accepted.get(), lines);
+        }
+    }
+
+    /**
+     * Compares the throughput of the AsyncFileWorkerLogger with the
+     * PatternWorkerLogger and the AllFieldsWorkerLogger using 64 threads
+     * and checks that the AsyncFileWorkerLogger wrote all lines.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testThroughput() throws Exception {
+        final int threads = 64;
+        final int perThread = 2000;
+
+        // Send the output of the log4j based loggers to a file as well
+        final Logger accountLog = Logger.getLogger(IWorkerLogger.class);
+        final Appender fileAppender = new FileAppender(new PatternLayout("%m%n"),
+                new File(folder.getRoot(), "log4j.log").getAbsolutePath());
+        final boolean additivity = accountLog.getAdditivity();
+        accountLog.setAdditivity(false);
+        accountLog.addAppender(fileAppender);
+        final File file = new File(folder.getRoot(), "throughput.log");
+        try {
+            final WorkerConfig config = new WorkerConfig();
+            config.setProperty("LOG_FILE_PATH", file.getAbsolutePath());
+
+            final List<IWorkerLogger> loggers = new ArrayList<>();
+            loggers.add(new PatternWorkerLogger());
+            loggers.add(new AllFieldsWorkerLogger());
+            loggers.add(new AsyncFileWorkerLogger());
+            for (final IWorkerLogger logger : loggers) {
+                logger.init(1, config, null);
+                final long time = runThreads(threads, perThread, new LogCall() {
+                    @Override
+                    public void log(final Map<String, Object> fields) throws Exception {
+                        logger.log(null, fields, null);
+                    }
+                });
+                LOG.info(logger.getClass().getSimpleName() + " log lines per second: "
+                        + (threads * perThread * 1000000000L / Math.max(time, 1)));
+            }
+        } finally {
+            final AsyncLogWriter writer = AsyncLogWriter.getCurrentInstance(file);
+            if (writer != null) {
+                writer.close();
+            }
+            accountLog.removeAppender(fileAppender);
+            fileAppender.close();
+            accountLog.setAdditivity(additivity);
+        }
+        assertEquals("lines", threads * perThread, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    private static long runThreads(final int threads, final int perThread, final LogCall call) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            call.log(createFields(thread, i));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Map<String, Object> createFields(final int thread, final int i) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put(IWorkerLogger.LOG_ID, thread + "-" + i);
+        result.put(IWorkerLogger.LOG_TIME, String.valueOf(System.currentTimeMillis()));
+        result.put(IWorkerLogger.LOG_WORKER_ID, "1");
+        result.put(IWorkerLogger.LOG_WORKER_NAME, "TimeStampSigner");
+        result.put(IWorkerLogger.LOG_CLIENT_IP, "127.0.0.1");
+        result.put(IWorkerLogger.LOG_REQUEST_FULLURL, "http://localhost:8080/signserver/process?workerName=TimeStampSigner");
+        result.put(IWorkerLogger.LOG_PROCESS_SUCCESS, "true");
+        result.put(IWorkerLogger.LOG_EXCEPTION, null);
+        return result;
+    }
+
+    /** Log call to run from the threads. */
+    private interface LogCall {
+        void log(Map<String, Object> fields) throws Exception;
+    }
+}
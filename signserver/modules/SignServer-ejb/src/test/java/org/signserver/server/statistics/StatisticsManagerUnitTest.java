@@ -12,6 +12,14 @@
  *************************************************************************/
 package org.signserver.server.statistics;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.signserver.common.NonPersistentStatisticsConstants;
 import org.signserver.common.StatisticsConstants;
 import org.signserver.common.WorkerConfig;
 
@@ -25,6 +33,9 @@ import org.junit.Test;
  */
 public class StatisticsManagerUnitTest {
 
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(StatisticsManagerUnitTest.class);
+
     @Test
     public void testAll() throws Exception {
         WorkerConfig wc = new WorkerConfig();
@@ -61,4 +72,78 @@ public class StatisticsManagerUnitTest {
         sc = StatisticsManager.getStatisticsCollector(123, wc, null);
         assertTrue(sc.fetchStatistics(StatisticsConstants.QUERYTYPE_ALL, null, null).size() == 0);
     }
+
+    /**
+     * Tests that no events are lost when added from 64 concurrent threads,
+     * that the latency percentiles are available and prints the throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentEvents() throws Exception {
+        final int threads = 64;
+        final int perThread = 10000;
+        final WorkerConfig wc = new WorkerConfig();
+        wc.setProperty(StatisticsConstants.TYPE, StatisticsConstants.TYPE_NONPERSISTANT);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            final Event event = StatisticsManager.startEvent(125, wc, null);
+                            StatisticsManager.endEvent(125, wc, null, event);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Events per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+        } finally {
+            executor.shutdown();
+        }
+
+        final IStatisticsCollector sc = StatisticsManager.getStatisticsCollector(125, wc, null);
+        long events = 0;
+        for (StatisticsEntry entry : sc.fetchStatistics(NonPersistentStatisticsConstants.QUERYTYPE_DAY, null, null)) {
+            events += entry.getNumberOfEvents();
+            assertTrue("p50 <= p99", entry.getLatencyPercentile(50) <= entry.getLatencyPercentile(99));
+        }
+        assertEquals("events", threads * perThread, events);
+        StatisticsManager.flush(125);
+    }
+
+    /**
+     * Tests the latency summary included in the worker status.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testLatencySummary() throws Exception {
+        final WorkerConfig wc = new WorkerConfig();
+        wc.setProperty(StatisticsConstants.TYPE, StatisticsConstants.TYPE_NONPERSISTANT);
+        assertNull("no collector", StatisticsManager.getLatencySummary(126));
+
+        for (int i = 0; i < 3; i++) {
+            final Event event = StatisticsManager.startEvent(126, wc, null);
+            StatisticsManager.endEvent(126, wc, null, event);
+        }
+
+        final String summary = StatisticsManager.getLatencySummary(126);
+        LOG.info("Latencies:\n" + summary);
+        assertNotNull("summary", summary);
+        final String[] lines = summary.split("\n");
+        assertEquals("periods: " + summary, 4, lines.length);
+        assertTrue("second: " + summary, lines[0].startsWith(NonPersistentStatisticsConstants.QUERYTYPE_SECOND + ": "));
+        assertTrue("day: " + summary, lines[3].startsWith(NonPersistentStatisticsConstants.QUERYTYPE_DAY + ": 3 events, p50 "));
+        assertTrue("p99: " + summary, lines[3].endsWith(" us"));
+        StatisticsManager.flush(126);
+        assertNull("flushed", StatisticsManager.getLatencySummary(126));
+    }
 }
@@ -0,0 +1,215 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.server.statistics.csvfilewriter;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.signserver.common.WorkerConfig;
+import org.signserver.server.statistics.Event;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the CSVFileStatisticsCollector class.
+ *
+ * @version $Id$
+ */
+public class CSVFileStatisticsCollectorUnitTest {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(CSVFileStatisticsCollectorUnitTest.class);
+
+    private File folder;
+    private final List<CSVFileStatisticsCollector> instances = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory("csvstats").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (CSVFileStatisticsCollector instance : instances) {
+            instance.destroy();
+        }
+        FileUtils.deleteDirectory(folder);
+    }
+
+    /**
+     * Tests that the header and the rows are written by the background
+     * writer.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testWriteRows() throws Exception {
+        final WorkerConfig config = createConfig("50");
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_COLUMNHEADER + "0", "Size");
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_COLUMNHEADER + "1", CSVFileStatisticsCollector.TIME_NAME);
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_COLUMNCUSTOMKEY + "0", "SIZE");
+        final CSVFileStatisticsCollector instance = createInstance();
+        instance.init(4711, config, null);
+
+        for (int i = 1; i <= 3; i++) {
+            final Event event = new Event(4711);
+            event.addCustomStatistics("SIZE", i * 100);
+            instance.addEvent(event);
+        }
+        instance.addEvent(new Event(4711));
+        awaitWritten(instance, 4);
+
+        final File[] files = folder.listFiles();
+        assertEquals("files", 1, files.length);
+        final List<String> lines = FileUtils.readLines(files[0], Charset.defaultCharset().name());
+        assertEquals("lines: " + lines, 5, lines.size());
+        assertEquals("Size;Time", lines.get(0));
+        assertTrue(lines.get(1), lines.get(1).matches("100;[0-9]+"));
+        assertTrue(lines.get(3), lines.get(3).matches("300;[0-9]+"));
+        assertTrue(lines.get(4), lines.get(4).matches(";[0-9]+"));
+    }
+
+    /**
+     * Tests that rows are dropped and counted when the queue is full.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testQueueFull() throws Exception {
+        final WorkerConfig config = createConfig("60000");
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_QUEUESIZE_NAME, "10");
+        final CSVFileStatisticsCollector instance = createInstance();
+        instance.init(4712, config, null);
+
+        for (int i = 0; i < 15; i++) {
+            instance.addEvent(new Event(4712));
+        }
+        assertEquals("queued", 10, instance.getQueuedRows());
+        assertEquals("dropped", 5, instance.getDroppedRows());
+        assertEquals("written", 0, instance.getWrittenRows());
+    }
+
+    /**
+     * Tests adding events from 64 concurrent threads and prints the
+     * throughput.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testConcurrentEvents() throws Exception {
+        final int threads = 64;
+        final int perThread = 5000;
+        final WorkerConfig config = createConfig("100");
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_QUEUESIZE_NAME, String.valueOf(threads * perThread));
+        final CSVFileStatisticsCollector instance = createInstance();
+        instance.init(4713, config, null);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < perThread; i++) {
+                            instance.addEvent(new Event(4713));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            final long time = System.nanoTime() - start;
+            LOG.info("Events per second: " + (threads * perThread * 1000000000L / Math.max(time, 1)));
+        } finally {
+            executor.shutdown();
+        }
+
+        awaitWritten(instance, threads * perThread);
+        assertEquals("dropped", 0, instance.getDroppedRows());
+        assertEquals("header and lines", threads * perThread + 1, FileUtils.readLines(folder.listFiles()[0], Charset.defaultCharset().name()).size());
+    }
+
+    /**
+     * Tests that the queued rows are written when the collector is destroyed
+     * and that the writer thread is stopped when the last collector is
+     * destroyed.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testDestroy() throws Exception {
+        final CSVFileStatisticsCollector instance1 = createInstance();
+        instance1.init(4714, createConfig("60000"), null);
+        final CSVFileStatisticsCollector instance2 = createInstance();
+        instance2.init(4715, createConfig("60000"), null);
+        assertTrue("writer running", CSVFileStatisticsCollector.isWriterRunning());
+
+        instance1.addEvent(new Event(4714));
+        instance1.addEvent(new Event(4714));
+        instance1.destroy();
+        awaitWritten(instance1, 2);
+        assertTrue("writer still used", CSVFileStatisticsCollector.isWriterRunning());
+
+        // Events after destroy are ignored
+        instance1.addEvent(new Event(4714));
+        assertEquals("queued", 0, instance1.getQueuedRows());
+
+        instance2.destroy();
+        assertFalse("writer stopped", CSVFileStatisticsCollector.isWriterRunning());
+    }
+
+    /**
+     * Tests that flush does not fail when the collector is not configured
+     * with an output directory.
+     * @throws Exception in case of error
+     */
+    @Test
+    public void testFlushNotConfigured() throws Exception {
+        final CSVFileStatisticsCollector instance = createInstance();
+        instance.init(4716, new WorkerConfig(), null);
+        instance.addEvent(new Event(4716));
+        instance.flush();
+        assertEquals("queued", 0, instance.getQueuedRows());
+    }
+
+    private CSVFileStatisticsCollector createInstance() {
+        final CSVFileStatisticsCollector result = new CSVFileStatisticsCollector();
+        instances.add(result);
+        return result;
+    }
+
+    private WorkerConfig createConfig(String flushInterval) {
+        final WorkerConfig config = new WorkerConfig();
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_OUTPUTDIR_NAME, folder.getAbsolutePath());
+        config.setProperty(CSVFileStatisticsCollector.PROPERTY_MINFLUSHINTERVAL_NAME, flushInterval);
+        return config;
+    }
+
+    private void awaitWritten(CSVFileStatisticsCollector instance, long rows) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 20000;
+        while (instance.getWrittenRows() < rows && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals("written", rows, instance.getWrittenRows());
+    }
+}
@@ -12,8 +12,8 @@
  *************************************************************************/
 package org.signserver.web;
 
-import org.signserver.server.data.impl.BinaryFileUpload;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -23,12 +23,12 @@ import javax.ejb.EJB;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Base64;
 import org.bouncycastle.util.encoders.DecoderException;
@@ -49,6 +49,7 @@ import org.signserver.common.data.DocumentValidationRequest;
 import org.signserver.common.data.DocumentValidationResponse;
 import org.signserver.common.data.LegacyResponse;
 import org.signserver.common.data.Response;
+import org.signserver.server.data.impl.Base64DecodingInputStream;
 import org.signserver.server.data.impl.CloseableReadableData;
 import org.signserver.server.data.impl.CloseableWritableData;
 import org.signserver.server.data.impl.DataFactory;
@@ -147,55 +148,55 @@ public class GenericProcessServlet extends AbstractProcessServlet {
         final MetaDataHolder metadataHolder = new MetaDataHolder();
 
         final UploadConfig uploadConfig = getUploadConfig();
-        final DiskFileItemFactory factory = new DiskFileItemFactory();
-        factory.setSizeThreshold(uploadConfig.getSizeThreshold());
-        factory.setRepository(uploadConfig.getRepository());
-        
-        List<FileItem> itemsToDelete = null;
+
         try {
-        
+
             if (ServletFileUpload.isMultipartContent(req)) {
-                final ServletFileUpload upload = new ServletFileUpload(factory);
+                // Stream the items so the file content is only read once,
+                // directly into memory or into the file backing the data
+                final ServletFileUpload upload = new ServletFileUpload();
                 upload.setSizeMax(uploadConfig.getMaxUploadSize());
 
                 try {
-                    final List<FileItem> items = upload.parseRequest(req);
-                    itemsToDelete = items;
-                    final Iterator<FileItem> iter = items.iterator();
-                    //FileItem fileItem = null;
+                    final FileItemIterator iter = upload.getItemIterator(req);
                     String encoding = null;
+                    boolean dataDecoded = false;
                     while (iter.hasNext()) {
-                        final FileItem item = iter.next();
+                        final FileItemStream item = iter.next();
 
                         if (item.isFormField()) {
+                            final String itemFieldName = item.getFieldName();
+                            final String itemValue;
+                            try (InputStream in = item.openStream()) {
+                                itemValue = Streams.asString(in, "ISO-8859-1");
+                            }
+
                             if (!workerRequest) {
-                                if (WORKERNAME_PROPERTY_NAME.equals(item.getFieldName())) {
+                                if (WORKERNAME_PROPERTY_NAME.equals(itemFieldName)) {
                                     if (LOG.isDebugEnabled()) {
                                         LOG.debug("Found a signerName in the request: "
-                                                + item.getString());
+                                                + itemValue);
                                     }
-                                    wi = new WorkerIdentifier(item.getString());
-                                } else if (WORKERID_PROPERTY_NAME.equals(item.getFieldName())) {
+                                    wi = new WorkerIdentifier(itemValue);
+                                } else if (WORKERID_PROPERTY_NAME.equals(itemFieldName)) {
                                     if (LOG.isDebugEnabled()) {
                                         LOG.debug("Found a signerId in the request: "
-                                                + item.getString());
+                                                + itemValue);
                                     }
                                     try {
-                                        wi = new WorkerIdentifier(Integer.parseInt(item.getString()));
+                                        wi = new WorkerIdentifier(Integer.parseInt(itemValue));
                                     } catch (NumberFormatException ignored) {
                                     }
                                 }
                             }
 
-                            final String itemFieldName = item.getFieldName();
-
                             if (PDFPASSWORD_PROPERTY_NAME.equals(itemFieldName)) {
                                 if (LOG.isDebugEnabled()) {
                                     LOG.debug("Found a pdfPassword in the request.");
                                 }
-                                pdfPassword = item.getString("ISO-8859-1");
+                                pdfPassword = itemValue;
                             } else if (PROCESS_TYPE_PROPERTY_NAME.equals(itemFieldName)) {
-                                final String processTypeAttribute = item.getString("ISO-8859-1");
+                                final String processTypeAttribute = itemValue;
 
                                 if (LOG.isDebugEnabled()) {
                                     LOG.debug("Found process type in the request: " + processTypeAttribute);
@@ -212,11 +213,11 @@ public class GenericProcessServlet extends AbstractProcessServlet {
                                     processType = ProcessType.signDocument;
                                 }
                             } else if (ENCODING_PROPERTY_NAME.equals(itemFieldName)) {
-                                encoding = item.getString("ISO-8859-1");
+                                encoding = itemValue;
                             } else if (isFieldMatchingMetaData(itemFieldName)) {
                                 try {
                                     metadataHolder.handleMetaDataProperty(itemFieldName,
-                                            item.getString("ISO-8859-1"));
+                                            itemValue);
                                 } catch (IOException e) {
                                     sendBadRequest(res, "Malformed properties given using REQUEST_METADATA.");
                                     return;
@@ -225,14 +226,23 @@ public class GenericProcessServlet extends AbstractProcessServlet {
                         } else {
                             // We only care for one upload at a time right now
                             if (data == null) {
-                                data = dataFactory.createReadableData(item, uploadConfig.getRepository());
+                                InputStream in = item.openStream();
+
+                                // Decode while reading if the encoding field came before the file
+                                if (encoding != null && !encoding.isEmpty()) {
+                                    in = new Base64DecodingInputStream(in);
+                                    dataDecoded = true;
+                                }
+                                try {
+                                    data = dataFactory.createReadableData(in, uploadConfig.getMaxUploadSize(),
+                                            uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
+                                } finally {
+                                    in.close();
+                                }
                                 fileName = item.getName();
                             } else {
+                                // Skipped by the iterator
                                 LOG.error("Only one upload at a time supported!");
-                                // Make sure any temporary files are removed
-                                try {
-                                    item.delete();
-                                } catch (Throwable ignored) {} // NOPMD
                             }
                         }
                     }
@@ -242,38 +252,34 @@ public class GenericProcessServlet extends AbstractProcessServlet {
                         return;
                     }
 
-                    // Special handling of base64 encoded data. Note: no large file support for this
-                    if (encoding != null && !encoding.isEmpty()) {
-                        // Read in all data and base64 decode it
-                        byte[] bytes = data.getAsByteArray();
-                        if (bytes.length > 0) {
-                            try {
-                                bytes = Base64.decode(bytes);
-                            } catch (DecoderException ex) {
-                                sendBadRequest(res, "Incorrect base64 data");
-                                return;
-                            } finally {
-                                data.close();
-                            }
-                        }
-                        
-                        // Now put the decoded data
-                        try {
-                            data = dataFactory.createReadableData(bytes, uploadConfig.getMaxUploadSize(), uploadConfig.getRepository());
-                        } catch (FileUploadBase.SizeLimitExceededException ex) {
-                            LOG.error(HTTP_MAX_UPLOAD_SIZE + " exceeded: " + ex.getLocalizedMessage());
-                            res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
-                                "Maximum content length is " + uploadConfig.getMaxUploadSize() + " bytes");
-                            return;
-                        } catch (FileUploadException ex) {
-                            throw new ServletException("Upload failed", ex);
+                    // Special handling of base64 encoding given after the file
+                    if (encoding != null && !encoding.isEmpty() && !dataDecoded && data.getLength() > 0) {
+                        final CloseableReadableData encodedData = data;
+                        data = null;
+                        try (InputStream in = new Base64DecodingInputStream(encodedData.getAsInputStream())) {
+                            data = dataFactory.createReadableData(in, uploadConfig.getMaxUploadSize(),
+                                    uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
+                        } finally {
+                            encodedData.close();
                         }
                     }
+                } catch (Base64DecodingInputStream.IllegalEncodingException ex) {
+                    sendBadRequest(res, "Incorrect base64 data");
+                    return;
                 } catch (FileUploadBase.SizeLimitExceededException ex) {
                     LOG.error(HTTP_MAX_UPLOAD_SIZE + " exceeded: " + ex.getLocalizedMessage(), ex);
                     res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
                         "Maximum content length is " + uploadConfig.getMaxUploadSize() + " bytes");
                     return;
+                } catch (FileUploadBase.FileUploadIOException ex) {
+                    // Limit exceeded while streaming the form fields
+                    if (ex.getCause() instanceof FileUploadBase.SizeLimitExceededException) {
+                        LOG.error(HTTP_MAX_UPLOAD_SIZE + " exceeded: " + ex.getCause().getLocalizedMessage(), ex);
+                        res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                            "Maximum content length is " + uploadConfig.getMaxUploadSize() + " bytes");
+                        return;
+                    }
+                    throw new ServletException("Upload failed", ex.getCause());
                 } catch (FileUploadException ex) {
                     throw new ServletException("Upload failed", ex);
                 }
@@ -384,11 +390,8 @@ public class GenericProcessServlet extends AbstractProcessServlet {
                         LOG.debug("Request Content-type: " + req.getContentType());
                     }
 
-                    final BinaryFileUpload upload = new BinaryFileUpload(req.getInputStream(), req.getContentType(), factory);
-                    upload.setSizeMax(uploadConfig.getMaxUploadSize());
-                    
                     try {
-                        data = dataFactory.createReadableData(upload.parseTheRequest(), uploadConfig.getRepository());
+                        data = dataFactory.createReadableData(req.getInputStream(), uploadConfig.getMaxUploadSize(), uploadConfig.getSizeThreshold(), uploadConfig.getRepository());
                     } catch (FileUploadBase.SizeLimitExceededException ex) {
                         LOG.error(HTTP_MAX_UPLOAD_SIZE + " exceeded: " + ex.getLocalizedMessage());
                         res.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
@@ -428,14 +431,6 @@ public class GenericProcessServlet extends AbstractProcessServlet {
                     }
                     LOG.error("Unable to remove temporary upload file: " + ex.getLocalizedMessage());
                 }
-            } else if (itemsToDelete != null) { // Clean up any files in case we failed before setting 'data'
-                for (FileItem fileItem : itemsToDelete) {
-                    try {
-                        fileItem.delete();
-                    } catch (Throwable e) {
-                        // ignore it
-                    }
-                }
             }
         }
 
@@ -540,7 +535,7 @@ public class GenericProcessServlet extends AbstractProcessServlet {
 
         final int requestId = ThreadLocalRandom.current().nextInt();
 
-        try (CloseableWritableData responseData = dataFactory.createWritableData(data, uploadConfig.getRepository())) {
+        try (CloseableWritableData responseData = dataFactory.createWritableData(data, uploadConfig.getSizeThreshold(), uploadConfig.getRepository())) {
             String responseText;
             
             switch (processType) {
@@ -559,11 +554,7 @@ public class GenericProcessServlet extends AbstractProcessServlet {
                         ReadableData readable = sigResponse.getResponseData().toReadableData();
 
                         res.setContentType(sigResponse.getContentType());
-
-                        //EE7:res.setContentLengthLong()
-                        res.addHeader("Content-Length", String.valueOf(readable.getLength()));
-
-                        IOUtils.copyLarge(readable.getAsInputStream(), res.getOutputStream());
+                        ResponseDataWriter.write(res, readable);
                     } else if (response instanceof LegacyResponse) {
                         LegacyResponse legResponse = (LegacyResponse) response;
                         byte[] processedBytes = (byte[]) ((GenericSignResponse) legResponse.getLegacyResponse()).getProcessedData();
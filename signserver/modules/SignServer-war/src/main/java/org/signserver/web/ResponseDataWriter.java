@@ -0,0 +1,94 @@
+/*************************************************************************
+ *                                                                       *
+ *  SignServer: The OpenSource Automated Signing Server                  *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.signserver.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.Logger;
+import org.signserver.common.data.ReadableData;
+
+/**
+ * Writes response data to the servlet response.
+ *
+ * File backed data is read with a FileChannel, exactly the expected length,
+ * and copied to the container's stream through a 64 KB buffer. The servlet
+ * API gives no channel to the socket, so transferTo would only copy through
+ * the smaller buffer of a channel wrapping the stream. In-memory data is
+ * streamed so that it does not have to be joined into one array. No buffers
+ * are kept between requests, so nothing is left in the container's threads
+ * when the application is undeployed.
+ *
+ * @version $Id$
+ */
+final class ResponseDataWriter {
+
+    /** Logger for this class. */
+    private static final Logger LOG = Logger.getLogger(ResponseDataWriter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ResponseDataWriter() {}
+
+    /**
+     * Sets the content length and writes the data to the response.
+     * The output stream is not closed.
+     *
+     * @param res servlet response to write to
+     * @param data to write
+     * @throws IOException in case of read or write failure
+     */
+    static void write(final HttpServletResponse res, final ReadableData data) throws IOException {
+        final long length = data.getLength();
+
+        //EE7:res.setContentLengthLong()
+        res.addHeader("Content-Length", String.valueOf(length));
+
+        final OutputStream out = res.getOutputStream();
+        if (data.isFile()) {
+            try (FileChannel channel = FileChannel.open(data.getAsFile().toPath(), StandardOpenOption.READ)) {
+                copy(channel, out, length);
+            }
+        } else {
+            try (InputStream in = data.getAsInputStream()) {
+                final byte[] buffer = new byte[(int) Math.max(1, Math.min(length, BUFFER_SIZE))];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    private static void copy(final FileChannel channel, final OutputStream out, final long length) throws IOException {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Copying " + length + " bytes from file");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(length, BUFFER_SIZE)));
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            final int n = channel.read(buffer, position);
+            if (n <= 0) {
+                throw new IOException("Response data ended after " + position + " of " + length + " bytes");
+            }
+            out.write(buffer.array(), 0, n);
+            position += n;
+        }
+    }
+}
@@ -12,9 +12,7 @@
  *************************************************************************/
 package org.signserver.web;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
@@ -28,7 +26,6 @@ import javax.ejb.EJB;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.io.IOUtils;
 
 import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Base64;
@@ -45,6 +42,7 @@ import org.signserver.common.WorkerIdentifier;
 import org.signserver.common.data.ReadableData;
 import org.signserver.common.data.SODRequest;
 import org.signserver.common.data.SODResponse;
+import org.signserver.ejb.interfaces.GlobalConfigurationSessionLocal;
 import org.signserver.ejb.interfaces.ProcessSessionLocal;
 import org.signserver.server.CredentialUtils;
 import org.signserver.server.log.AdminInfo;
@@ -100,8 +98,10 @@ public class SODProcessServlet extends AbstractProcessServlet {
     @EJB
     private WorkerSessionLocal workerSession;
 
+    @EJB
+    private GlobalConfigurationSessionLocal globalSession;
+
     private DataFactory dataFactory;
-    private final File fileRepository = new UploadConfig().getRepository();
     
     private ProcessSessionLocal getProcessSession() {
         return processSession;
@@ -271,7 +271,8 @@ public class SODProcessServlet extends AbstractProcessServlet {
             final int requestId = ThreadLocalRandom.current().nextInt();
 
             SODResponse response;
-            try (CloseableWritableData responseData = dataFactory.createWritableData(false, fileRepository)) {
+            final UploadConfig uploadConfig = UploadConfig.create(globalSession);
+            try (CloseableWritableData responseData = dataFactory.createWritableData(false, uploadConfig.getSizeThreshold(), uploadConfig.getRepository())) {
                 final RequestContext context = new RequestContext((X509Certificate) clientCertificate, remoteAddr);
                 final String xForwardedFor = req.getHeader(RequestContext.X_FORWARDED_FOR);
                 final LogMap logMap = LogMap.getInstance(context);
@@ -303,13 +304,8 @@ public class SODProcessServlet extends AbstractProcessServlet {
                 ReadableData readable = responseData.toReadableData();
                 res.setContentType(CONTENT_TYPE_BINARY);
                 
-                //EE7:res.setContentLengthLong()
-                res.addHeader("Content-Length", String.valueOf(readable.getLength()));
-                try (
-                        InputStream in = readable.getAsInputStream();
-                        OutputStream out = res.getOutputStream();
-                    ) {
-                    IOUtils.copyLarge(in, out);
+                try (OutputStream out = res.getOutputStream()) {
+                    ResponseDataWriter.write(res, readable);
                 }
             }  catch (AuthorizationRequiredException e) {
                 if (LOG.isDebugEnabled()) {